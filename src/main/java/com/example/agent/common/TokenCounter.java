@@ -0,0 +1,121 @@
+package com.example.agent.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 本地token估算
+ * 不依赖分词器：中日韩字符及全角符号按每字1个token计，其余字符按每4个字符1个token计，
+ * 每条消息另加固定开销；结果略偏保守，用于预算控制而非计费
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+public final class TokenCounter {
+
+    /**
+     * 每条消息的固定开销（角色、分隔符等）
+     */
+    public static final int MESSAGE_OVERHEAD_TOKENS = 4;
+
+    /**
+     * 非中日韩字符每个token对应的字符数
+     */
+    private static final int CHARS_PER_TOKEN = 4;
+
+    private TokenCounter() {
+    }
+
+    /**
+     * 估算文本token数
+     *
+     * @param text 文本
+     * @return token数
+     */
+    public static int count(CharSequence text) {
+        if (text == null || text.length() == 0) {
+            return 0;
+        }
+
+        int wideChars = 0;
+        int otherChars = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (isWide(text.charAt(i))) {
+                wideChars++;
+            } else {
+                otherChars++;
+            }
+        }
+        return wideChars + (otherChars + CHARS_PER_TOKEN - 1) / CHARS_PER_TOKEN;
+    }
+
+    /**
+     * 估算单条消息token数
+     *
+     * @param content 消息内容
+     * @return token数
+     */
+    public static int countMessage(CharSequence content) {
+        return count(content) + MESSAGE_OVERHEAD_TOKENS;
+    }
+
+    /**
+     * 按估算token数切分文本，每段不超过maxTokens；优先在每段后半部分的空白（含换行）处断开，不拆开代理对
+     *
+     * @param text      文本
+     * @param maxTokens 每段最大token数
+     * @return 文本段
+     */
+    public static List<String> split(String text, int maxTokens) {
+        List<String> chunks = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return chunks;
+        }
+
+        int budget = Math.max(1, maxTokens) * CHARS_PER_TOKEN;
+        int start = 0;
+        while (start < text.length()) {
+            // 以1/4 token为单位累计，中日韩字符记4个单位
+            int end = start;
+            int used = 0;
+            while (end < text.length()) {
+                int cost = isWide(text.charAt(end)) ? CHARS_PER_TOKEN : 1;
+                if (used + cost > budget && end > start) {
+                    break;
+                }
+                used += cost;
+                end++;
+            }
+
+            // 不拆开代理对（如emoji），段首即为代理对时整对放入
+            if (end < text.length() && Character.isLowSurrogate(text.charAt(end))
+                    && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end += end - 1 > start ? -1 : 1;
+            }
+
+            if (end < text.length()) {
+                int mid = start + (end - start) / 2;
+                for (int i = end; i > mid; i--) {
+                    if (Character.isWhitespace(text.charAt(i - 1))) {
+                        end = i;
+                        break;
+                    }
+                }
+            }
+            chunks.add(text.substring(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * 是否为中日韩字符或全角符号
+     */
+    private static boolean isWide(char c) {
+        return (c >= '\u2E80' && c <= '\u9FFF')
+                || (c >= '\uAC00' && c <= '\uD7AF')
+                || (c >= '\uF900' && c <= '\uFAFF')
+                || (c >= '\uFF00' && c <= '\uFFEF');
+    }
+
+}
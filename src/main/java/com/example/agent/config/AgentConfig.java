@@ -1,9 +1,13 @@
 package com.example.agent.config;
 
+import com.example.agent.enums.AgentRole;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Agent配置
  *
@@ -25,9 +29,229 @@ public class AgentConfig {
      */
     private Integer timeout = 300;
 
+    /**
+     * 单步超时时间（秒），0表示不限制，仅受任务超时约束
+     */
+    private Integer stepTimeout = 0;
+
+    /**
+     * 模型输出增量单帧最大字符数
+     */
+    private Integer deltaMaxChars = 64;
+
+    /**
+     * 模型输出增量最大合并间隔（毫秒）
+     */
+    private Integer deltaMaxDelay = 50;
+
+    /**
+     * 单个步骤内并发执行的最大工具调用数
+     */
+    private Integer maxParallelTools = 4;
+
+    /**
+     * 是否在模型流式输出期间推测执行只读工具调用
+     */
+    private Boolean speculativeToolsEnabled = true;
+
+    /**
+     * 多Agent编排模式下最多并行执行的子Agent数
+     */
+    private Integer multiAgentMaxParallel = 4;
+
+    /**
+     * 多Agent编排模式下协调者最多分解的子任务数
+     */
+    private Integer multiAgentMaxSubtasks = 8;
+
+    /**
+     * 上下文超过该token数时自动以map-reduce模式执行，默认0即关闭自动开启，仅请求显式开启时启用
+     */
+    private Integer mapReduceThresholdTokens = 0;
+
+    /**
+     * map-reduce模式下每个分片及每组归并输入的token预算
+     */
+    private Integer mapReduceShardTokens = 3000;
+
+    /**
+     * map-reduce模式下最多并行执行的子Agent数
+     */
+    private Integer mapReduceMaxParallel = 4;
+
+    /**
+     * 是否启用集群模式：任务提交到Redis Stream队列，由任一节点领取执行
+     */
+    private Boolean clusterEnabled = false;
+
+    /**
+     * 集群节点ID，为空时使用主机名加随机后缀
+     */
+    private String clusterNodeId;
+
+    /**
+     * 领取新任务的轮询间隔（毫秒）
+     */
+    private Long clusterPollInterval = 200L;
+
+    /**
+     * 刷新执行中任务空闲时间并接管失联节点任务的间隔（毫秒）
+     */
+    private Long clusterHeartbeatInterval = 10000L;
+
+    /**
+     * 任务条目空闲超过该时间视为所属节点失联，可被其他节点接管（毫秒）
+     */
+    private Long clusterClaimIdle = 60000L;
+
+    /**
+     * 单个任务的最大投递次数，超过后判定失败
+     */
+    private Integer clusterMaxDeliveries = 3;
+
+    /**
+     * 集群任务队列最大积压数，达到后拒绝新任务
+     */
+    private Integer clusterMaxQueuedTasks = 1000;
+
+    /**
+     * 是否把任务事件广播到Redis频道，使任一节点都可订阅任意任务的实时事件；为空时跟随集群模式，单节点默认不广播
+     */
+    private Boolean taskEventFanoutEnabled;
+
     /**
      * 最大并发agent数量
      */
     private Integer maxConcurrentAgents = 5;
 
+    /**
+     * 最大排队任务数，超出后拒绝新任务
+     */
+    private Integer maxQueuedTasks = 100;
+
+    /**
+     * 拒绝任务时建议的最小重试等待时间（秒）
+     */
+    private Integer retryAfterSeconds = 5;
+
+    /**
+     * 内存中保留的已完成任务数量上限
+     */
+    private Integer finishedTaskCacheSize = 1000;
+
+    /**
+     * 已完成任务在内存中的保留时间（秒）
+     */
+    private Integer finishedTaskTtl = 300;
+
+    /**
+     * 已完成任务的定期清理间隔（毫秒），读取之外也按数量和存活时间淘汰
+     */
+    private Integer finishedTaskSweepInterval = 30000;
+
+    /**
+     * 任务状态写缓冲刷新间隔（毫秒）
+     */
+    private Integer writeBehindFlushInterval = 50;
+
+    /**
+     * 任务状态写缓冲最大待写入步骤数，达到后写入步骤的任务等待刷新完成
+     */
+    private Integer writeBehindMaxPending = 10000;
+
+    /**
+     * 写缓冲中任务写入失败后的初始重试间隔（毫秒），按任务指数退避
+     */
+    private Long writeBehindRetryBackoff = 200L;
+
+    /**
+     * 立即刷新（任务终止、缓冲区满）失败时的最大重试次数，耗尽后终止状态不归档
+     */
+    private Integer writeBehindFlushRetries = 3;
+
+    /**
+     * 待归档任务队列容量
+     */
+    private Integer archiveQueueCapacity = 1000;
+
+    /**
+     * 单批归档任务数
+     */
+    private Integer archiveBatchSize = 50;
+
+    /**
+     * 归档间隔（毫秒）
+     */
+    private Integer archiveFlushInterval = 1000;
+
+    /**
+     * 归档失败最大重试次数
+     */
+    private Integer archiveMaxRetries = 3;
+
+    /**
+     * 归档后Redis中任务数据的保留时间（秒）
+     */
+    private Integer archivedTaskTtl = 600;
+
+    /**
+     * 未能归档的任务（归档队列已满、重试耗尽或停机时仍未写入）在Redis中的保留时间（秒），避免任务键永久残留
+     */
+    private Integer unarchivedTaskTtl = 86400;
+
+    /**
+     * 对话上下文token预算，超出后压缩较早轮次，0表示不限制
+     */
+    private Integer contextMaxTokens = 8000;
+
+    /**
+     * 压缩时原样保留的最近轮次数
+     */
+    private Integer contextKeepRecentTurns = 2;
+
+    /**
+     * 较早轮次的观察结果和工具输出截断后保留的字符数
+     */
+    private Integer contextElidedChars = 200;
+
+    /**
+     * 是否启用模型响应缓存
+     */
+    private Boolean llmCacheEnabled = true;
+
+    /**
+     * 本地模型响应缓存最大条目数
+     */
+    private Integer llmCacheMaxEntries = 1000;
+
+    /**
+     * 模型响应缓存有效期（秒）
+     */
+    private Integer llmCacheTtl = 3600;
+
+    /**
+     * 是否合并相同的并发模型请求
+     */
+    private Boolean llmCoalesceEnabled = true;
+
+    /**
+     * 是否启用模型级联（需在部署池中配置SMALL层级的部署）
+     */
+    private Boolean cascadeEnabled = false;
+
+    /**
+     * 启用级联的Agent角色，为空表示全部角色
+     */
+    private List<AgentRole> cascadeRoles = new ArrayList<>();
+
+    /**
+     * 小模型最大输出token数
+     */
+    private Integer cascadeSmallMaxTokens = 1024;
+
+    /**
+     * 单个任务升级次数达到该值后，剩余步骤直接使用大模型
+     */
+    private Integer cascadeMaxEscalations = 2;
+
 }
@@ -1,13 +1,14 @@
 package com.example.agent.config;
 
-import com.azure.ai.openai.OpenAIAsyncClient;
-import com.azure.ai.openai.OpenAIClientBuilder;
-import com.azure.core.credential.AzureKeyCredential;
+import com.example.agent.enums.ModelTier;
+import com.example.agent.enums.RoutingStrategy;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
-import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Azure OpenAI配置
  *
@@ -55,16 +56,121 @@ public class AzureOpenAIConfig {
     private Boolean stream = true;
 
     /**
-     * 创建Azure OpenAI异步客户端
-     *
-     * @return OpenAIAsyncClient
+     * 部署每分钟请求数配额（RPM）
+     */
+    private Integer requestsPerMinute = 300;
+
+    /**
+     * 部署每分钟token数配额（TPM）
+     */
+    private Integer tokensPerMinute = 60000;
+
+    /**
+     * 限流（429）后的最大重试次数
+     */
+    private Integer rateLimitMaxRetries = 3;
+
+    /**
+     * 每个部署等待限流额度的调用数上限，超出时切换到其他部署或直接失败
+     */
+    private Integer rateLimitMaxQueued = 100;
+
+    /**
+     * 部署路由策略
+     */
+    private RoutingStrategy routing = RoutingStrategy.EWMA_LATENCY;
+
+    /**
+     * 延迟EWMA的衰减半衰期（秒）：部署无新样本时延迟估计按该半衰期向0衰减，慢部署空闲一段时间后会再次收到请求作为探测
+     */
+    private Integer ewmaDecayHalfLife = 30;
+
+    /**
+     * 连续失败多少次后暂时摘除部署
+     */
+    private Integer ejectFailureThreshold = 3;
+
+    /**
+     * 部署摘除时长（秒）
+     */
+    private Integer ejectDuration = 30;
+
+    /**
+     * 是否对流式请求启用对冲
+     */
+    private Boolean hedgeEnabled = false;
+
+    /**
+     * 触发对冲的首token延迟分位（百分位）
+     */
+    private Integer hedgePercentile = 95;
+
+    /**
+     * 计算分位所需的最少首token延迟样本数，不足时不对冲
+     */
+    private Integer hedgeMinSamples = 20;
+
+    /**
+     * 最小对冲延迟（毫秒）
+     */
+    private Integer hedgeMinDelay = 100;
+
+    /**
+     * 对冲预算：每个请求积累的对冲额度，0.1表示对冲请求最多约占10%
+     */
+    private Double hedgeBudgetRatio = 0.1;
+
+    /**
+     * 部署池，为空时只使用上面的单个端点和部署
+     */
+    private List<Deployment> deployments = new ArrayList<>();
+
+    /**
+     * 部署配置，未配置的端点、密钥和配额沿用上面的默认值
      */
-    @Bean
-    public OpenAIAsyncClient openAIAsyncClient() {
-        return new OpenAIClientBuilder()
-                .endpoint(endpoint)
-                .credential(new AzureKeyCredential(apiKey))
-                .buildAsyncClient();
+    @Data
+    public static class Deployment {
+
+        /**
+         * 名称，用于路由记录和指标
+         */
+        private String name;
+
+        /**
+         * Azure OpenAI端点
+         */
+        private String endpoint;
+
+        /**
+         * API密钥
+         */
+        private String apiKey;
+
+        /**
+         * 部署名称
+         */
+        private String deploymentName;
+
+        /**
+         * 模型层级，级联模式先使用SMALL层级的部署
+         */
+        private ModelTier tier = ModelTier.LARGE;
+
+        /**
+         * 路由权重
+         */
+        private Integer weight = 1;
+
+        /**
+         * 每分钟请求数配额（RPM）
+         */
+        private Integer requestsPerMinute;
+
+        /**
+         * 每分钟token数配额（TPM）
+         */
+        private Integer tokensPerMinute;
+
     }
 
 }
@@ -1,9 +1,21 @@
 package com.example.agent.controller;
 
-import com.example.agent.model.dto.AgentStepDto;
+import com.example.agent.enums.AgentEventType;
+import com.example.agent.model.dto.AgentEventDto;
 import com.example.agent.model.dto.AgentTaskRequest;
 import com.example.agent.model.dto.AgentTaskResponse;
+import com.example.agent.service.AgentClusterWorker;
 import com.example.agent.service.AgentExecutor;
+import com.example.agent.service.AgentPromptCache;
+import com.example.agent.service.AgentTaskArchiver;
+import com.example.agent.service.AgentTaskEventBus;
+import com.example.agent.service.AgentTaskRegistry;
+import com.example.agent.service.AgentTaskScheduler;
+import com.example.agent.service.AgentTaskWriteBehind;
+import com.example.agent.service.AzureOpenAIDeploymentPool;
+import com.example.agent.service.LlmRequestCoalescer;
+import com.example.agent.service.LlmResponseCache;
+import com.example.agent.service.ModelCascadePolicy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.MediaType;
@@ -12,6 +24,8 @@ import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Flux;
 
 import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Agent控制器
@@ -26,6 +40,17 @@ import java.time.Duration;
 public class AgentController {
 
     private final AgentExecutor agentExecutor;
+    private final AgentTaskScheduler agentTaskScheduler;
+    private final AgentTaskRegistry agentTaskRegistry;
+    private final AgentTaskWriteBehind agentTaskWriteBehind;
+    private final AgentTaskArchiver agentTaskArchiver;
+    private final AgentPromptCache agentPromptCache;
+    private final LlmResponseCache llmResponseCache;
+    private final LlmRequestCoalescer llmRequestCoalescer;
+    private final AzureOpenAIDeploymentPool azureOpenAIDeploymentPool;
+    private final ModelCascadePolicy modelCascadePolicy;
+    private final AgentClusterWorker agentClusterWorker;
+    private final AgentTaskEventBus agentTaskEventBus;
 
     /**
      * 执行Agent任务（流式）
@@ -34,15 +59,11 @@ public class AgentController {
      * @return SSE流式响应
      */
     @PostMapping(value = "/execute/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public Flux<ServerSentEvent<AgentStepDto>> executeAgentTaskStream(@RequestBody AgentTaskRequest request) {
+    public Flux<ServerSentEvent<Object>> executeAgentTaskStream(@RequestBody AgentTaskRequest request) {
         log.info("Received agent task request: {}", request);
 
         return agentExecutor.executeAgentTask(request)
-                .map(step -> ServerSentEvent.<AgentStepDto>builder()
-                        .id(String.valueOf(step.getStepNumber()))
-                        .event("step")
-                        .data(step)
-                        .build())
+                .map(this::toServerSentEvent)
                 .doOnComplete(() -> log.info("Agent task completed"))
                 .doOnError(error -> log.error("Error in agent task execution", error));
     }
@@ -57,7 +78,7 @@ public class AgentController {
     public AgentTaskResponse getTaskStatus(@PathVariable String taskId) {
         log.info("Getting task status for: {}", taskId);
 
-        AgentTaskResponse response = agentExecutor.getTaskFromRedis(taskId);
+        AgentTaskResponse response = agentExecutor.getTask(taskId);
 
         if (response == null) {
             log.warn("Task not found: {}", taskId);
@@ -66,6 +87,44 @@ public class AgentController {
         return response;
     }
 
+    /**
+     * 订阅任务事件（流式），任一节点均可订阅，先补发已有步骤再推送实时事件
+     *
+     * @param taskId 任务ID
+     * @return SSE流式响应
+     */
+    @GetMapping(value = "/task/{taskId}/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<Object>> subscribeTaskStream(@PathVariable String taskId) {
+        log.info("Subscribing to task events: {}", taskId);
+
+        return agentExecutor.subscribeTask(taskId)
+                .map(this::toServerSentEvent)
+                .doOnError(error -> log.warn("Task event subscription ended with error: {}", taskId, error));
+    }
+
+    /**
+     * 获取运行指标
+     *
+     * @return 指标
+     */
+    @GetMapping("/metrics")
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("scheduler", agentTaskScheduler.getStats());
+        metrics.put("registry", agentTaskRegistry.getStats());
+        metrics.put("writeBehind", agentTaskWriteBehind.getStats());
+        metrics.put("archiver", agentTaskArchiver.getStats());
+        metrics.put("promptCache", agentPromptCache.getStats());
+        metrics.put("llmCache", llmResponseCache.getStats());
+        metrics.put("llmCoalescer", llmRequestCoalescer.getStats());
+        metrics.put("deploymentPool", azureOpenAIDeploymentPool.getStats());
+        metrics.put("cascade", modelCascadePolicy.getStats());
+        metrics.put("speculativeTools", agentExecutor.getSpeculationStats());
+        metrics.put("cluster", agentClusterWorker.getStats());
+        metrics.put("taskEvents", agentTaskEventBus.getStats());
+        return metrics;
+    }
+
     /**
      * 健康检查
      *
@@ -76,4 +135,25 @@ public class AgentController {
         return "OK";
     }
 
+    /**
+     * 转换为SSE事件，步骤事件保持以步骤本身作为数据
+     *
+     * @param event Agent事件
+     * @return SSE事件
+     */
+    private ServerSentEvent<Object> toServerSentEvent(AgentEventDto event) {
+        if (event.getType() == AgentEventType.STEP) {
+            return ServerSentEvent.<Object>builder()
+                    .id(String.valueOf(event.getStep().getStepNumber()))
+                    .event(event.getType().getCode())
+                    .data(event.getStep())
+                    .build();
+        }
+
+        return ServerSentEvent.<Object>builder()
+                .event(event.getType().getCode())
+                .data(event)
+                .build();
+    }
+
 }
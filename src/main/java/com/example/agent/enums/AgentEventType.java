@@ -0,0 +1,46 @@
+package com.example.agent.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Agent事件类型枚举（对应SSE事件名称）
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Getter
+@AllArgsConstructor
+public enum AgentEventType {
+
+    /**
+     * 步骤完成
+     */
+    STEP("step", "步骤完成"),
+
+    /**
+     * 排队中
+     */
+    QUEUED("queued", "排队中"),
+
+    /**
+     * 模型输出增量
+     */
+    DELTA("delta", "模型输出增量"),
+
+    /**
+     * 等待模型限流额度
+     */
+    THROTTLED("throttled", "等待模型限流额度");
+
+    /**
+     * 事件名称
+     */
+    private final String code;
+
+    /**
+     * 事件描述
+     */
+    private final String description;
+
+}
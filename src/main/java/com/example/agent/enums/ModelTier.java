@@ -0,0 +1,36 @@
+package com.example.agent.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 模型层级枚举（用于级联模式）
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Getter
+@AllArgsConstructor
+public enum ModelTier {
+
+    /**
+     * 小模型：低成本、低延迟
+     */
+    SMALL("small", "小模型"),
+
+    /**
+     * 大模型：默认层级
+     */
+    LARGE("large", "大模型");
+
+    /**
+     * 层级编码
+     */
+    private final String code;
+
+    /**
+     * 层级描述
+     */
+    private final String description;
+
+}
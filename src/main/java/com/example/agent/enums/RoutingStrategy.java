@@ -0,0 +1,41 @@
+package com.example.agent.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 模型部署路由策略枚举
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Getter
+@AllArgsConstructor
+public enum RoutingStrategy {
+
+    /**
+     * 按权重随机
+     */
+    WEIGHTED("weighted", "按权重随机"),
+
+    /**
+     * 最少进行中请求
+     */
+    LEAST_OUTSTANDING("least_outstanding", "最少进行中请求"),
+
+    /**
+     * 首token延迟EWMA最低（按进行中请求数加权）
+     */
+    EWMA_LATENCY("ewma_latency", "延迟EWMA最低");
+
+    /**
+     * 策略编码
+     */
+    private final String code;
+
+    /**
+     * 策略描述
+     */
+    private final String description;
+
+}
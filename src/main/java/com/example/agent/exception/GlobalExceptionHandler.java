@@ -2,7 +2,10 @@ package com.example.agent.exception;
 
 import com.example.agent.common.Result;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.validation.BindException;
 import org.springframework.validation.FieldError;
 import org.springframework.web.bind.MethodArgumentNotValidException;
@@ -69,6 +72,21 @@ public class GlobalExceptionHandler {
         return Result.error(HttpStatus.BAD_REQUEST.value(), e.getMessage());
     }
 
+    /**
+     * 处理任务被拒绝异常
+     *
+     * @param e 异常
+     * @return Result
+     */
+    @ExceptionHandler(TaskRejectedException.class)
+    public ResponseEntity<Result<?>> handleTaskRejectedException(TaskRejectedException e) {
+        log.warn("任务被拒绝: {}, retryAfter={}s", e.getMessage(), e.getRetryAfterSeconds());
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(Result.error(HttpStatus.TOO_MANY_REQUESTS.value(), e.getMessage()));
+    }
+
     /**
      * 处理运行时异常
      *
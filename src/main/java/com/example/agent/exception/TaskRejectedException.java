@@ -0,0 +1,24 @@
+package com.example.agent.exception;
+
+import lombok.Getter;
+
+/**
+ * 任务被拒绝异常（排队已满）
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Getter
+public class TaskRejectedException extends RuntimeException {
+
+    /**
+     * 建议重试等待时间（秒）
+     */
+    private final long retryAfterSeconds;
+
+    public TaskRejectedException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+}
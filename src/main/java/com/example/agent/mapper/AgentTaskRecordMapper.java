@@ -2,7 +2,11 @@ package com.example.agent.mapper;
 
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.example.agent.entity.AgentTaskRecord;
+import org.apache.ibatis.annotations.Insert;
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * Agent任务记录Mapper
@@ -13,4 +17,24 @@ import org.apache.ibatis.annotations.Mapper;
 @Mapper
 public interface AgentTaskRecordMapper extends BaseMapper<AgentTaskRecord> {
 
+    /**
+     * 多行批量写入，任务ID已存在时覆盖原记录（集群接管重新执行的任务会再次归档）
+     *
+     * @param records 任务记录列表
+     * @return 影响行数
+     */
+    @Insert("<script>" +
+            "INSERT INTO agent_task_record (task_id, task_description, agent_role, status, steps, result, " +
+            "total_iterations, start_time, end_time, error_message) VALUES " +
+            "<foreach collection='records' item='item' separator=','>" +
+            "(#{item.taskId}, #{item.taskDescription}, #{item.agentRole}, #{item.status}, #{item.steps}, " +
+            "#{item.result}, #{item.totalIterations}, #{item.startTime}, #{item.endTime}, #{item.errorMessage})" +
+            "</foreach>" +
+            " ON DUPLICATE KEY UPDATE task_description = VALUES(task_description), agent_role = VALUES(agent_role), " +
+            "status = VALUES(status), steps = VALUES(steps), result = VALUES(result), " +
+            "total_iterations = VALUES(total_iterations), start_time = VALUES(start_time), " +
+            "end_time = VALUES(end_time), error_message = VALUES(error_message), deleted = 0" +
+            "</script>")
+    int upsertBatch(@Param("records") List<AgentTaskRecord> records);
+
 }
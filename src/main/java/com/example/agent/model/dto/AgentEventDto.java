@@ -0,0 +1,128 @@
+package com.example.agent.model.dto;
+
+import com.example.agent.enums.AgentEventType;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Agent流式事件DTO
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Data
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@NoArgsConstructor
+@AllArgsConstructor
+public class AgentEventDto {
+
+    /**
+     * 事件类型
+     */
+    private AgentEventType type;
+
+    /**
+     * 任务ID
+     */
+    private String taskId;
+
+    /**
+     * 产生该事件的子Agent（多Agent编排模式），单Agent任务为空
+     */
+    private String agent;
+
+    /**
+     * 步骤信息（STEP事件）
+     */
+    private AgentStepDto step;
+
+    /**
+     * 排队位置，从1开始（QUEUED事件）
+     */
+    private Integer queuePosition;
+
+    /**
+     * 步骤序号（DELTA事件）
+     */
+    private Integer stepNumber;
+
+    /**
+     * 模型输出增量（DELTA事件）
+     */
+    private String delta;
+
+    /**
+     * 预计等待毫秒数（THROTTLED事件）
+     */
+    private Long waitMillis;
+
+    /**
+     * 步骤事件
+     *
+     * @param taskId 任务ID
+     * @param step   步骤
+     * @return AgentEventDto
+     */
+    public static AgentEventDto step(String taskId, AgentStepDto step) {
+        return AgentEventDto.builder()
+                .type(AgentEventType.STEP)
+                .taskId(taskId)
+                .agent(step.getAgent())
+                .step(step)
+                .build();
+    }
+
+    /**
+     * 排队事件
+     *
+     * @param taskId        任务ID
+     * @param queuePosition 排队位置
+     * @return AgentEventDto
+     */
+    public static AgentEventDto queued(String taskId, int queuePosition) {
+        return AgentEventDto.builder()
+                .type(AgentEventType.QUEUED)
+                .taskId(taskId)
+                .queuePosition(queuePosition)
+                .build();
+    }
+
+    /**
+     * 模型输出增量事件
+     *
+     * @param taskId     任务ID
+     * @param stepNumber 步骤序号
+     * @param delta      增量文本
+     * @return AgentEventDto
+     */
+    public static AgentEventDto delta(String taskId, int stepNumber, String delta) {
+        return AgentEventDto.builder()
+                .type(AgentEventType.DELTA)
+                .taskId(taskId)
+                .stepNumber(stepNumber)
+                .delta(delta)
+                .build();
+    }
+
+    /**
+     * 限流等待事件
+     *
+     * @param taskId     任务ID
+     * @param stepNumber 步骤序号
+     * @param waitMillis 预计等待毫秒数
+     * @return AgentEventDto
+     */
+    public static AgentEventDto throttled(String taskId, int stepNumber, long waitMillis) {
+        return AgentEventDto.builder()
+                .type(AgentEventType.THROTTLED)
+                .taskId(taskId)
+                .stepNumber(stepNumber)
+                .waitMillis(waitMillis)
+                .build();
+    }
+
+}
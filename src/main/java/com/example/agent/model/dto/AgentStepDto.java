@@ -1,6 +1,7 @@
 package com.example.agent.model.dto;
 
 import com.example.agent.enums.AgentStatus;
+import com.example.agent.enums.ModelTier;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -26,6 +27,16 @@ public class AgentStepDto {
      */
     private Integer stepNumber;
 
+    /**
+     * 产生该步骤的子Agent（多Agent编排模式），单Agent任务为空
+     */
+    private String agent;
+
+    /**
+     * 执行轮次，从1开始；集群模式下任务被其他节点接管并从头重新执行时递增
+     */
+    private Integer attempt;
+
     /**
      * 步骤状态
      */
@@ -42,15 +53,50 @@ public class AgentStepDto {
     private String action;
 
     /**
-     * 工具调用
+     * 工具调用（多个调用时为第一个）
      */
     private ToolCallDto toolCall;
 
+    /**
+     * 本步骤的全部工具调用，按模型给出的顺序排列
+     */
+    private List<ToolCallDto> toolCalls;
+
     /**
      * 观察结果
      */
     private String observation;
 
+    /**
+     * 本步骤实际服务的模型部署（命中响应缓存时为cache）
+     */
+    private String deployment;
+
+    /**
+     * 最终作答的模型层级
+     */
+    private ModelTier modelTier;
+
+    /**
+     * 从小模型升级到大模型的原因，未升级为空
+     */
+    private String escalationReason;
+
+    /**
+     * 本步骤提示词的估算token数
+     */
+    private Integer promptTokens;
+
+    /**
+     * 步骤时间预算（毫秒）
+     */
+    private Long budgetMillis;
+
+    /**
+     * 步骤结束时任务剩余时间预算（毫秒）
+     */
+    private Long remainingBudgetMillis;
+
     /**
      * 开始时间
      */
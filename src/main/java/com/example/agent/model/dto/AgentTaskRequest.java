@@ -58,4 +58,24 @@ public class AgentTaskRequest {
      */
     private Boolean stream;
 
+    /**
+     * 是否允许使用模型响应缓存，温度为0时默认使用
+     */
+    private Boolean cacheResponse;
+
+    /**
+     * 是否为困难任务，级联模式下直接使用大模型
+     */
+    private Boolean hard;
+
+    /**
+     * 是否以多Agent编排模式执行，仅协调者角色生效：协调者分解出子任务依赖图，子Agent按依赖并行执行
+     */
+    private Boolean multiAgent;
+
+    /**
+     * 是否以map-reduce模式处理上下文：为空时按配置的阈值自动启用（默认阈值为0，不自动启用），false表示始终整体放入提示词
+     */
+    private Boolean mapReduce;
+
 }
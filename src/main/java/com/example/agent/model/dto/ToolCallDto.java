@@ -55,4 +55,9 @@ public class ToolCallDto {
      */
     private String errorMessage;
 
+    /**
+     * 结果是否来自流式输出期间的推测执行
+     */
+    private Boolean speculative;
+
 }
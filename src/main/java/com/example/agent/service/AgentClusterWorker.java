@@ -0,0 +1,236 @@
+package com.example.agent.service;
+
+import com.example.agent.config.AgentConfig;
+import com.example.agent.enums.AgentStatus;
+import com.example.agent.exception.TaskRejectedException;
+import com.example.agent.model.dto.AgentTaskResponse;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Agent集群工作节点
+ * 集群模式下定期从任务队列领取任务在本节点执行，执行中的任务数不超过agent.max-concurrent-agents，
+ * 空闲槽位越多领取越多，新增节点即增加集群吞吐；事件回传给接收请求的节点，任务结束后确认条目；
+ * 领取数同时受本地调度器空闲槽位限制，领取后仍无法启动的条目归还队列，不计投递次数
+ * 定期刷新执行中条目的空闲时间，并接管空闲超时（所属节点已宕机）的条目，投递次数超限的条目直接判定失败，
+ * 与其他终止任务一样写入失败状态并归档
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class AgentClusterWorker {
+
+    private final AgentConfig agentConfig;
+    private final AgentTaskQueue taskQueue;
+    private final AgentEventRelay eventRelay;
+    private final AgentTaskWriteBehind taskWriteBehind;
+    private final AgentExecutor agentExecutor;
+    private final AgentTaskStore taskStore;
+    private final AgentTaskScheduler taskScheduler;
+    private final AgentTaskArchiver taskArchiver;
+
+    /**
+     * 本节点执行中的任务，键为流条目ID
+     */
+    private final Map<String, AgentTaskQueue.QueuedTask> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * 单线程调度器，领取和接管按顺序执行
+     */
+    private final Scheduler workerScheduler = Schedulers.newSingle("agent-cluster-worker");
+
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong deadLetterCount = new AtomicLong();
+
+    private final List<Disposable> schedules = new ArrayList<>();
+
+    @PostConstruct
+    public void start() {
+        if (!Boolean.TRUE.equals(agentConfig.getClusterEnabled())) {
+            return;
+        }
+        taskQueue.createGroup();
+
+        long pollInterval = agentConfig.getClusterPollInterval();
+        long heartbeatInterval = agentConfig.getClusterHeartbeatInterval();
+        schedules.add(workerScheduler.schedulePeriodically(this::pollSafely, pollInterval, pollInterval,
+                TimeUnit.MILLISECONDS));
+        schedules.add(workerScheduler.schedulePeriodically(this::heartbeatSafely, heartbeatInterval,
+                heartbeatInterval, TimeUnit.MILLISECONDS));
+        log.info("Cluster worker started: nodeId={}", taskQueue.getNodeId());
+    }
+
+    @PreDestroy
+    public void stop() {
+        schedules.forEach(Disposable::dispose);
+        workerScheduler.dispose();
+    }
+
+    /**
+     * 获取工作节点运行指标
+     *
+     * @return 指标
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", Boolean.TRUE.equals(agentConfig.getClusterEnabled()));
+        if (!Boolean.TRUE.equals(agentConfig.getClusterEnabled())) {
+            return stats;
+        }
+        stats.put("inFlight", inFlight.size());
+        stats.put("completed", completedCount.get());
+        stats.put("failed", failedCount.get());
+        stats.put("deadLettered", deadLetterCount.get());
+        stats.put("queue", taskQueue.getStats());
+        stats.put("relay", eventRelay.getStats());
+        return stats;
+    }
+
+    private void pollSafely() {
+        try {
+            int free = freeSlots();
+            if (free > 0) {
+                taskQueue.read(free).forEach(this::launch);
+            }
+        } catch (Exception e) {
+            log.error("Error polling cluster task queue", e);
+        }
+    }
+
+    private void heartbeatSafely() {
+        try {
+            taskQueue.touch(new ArrayList<>(inFlight.keySet()));
+
+            int free = freeSlots();
+            if (free > 0) {
+                Duration minIdle = Duration.ofMillis(agentConfig.getClusterClaimIdle());
+                taskQueue.reclaim(minIdle, free).forEach(this::launch);
+            }
+        } catch (Exception e) {
+            log.error("Error reclaiming cluster tasks", e);
+        }
+    }
+
+    /**
+     * 可领取的任务数：本节点执行中的任务数未达上限，且本地调度器有空闲槽位（子Agent借用的槽位同样计入）
+     */
+    private int freeSlots() {
+        return Math.min(agentConfig.getMaxConcurrentAgents() - inFlight.size(), taskScheduler.availableSlots());
+    }
+
+    /**
+     * 在本节点执行领取到的任务
+     *
+     * @param task 任务
+     */
+    private void launch(AgentTaskQueue.QueuedTask task) {
+        if (task.request() == null) {
+            log.error("Dropping malformed task queue entry: recordId={}", task.recordId());
+            taskQueue.ack(task.recordId());
+            return;
+        }
+        if (task.deliveries() > agentConfig.getClusterMaxDeliveries()) {
+            log.error("Task exceeded max deliveries, dropping: taskId={}, deliveries={}", task.taskId(),
+                    task.deliveries());
+            deadLetterCount.incrementAndGet();
+            deadLetter(task, "任务执行节点多次失联，已放弃执行");
+            taskQueue.ack(task.recordId());
+            return;
+        }
+        if (inFlight.putIfAbsent(task.recordId(), task) != null) {
+            return;
+        }
+
+        if (task.deliveries() > 1) {
+            // 之前领取的节点已失联，从头重新执行，清除其写入的步骤
+            log.warn("Rerunning task from failed node: taskId={}, deliveries={}", task.taskId(), task.deliveries());
+            taskStore.clearSteps(task.taskId());
+        }
+
+        try {
+            agentExecutor.executeLocal(task.request(), (int) task.deliveries())
+                    .subscribe(
+                            event -> eventRelay.publish(task.origin(), task.taskId(), event),
+                            error -> workerScheduler.schedule(() -> finish(task, error)),
+                            () -> workerScheduler.schedule(() -> finish(task, null)));
+        } catch (TaskRejectedException e) {
+            // 本地调度器已满，立即归还条目，避免空闲超时后被接管并计入投递次数
+            log.warn("Local scheduler full, requeueing task: taskId={}", task.taskId());
+            inFlight.remove(task.recordId());
+            try {
+                taskQueue.requeue(task);
+            } catch (Exception requeueError) {
+                log.error("Error requeueing task, it will be reclaimed after idle timeout: taskId={}",
+                        task.taskId(), requeueError);
+            }
+        }
+    }
+
+    /**
+     * 判定任务失败：写入失败状态，通知接收节点和订阅者，状态落盘后归档；保留已失联节点写入的步骤
+     */
+    private void deadLetter(AgentTaskQueue.QueuedTask task, String errorMessage) {
+        AgentTaskResponse response = taskStore.load(task.taskId());
+        if (response == null) {
+            response = AgentTaskResponse.builder()
+                    .taskId(task.taskId())
+                    .steps(new ArrayList<>())
+                    .totalIterations(0)
+                    .build();
+        }
+        response.setStatus(AgentStatus.FAILED);
+        response.setErrorMessage(errorMessage);
+        response.setEndTime(LocalDateTime.now());
+
+        AgentTaskResponse failed = response;
+        taskWriteBehind.enqueueStatus(failed);
+        taskWriteBehind.enqueueCompletion(task.taskId(), errorMessage);
+        eventRelay.complete(task.origin(), task.taskId(), errorMessage);
+        taskWriteBehind.flush(task.taskId())
+                .then(Mono.<Void>fromRunnable(() -> taskArchiver.submit(failed, task.request().getTask(),
+                        task.request().getRole())))
+                .subscribe(null, e -> log.error("Failed status not persisted, skipping archive, taskId={}",
+                        task.taskId(), e));
+    }
+
+    /**
+     * 任务结束：通知接收节点并确认条目
+     */
+    private void finish(AgentTaskQueue.QueuedTask task, Throwable error) {
+        if (error != null) {
+            failedCount.incrementAndGet();
+        } else {
+            completedCount.incrementAndGet();
+        }
+        eventRelay.complete(task.origin(), task.taskId(), error != null ? error.getMessage() : null);
+        try {
+            taskQueue.ack(task.recordId());
+        } catch (Exception e) {
+            log.error("Error acknowledging task: taskId={}", task.taskId(), e);
+        } finally {
+            inFlight.remove(task.recordId());
+        }
+    }
+
+}
@@ -0,0 +1,269 @@
+package com.example.agent.service;
+
+import com.alibaba.fastjson2.JSON;
+import com.azure.ai.openai.models.ChatCompletionsToolCall;
+import com.azure.ai.openai.models.ChatRequestMessage;
+import com.example.agent.common.TokenCounter;
+import com.example.agent.model.dto.ToolCallDto;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Agent上下文窗口
+ * 按本地估算的token数维护对话历史：系统提示词、任务消息和最近若干轮始终原样保留；
+ * 超出预算时先截断较早轮次的观察结果和工具输出，仍超出则把最早的轮次移入滚动摘要，
+ * 使每步的提示词token数趋于平稳而不是随迭代线性增长
+ * 非线程安全，仅在单个任务的步骤链中按顺序使用
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+public class AgentContextWindow {
+
+    /**
+     * 滚动摘要最多保留的行数
+     */
+    private static final int DIGEST_MAX_LINES = 20;
+
+    /**
+     * 摘要中每段内容的最大字符数
+     */
+    private static final int DIGEST_SNIPPET_CHARS = 80;
+
+    private final AzureOpenAIService azureOpenAIService;
+    private final ChatRequestMessage systemMessage;
+    private final ChatRequestMessage taskMessage;
+    private final int fixedTokens;
+    private final int maxTokens;
+    private final int keepRecentTurns;
+    private final int elidedChars;
+
+    private final List<Turn> turns = new ArrayList<>();
+    private final Deque<String> digestLines = new ArrayDeque<>();
+    private int turnTokens;
+    private int digestTokens;
+    private int digestedTurns;
+    private List<ChatRequestMessage> messages;
+
+    /**
+     * @param azureOpenAIService Azure OpenAI服务，用于创建消息
+     * @param prompt             缓存的系统提示词
+     * @param task               任务描述
+     * @param maxTokens          提示词token预算，小于等于0表示不限制
+     * @param keepRecentTurns    原样保留的最近轮次数
+     * @param elidedChars        截断后保留的观察结果字符数
+     */
+    public AgentContextWindow(AzureOpenAIService azureOpenAIService, AgentPromptCache.CachedPrompt prompt,
+                              String task, int maxTokens, int keepRecentTurns, int elidedChars) {
+        this.azureOpenAIService = azureOpenAIService;
+        this.systemMessage = prompt.systemMessage();
+        this.taskMessage = azureOpenAIService.createUserMessage(task);
+        this.fixedTokens = prompt.promptTokens() + prompt.toolTokens() + TokenCounter.countMessage(task);
+        this.maxTokens = maxTokens;
+        this.keepRecentTurns = Math.max(1, keepRecentTurns);
+        this.elidedChars = Math.max(0, elidedChars);
+    }
+
+    /**
+     * 追加文本轮次：助手行动和观察结果
+     *
+     * @param action      行动内容
+     * @param observation 观察结果
+     */
+    public void addTextTurn(String action, String observation) {
+        add(new Turn(action, null, observation == null ? List.of() : List.of(observation)));
+    }
+
+    /**
+     * 追加工具调用轮次：带工具调用的助手消息，以及按调用顺序排列的工具结果
+     *
+     * @param content   助手文本内容
+     * @param calls     拼装完成的工具调用
+     * @param toolCalls 工具调用结果
+     */
+    public void addToolTurn(String content, List<StreamingToolCallAssembler.AssembledToolCall> calls,
+                            List<ToolCallDto> toolCalls) {
+        List<String> outputs = new ArrayList<>(toolCalls.size());
+        for (ToolCallDto toolCall : toolCalls) {
+            outputs.add(JSON.toJSONString(toolCall.getResult()));
+        }
+        add(new Turn(content == null || content.isEmpty() ? null : content, calls, outputs));
+    }
+
+    /**
+     * 获取发送给模型的消息列表，历史未变化时复用上次结果
+     *
+     * @return 消息列表
+     */
+    public List<ChatRequestMessage> messages() {
+        if (messages == null) {
+            List<ChatRequestMessage> result = new ArrayList<>(turns.size() * 2 + 3);
+            result.add(systemMessage);
+            result.add(taskMessage);
+            if (!digestLines.isEmpty()) {
+                result.add(azureOpenAIService.createUserMessage(digestText()));
+            }
+            for (Turn turn : turns) {
+                turn.appendTo(result);
+            }
+            messages = result;
+        }
+        return messages;
+    }
+
+    /**
+     * 获取当前提示词的估算token数
+     *
+     * @return token数
+     */
+    public int getTokens() {
+        return fixedTokens + digestTokens + turnTokens;
+    }
+
+    /**
+     * 获取已移入摘要的轮次数
+     *
+     * @return 轮次数
+     */
+    public int getDigestedTurns() {
+        return digestedTurns;
+    }
+
+    private void add(Turn turn) {
+        turns.add(turn);
+        turnTokens += turn.tokens;
+        compact();
+        messages = null;
+    }
+
+    /**
+     * 压缩历史直到回到预算内，最近的轮次不参与压缩
+     */
+    private void compact() {
+        if (maxTokens <= 0) {
+            return;
+        }
+
+        int elideFrom = 0;
+        while (getTokens() > maxTokens && turns.size() > keepRecentTurns) {
+            int compactable = turns.size() - keepRecentTurns;
+
+            // 优先截断最早未截断轮次的输出
+            while (elideFrom < compactable && turns.get(elideFrom).elided) {
+                elideFrom++;
+            }
+            if (elideFrom < compactable) {
+                Turn turn = turns.get(elideFrom);
+                int before = turn.tokens;
+                turn.elide(elidedChars);
+                turnTokens += turn.tokens - before;
+                continue;
+            }
+
+            // 全部截断后仍超出，把最早的轮次移入摘要
+            Turn oldest = turns.remove(0);
+            turnTokens -= oldest.tokens;
+            elideFrom = 0;
+            digestedTurns++;
+            digestLines.addLast(oldest.digest(digestedTurns));
+            while (digestLines.size() > DIGEST_MAX_LINES) {
+                digestLines.removeFirst();
+            }
+            digestTokens = TokenCounter.countMessage(digestText());
+        }
+    }
+
+    private String digestText() {
+        return "此前步骤摘要:\n" + String.join("\n", digestLines);
+    }
+
+    private static String truncate(String text, int maxChars) {
+        if (text == null || text.length() <= maxChars) {
+            return text;
+        }
+        return text.substring(0, maxChars) + "...[已省略" + (text.length() - maxChars) + "字符]";
+    }
+
+    /**
+     * 对话轮次
+     */
+    private final class Turn {
+
+        private final String content;
+        private final List<StreamingToolCallAssembler.AssembledToolCall> calls;
+        private final List<String> outputs;
+        private List<String> sentOutputs;
+        private boolean elided;
+        private int tokens;
+        private List<ChatRequestMessage> turnMessages;
+
+        private Turn(String content, List<StreamingToolCallAssembler.AssembledToolCall> calls, List<String> outputs) {
+            this.content = content;
+            this.calls = calls;
+            this.outputs = outputs;
+            this.sentOutputs = outputs;
+            this.tokens = countTokens();
+        }
+
+        private void elide(int maxChars) {
+            List<String> truncated = new ArrayList<>(outputs.size());
+            for (String output : outputs) {
+                truncated.add(truncate(output, maxChars));
+            }
+            sentOutputs = truncated;
+            elided = true;
+            tokens = countTokens();
+            turnMessages = null;
+        }
+
+        private int countTokens() {
+            int count = content == null && calls == null ? 0 : TokenCounter.countMessage(content);
+            if (calls != null) {
+                for (StreamingToolCallAssembler.AssembledToolCall call : calls) {
+                    count += TokenCounter.count(call.name()) + TokenCounter.count(call.arguments());
+                }
+            }
+            for (String output : sentOutputs) {
+                count += TokenCounter.countMessage(output);
+            }
+            return count;
+        }
+
+        private void appendTo(List<ChatRequestMessage> target) {
+            if (turnMessages == null) {
+                List<ChatRequestMessage> built = new ArrayList<>(sentOutputs.size() + 1);
+                if (calls != null) {
+                    List<ChatCompletionsToolCall> requestToolCalls = calls.stream()
+                            .map(call -> azureOpenAIService.createFunctionToolCall(call.id(), call.name(),
+                                    call.arguments()))
+                            .toList();
+                    built.add(azureOpenAIService.createAssistantToolCallMessage(content, requestToolCalls));
+                    for (int i = 0; i < sentOutputs.size(); i++) {
+                        built.add(azureOpenAIService.createToolMessage(sentOutputs.get(i), calls.get(i).id()));
+                    }
+                } else {
+                    if (content != null) {
+                        built.add(azureOpenAIService.createAssistantMessage(content));
+                    }
+                    for (String output : sentOutputs) {
+                        built.add(azureOpenAIService.createUserMessage("观察结果: " + output));
+                    }
+                }
+                turnMessages = built;
+            }
+            target.addAll(turnMessages);
+        }
+
+        private String digest(int turnNumber) {
+            String action = calls != null
+                    ? "调用 " + String.join(",", calls.stream().map(StreamingToolCallAssembler.AssembledToolCall::name).toList())
+                    : truncate(content, DIGEST_SNIPPET_CHARS);
+            String result = outputs.isEmpty() ? "" : truncate(outputs.get(0), DIGEST_SNIPPET_CHARS);
+            return "- 第" + turnNumber + "轮: " + (action == null ? "" : action) + " -> " + result;
+        }
+    }
+
+}
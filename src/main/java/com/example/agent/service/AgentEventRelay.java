@@ -0,0 +1,198 @@
+package com.example.agent.service;
+
+import com.alibaba.fastjson2.JSON;
+import com.example.agent.config.AgentConfig;
+import com.example.agent.model.dto.AgentEventDto;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Agent事件回传
+ * 集群模式下任务可能在其他节点执行，执行节点把事件发布到接收请求节点的频道 agent:node:{nodeId}:events，
+ * 接收节点按任务ID转交给对应的SSE流；各节点启动时即订阅自身频道，任务提交前打开回传，不会丢失早期事件
+ * 发布在单线程上按顺序执行，监听容器单线程分发，同一任务的事件保持顺序
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class AgentEventRelay {
+
+    private static final String NODE_CHANNEL_PREFIX = "agent:node:";
+    private static final String NODE_CHANNEL_SUFFIX = ":events";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final AgentTaskQueue taskQueue;
+    private final AgentConfig agentConfig;
+
+    /**
+     * 本节点等待回传的任务
+     */
+    private final Map<String, Sinks.Many<AgentEventDto>> relays = new ConcurrentHashMap<>();
+
+    /**
+     * 单线程发布调度器，保证同一任务的事件按顺序发布
+     */
+    private final Scheduler publishScheduler = Schedulers.newSingle("agent-event-relay");
+
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong orphanedCount = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        if (Boolean.TRUE.equals(agentConfig.getClusterEnabled())) {
+            listenerContainer.addMessageListener(this::onMessage, new ChannelTopic(nodeChannel(taskQueue.getNodeId())));
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        publishScheduler.dispose();
+    }
+
+    /**
+     * 打开任务的事件回传，需在任务提交前调用
+     *
+     * @param taskId 任务ID
+     * @return 事件流，执行节点报告任务结束时完成
+     */
+    public Flux<AgentEventDto> open(String taskId) {
+        Sinks.Many<AgentEventDto> sink = Sinks.many().unicast().onBackpressureBuffer();
+        relays.put(taskId, sink);
+        return sink.asFlux().doFinally(signal -> relays.remove(taskId, sink));
+    }
+
+    /**
+     * 关闭任务的事件回传
+     *
+     * @param taskId 任务ID
+     */
+    public void close(String taskId) {
+        Sinks.Many<AgentEventDto> sink = relays.remove(taskId);
+        if (sink != null) {
+            sink.tryEmitComplete();
+        }
+    }
+
+    /**
+     * 把事件回传到接收节点
+     *
+     * @param origin 接收请求的节点ID
+     * @param taskId 任务ID
+     * @param event  事件
+     */
+    public void publish(String origin, String taskId, AgentEventDto event) {
+        send(origin, new RelayMessage(taskId, event, false, null));
+    }
+
+    /**
+     * 通知接收节点任务结束
+     *
+     * @param origin 接收请求的节点ID
+     * @param taskId 任务ID
+     * @param error  失败原因，正常结束为null
+     */
+    public void complete(String origin, String taskId, String error) {
+        send(origin, new RelayMessage(taskId, null, true, error));
+    }
+
+    /**
+     * 获取回传运行指标
+     *
+     * @return 指标
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("relaying", relays.size());
+        stats.put("published", publishedCount.get());
+        stats.put("received", receivedCount.get());
+        stats.put("orphaned", orphanedCount.get());
+        return stats;
+    }
+
+    /**
+     * 发送回传消息，接收节点为本节点时直接转交
+     */
+    private void send(String origin, RelayMessage message) {
+        if (taskQueue.getNodeId().equals(origin)) {
+            publishScheduler.schedule(() -> deliver(message));
+            return;
+        }
+        String payload = JSON.toJSONString(message);
+        publishScheduler.schedule(() -> {
+            try {
+                stringRedisTemplate.convertAndSend(nodeChannel(origin), payload);
+                publishedCount.incrementAndGet();
+            } catch (Exception e) {
+                log.warn("Error relaying event to node {}, taskId={}", origin, message.taskId(), e);
+            }
+        });
+    }
+
+    private void onMessage(Message message, byte[] pattern) {
+        receivedCount.incrementAndGet();
+        try {
+            deliver(JSON.parseObject(new String(message.getBody(), StandardCharsets.UTF_8), RelayMessage.class));
+        } catch (Exception e) {
+            log.warn("Malformed relay message on {}", new String(message.getChannel(), StandardCharsets.UTF_8), e);
+        }
+    }
+
+    /**
+     * 转交给等待中的SSE流，客户端已断开时丢弃
+     */
+    private void deliver(RelayMessage message) {
+        Sinks.Many<AgentEventDto> sink = relays.get(message.taskId());
+        if (sink == null) {
+            orphanedCount.incrementAndGet();
+            return;
+        }
+        if (!message.completed()) {
+            sink.tryEmitNext(message.event());
+            return;
+        }
+        relays.remove(message.taskId(), sink);
+        if (message.error() != null) {
+            sink.tryEmitError(new IllegalStateException(message.error()));
+        } else {
+            sink.tryEmitComplete();
+        }
+    }
+
+    private static String nodeChannel(String nodeId) {
+        return NODE_CHANNEL_PREFIX + nodeId + NODE_CHANNEL_SUFFIX;
+    }
+
+    /**
+     * 回传消息
+     *
+     * @param taskId    任务ID
+     * @param event     事件，结束消息为null
+     * @param completed 是否为结束消息
+     * @param error     失败原因
+     */
+    public record RelayMessage(String taskId, AgentEventDto event, boolean completed, String error) {
+    }
+
+}
@@ -1,24 +1,34 @@
 package com.example.agent.service;
 
 import com.alibaba.fastjson2.JSON;
-import com.azure.ai.openai.models.ChatCompletionsFunctionToolDefinition;
 import com.azure.ai.openai.models.ChatRequestMessage;
-import com.azure.ai.openai.models.FunctionDefinition;
+import com.example.agent.common.TokenCounter;
 import com.example.agent.config.AgentConfig;
+import com.example.agent.entity.AgentTaskRecord;
 import com.example.agent.enums.AgentRole;
 import com.example.agent.enums.AgentStatus;
+import com.example.agent.enums.ModelTier;
+import com.example.agent.exception.TaskRejectedException;
 import com.example.agent.model.dto.*;
 import com.example.agent.tool.AgentTool;
+import com.example.agent.tool.ToolRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -35,333 +45,1141 @@ public class AgentExecutor {
 
     private final AzureOpenAIService azureOpenAIService;
     private final AgentConfig agentConfig;
-    private final RedisTemplate<String, Object> redisTemplate;
-    private final List<AgentTool> agentTools;
+    private final ToolRegistry toolRegistry;
+    private final AgentPromptCache promptCache;
+    private final ModelCascadePolicy cascadePolicy;
+    private final AgentTaskScheduler taskScheduler;
+    private final AgentTaskRegistry taskRegistry;
+    private final AgentTaskStore taskStore;
+    private final AgentTaskWriteBehind taskWriteBehind;
+    private final AgentTaskArchiver taskArchiver;
+    private final AgentTaskRecordService agentTaskRecordService;
+    private final AgentTaskQueue taskQueue;
+    private final AgentEventRelay eventRelay;
+    private final AgentTaskEventBus taskEventBus;
 
-    /**
-     * 存储正在执行的任务
-     */
-    private final Map<String, AgentTaskResponse> runningTasks = new ConcurrentHashMap<>();
+    private final AtomicLong speculativeHits = new AtomicLong();
+    private final AtomicLong speculativeDiscarded = new AtomicLong();
 
     /**
      * 执行Agent任务（流式）
+     * 集群模式下提交到集群任务队列，由任一工作节点执行并把事件回传到本节点，否则在本节点执行
      *
      * @param request 任务请求
-     * @return 流式响应
+     * @return 流式事件
      */
-    public Flux<AgentStepDto> executeAgentTask(AgentTaskRequest request) {
+    public Flux<AgentEventDto> executeAgentTask(AgentTaskRequest request) {
+        if (request.getTaskId() != null) {
+            // 调用方指定的任务ID可能与旧版本格式的任务重复
+            taskStore.evictLegacy(request.getTaskId());
+        }
         String taskId = request.getTaskId() != null ? request.getTaskId() : UUID.randomUUID().toString();
         request.setTaskId(taskId);
 
+        if (Boolean.TRUE.equals(agentConfig.getClusterEnabled())) {
+            return submitToCluster(request);
+        }
+        return executeLocal(request);
+    }
+
+    /**
+     * 提交到集群任务队列，先打开事件回传再入队，保证不丢失早期事件
+     *
+     * @param request 任务请求
+     * @return 回传的流式事件
+     */
+    private Flux<AgentEventDto> submitToCluster(AgentTaskRequest request) {
+        String taskId = request.getTaskId();
+        Flux<AgentEventDto> events = eventRelay.open(taskId);
+        try {
+            // 入队前同步写入初始状态，领取前即可查询到任务，且不会覆盖执行节点写入的状态
+            taskStore.saveStatus(AgentTaskResponse.builder()
+                    .taskId(taskId)
+                    .status(AgentStatus.INITIALIZED)
+                    .startTime(LocalDateTime.now())
+                    .totalIterations(0)
+                    .build());
+            taskQueue.enqueue(request, taskQueue.getNodeId());
+        } catch (RuntimeException e) {
+            eventRelay.close(taskId);
+            throw e;
+        }
+        return events;
+    }
+
+    /**
+     * 在本节点执行Agent任务（流式）
+     *
+     * @param request 任务请求，需已分配任务ID
+     * @return 流式事件
+     */
+    public Flux<AgentEventDto> executeLocal(AgentTaskRequest request) {
+        return executeLocal(request, 1);
+    }
+
+    /**
+     * 在本节点执行Agent任务（流式）
+     *
+     * @param request 任务请求，需已分配任务ID
+     * @param attempt 执行轮次，集群模式下为任务条目的投递次数，写入各步骤用于区分重新执行前后的步骤
+     * @return 流式事件
+     */
+    public Flux<AgentEventDto> executeLocal(AgentTaskRequest request, int attempt) {
+        String taskId = request.getTaskId();
+
         // 初始化任务响应
         AgentTaskResponse response = AgentTaskResponse.builder()
                 .taskId(taskId)
                 .status(AgentStatus.INITIALIZED)
-                .steps(new ArrayList<>())
+                .steps(new CopyOnWriteArrayList<>())
                 .startTime(LocalDateTime.now())
                 .totalIterations(0)
                 .build();
 
-        runningTasks.put(taskId, response);
-
-        // 保存到Redis
-        saveTaskToRedis(taskId, response);
+        // 创建Sink用于发送事件，任务执行与客户端订阅解耦；多Agent编排模式下子Agent并发下发事件，需串行化
+        // 事件同时经写缓冲批量广播到任务频道，供其他节点的订阅者接收
+        Sinks.Many<AgentEventDto> sink = Sinks.many().multicast().onBackpressureBuffer();
+        Consumer<AgentEventDto> emitter = event -> {
+            synchronized (sink) {
+                sink.tryEmitNext(event);
+            }
+            taskWriteBehind.enqueueEvent(taskId, event);
+        };
 
-        // 创建Sink用于发送步骤更新
-        Sinks.Many<AgentStepDto> sink = Sinks.many().multicast().onBackpressureBuffer();
+        taskRegistry.register(taskId, response);
 
-        // 异步执行Agent循环
-        executeAgentLoop(request, response, sink);
+        // 提交到调度器，有空闲槽位时立即在后台启动Agent循环，否则排队并推送排队位置
+        try {
+            taskScheduler.submit(taskId,
+                    () -> {
+                        long startNanos = System.nanoTime();
+                        AgentTaskContext context = createContext(request, response, emitter);
+                        context.setAttempt(attempt);
+                        persistStatus(context)
+                                .thenMany(executeTask(context))
+                                .doFinally(signal -> {
+                                    taskRegistry.complete(taskId);
+                                    taskScheduler.release(taskId, (System.nanoTime() - startNanos) / 1_000_000);
+                                })
+                                .subscribe(
+                                        step -> emitter.accept(AgentEventDto.step(taskId, step)),
+                                        error -> {
+                                            log.error("Agent loop terminated with error, taskId={}", taskId, error);
+                                            taskWriteBehind.enqueueCompletion(taskId, error.getMessage());
+                                            synchronized (sink) {
+                                                sink.tryEmitError(error);
+                                            }
+                                        },
+                                        () -> {
+                                            taskWriteBehind.enqueueCompletion(taskId, null);
+                                            synchronized (sink) {
+                                                sink.tryEmitComplete();
+                                            }
+                                        });
+                    },
+                    position -> emitter.accept(AgentEventDto.queued(taskId, position)));
+        } catch (TaskRejectedException e) {
+            taskRegistry.remove(taskId);
+            throw e;
+        }
 
         return sink.asFlux();
     }
 
     /**
-     * 执行Agent循环
+     * 订阅任务事件，可在任意节点订阅任意任务：先补发已有步骤，再接收实时事件直到任务结束
      *
-     * @param request  请求
-     * @param response 响应
-     * @param sink     步骤发送器
+     * @param taskId 任务ID
+     * @return 流式事件
      */
-    private void executeAgentLoop(AgentTaskRequest request, AgentTaskResponse response, Sinks.Many<AgentStepDto> sink) {
+    public Flux<AgentEventDto> subscribeTask(String taskId) {
+        return taskEventBus.subscribe(taskId, () -> getTask(taskId));
+    }
+
+    /**
+     * 创建任务上下文，任务截止时间从启动时开始计算，排队时间不计入
+     *
+     * @param request       请求
+     * @param response      响应
+     * @param eventListener 事件监听器
+     * @return 任务上下文
+     */
+    private AgentTaskContext createContext(AgentTaskRequest request, AgentTaskResponse response,
+                                           Consumer<AgentEventDto> eventListener) {
         // 获取最大迭代次数
         int maxIterations = request.getMaxIterations() != null ?
                 request.getMaxIterations() : agentConfig.getMaxIterations();
 
-        // 构建系统提示词
-        String systemPrompt = buildSystemPrompt(request.getRole(), request.getAvailableTools());
+        return new AgentTaskContext(request, response, maxIterations, agentConfig.getTimeout() * 1000L,
+                eventListener);
+    }
 
-        // 初始化消息列表
-        List<ChatRequestMessage> messages = new ArrayList<>();
-        messages.add(azureOpenAIService.createSystemMessage(systemPrompt));
-        messages.add(azureOpenAIService.createUserMessage(request.getTask()));
+    /**
+     * 按请求选择执行模式：多Agent编排、大输入的map-reduce或单Agent循环
+     *
+     * @param context 任务上下文
+     * @return 步骤流
+     */
+    private Flux<AgentStepDto> executeTask(AgentTaskContext context) {
+        AgentTaskRequest request = context.getRequest();
+        if (isMultiAgent(request)) {
+            return executeMultiAgent(context);
+        }
+        if (isMapReduce(request)) {
+            return executeMapReduce(context);
+        }
+        return executeAgentLoop(context);
+    }
+
+    /**
+     * 执行Agent循环
+     * 每个步骤完成后立即下发，再由expand展开下一步骤，全程无阻塞调用
+     *
+     * @param context 任务上下文
+     * @return 步骤流
+     */
+    private Flux<AgentStepDto> executeAgentLoop(AgentTaskContext context) {
+        AgentTaskRequest request = context.getRequest();
+        AgentTaskResponse response = context.getResponse();
+        int maxIterations = context.getMaxIterations();
+
+        // 获取缓存的系统提示词和函数工具定义
+        AgentPromptCache.CachedPrompt prompt = promptCache.get(request.getRole(), request.getAvailableTools());
+        context.setToolDefinitions(prompt.toolDefinitions());
 
-        // 执行循环
-        for (int i = 0; i < maxIterations; i++) {
-            AgentStepDto step = executeStep(i + 1, messages, request);
+        // 初始化上下文窗口
+        context.setContextWindow(new AgentContextWindow(azureOpenAIService, prompt, taskText(request),
+                agentConfig.getContextMaxTokens(), agentConfig.getContextKeepRecentTurns(),
+                agentConfig.getContextElidedChars()));
 
-            // 发送步骤更新
-            sink.tryEmitNext(step);
+        return executeStep(1, context)
+                .flatMap(step -> recordStep(context, step))
+                .expand(step -> {
+                    // 检查是否完成
+                    if (isTerminal(step) || step.getStepNumber() >= maxIterations) {
+                        return Mono.empty();
+                    }
 
-            // 添加到响应
-            response.getSteps().add(step);
-            response.setTotalIterations(i + 1);
+                    return executeStep(step.getStepNumber() + 1, context)
+                            .flatMap(next -> recordStep(context, next));
+                })
+                .concatWith(Mono.<AgentStepDto>defer(() -> {
+                    if (isTerminal(response.getStatus())) {
+                        return Mono.empty();
+                    }
+                    // 达到最大迭代次数
+                    response.setStatus(AgentStatus.COMPLETED);
+                    response.setEndTime(LocalDateTime.now());
+                    response.setResult("已达到最大迭代次数");
+                    return persistStatus(context).then(Mono.empty());
+                }));
+    }
+
+    /**
+     * 记录步骤结果并持久化
+     *
+     * @param context 任务上下文
+     * @param step    步骤
+     * @return 步骤
+     */
+    private Mono<AgentStepDto> recordStep(AgentTaskContext context, AgentStepDto step) {
+        AgentTaskResponse response = context.getResponse();
+        step.setAttempt(context.getAttempt());
 
-            // 更新Redis
-            saveTaskToRedis(request.getTaskId(), response);
+        // 添加到响应
+        response.getSteps().add(step);
+        response.setTotalIterations(step.getStepNumber());
 
-            // 检查是否完成
-            if (step.getStatus() == AgentStatus.COMPLETED || step.getStatus() == AgentStatus.FAILED) {
-                response.setStatus(step.getStatus());
-                response.setEndTime(LocalDateTime.now());
-                response.setResult(step.getObservation());
-                saveTaskToRedis(request.getTaskId(), response);
-                sink.tryEmitComplete();
-                return;
+        if (isTerminal(step)) {
+            response.setStatus(step.getStatus());
+            response.setEndTime(LocalDateTime.now());
+            response.setResult(step.getObservation());
+            if (step.getStatus() == AgentStatus.FAILED) {
+                response.setErrorMessage(step.getObservation());
             }
+        }
+
+        // 子Agent的步骤标记来源后并入父任务，由父任务持久化
+        if (context.isSubAgent()) {
+            AgentTaskContext parent = context.getParent();
+            step.setAgent(context.getAgent());
+            parent.getResponse().getSteps().add(step);
+            taskRegistry.recordStep(parent.getTaskId(), step);
+            return taskWriteBehind.enqueueStep(parent.getTaskId(), step).thenReturn(step);
+        }
+
+        taskRegistry.recordStep(context.getTaskId(), step);
+        return persistStep(context, step).thenReturn(step);
+    }
+
+    /**
+     * 任务消息文本，请求带有上下文时附在任务描述之后
+     */
+    private String taskText(AgentTaskRequest request) {
+        Map<String, Object> taskContext = request.getContext();
+        if (taskContext == null || taskContext.isEmpty()) {
+            return request.getTask();
+        }
+        return request.getTask() + "\n\n任务上下文:\n" + JSON.toJSONString(taskContext);
+    }
+
+    /**
+     * 是否以多Agent编排模式执行
+     */
+    private boolean isMultiAgent(AgentTaskRequest request) {
+        return request.getRole() == AgentRole.COORDINATOR && Boolean.TRUE.equals(request.getMultiAgent());
+    }
+
+    /**
+     * 多Agent编排执行
+     * 协调者先把任务分解为子任务依赖图并记录为第1步，随后各子任务作为独立的子Agent循环执行：
+     * 依赖全部完成即启动，互不依赖的子Agent并行，上游结果沿依赖边传入下游任务描述，最终由审核节点给出答案；
+     * 分解失败时退回单Agent循环
+     *
+     * @param context 任务上下文
+     * @return 全部子Agent的步骤流
+     */
+    private Flux<AgentStepDto> executeMultiAgent(AgentTaskContext context) {
+        AgentTaskRequest request = context.getRequest();
+        List<String> tools = request.getAvailableTools() != null ? request.getAvailableTools() : List.of();
 
-            // 添加助手消息到对话历史
-            if (step.getAction() != null) {
-                messages.add(azureOpenAIService.createAssistantMessage(step.getAction()));
+        AgentStepDto step = AgentStepDto.builder()
+                .stepNumber(1)
+                .agent(AgentRole.COORDINATOR.getCode())
+                .status(AgentStatus.THINKING)
+                .startTime(LocalDateTime.now())
+                .build();
+
+        List<ChatRequestMessage> messages = List.of(
+                azureOpenAIService.createSystemMessage(
+                        AgentTaskGraph.buildPlanningPrompt(tools, agentConfig.getMultiAgentMaxSubtasks())),
+                azureOpenAIService.createUserMessage(request.getTask()));
+        LlmCallOptions callOptions = LlmCallOptions.builder()
+                .cacheable(context.isCacheResponse())
+                .servedBy(step::setDeployment)
+                .build();
+
+        return azureOpenAIService.chatCompletionStream(messages, callOptions)
+                .collect(Collectors.joining())
+                .timeout(Duration.ofMillis(Math.max(1, stepBudgetMillis(context))))
+                .map(plan -> AgentTaskGraph.parse(plan, tools, agentConfig.getMultiAgentMaxSubtasks()))
+                .onErrorResume(e -> {
+                    log.warn("Task decomposition failed, falling back to single agent loop, taskId={}",
+                            context.getTaskId(), e);
+                    return Mono.empty();
+                })
+                .flatMapMany(graph -> {
+                    log.info("Task decomposed into {} subtasks, critical path {}, taskId={}",
+                            graph.getNodes().size(), graph.getCriticalPathLength(), context.getTaskId());
+                    step.setStatus(AgentStatus.EXECUTING);
+                    step.setAction("任务分解");
+                    step.setObservation(graph.toJson());
+                    step.setEndTime(LocalDateTime.now());
+                    step.setRemainingBudgetMillis(context.remainingMillis());
+                    return recordStep(context, step).flux().concatWith(executeGraph(context, graph));
+                })
+                .switchIfEmpty(Flux.defer(() -> executeAgentLoop(context)));
+    }
+
+    /**
+     * 按依赖图执行子Agent
+     * 全部节点同时订阅，各自等待依赖完成；只有依赖已完成的节点才向并发闸门申请许可，
+     * 等待依赖的节点不占用许可，执行时间取决于关键路径
+     *
+     * @param context 父任务上下文
+     * @param graph   子任务依赖图
+     * @return 全部子Agent的步骤流
+     */
+    private Flux<AgentStepDto> executeGraph(AgentTaskContext context, AgentTaskGraph graph) {
+        Map<String, Sinks.One<String>> results = new HashMap<>();
+        Map<String, AgentTaskResponse> responses = new ConcurrentHashMap<>();
+        graph.getNodes().forEach(node -> results.put(node.id(), Sinks.one()));
+        SubAgentGate gate = new SubAgentGate(taskScheduler, agentConfig.getMultiAgentMaxParallel());
+
+        return Flux.fromIterable(graph.getNodes())
+                .flatMap(node -> Flux.fromIterable(node.dependsOn())
+                                .concatMap(dependency -> results.get(dependency).asMono())
+                                .collectList()
+                                .flatMapMany(upstream -> gate.run(() -> {
+                                    AgentTaskContext child = createSubAgentContext(context, node.id(), node.role(),
+                                            subtaskText(context, graph, node, upstream), node.tools(),
+                                            context.getRequest().getContext());
+                                    responses.put(node.id(), child.getResponse());
+                                    return executeSubAgent(child)
+                                            .doOnComplete(() -> results.get(node.id())
+                                                    .tryEmitValue(subAgentResult(child.getResponse())));
+                                })),
+                        graph.getNodes().size())
+                // 审核节点的结果作为任务结果
+                .concatWith(Flux.defer(() ->
+                        completeFromSubAgent(context, responses.get(graph.getReviewNode().id()))));
+    }
+
+    /**
+     * 子任务描述，包含总任务和上游子任务的结果
+     */
+    private String subtaskText(AgentTaskContext parent, AgentTaskGraph graph, AgentTaskGraph.Node node,
+                               List<String> upstream) {
+        StringBuilder task = new StringBuilder();
+        task.append("总任务: ").append(parent.getRequest().getTask()).append("\n");
+        task.append("你的子任务: ").append(node.task()).append("\n");
+        if (!upstream.isEmpty()) {
+            task.append("\n上游子任务结果:\n");
+            for (int i = 0; i < upstream.size(); i++) {
+                String dependency = node.dependsOn().get(i);
+                AgentRole role = graph.getNodes().stream()
+                        .filter(n -> n.id().equals(dependency))
+                        .map(AgentTaskGraph.Node::role)
+                        .findFirst()
+                        .orElse(null);
+                task.append("- [").append(dependency).append("]")
+                        .append(role != null ? "(" + role.getName() + ")" : "")
+                        .append(": ").append(upstream.get(i)).append("\n");
+            }
+        }
+        return task.toString();
+    }
+
+    /**
+     * 是否以map-reduce模式执行：请求显式开启，或未显式关闭且上下文超过阈值
+     */
+    private boolean isMapReduce(AgentTaskRequest request) {
+        if (request.getContext() == null || request.getContext().isEmpty()
+                || Boolean.FALSE.equals(request.getMapReduce())) {
+            return false;
+        }
+        if (Boolean.TRUE.equals(request.getMapReduce())) {
+            return true;
+        }
+        int threshold = agentConfig.getMapReduceThresholdTokens();
+        return threshold > 0 && AgentInputSharder.countTokens(request.getContext()) > threshold;
+    }
+
+    /**
+     * map-reduce执行
+     * 上下文按token预算切分为分片并记录为第1步，每个分片由一个子Agent并行处理（map），
+     * 部分结果再由归并Agent分组合并（reduce），一组放不下时逐层归并，直到只剩一个结果
+     *
+     * @param context 任务上下文
+     * @return 全部子Agent的步骤流
+     */
+    private Flux<AgentStepDto> executeMapReduce(AgentTaskContext context) {
+        AgentTaskRequest request = context.getRequest();
+        int shardTokens = agentConfig.getMapReduceShardTokens();
+        List<String> shards = AgentInputSharder.shard(request.getContext(), shardTokens);
+        log.info("Task input split into {} shards for map-reduce, taskId={}", shards.size(), context.getTaskId());
+
+        AgentStepDto step = AgentStepDto.builder()
+                .stepNumber(1)
+                .status(AgentStatus.EXECUTING)
+                .action("输入分片")
+                .observation("输入约" + AgentInputSharder.countTokens(request.getContext()) + " token，切分为"
+                        + shards.size() + "个分片，每片不超过" + shardTokens + " token")
+                .startTime(LocalDateTime.now())
+                .endTime(LocalDateTime.now())
+                .remainingBudgetMillis(context.remainingMillis())
+                .build();
+
+        List<AgentTaskContext> mappers = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            String task = "总任务: " + request.getTask() + "\n"
+                    + "你负责输入的第" + (i + 1) + "/" + shards.size() + "部分，只根据这部分内容完成任务，"
+                    + "给出该部分的结果，其他部分由其他Agent处理\n\n"
+                    + "输入片段:\n" + shards.get(i);
+            mappers.add(createSubAgentContext(context, "map-" + (i + 1), request.getRole(), task,
+                    request.getAvailableTools(), null));
+        }
+
+        return recordStep(context, step).flux()
+                .concatWith(executeSubAgents(mappers, agentConfig.getMapReduceMaxParallel(),
+                        partials -> reduce(context, partials, 1, 0)));
+    }
+
+    /**
+     * 归并一层部分结果：失败的子Agent结果不参与归并，全部失败时任务失败；
+     * 其余结果按token预算分组，每组至少两个结果，各组由归并Agent并行合并后进入下一层
+     *
+     * @param context  任务上下文
+     * @param partials 上一层的子Agent响应
+     * @param level    归并层级，从1开始
+     * @param missing  此前各层已失败、结果缺失的子Agent数
+     * @return 步骤流
+     */
+    private Flux<AgentStepDto> reduce(AgentTaskContext context, List<AgentTaskResponse> partials, int level,
+                                      int missing) {
+        List<AgentTaskResponse> succeeded = partials.stream().filter(this::isSucceeded).toList();
+        int failed = partials.size() - succeeded.size();
+        if (failed > 0) {
+            log.warn("{} of {} partial results failed at level {}, dropping them, taskId={}", failed,
+                    partials.size(), level, context.getTaskId());
+            missing += failed;
+        }
+        if (succeeded.isEmpty()) {
+            return failTask(context, "全部" + partials.size() + "个" + (level == 1 ? "输入分片" : "归并任务") + "执行失败");
+        }
+        if (succeeded.size() == 1) {
+            return completeFromSubAgent(context, succeeded.get(0), missing);
+        }
+
+        int shardTokens = agentConfig.getMapReduceShardTokens();
+        List<List<String>> groups = new ArrayList<>();
+        List<String> group = new ArrayList<>();
+        int groupTokens = 0;
+        for (AgentTaskResponse partial : succeeded) {
+            String result = subAgentResult(partial);
+            int tokens = TokenCounter.count(result);
+            if (group.size() >= 2 && groupTokens + tokens > shardTokens) {
+                groups.add(group);
+                group = new ArrayList<>();
+                groupTokens = 0;
             }
+            group.add(result);
+            groupTokens += tokens;
+        }
+        // 末组只剩一个结果时并入前一组，保证每层结果数至少减半
+        if (group.size() == 1 && !groups.isEmpty()) {
+            groups.get(groups.size() - 1).addAll(group);
+        } else {
+            groups.add(group);
+        }
 
-            // 添加观察结果到对话历史
-            if (step.getObservation() != null) {
-                messages.add(azureOpenAIService.createUserMessage("观察结果: " + step.getObservation()));
+        boolean last = groups.size() == 1;
+        log.info("Reducing {} partial results in {} groups at level {}, taskId={}", succeeded.size(), groups.size(),
+                level, context.getTaskId());
+
+        AgentTaskRequest request = context.getRequest();
+        List<AgentTaskContext> reducers = new ArrayList<>(groups.size());
+        for (int i = 0; i < groups.size(); i++) {
+            StringBuilder task = new StringBuilder();
+            task.append("总任务: ").append(request.getTask()).append("\n");
+            task.append("下面是其他Agent分别处理输入不同部分得到的结果，请合并为一个完整、去重、前后一致的结果");
+            task.append(last ? "，作为总任务的最终答案" : "").append("\n");
+            if (missing > 0) {
+                task.append("注意: 另有").append(missing).append("个部分处理失败，结果中缺少这些部分的内容，")
+                        .append("请在结果中说明可能不完整\n");
+            }
+            List<String> results = groups.get(i);
+            for (int j = 0; j < results.size(); j++) {
+                task.append("\n[部分结果").append(j + 1).append("]\n").append(results.get(j)).append("\n");
             }
+            reducers.add(createSubAgentContext(context, "reduce-" + level + "-" + (i + 1), request.getRole(),
+                    task.toString(), List.of(), null));
         }
 
-        // 达到最大迭代次数
+        int missingSoFar = missing;
+        return executeSubAgents(reducers, agentConfig.getMapReduceMaxParallel(),
+                reduced -> reduce(context, reduced, level + 1, missingSoFar));
+    }
+
+    /**
+     * 并行执行一组子Agent，全部结束后按原顺序把响应交给后续处理；并行数受并发闸门约束
+     *
+     * @param children    子Agent上下文
+     * @param maxParallel 最大并行数
+     * @param then        后续处理
+     * @return 步骤流
+     */
+    private Flux<AgentStepDto> executeSubAgents(List<AgentTaskContext> children, int maxParallel,
+                                                Function<List<AgentTaskResponse>, Flux<AgentStepDto>> then) {
+        SubAgentGate gate = new SubAgentGate(taskScheduler, maxParallel);
+        return Flux.fromIterable(children)
+                .flatMap(child -> gate.run(() -> executeSubAgent(child)), maxParallel)
+                .concatWith(Flux.defer(() -> then.apply(children.stream().map(AgentTaskContext::getResponse).toList())));
+    }
+
+    /**
+     * 执行子Agent循环，异常时结束该子Agent而不影响其他子Agent
+     */
+    private Flux<AgentStepDto> executeSubAgent(AgentTaskContext child) {
+        return executeAgentLoop(child)
+                .onErrorResume(e -> {
+                    log.error("Sub agent {} terminated with error, taskId={}", child.getAgent(),
+                            child.getParent().getTaskId(), e);
+                    return Flux.empty();
+                });
+    }
+
+    /**
+     * 以最终子Agent的结果结束任务
+     *
+     * @param context 任务上下文
+     * @param result  最终子Agent的响应，未执行时为null
+     * @return 空步骤流
+     */
+    private Flux<AgentStepDto> completeFromSubAgent(AgentTaskContext context, AgentTaskResponse result) {
+        return completeFromSubAgent(context, result, 0);
+    }
+
+    /**
+     * 以最终子Agent的结果结束任务，有子Agent结果缺失时在结果中注明
+     *
+     * @param context 任务上下文
+     * @param result  最终子Agent的响应，未执行时为null
+     * @param missing 失败、结果缺失的子Agent数
+     * @return 空步骤流
+     */
+    private Flux<AgentStepDto> completeFromSubAgent(AgentTaskContext context, AgentTaskResponse result,
+                                                    int missing) {
+        if (result == null || !isSucceeded(result)) {
+            return failTask(context, result != null && result.getErrorMessage() != null
+                    ? result.getErrorMessage() : "未产生最终结果");
+        }
+        AgentTaskResponse response = context.getResponse();
         response.setStatus(AgentStatus.COMPLETED);
+        response.setResult(missing > 0
+                ? subAgentResult(result) + "\n\n（注意: 有" + missing + "个部分处理失败，结果可能不完整）"
+                : subAgentResult(result));
+        response.setTotalIterations(response.getSteps().size());
         response.setEndTime(LocalDateTime.now());
-        response.setResult("已达到最大迭代次数");
-        saveTaskToRedis(request.getTaskId(), response);
-        sink.tryEmitComplete();
+        return persistStatus(context).thenMany(Flux.empty());
+    }
+
+    /**
+     * 以失败结束多Agent任务
+     *
+     * @param context      任务上下文
+     * @param errorMessage 失败原因
+     * @return 空步骤流
+     */
+    private Flux<AgentStepDto> failTask(AgentTaskContext context, String errorMessage) {
+        AgentTaskResponse response = context.getResponse();
+        response.setStatus(AgentStatus.FAILED);
+        response.setErrorMessage(errorMessage);
+        response.setTotalIterations(response.getSteps().size());
+        response.setEndTime(LocalDateTime.now());
+        return persistStatus(context).thenMany(Flux.empty());
+    }
+
+    /**
+     * 创建子Agent上下文，模型输出增量等事件标记来源后经父任务下发
+     *
+     * @param parent  父任务上下文
+     * @param agent   子Agent标识
+     * @param role    角色
+     * @param task    任务描述
+     * @param tools   可用工具
+     * @param context 任务上下文数据
+     * @return 子Agent上下文
+     */
+    private AgentTaskContext createSubAgentContext(AgentTaskContext parent, String agent, AgentRole role, String task,
+                                                   List<String> tools, Map<String, Object> context) {
+        AgentTaskRequest parentRequest = parent.getRequest();
+        AgentTaskRequest request = AgentTaskRequest.builder()
+                .taskId(parent.getTaskId() + ":" + agent)
+                .task(task)
+                .role(role)
+                .context(context)
+                .availableTools(tools)
+                .maxIterations(parent.getMaxIterations())
+                .stream(parentRequest.getStream())
+                .cacheResponse(parentRequest.getCacheResponse())
+                .hard(parentRequest.getHard())
+                .build();
+
+        AgentTaskResponse response = AgentTaskResponse.builder()
+                .taskId(request.getTaskId())
+                .status(AgentStatus.INITIALIZED)
+                .steps(new CopyOnWriteArrayList<>())
+                .startTime(LocalDateTime.now())
+                .totalIterations(0)
+                .build();
+
+        AgentTaskContext subContext = new AgentTaskContext(request, response, parent.getMaxIterations(),
+                parent.remainingMillis(),
+                event -> {
+                    event.setTaskId(parent.getTaskId());
+                    event.setAgent(agent);
+                    parent.emit(event);
+                },
+                parent, agent);
+        subContext.setAttempt(parent.getAttempt());
+        return subContext;
+    }
+
+    /**
+     * 子Agent是否成功完成；失败、超时或异常中止（状态未到终止）均视为失败
+     */
+    private boolean isSucceeded(AgentTaskResponse response) {
+        return response.getStatus() == AgentStatus.COMPLETED;
+    }
+
+    /**
+     * 获取子Agent的结果，取最后一个步骤的观察结果（完成时即为最终答案）；
+     * 子Agent失败时返回明确的失败标记，下游不会把错误信息当作部分结果
+     */
+    private String subAgentResult(AgentTaskResponse response) {
+        if (!isSucceeded(response)) {
+            return "[子任务执行失败] " + (response.getErrorMessage() != null ? response.getErrorMessage() : "未产生结果");
+        }
+        List<AgentStepDto> steps = response.getSteps();
+        String observation = steps.isEmpty() ? null : steps.get(steps.size() - 1).getObservation();
+        return observation != null ? observation : "未产生结果";
     }
 
     /**
      * 执行单个步骤
+     * 步骤时间预算取单步超时与任务剩余时间的较小值，超时后取消进行中的模型流和工具调用
      *
      * @param stepNumber 步骤编号
-     * @param messages   消息列表
-     * @param request    请求
+     * @param context    任务上下文
      * @return 步骤结果
      */
-    private AgentStepDto executeStep(int stepNumber, List<ChatRequestMessage> messages, AgentTaskRequest request) {
+    private Mono<AgentStepDto> executeStep(int stepNumber, AgentTaskContext context) {
         AgentStepDto step = AgentStepDto.builder()
                 .stepNumber(stepNumber)
                 .status(AgentStatus.THINKING)
                 .startTime(LocalDateTime.now())
                 .build();
 
-        try {
-            log.info("Executing step {}", stepNumber);
-
-            // 调用OpenAI获取响应
-            StringBuilder responseBuilder = new StringBuilder();
-            azureOpenAIService.chatCompletionStream(messages)
-                    .doOnNext(responseBuilder::append)
-                    .blockLast();
-
-            String response = responseBuilder.toString();
-            log.debug("AI Response: {}", response);
-
-            // 解析响应
-            step.setThinking(extractThinking(response));
-            step.setAction(extractAction(response));
-
-            // 检查是否需要工具调用
-            ToolCallDto toolCall = extractToolCall(response, request.getAvailableTools());
-
-            if (toolCall != null) {
-                step.setStatus(AgentStatus.EXECUTING);
-                step.setToolCall(toolCall);
-
-                // 执行工具
-                Object toolResult = executeToolCall(toolCall);
-                toolCall.setResult(toolResult);
-                toolCall.setSuccess(true);
-
-                step.setObservation(JSON.toJSONString(toolResult));
-            } else {
-                // 检查是否完成
-                if (response.contains("FINAL_ANSWER:") || response.contains("任务完成")) {
-                    step.setStatus(AgentStatus.COMPLETED);
-                    step.setObservation(extractFinalAnswer(response));
-                } else {
-                    step.setStatus(AgentStatus.WAITING);
-                    step.setObservation(response);
-                }
-            }
+        long budgetMillis = stepBudgetMillis(context);
+        step.setBudgetMillis(budgetMillis);
 
-        } catch (Exception e) {
-            log.error("Error executing step {}", stepNumber, e);
-            step.setStatus(AgentStatus.FAILED);
-            step.setObservation("执行失败: " + e.getMessage());
+        if (budgetMillis <= 0) {
+            log.warn("Task deadline exceeded before step {}, taskId={}", stepNumber, context.getTaskId());
+            return Mono.just(timeoutStep(step, context));
         }
 
-        step.setEndTime(LocalDateTime.now());
-        return step;
+        log.info("Executing step {}", stepNumber);
+
+        AgentContextWindow contextWindow = context.getContextWindow();
+        step.setPromptTokens(contextWindow.getTokens());
+
+        // 级联模式先由小模型作答，不合格时升级到大模型重新生成
+        ModelTier tier = cascadePolicy.initialTier(context);
+        step.setModelTier(tier);
+
+        // 所选层级的模型额度不足时告知预计等待时间，调用会排队而不是失败
+        long waitMillis = azureOpenAIService.estimateWaitMillis(contextWindow.getTokens(),
+                LlmCallOptions.builder().tier(tier).maxTokens(maxTokens(tier)).build());
+        if (waitMillis > 0) {
+            context.emit(AgentEventDto.throttled(context.getTaskId(), stepNumber, waitMillis));
+        }
+
+        return generate(step, context, tier)
+                .flatMap(generated -> {
+                    if (tier != ModelTier.SMALL) {
+                        return Mono.just(generated);
+                    }
+                    String reason = cascadePolicy.escalationReason(generated.parser(), generated.assembler());
+                    if (reason != null) {
+                        log.info("Escalating step {} to large model: {}, taskId={}", stepNumber, reason,
+                                context.getTaskId());
+                        context.recordEscalation();
+                        discardSpeculations(generated.speculations());
+                        step.setModelTier(ModelTier.LARGE);
+                        step.setEscalationReason(reason);
+                        return generate(step, context, ModelTier.LARGE);
+                    }
+                    // 小模型输出未逐段下发，采纳后一次性下发
+                    String text = generated.parser().getText();
+                    if (context.isStreamDeltas() && !text.isEmpty()) {
+                        context.emit(AgentEventDto.delta(context.getTaskId(), stepNumber, text));
+                    }
+                    return Mono.just(generated);
+                })
+                .flatMap(generated -> handleResponse(step, generated, context))
+                .timeout(Duration.ofMillis(budgetMillis))
+                .onErrorResume(TimeoutException.class, e -> {
+                    log.warn("Step {} timed out after {}ms, taskId={}", stepNumber, budgetMillis, context.getTaskId());
+                    return Mono.just(timeoutStep(step, context));
+                })
+                .onErrorResume(e -> {
+                    log.error("Error executing step {}", stepNumber, e);
+                    step.setStatus(AgentStatus.FAILED);
+                    step.setObservation("执行失败: " + e.getMessage());
+                    return Mono.just(step);
+                })
+                .doOnNext(s -> {
+                    s.setEndTime(LocalDateTime.now());
+                    s.setRemainingBudgetMillis(context.remainingMillis());
+                });
     }
 
     /**
-     * 执行工具调用
+     * 调用模型生成一次响应
+     * 大模型边生成边下发输出增量；小模型的输出可能被丢弃，不逐段下发
      *
-     * @param toolCall 工具调用信息
-     * @return 执行结果
+     * @param step    步骤
+     * @param context 任务上下文
+     * @param tier    模型层级
+     * @return 已解析的响应
      */
-    private Object executeToolCall(ToolCallDto toolCall) {
-        try {
-            // 查找对应的工具
-            Optional<AgentTool> toolOpt = agentTools.stream()
-                    .filter(tool -> tool.getToolName().equals(toolCall.getToolName()))
-                    .findFirst();
+    private Mono<ModelResponse> generate(AgentStepDto step, AgentTaskContext context, ModelTier tier) {
+        int stepNumber = step.getStepNumber();
 
-            if (toolOpt.isPresent()) {
-                AgentTool tool = toolOpt.get();
+        // 边生成边下发模型输出增量
+        StreamDeltaCoalescer coalescer = context.isStreamDeltas() && tier != ModelTier.SMALL
+                ? new StreamDeltaCoalescer(agentConfig.getDeltaMaxChars(), agentConfig.getDeltaMaxDelay(),
+                Schedulers.parallel(), delta -> context.emit(AgentEventDto.delta(context.getTaskId(), stepNumber, delta)))
+                : null;
 
-                // 验证参数
-                if (!tool.validateParameters(toolCall.getParameters())) {
-                    throw new IllegalArgumentException("Invalid tool parameters");
-                }
+        // 增量解析响应，最终答案完整后取消剩余生成
+        StreamingResponseParser parser = new StreamingResponseParser();
 
-                // 执行工具
-                return tool.execute(toolCall.getParameters());
-            } else {
-                throw new IllegalArgumentException("Tool not found: " + toolCall.getToolName());
-            }
+        // 有可用工具时使用原生函数调用，并从流中拼装工具调用；只读工具的参数闭合后立即推测执行
+        SpeculativeToolRunner speculations = !context.getToolDefinitions().isEmpty()
+                && Boolean.TRUE.equals(agentConfig.getSpeculativeToolsEnabled())
+                ? new SpeculativeToolRunner(this::isSpeculable, this::runToolCall, agentConfig.getMaxParallelTools(),
+                speculativeHits, speculativeDiscarded)
+                : null;
+        StreamingToolCallAssembler assembler = speculations != null
+                ? new StreamingToolCallAssembler(speculations::onArgumentsComplete)
+                : new StreamingToolCallAssembler();
+        LlmCallOptions callOptions = LlmCallOptions.builder()
+                .cacheable(context.isCacheResponse())
+                .tier(tier)
+                .maxTokens(maxTokens(tier))
+                .stop(List.of(StreamingResponseParser.FINAL_ANSWER_END))
+                .servedBy(step::setDeployment)
+                .stoppedEarly(parser::isStopped)
+                .build();
+        List<ChatRequestMessage> messages = context.getContextWindow().messages();
+        Flux<String> contentStream = context.getToolDefinitions().isEmpty()
+                ? azureOpenAIService.chatCompletionStream(messages, callOptions)
+                : azureOpenAIService.chatCompletionWithToolsStream(messages, context.getToolDefinitions(), callOptions)
+                .<String>handle((chunk, sink) -> {
+                    String content = assembler.accept(chunk);
+                    if (content != null) {
+                        sink.next(content);
+                    }
+                });
 
-        } catch (Exception e) {
-            log.error("Error executing tool: {}", toolCall.getToolName(), e);
-            toolCall.setSuccess(false);
-            toolCall.setErrorMessage(e.getMessage());
+        // 调用OpenAI获取响应
+        return contentStream
+                .doOnNext(delta -> {
+                    if (coalescer != null) {
+                        coalescer.append(delta);
+                    }
+                })
+                .takeUntil(parser::append)
+                .then(Mono.fromSupplier(() -> {
+                    if (coalescer != null) {
+                        coalescer.flush();
+                    }
+                    if (parser.isStopped()) {
+                        log.debug("Final answer complete, generation stopped early at step {}", stepNumber);
+                    }
+                    return new ModelResponse(parser, assembler, speculations);
+                }))
+                .doOnCancel(() -> {
+                    closeCoalescer(coalescer);
+                    discardSpeculations(speculations);
+                })
+                .doOnError(e -> {
+                    closeCoalescer(coalescer);
+                    discardSpeculations(speculations);
+                });
+    }
 
-            Map<String, Object> error = new HashMap<>();
-            error.put("error", e.getMessage());
-            return error;
+    /**
+     * 停止增量合并，生成被取消或出错后不再定时下发
+     */
+    private void closeCoalescer(StreamDeltaCoalescer coalescer) {
+        if (coalescer != null) {
+            coalescer.close();
+        }
+    }
+
+    /**
+     * 模型层级的最大输出token数，小模型使用级联配置，为null时使用模型配置
+     */
+    private Integer maxTokens(ModelTier tier) {
+        return tier == ModelTier.SMALL ? agentConfig.getCascadeSmallMaxTokens() : null;
+    }
+
+    /**
+     * 计算步骤时间预算（毫秒）
+     */
+    private long stepBudgetMillis(AgentTaskContext context) {
+        long remaining = context.remainingMillis();
+        Integer stepTimeout = agentConfig.getStepTimeout();
+        if (stepTimeout != null && stepTimeout > 0) {
+            return Math.min(remaining, stepTimeout * 1000L);
         }
+        return remaining;
+    }
+
+    /**
+     * 标记步骤超时失败
+     */
+    private AgentStepDto timeoutStep(AgentStepDto step, AgentTaskContext context) {
+        step.setStatus(AgentStatus.FAILED);
+        step.setObservation(context.remainingMillis() <= 0
+                ? "执行超时: 任务超过" + agentConfig.getTimeout() + "秒时限"
+                : "执行超时: 步骤超过" + agentConfig.getStepTimeout() + "秒时限");
+        return step;
     }
 
     /**
-     * 构建系统提示词
+     * 处理模型响应
      *
-     * @param role           Agent角色
-     * @param availableTools 可用工具列表
-     * @return 系统提示词
-     */
-    private String buildSystemPrompt(AgentRole role, List<String> availableTools) {
-        StringBuilder prompt = new StringBuilder();
-
-        prompt.append("你是一个").append(role.getName()).append("。\n");
-        prompt.append(role.getDescription()).append("\n\n");
-
-        prompt.append("你需要按照以下步骤思考和行动:\n");
-        prompt.append("1. 思考(Thinking): 分析当前任务,制定解决方案\n");
-        prompt.append("2. 行动(Action): 执行具体操作或调用工具\n");
-        prompt.append("3. 观察(Observation): 观察行动结果\n");
-        prompt.append("4. 反思(Reflection): 根据结果调整策略\n\n");
-
-        if (availableTools != null && !availableTools.isEmpty()) {
-            prompt.append("可用工具:\n");
-            availableTools.forEach(toolName -> {
-                agentTools.stream()
-                        .filter(tool -> tool.getToolName().equals(toolName))
-                        .findFirst()
-                        .ifPresent(tool -> prompt.append("- ").append(tool.getToolName())
-                                .append(": ").append(tool.getToolDescription()).append("\n"));
-            });
-            prompt.append("\n");
+     * @param step      步骤
+     * @param generated 模型响应
+     * @param context   任务上下文
+     * @return 步骤结果
+     */
+    private Mono<AgentStepDto> handleResponse(AgentStepDto step, ModelResponse generated, AgentTaskContext context) {
+        StreamingResponseParser parser = generated.parser();
+        StreamingToolCallAssembler assembler = generated.assembler();
+        SpeculativeToolRunner speculations = generated.speculations();
+        String response = parser.getText();
+        log.debug("AI Response: {}", response);
+
+        // 解析响应
+        step.setThinking(parser.getThinking());
+        step.setAction(parser.getAction());
+
+        // 检查是否需要工具调用
+        if (assembler.hasToolCalls()) {
+            step.setStatus(AgentStatus.EXECUTING);
+            List<StreamingToolCallAssembler.AssembledToolCall> calls = assembler.getToolCalls();
+
+            // 工具实现为阻塞调用，切换到弹性线程池并发执行，结果按调用顺序返回；
+            // 推测执行的结果与最终调用一致时直接复用，否则重新执行
+            return Flux.fromIterable(calls)
+                    .flatMapSequential(call -> {
+                        Mono<ToolCallDto> speculated = speculations != null ? speculations.take(call) : null;
+                        return speculated != null
+                                ? speculated.doOnNext(toolCall -> toolCall.setSpeculative(true))
+                                : runToolCall(call);
+                    }, agentConfig.getMaxParallelTools())
+                    .collectList()
+                    .doFinally(signal -> discardSpeculations(speculations))
+                    .map(toolCalls -> {
+                        step.setToolCall(toolCalls.get(0));
+                        step.setToolCalls(toolCalls);
+                        step.setObservation(toolCalls.size() == 1
+                                ? JSON.toJSONString(toolCalls.get(0).getResult())
+                                : JSON.toJSONString(toolCalls.stream().map(ToolCallDto::getResult).toList()));
+                        context.getContextWindow().addToolTurn(response, calls, toolCalls);
+                        return step;
+                    });
         }
 
-        prompt.append("请使用以下格式回复:\n");
-        prompt.append("思考: [你的思考过程]\n");
-        prompt.append("行动: [你的行动或工具调用]\n");
-        prompt.append("如果任务完成,请使用: FINAL_ANSWER: [最终答案]\n");
+        discardSpeculations(speculations);
 
-        return prompt.toString();
+        // 检查是否完成
+        if (parser.isCompleted()) {
+            step.setStatus(AgentStatus.COMPLETED);
+            step.setObservation(parser.getFinalAnswer());
+        } else {
+            step.setStatus(AgentStatus.WAITING);
+            step.setObservation(response);
+            context.getContextWindow().addTextTurn(step.getAction(), step.getObservation());
+        }
+        return Mono.just(step);
     }
 
     /**
-     * 提取思考内容
+     * 执行一次工具调用，阻塞的工具实现切换到弹性线程池执行
      */
-    private String extractThinking(String response) {
-        return extractSection(response, "思考:", "行动:");
+    private Mono<ToolCallDto> runToolCall(StreamingToolCallAssembler.AssembledToolCall call) {
+        ToolCallDto toolCall = toToolCallDto(call);
+        return Mono.fromCallable(() -> executeToolCall(toolCall))
+                .subscribeOn(Schedulers.boundedElastic())
+                .map(toolResult -> {
+                    toolCall.setResult(toolResult);
+                    if (toolCall.getSuccess() == null) {
+                        toolCall.setSuccess(true);
+                    }
+                    return toolCall;
+                });
     }
 
     /**
-     * 提取行动内容
+     * 判断工具调用能否在模型流结束前推测执行：工具已注册、参数通过校验且工具声明本次调用无副作用
      */
-    private String extractAction(String response) {
-        return extractSection(response, "行动:", "FINAL_ANSWER:");
+    private boolean isSpeculable(StreamingToolCallAssembler.AssembledToolCall call) {
+        ToolRegistry.RegisteredTool registered = toolRegistry.get(call.name());
+        if (registered == null) {
+            return false;
+        }
+        try {
+            String arguments = call.arguments();
+            Map<String, Object> parameters = registered.validator().validate(
+                    arguments == null || arguments.isBlank() ? new HashMap<>() : JSON.parseObject(arguments));
+            return registered.tool().validateParameters(parameters)
+                    && registered.tool().isSpeculativeSafe(parameters);
+        } catch (Exception e) {
+            return false;
+        }
     }
 
     /**
-     * 提取最终答案
+     * 丢弃未被取回的推测执行
      */
-    private String extractFinalAnswer(String response) {
-        int index = response.indexOf("FINAL_ANSWER:");
-        if (index >= 0) {
-            return response.substring(index + "FINAL_ANSWER:".length()).trim();
+    private void discardSpeculations(SpeculativeToolRunner speculations) {
+        if (speculations != null) {
+            speculations.discardRemaining();
         }
-        return response;
     }
 
     /**
-     * 提取文本段落
+     * 转换为工具调用DTO，参数JSON无法解析时保留为空参数，由执行阶段报告错误
      */
-    private String extractSection(String text, String start, String end) {
-        int startIndex = text.indexOf(start);
-        if (startIndex < 0) {
-            return null;
+    private ToolCallDto toToolCallDto(StreamingToolCallAssembler.AssembledToolCall call) {
+        ToolCallDto toolCall = ToolCallDto.builder()
+                .toolId(call.id())
+                .toolName(call.name())
+                .build();
+
+        ToolRegistry.RegisteredTool registered = toolRegistry.get(call.name());
+        if (registered != null) {
+            toolCall.setToolType(registered.tool().getToolType());
+        }
+
+        try {
+            String arguments = call.arguments();
+            toolCall.setParameters(arguments == null || arguments.isBlank()
+                    ? new HashMap<>() : JSON.parseObject(arguments));
+        } catch (Exception e) {
+            log.warn("Malformed tool call arguments: tool={}, arguments={}", call.name(), call.arguments());
+            toolCall.setSuccess(false);
+            toolCall.setErrorMessage("参数JSON格式错误: " + e.getMessage());
         }
+        return toolCall;
+    }
 
-        startIndex += start.length();
-        int endIndex = text.indexOf(end, startIndex);
+    /**
+     * 判断步骤是否为终止状态
+     */
+    private boolean isTerminal(AgentStepDto step) {
+        return isTerminal(step.getStatus());
+    }
+
+    /**
+     * 判断状态是否为终止状态
+     */
+    private boolean isTerminal(AgentStatus status) {
+        return status == AgentStatus.COMPLETED || status == AgentStatus.FAILED;
+    }
 
-        if (endIndex < 0) {
-            return text.substring(startIndex).trim();
+    /**
+     * 执行工具调用
+     *
+     * @param toolCall 工具调用信息
+     * @return 执行结果
+     */
+    private Object executeToolCall(ToolCallDto toolCall) {
+        if (Boolean.FALSE.equals(toolCall.getSuccess())) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", toolCall.getErrorMessage());
+            return error;
         }
 
-        return text.substring(startIndex, endIndex).trim();
+        try {
+            // 查找对应的工具
+            ToolRegistry.RegisteredTool registered = toolRegistry.get(toolCall.getToolName());
+            if (registered == null) {
+                throw new IllegalArgumentException("Tool not found: " + toolCall.getToolName());
+            }
+
+            // 按schema校验并转换参数类型
+            Map<String, Object> parameters = registered.validator().validate(toolCall.getParameters());
+            toolCall.setParameters(parameters);
+
+            AgentTool tool = registered.tool();
+            if (!tool.validateParameters(parameters)) {
+                throw new IllegalArgumentException("Invalid tool parameters");
+            }
+
+            // 执行工具
+            return tool.execute(parameters);
+
+        } catch (Exception e) {
+            log.error("Error executing tool: {}", toolCall.getToolName(), e);
+            toolCall.setSuccess(false);
+            toolCall.setErrorMessage(e.getMessage());
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", e.getMessage());
+            return error;
+        }
     }
 
     /**
-     * 提取工具调用
+     * 缓冲任务状态写入，终止状态时立即刷新并提交归档
      */
-    private ToolCallDto extractToolCall(String response, List<String> availableTools) {
-        // 简单的工具调用解析逻辑
-        // 实际实现中应该使用更复杂的解析方式或使用OpenAI的function calling功能
-        if (availableTools == null || availableTools.isEmpty()) {
-            return null;
+    private Mono<Void> persistStatus(AgentTaskContext context) {
+        // 子Agent的状态不单独持久化
+        if (context.isSubAgent()) {
+            return Mono.empty();
         }
 
-        // TODO: 实现更复杂的工具调用解析逻辑
-        return null;
+        AgentTaskResponse response = context.getResponse();
+        taskWriteBehind.enqueueStatus(response);
+        if (!isTerminal(response.getStatus())) {
+            return Mono.empty();
+        }
+
+        // 终止状态未能写入Redis时不归档，避免归档后设置过期时间导致状态和步骤丢失；数据保留在写缓冲中继续重试
+        AgentTaskRequest request = context.getRequest();
+        return taskWriteBehind.flush(context.getTaskId())
+                .then(Mono.<Void>fromRunnable(() -> taskArchiver.submit(response, request.getTask(), request.getRole())))
+                .onErrorResume(e -> {
+                    log.error("Terminal status not persisted, skipping archive, taskId={}", context.getTaskId(), e);
+                    return Mono.empty();
+                });
     }
 
     /**
-     * 保存任务到Redis
+     * 缓冲步骤追加和任务状态写入，终止状态时立即刷新
      */
-    private void saveTaskToRedis(String taskId, AgentTaskResponse response) {
-        try {
-            String key = "agent:task:" + taskId;
-            redisTemplate.opsForValue().set(key, response);
-        } catch (Exception e) {
-            log.error("Error saving task to Redis", e);
+    private Mono<Void> persistStep(AgentTaskContext context, AgentStepDto step) {
+        return taskWriteBehind.enqueueStep(context.getTaskId(), step).then(persistStatus(context));
+    }
+
+    /**
+     * 获取任务，依次读取内存注册表、Redis和MySQL归档
+     *
+     * @param taskId 任务ID
+     * @return 任务响应
+     */
+    public AgentTaskResponse getTask(String taskId) {
+        AgentTaskResponse response = taskRegistry.get(taskId);
+        if (response == null) {
+            response = getTaskFromRedis(taskId);
+        }
+        if (response == null) {
+            AgentTaskRecord record = agentTaskRecordService.getByTaskId(taskId);
+            response = record != null ? agentTaskRecordService.toResponse(record) : null;
         }
+        return response;
+    }
+
+    /**
+     * 获取工具推测执行指标
+     *
+     * @return 指标
+     */
+    public Map<String, Object> getSpeculationStats() {
+        long hits = speculativeHits.get();
+        long total = hits + speculativeDiscarded.get();
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", Boolean.TRUE.equals(agentConfig.getSpeculativeToolsEnabled()));
+        stats.put("hits", hits);
+        stats.put("discarded", speculativeDiscarded.get());
+        stats.put("hitRate", total == 0 ? 0.0 : (double) hits / total);
+        return stats;
     }
 
     /**
      * 从Redis获取任务
      */
     public AgentTaskResponse getTaskFromRedis(String taskId) {
-        try {
-            String key = "agent:task:" + taskId;
-            return (AgentTaskResponse) redisTemplate.opsForValue().get(key);
-        } catch (Exception e) {
-            log.error("Error getting task from Redis", e);
-            return null;
-        }
+        return taskStore.load(taskId);
+    }
+
+    /**
+     * 一次模型调用的解析结果
+     *
+     * @param parser       已解析的文本响应
+     * @param assembler    已拼装的工具调用
+     * @param speculations 工具推测执行，未启用时为null
+     */
+    private record ModelResponse(StreamingResponseParser parser, StreamingToolCallAssembler assembler,
+                                 SpeculativeToolRunner speculations) {
     }
 
 }
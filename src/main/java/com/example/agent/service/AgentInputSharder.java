@@ -0,0 +1,98 @@
+package com.example.agent.service;
+
+import com.alibaba.fastjson2.JSON;
+import com.example.agent.common.TokenCounter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Agent输入分片
+ * 把任务上下文按估算token数切分为若干分片：集合类型的值按元素拆开（文档集合中的每篇文档为一项），
+ * 超出单片预算的项再按token切段，然后按原顺序贪心装入分片，每片不超过预算
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+public final class AgentInputSharder {
+
+    private static final String SEPARATOR = "\n\n";
+
+    private AgentInputSharder() {
+    }
+
+    /**
+     * 估算上下文的token数
+     *
+     * @param context 任务上下文
+     * @return token数，为空时返回0
+     */
+    public static int countTokens(Map<String, Object> context) {
+        return context == null || context.isEmpty() ? 0 : TokenCounter.count(JSON.toJSONString(context));
+    }
+
+    /**
+     * 切分上下文
+     *
+     * @param context     任务上下文
+     * @param shardTokens 每个分片的token预算
+     * @return 分片文本，按原顺序排列
+     */
+    public static List<String> shard(Map<String, Object> context, int shardTokens) {
+        List<String> items = new ArrayList<>();
+        if (context != null) {
+            context.forEach((key, value) -> {
+                if (value instanceof Collection<?> elements) {
+                    int index = 0;
+                    for (Object element : elements) {
+                        addItem(items, key + "[" + index++ + "]", element, shardTokens);
+                    }
+                } else {
+                    addItem(items, key, value, shardTokens);
+                }
+            });
+        }
+
+        List<String> shards = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        int currentTokens = 0;
+        for (String item : items) {
+            int itemTokens = TokenCounter.count(item);
+            if (current.length() > 0 && currentTokens + itemTokens > shardTokens) {
+                shards.add(current.toString());
+                current.setLength(0);
+                currentTokens = 0;
+            }
+            if (current.length() > 0) {
+                current.append(SEPARATOR);
+            }
+            current.append(item);
+            currentTokens += itemTokens + TokenCounter.count(SEPARATOR);
+        }
+        if (current.length() > 0) {
+            shards.add(current.toString());
+        }
+        return shards;
+    }
+
+    /**
+     * 添加一项，超出预算时按token切段，每段标注所属项和段号
+     */
+    private static void addItem(List<String> items, String key, Object value, int shardTokens) {
+        String text = value instanceof CharSequence ? value.toString() : JSON.toJSONString(value);
+        String item = key + ": " + text;
+        if (TokenCounter.count(item) <= shardTokens) {
+            items.add(item);
+            return;
+        }
+
+        // 预留标注所需的token
+        List<String> parts = TokenCounter.split(text, Math.max(1, shardTokens - TokenCounter.count(key) - 16));
+        for (int i = 0; i < parts.size(); i++) {
+            items.add(key + " (第" + (i + 1) + "/" + parts.size() + "段): " + parts.get(i));
+        }
+    }
+
+}
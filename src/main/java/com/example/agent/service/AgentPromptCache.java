@@ -0,0 +1,181 @@
+package com.example.agent.service;
+
+import com.alibaba.fastjson2.JSON;
+import com.azure.ai.openai.models.ChatCompletionsFunctionToolDefinition;
+import com.azure.ai.openai.models.ChatRequestMessage;
+import com.example.agent.common.TokenCounter;
+import com.example.agent.enums.AgentRole;
+import com.example.agent.tool.ToolRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Agent提示词缓存
+ * 按角色和规范化（去重、排序）的工具集缓存系统提示词、系统消息、函数工具定义及其token数，
+ * 相同组合的请求前缀逐字节一致，便于服务端前缀缓存命中；工具重新注册时整体失效
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class AgentPromptCache {
+
+    private final AzureOpenAIService azureOpenAIService;
+    private final ToolRegistry toolRegistry;
+
+    /**
+     * 提示词缓存，键为 角色|工具1,工具2
+     */
+    private final Map<String, CachedPrompt> prompts = new ConcurrentHashMap<>();
+
+    /**
+     * 函数工具定义缓存，由注册表中冻结的参数schema构建
+     */
+    private final Map<String, ChatCompletionsFunctionToolDefinition> toolDefinitions = new ConcurrentHashMap<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        toolRegistry.addRegistrationListener(registered -> {
+            toolDefinitions.remove(registered.name());
+            prompts.clear();
+            log.info("Prompt cache invalidated by tool registration: {}", registered.name());
+        });
+    }
+
+    /**
+     * 获取角色和工具集对应的提示词
+     *
+     * @param role           Agent角色
+     * @param availableTools 可用工具列表
+     * @return 缓存的提示词
+     */
+    public CachedPrompt get(AgentRole role, List<String> availableTools) {
+        List<String> toolNames = canonicalTools(availableTools);
+        String key = role.name() + "|" + String.join(",", toolNames);
+
+        CachedPrompt cached = prompts.get(key);
+        if (cached != null) {
+            hitCount.incrementAndGet();
+            return cached;
+        }
+
+        missCount.incrementAndGet();
+        return prompts.computeIfAbsent(key, k -> build(role, toolNames));
+    }
+
+    /**
+     * 获取缓存运行指标
+     *
+     * @return 指标
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", prompts.size());
+        stats.put("hits", hitCount.get());
+        stats.put("misses", missCount.get());
+        return stats;
+    }
+
+    /**
+     * 规范化工具集：仅保留已注册工具，去重并排序
+     */
+    private List<String> canonicalTools(List<String> availableTools) {
+        if (availableTools == null || availableTools.isEmpty()) {
+            return List.of();
+        }
+        return availableTools.stream()
+                .filter(Objects::nonNull)
+                .filter(name -> toolRegistry.get(name) != null)
+                .distinct()
+                .sorted()
+                .toList();
+    }
+
+    /**
+     * 构建提示词
+     */
+    private CachedPrompt build(AgentRole role, List<String> toolNames) {
+        String prompt = buildSystemPrompt(role, toolNames);
+
+        List<ChatCompletionsFunctionToolDefinition> definitions = new ArrayList<>(toolNames.size());
+        int toolTokens = 0;
+        for (String toolName : toolNames) {
+            ToolRegistry.RegisteredTool registered = toolRegistry.get(toolName);
+            definitions.add(toolDefinitions.computeIfAbsent(toolName,
+                    name -> azureOpenAIService.createFunctionToolDefinition(name,
+                            registered.tool().getToolDescription(), registered.schema())));
+            toolTokens += TokenCounter.count(registered.tool().getToolDescription())
+                    + TokenCounter.count(JSON.toJSONString(registered.schema()));
+        }
+
+        return new CachedPrompt(prompt, azureOpenAIService.createSystemMessage(prompt),
+                TokenCounter.countMessage(prompt), List.copyOf(definitions), toolTokens);
+    }
+
+    /**
+     * 构建系统提示词
+     *
+     * @param role      Agent角色
+     * @param toolNames 规范化的工具列表
+     * @return 系统提示词
+     */
+    private String buildSystemPrompt(AgentRole role, List<String> toolNames) {
+        StringBuilder prompt = new StringBuilder();
+
+        prompt.append("你是一个").append(role.getName()).append("。\n");
+        prompt.append(role.getDescription()).append("\n\n");
+
+        prompt.append("你需要按照以下步骤思考和行动:\n");
+        prompt.append("1. 思考(Thinking): 分析当前任务,制定解决方案\n");
+        prompt.append("2. 行动(Action): 执行具体操作或调用工具\n");
+        prompt.append("3. 观察(Observation): 观察行动结果\n");
+        prompt.append("4. 反思(Reflection): 根据结果调整策略\n\n");
+
+        if (!toolNames.isEmpty()) {
+            prompt.append("可用工具:\n");
+            toolNames.forEach(toolName -> {
+                ToolRegistry.RegisteredTool registered = toolRegistry.get(toolName);
+                prompt.append("- ").append(registered.name())
+                        .append(": ").append(registered.tool().getToolDescription()).append("\n");
+            });
+            prompt.append("需要使用工具时请直接发起函数调用。\n\n");
+        }
+
+        prompt.append("请使用以下格式回复:\n");
+        prompt.append("思考: [你的思考过程]\n");
+        prompt.append("行动: [你的行动或工具调用]\n");
+        prompt.append("如果任务完成,请使用: FINAL_ANSWER: [最终答案]\n");
+        prompt.append("最终答案输出完毕后,另起一行输出 ").append(StreamingResponseParser.FINAL_ANSWER_END).append("\n");
+
+        return prompt.toString();
+    }
+
+    /**
+     * 缓存的提示词
+     *
+     * @param prompt          系统提示词
+     * @param systemMessage   系统消息
+     * @param promptTokens    系统消息token数
+     * @param toolDefinitions 函数工具定义，按工具名排序
+     * @param toolTokens      工具定义token数
+     */
+    public record CachedPrompt(String prompt, ChatRequestMessage systemMessage, int promptTokens,
+                               List<ChatCompletionsFunctionToolDefinition> toolDefinitions, int toolTokens) {
+    }
+
+}
@@ -0,0 +1,247 @@
+package com.example.agent.service;
+
+import com.example.agent.config.AgentConfig;
+import com.example.agent.entity.AgentTaskRecord;
+import com.example.agent.enums.AgentRole;
+import com.example.agent.model.dto.AgentTaskResponse;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Agent任务归档器
+ * 收集已终止的任务，按批次以多行INSERT写入agent_task_record，失败时退避重试；
+ * 同一任务ID再次归档（集群接管后重新执行）时覆盖原记录，不产生重复行；
+ * 归档确认后为Redis中的任务键设置较短的过期时间；
+ * 未能归档的任务（队列已满、重试耗尽）设置较长的兜底过期时间，不会永久残留；停机时把队列中的任务全部归档后再退出
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class AgentTaskArchiver {
+
+    /**
+     * 重试退避基准时间（毫秒）
+     */
+    private static final long RETRY_BACKOFF_MILLIS = 1000;
+
+    /**
+     * 停机时等待剩余任务归档的最长时间（秒）
+     */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final AgentTaskRecordService agentTaskRecordService;
+    private final AgentTaskStore taskStore;
+    private final AgentConfig agentConfig;
+
+    /**
+     * 单线程归档调度器
+     */
+    private final Scheduler archiveScheduler = Schedulers.newSingle("agent-archiver");
+
+    private final AtomicLong archivedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+
+    /**
+     * 待归档队列
+     */
+    private BlockingQueue<AgentTaskRecord> archiveQueue;
+
+    /**
+     * 等待重试的批次，仅在归档线程访问
+     */
+    private List<AgentTaskRecord> retryBatch;
+
+    private int retryAttempts;
+
+    private long nextRetryNanos;
+
+    private Disposable archiveTask;
+
+    @PostConstruct
+    public void start() {
+        archiveQueue = new ArrayBlockingQueue<>(agentConfig.getArchiveQueueCapacity());
+        long interval = agentConfig.getArchiveFlushInterval();
+        archiveTask = archiveScheduler.schedulePeriodically(this::drain, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (archiveTask != null) {
+            archiveTask.dispose();
+        }
+        // 停机前归档剩余任务，在归档线程上执行，不与进行中的批次并发
+        try {
+            Mono.fromRunnable(this::drainOnShutdown)
+                    .subscribeOn(archiveScheduler)
+                    .block(Duration.ofSeconds(SHUTDOWN_TIMEOUT_SECONDS));
+        } catch (Exception e) {
+            log.error("Archive queue not fully drained on shutdown, {} task(s) left", archiveQueue.size(), e);
+        }
+        archiveScheduler.dispose();
+    }
+
+    /**
+     * 提交已终止的任务等待归档，队列满时放弃归档，任务继续保留在Redis中
+     *
+     * @param response        任务响应
+     * @param taskDescription 任务描述
+     * @param role            Agent角色
+     */
+    public void submit(AgentTaskResponse response, String taskDescription, AgentRole role) {
+        AgentTaskRecord record = agentTaskRecordService.toRecord(response);
+        record.setTaskDescription(taskDescription);
+        record.setAgentRole(role);
+
+        if (!archiveQueue.offer(record)) {
+            rejectedCount.incrementAndGet();
+            log.warn("Archive queue full, task {} stays in Redis without archival", response.getTaskId());
+            expireUnarchived(List.of(record));
+        }
+    }
+
+    /**
+     * 获取归档运行指标
+     *
+     * @return 指标
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queued", archiveQueue.size());
+        stats.put("archived", archivedCount.get());
+        stats.put("batches", batchCount.get());
+        stats.put("retries", retryCount.get());
+        stats.put("rejected", rejectedCount.get());
+        stats.put("dropped", droppedCount.get());
+        return stats;
+    }
+
+    /**
+     * 取出队列中的任务按批次归档，仅在归档线程执行
+     */
+    private void drain() {
+        if (retryBatch != null) {
+            if (System.nanoTime() < nextRetryNanos) {
+                return;
+            }
+            List<AgentTaskRecord> batch = retryBatch;
+            retryBatch = null;
+            retryCount.incrementAndGet();
+            if (!archive(batch)) {
+                return;
+            }
+        }
+
+        int batchSize = agentConfig.getArchiveBatchSize();
+        while (!archiveQueue.isEmpty()) {
+            List<AgentTaskRecord> batch = new ArrayList<>(batchSize);
+            archiveQueue.drainTo(batch, batchSize);
+            if (!archive(batch)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 停机时归档等待重试的批次和队列中的全部任务，不再退避，每批只尝试一次，仍失败的任务设置兜底过期时间
+     */
+    private void drainOnShutdown() {
+        List<AgentTaskRecord> pending = new ArrayList<>();
+        if (retryBatch != null) {
+            pending.addAll(retryBatch);
+            retryBatch = null;
+        }
+        archiveQueue.drainTo(pending);
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        log.info("Archiving {} task(s) before shutdown", pending.size());
+        int batchSize = agentConfig.getArchiveBatchSize();
+        for (int from = 0; from < pending.size(); from += batchSize) {
+            List<AgentTaskRecord> batch = pending.subList(from, Math.min(pending.size(), from + batchSize));
+            try {
+                agentTaskRecordService.saveTaskRecordBatch(batch);
+                onArchived(batch);
+            } catch (Exception e) {
+                droppedCount.addAndGet(batch.size());
+                log.error("Archive batch of {} tasks failed on shutdown, tasks stay in Redis until TTL",
+                        batch.size(), e);
+                expireUnarchived(batch);
+            }
+        }
+    }
+
+    /**
+     * 归档单个批次，失败时安排退避重试
+     *
+     * @return 是否成功
+     */
+    private boolean archive(List<AgentTaskRecord> batch) {
+        try {
+            agentTaskRecordService.saveTaskRecordBatch(batch);
+        } catch (Exception e) {
+            retryAttempts++;
+            if (retryAttempts > agentConfig.getArchiveMaxRetries()) {
+                droppedCount.addAndGet(batch.size());
+                log.error("Archive batch of {} tasks dropped after {} attempts, tasks stay in Redis until TTL",
+                        batch.size(), retryAttempts, e);
+                retryAttempts = 0;
+                expireUnarchived(batch);
+                return true;
+            }
+
+            long backoff = RETRY_BACKOFF_MILLIS << (retryAttempts - 1);
+            log.warn("Error archiving batch of {} tasks, retry {} in {}ms", batch.size(), retryAttempts, backoff, e);
+            retryBatch = batch;
+            nextRetryNanos = System.nanoTime() + backoff * 1_000_000;
+            return false;
+        }
+
+        retryAttempts = 0;
+        onArchived(batch);
+        return true;
+    }
+
+    /**
+     * 归档确认后缩短Redis保留时间
+     */
+    private void onArchived(List<AgentTaskRecord> batch) {
+        batchCount.incrementAndGet();
+        archivedCount.addAndGet(batch.size());
+        taskStore.expire(batch.stream().map(AgentTaskRecord::getTaskId).toList(),
+                Duration.ofSeconds(agentConfig.getArchivedTaskTtl()));
+        log.debug("Archived batch of {} tasks", batch.size());
+    }
+
+    /**
+     * 未能归档的任务设置兜底过期时间
+     */
+    private void expireUnarchived(List<AgentTaskRecord> records) {
+        taskStore.expire(records.stream().map(AgentTaskRecord::getTaskId).toList(),
+                Duration.ofSeconds(agentConfig.getUnarchivedTaskTtl()));
+    }
+
+}
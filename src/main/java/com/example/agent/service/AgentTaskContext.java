@@ -0,0 +1,159 @@
+package com.example.agent.service;
+
+import com.azure.ai.openai.models.ChatCompletionsFunctionToolDefinition;
+import com.example.agent.model.dto.AgentEventDto;
+import com.example.agent.model.dto.AgentTaskRequest;
+import com.example.agent.model.dto.AgentTaskResponse;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Agent任务执行上下文
+ * 保存单个任务在循环期间的可变状态，仅在该任务的步骤链中按顺序访问
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Getter
+public class AgentTaskContext {
+
+    /**
+     * 任务请求
+     */
+    private final AgentTaskRequest request;
+
+    /**
+     * 任务响应
+     */
+    private final AgentTaskResponse response;
+
+    /**
+     * 最大迭代次数
+     */
+    private final int maxIterations;
+
+    /**
+     * 任务截止时间（System.nanoTime）
+     */
+    private final long deadlineNanos;
+
+    /**
+     * 事件监听器，用于下发步骤以外的流式事件
+     */
+    private final Consumer<AgentEventDto> eventListener;
+
+    /**
+     * 父任务上下文，仅多Agent编排模式下的子Agent有值
+     */
+    private final AgentTaskContext parent;
+
+    /**
+     * 子Agent标识
+     */
+    private final String agent;
+
+    /**
+     * 执行轮次，从1开始；集群模式下为任务条目的投递次数，子Agent沿用父任务的轮次
+     */
+    @Setter
+    private int attempt = 1;
+
+    /**
+     * 本任务可用的函数工具定义
+     */
+    @Setter
+    private List<ChatCompletionsFunctionToolDefinition> toolDefinitions = List.of();
+
+    /**
+     * 对话上下文窗口
+     */
+    @Setter
+    private AgentContextWindow contextWindow;
+
+    /**
+     * 级联模式下升级到大模型的次数
+     */
+    private int escalations;
+
+    public AgentTaskContext(AgentTaskRequest request, AgentTaskResponse response, int maxIterations,
+                            long timeoutMillis, Consumer<AgentEventDto> eventListener) {
+        this(request, response, maxIterations, timeoutMillis, eventListener, null, null);
+    }
+
+    public AgentTaskContext(AgentTaskRequest request, AgentTaskResponse response, int maxIterations,
+                            long timeoutMillis, Consumer<AgentEventDto> eventListener,
+                            AgentTaskContext parent, String agent) {
+        this.request = request;
+        this.response = response;
+        this.maxIterations = maxIterations;
+        this.deadlineNanos = System.nanoTime() + timeoutMillis * 1_000_000;
+        this.eventListener = eventListener;
+        this.parent = parent;
+        this.agent = agent;
+    }
+
+    /**
+     * 获取任务ID
+     *
+     * @return 任务ID
+     */
+    public String getTaskId() {
+        return request.getTaskId();
+    }
+
+    /**
+     * 是否下发模型输出增量，请求未关闭流式输出时启用
+     *
+     * @return 是否下发
+     */
+    public boolean isStreamDeltas() {
+        return !Boolean.FALSE.equals(request.getStream());
+    }
+
+    /**
+     * 请求是否允许使用模型响应缓存
+     *
+     * @return 是否允许
+     */
+    public boolean isCacheResponse() {
+        return Boolean.TRUE.equals(request.getCacheResponse());
+    }
+
+    /**
+     * 是否为多Agent编排模式下的子Agent
+     *
+     * @return 是否为子Agent
+     */
+    public boolean isSubAgent() {
+        return parent != null;
+    }
+
+    /**
+     * 记录一次模型升级
+     */
+    public void recordEscalation() {
+        escalations++;
+    }
+
+    /**
+     * 下发事件
+     *
+     * @param event 事件
+     */
+    public void emit(AgentEventDto event) {
+        eventListener.accept(event);
+    }
+
+    /**
+     * 获取任务剩余时间预算（毫秒）
+     *
+     * @return 剩余毫秒数，已超时返回0
+     */
+    public long remainingMillis() {
+        return Math.max(0, (deadlineNanos - System.nanoTime()) / 1_000_000);
+    }
+
+}
@@ -0,0 +1,217 @@
+package com.example.agent.service;
+
+import com.alibaba.fastjson2.JSON;
+import com.example.agent.config.AgentConfig;
+import com.example.agent.enums.AgentEventType;
+import com.example.agent.enums.AgentStatus;
+import com.example.agent.model.dto.AgentEventDto;
+import com.example.agent.model.dto.AgentStepDto;
+import com.example.agent.model.dto.AgentTaskResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.ReactiveRedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Agent任务事件广播
+ * 执行节点把任务事件发布到频道 agent:task:{taskId}:events，任一节点都可订阅任意任务的实时事件，无需会话粘滞：
+ * 步骤、增量等临时事件和任务结束消息都由写缓冲按产生顺序缓冲，随批次在步骤写入列表之后通过同一管道发布，
+ * 同一步骤的连续增量每批次合并为一条消息；
+ * 结束消息总在该任务最后的步骤之后；
+ * 订阅时先建立频道订阅再读取任务快照补发已有步骤，实时步骤按执行轮次、子Agent和步骤序号去重，补发与实时之间不遗漏也不重复
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class AgentTaskEventBus {
+
+    private final ReactiveRedisMessageListenerContainer listenerContainer;
+    private final AgentConfig agentConfig;
+
+    private final AtomicInteger subscribers = new AtomicInteger();
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong backfilledSteps = new AtomicLong();
+    private final AtomicLong duplicateSteps = new AtomicLong();
+
+    /**
+     * 是否启用任务事件广播，未配置时跟随集群模式：单节点上任务流由提交请求直接推送，不必为每个事件发布消息
+     *
+     * @return 是否启用
+     */
+    public boolean isEnabled() {
+        Boolean enabled = agentConfig.getTaskEventFanoutEnabled();
+        return enabled != null ? enabled : Boolean.TRUE.equals(agentConfig.getClusterEnabled());
+    }
+
+    /**
+     * 构建事件消息，由写缓冲随批次发布
+     *
+     * @param taskId 任务ID
+     * @param event  事件
+     * @return 消息，未启用广播时为null
+     */
+    public String eventMessage(String taskId, AgentEventDto event) {
+        if (!isEnabled()) {
+            return null;
+        }
+        publishedCount.incrementAndGet();
+        return JSON.toJSONString(new TaskEventMessage(event, false, null));
+    }
+
+    /**
+     * 构建步骤事件消息，由写缓冲随批次在步骤写入之后发布
+     *
+     * @param taskId 任务ID
+     * @param step   步骤
+     * @return 消息，未启用广播时为null
+     */
+    public String stepMessage(String taskId, AgentStepDto step) {
+        return eventMessage(taskId, AgentEventDto.step(taskId, step));
+    }
+
+    /**
+     * 构建任务结束消息，订阅者收到后结束事件流；由写缓冲在该任务已缓冲的步骤之后发布
+     *
+     * @param error 失败原因，正常结束为null
+     * @return 消息，未启用广播时为null
+     */
+    public String completionMessage(String error) {
+        if (!isEnabled()) {
+            return null;
+        }
+        publishedCount.incrementAndGet();
+        return JSON.toJSONString(new TaskEventMessage(null, true, error));
+    }
+
+    /**
+     * 订阅任务事件：先补发快照中的步骤，再转发实时事件，直到任务结束
+     *
+     * @param taskId         任务ID
+     * @param snapshotLoader 任务快照读取，在频道订阅生效后调用
+     * @return 事件流，任务不存在时报错
+     */
+    public Flux<AgentEventDto> subscribe(String taskId, Supplier<AgentTaskResponse> snapshotLoader) {
+        if (!isEnabled()) {
+            // 未启用广播时只能补发快照
+            Set<String> seen = ConcurrentHashMap.newKeySet();
+            return loadSnapshot(taskId, snapshotLoader).flatMapMany(snapshot -> backfill(taskId, snapshot, seen));
+        }
+
+        return listenerContainer.receiveLater(new ChannelTopic(AgentTaskStore.eventsKey(taskId)))
+                .flatMapMany(live -> {
+                    // 补发期间到达的实时事件先缓冲，补发结束后再转发
+                    Sinks.Many<TaskEventMessage> buffer = Sinks.many().unicast().onBackpressureBuffer();
+                    Disposable connection = live.subscribe(
+                            message -> buffer.tryEmitNext(decode(message.getMessage())),
+                            buffer::tryEmitError,
+                            buffer::tryEmitComplete);
+
+                    Set<String> seen = ConcurrentHashMap.newKeySet();
+                    return loadSnapshot(taskId, snapshotLoader)
+                            .flatMapMany(snapshot -> isTerminal(snapshot.getStatus())
+                                    ? backfill(taskId, snapshot, seen)
+                                    : backfill(taskId, snapshot, seen).concatWith(forward(buffer.asFlux(), seen)))
+                            .doFinally(signal -> connection.dispose());
+                })
+                .doOnSubscribe(subscription -> subscribers.incrementAndGet())
+                .doFinally(signal -> subscribers.decrementAndGet());
+    }
+
+    /**
+     * 获取事件广播运行指标
+     *
+     * @return 指标
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", isEnabled());
+        stats.put("subscribers", subscribers.get());
+        stats.put("published", publishedCount.get());
+        stats.put("backfilledSteps", backfilledSteps.get());
+        stats.put("duplicateSteps", duplicateSteps.get());
+        return stats;
+    }
+
+    private Mono<AgentTaskResponse> loadSnapshot(String taskId, Supplier<AgentTaskResponse> snapshotLoader) {
+        return Mono.fromSupplier(snapshotLoader)
+                .subscribeOn(Schedulers.boundedElastic())
+                .switchIfEmpty(Mono.error(() -> new IllegalArgumentException("任务不存在: " + taskId)));
+    }
+
+    /**
+     * 补发快照中的步骤
+     */
+    private Flux<AgentEventDto> backfill(String taskId, AgentTaskResponse snapshot, Set<String> seen) {
+        List<AgentStepDto> steps = snapshot.getSteps() != null ? snapshot.getSteps() : List.of();
+        return Flux.fromIterable(steps)
+                .filter(step -> seen.add(stepKey(step)))
+                .doOnNext(step -> backfilledSteps.incrementAndGet())
+                .map(step -> AgentEventDto.step(taskId, step));
+    }
+
+    /**
+     * 转发实时事件，跳过已补发的步骤，收到结束消息时结束
+     */
+    private Flux<AgentEventDto> forward(Flux<TaskEventMessage> messages, Set<String> seen) {
+        return messages.handle((message, sink) -> {
+            if (message.completed()) {
+                if (message.error() != null) {
+                    sink.error(new IllegalStateException(message.error()));
+                } else {
+                    sink.complete();
+                }
+                return;
+            }
+            AgentEventDto event = message.event();
+            if (event.getType() == AgentEventType.STEP && !seen.add(stepKey(event.getStep()))) {
+                duplicateSteps.incrementAndGet();
+                return;
+            }
+            sink.next(event);
+        });
+    }
+
+    /**
+     * 步骤标识，多Agent任务中各子Agent的步骤序号独立编号，任务被接管重新执行时步骤序号从头编号
+     */
+    static String stepKey(AgentStepDto step) {
+        return step.getAttempt() + ":" + step.getAgent() + "#" + step.getStepNumber();
+    }
+
+    private static boolean isTerminal(AgentStatus status) {
+        return status == AgentStatus.COMPLETED || status == AgentStatus.FAILED;
+    }
+
+    private static TaskEventMessage decode(String payload) {
+        return JSON.parseObject(payload, TaskEventMessage.class);
+    }
+
+    /**
+     * 任务事件消息
+     *
+     * @param event     事件，结束消息为null
+     * @param completed 是否为结束消息
+     * @param error     失败原因
+     */
+    public record TaskEventMessage(AgentEventDto event, boolean completed, String error) {
+    }
+
+}
@@ -0,0 +1,256 @@
+package com.example.agent.service;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+import com.example.agent.enums.AgentRole;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Agent子任务依赖图
+ * 协调者输出的任务分解计划：每个子任务指定角色、任务描述、可用工具和所依赖的子任务；
+ * 解析时校验ID唯一、依赖存在且无环，节点按拓扑顺序排列，保证依赖总在被依赖者之前；
+ * 计划的唯一末端节点不是审核者时，自动追加一个依赖全部末端节点的审核节点，由其给出最终答案
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+public class AgentTaskGraph {
+
+    /**
+     * 自动追加的审核节点ID
+     */
+    public static final String REVIEW_NODE_ID = "review";
+
+    /**
+     * 节点，按拓扑顺序排列
+     */
+    private final List<Node> nodes;
+
+    private AgentTaskGraph(List<Node> nodes) {
+        this.nodes = List.copyOf(nodes);
+    }
+
+    /**
+     * 解析协调者输出的计划
+     *
+     * @param text         模型输出，取第一个 { 到最后一个 } 之间的JSON
+     * @param allowedTools 父任务可用的工具，子任务只能使用其中的工具
+     * @param maxSubtasks  最大子任务数（不含自动追加的审核节点）
+     * @return 依赖图
+     * @throws IllegalArgumentException 计划格式错误、依赖不存在或存在环
+     */
+    public static AgentTaskGraph parse(String text, List<String> allowedTools, int maxSubtasks) {
+        int start = text == null ? -1 : text.indexOf('{');
+        int end = text == null ? -1 : text.lastIndexOf('}');
+        if (start < 0 || end <= start) {
+            throw new IllegalArgumentException("计划中没有JSON对象");
+        }
+
+        JSONArray subtasks = JSON.parseObject(text.substring(start, end + 1)).getJSONArray("subtasks");
+        if (subtasks == null || subtasks.isEmpty()) {
+            throw new IllegalArgumentException("计划中没有子任务");
+        }
+        if (subtasks.size() > maxSubtasks) {
+            throw new IllegalArgumentException("子任务数 " + subtasks.size() + " 超过上限 " + maxSubtasks);
+        }
+
+        Map<String, Node> planned = new LinkedHashMap<>();
+        for (int i = 0; i < subtasks.size(); i++) {
+            Node node = parseNode(subtasks.getJSONObject(i), i, allowedTools);
+            if (planned.putIfAbsent(node.id(), node) != null) {
+                throw new IllegalArgumentException("子任务ID重复: " + node.id());
+            }
+        }
+
+        List<Node> ordered = topologicalOrder(planned);
+        appendReviewNode(ordered);
+        return new AgentTaskGraph(ordered);
+    }
+
+    /**
+     * 获取节点，按拓扑顺序排列，最后一个为审核节点
+     *
+     * @return 节点列表
+     */
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * 获取审核节点
+     *
+     * @return 审核节点
+     */
+    public Node getReviewNode() {
+        return nodes.get(nodes.size() - 1);
+    }
+
+    /**
+     * 获取关键路径长度，即最长依赖链上的节点数
+     *
+     * @return 关键路径长度
+     */
+    public int getCriticalPathLength() {
+        Map<String, Integer> depth = new HashMap<>();
+        int longest = 0;
+        for (Node node : nodes) {
+            int d = 1 + node.dependsOn().stream().mapToInt(depth::get).max().orElse(0);
+            depth.put(node.id(), d);
+            longest = Math.max(longest, d);
+        }
+        return longest;
+    }
+
+    /**
+     * 转换为JSON，用于记录计划步骤
+     *
+     * @return JSON
+     */
+    public String toJson() {
+        Map<String, Object> plan = new LinkedHashMap<>();
+        plan.put("subtasks", nodes);
+        plan.put("criticalPath", getCriticalPathLength());
+        return JSON.toJSONString(plan);
+    }
+
+    /**
+     * 构建协调者任务分解的系统提示词
+     *
+     * @param toolNames   可用工具
+     * @param maxSubtasks 最大子任务数
+     * @return 系统提示词
+     */
+    public static String buildPlanningPrompt(List<String> toolNames, int maxSubtasks) {
+        StringBuilder prompt = new StringBuilder();
+
+        prompt.append("你是一个").append(AgentRole.COORDINATOR.getName()).append("。\n");
+        prompt.append("你需要把任务分解为子任务依赖图，互不依赖的子任务由不同Agent并行执行。\n\n");
+
+        prompt.append("可分配的角色:\n");
+        for (AgentRole role : AgentRole.values()) {
+            if (role != AgentRole.COORDINATOR) {
+                prompt.append("- ").append(role.name()).append(": ").append(role.getDescription()).append("\n");
+            }
+        }
+        prompt.append("\n可用工具: ").append(toolNames.isEmpty() ? "无" : String.join(", ", toolNames)).append("\n\n");
+
+        prompt.append("要求:\n");
+        prompt.append("1. 子任务不超过").append(maxSubtasks).append("个，只在确实需要上游结果时声明依赖\n");
+        prompt.append("2. 依赖不能成环\n");
+        prompt.append("3. 最后由REVIEWER汇总并校验各子任务结果，给出最终答案\n\n");
+
+        prompt.append("只输出JSON，格式:\n");
+        prompt.append("{\"subtasks\":[{\"id\":\"s1\",\"role\":\"RESEARCHER\",\"task\":\"子任务描述\",")
+                .append("\"tools\":[\"search\"],\"dependsOn\":[]}]}\n");
+
+        return prompt.toString();
+    }
+
+    private static Node parseNode(JSONObject subtask, int index, List<String> allowedTools) {
+        String id = subtask.getString("id");
+        if (id == null || id.isBlank()) {
+            id = "s" + (index + 1);
+        }
+
+        AgentRole role = AgentRole.fromString(subtask.getString("role"));
+        if (role == null || role == AgentRole.COORDINATOR) {
+            throw new IllegalArgumentException("子任务 " + id + " 的角色无效: " + role);
+        }
+
+        String task = subtask.getString("task");
+        if (task == null || task.isBlank()) {
+            throw new IllegalArgumentException("子任务 " + id + " 缺少任务描述");
+        }
+
+        List<String> tools = new ArrayList<>();
+        JSONArray requestedTools = subtask.getJSONArray("tools");
+        if (requestedTools != null && allowedTools != null) {
+            for (String tool : requestedTools.toJavaList(String.class)) {
+                if (allowedTools.contains(tool) && !tools.contains(tool)) {
+                    tools.add(tool);
+                }
+            }
+        }
+
+        JSONArray dependsOn = subtask.getJSONArray("dependsOn");
+        List<String> dependencies = dependsOn == null ? List.of() : dependsOn.toJavaList(String.class).stream()
+                .distinct()
+                .toList();
+        return new Node(id, role, task, List.copyOf(tools), dependencies);
+    }
+
+    /**
+     * 按计划顺序做拓扑排序，依赖不存在或存在环时报错
+     */
+    private static List<Node> topologicalOrder(Map<String, Node> planned) {
+        for (Node node : planned.values()) {
+            for (String dependency : node.dependsOn()) {
+                if (!planned.containsKey(dependency) || dependency.equals(node.id())) {
+                    throw new IllegalArgumentException("子任务 " + node.id() + " 的依赖无效: " + dependency);
+                }
+            }
+        }
+
+        List<Node> ordered = new ArrayList<>(planned.size() + 1);
+        Set<String> placed = new HashSet<>();
+        while (ordered.size() < planned.size()) {
+            boolean progressed = false;
+            for (Node node : planned.values()) {
+                if (!placed.contains(node.id()) && placed.containsAll(node.dependsOn())) {
+                    ordered.add(node);
+                    placed.add(node.id());
+                    progressed = true;
+                }
+            }
+            if (!progressed) {
+                throw new IllegalArgumentException("子任务依赖存在环");
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * 唯一末端节点不是审核者时，追加依赖全部末端节点的审核节点
+     */
+    private static void appendReviewNode(List<Node> ordered) {
+        Set<String> referenced = new HashSet<>();
+        ordered.forEach(node -> referenced.addAll(node.dependsOn()));
+        List<Node> sinks = ordered.stream().filter(node -> !referenced.contains(node.id())).toList();
+        if (sinks.size() == 1 && sinks.get(0).role() == AgentRole.REVIEWER) {
+            // 审核节点须排在最后
+            ordered.remove(sinks.get(0));
+            ordered.add(sinks.get(0));
+            return;
+        }
+
+        String id = REVIEW_NODE_ID;
+        Set<String> ids = new HashSet<>();
+        ordered.forEach(node -> ids.add(node.id()));
+        for (int i = 2; ids.contains(id); i++) {
+            id = REVIEW_NODE_ID + i;
+        }
+        ordered.add(new Node(id, AgentRole.REVIEWER, "审核各子任务的结果，校验后汇总给出总任务的最终答案", List.of(),
+                sinks.stream().map(Node::id).toList()));
+    }
+
+    /**
+     * 子任务节点
+     *
+     * @param id        子任务ID，同时作为子Agent标识
+     * @param role      执行角色
+     * @param task      子任务描述
+     * @param tools     可用工具
+     * @param dependsOn 依赖的子任务ID
+     */
+    public record Node(String id, AgentRole role, String task, List<String> tools, List<String> dependsOn) {
+    }
+
+}
@@ -0,0 +1,331 @@
+package com.example.agent.service;
+
+import com.alibaba.fastjson2.JSON;
+import com.example.agent.config.AgentConfig;
+import com.example.agent.exception.TaskRejectedException;
+import com.example.agent.model.dto.AgentTaskRequest;
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XAutoClaimArgs;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Agent集群任务队列
+ * 基于Redis Stream agent:tasks 和消费组 agent-workers：接收请求的节点追加任务，各工作节点以自身节点ID作为消费者领取；
+ * 任务结束后确认并删除条目，流长度即为集群积压量；执行中的条目定期重新认领给自己以刷新空闲时间，
+ * 节点宕机后其条目空闲超时，由其他节点通过XAUTOCLAIM接管；领取后本地无法启动的条目重新追加到队尾归还，不计投递次数
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class AgentTaskQueue {
+
+    private static final String STREAM_KEY = "agent:tasks";
+    private static final String GROUP = "agent-workers";
+
+    private static final String FIELD_TASK_ID = "taskId";
+    private static final String FIELD_REQUEST = "request";
+    private static final String FIELD_ORIGIN = "origin";
+    /**
+     * 重新追加前条目已有的投递次数，领取时累加到当前条目的投递次数上
+     */
+    private static final String FIELD_DELIVERIES = "deliveries";
+
+    /**
+     * Redis命令超时时间（毫秒）
+     */
+    private static final long COMMAND_TIMEOUT_MILLIS = 3000;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final AgentConfig agentConfig;
+
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong claimedCount = new AtomicLong();
+    private final AtomicLong reclaimedCount = new AtomicLong();
+    private final AtomicLong ackedCount = new AtomicLong();
+    private final AtomicLong requeuedCount = new AtomicLong();
+
+    /**
+     * 本节点ID，同时作为消费者名称
+     */
+    private String nodeId;
+
+    @PostConstruct
+    public void init() {
+        String configured = agentConfig.getClusterNodeId();
+        if (configured != null && !configured.isBlank()) {
+            nodeId = configured;
+            return;
+        }
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            host = "node";
+        }
+        nodeId = host + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    /**
+     * 获取本节点ID
+     *
+     * @return 节点ID
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 创建消费组，流不存在时一并创建，消费组已存在时忽略
+     */
+    public void createGroup() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(bytes(STREAM_KEY), GROUP, ReadOffset.from("0"), true));
+            log.info("Created task queue consumer group: {}", GROUP);
+        } catch (RuntimeException e) {
+            if (!isBusyGroup(e)) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 提交任务，集群积压达到上限时拒绝
+     *
+     * @param request 任务请求，需已分配任务ID
+     * @param origin  接收请求的节点ID，事件回传到该节点
+     */
+    public void enqueue(AgentTaskRequest request, String origin) {
+        Long backlog = stringRedisTemplate.opsForStream().size(STREAM_KEY);
+        if (backlog != null && backlog >= agentConfig.getClusterMaxQueuedTasks()) {
+            log.warn("Task rejected, cluster queue is full: taskId={}, backlog={}", request.getTaskId(), backlog);
+            throw new TaskRejectedException("集群任务队列已满，请稍后重试", agentConfig.getRetryAfterSeconds());
+        }
+
+        Map<String, String> fields = new HashMap<>();
+        fields.put(FIELD_TASK_ID, request.getTaskId());
+        fields.put(FIELD_REQUEST, JSON.toJSONString(request));
+        fields.put(FIELD_ORIGIN, origin);
+        RecordId recordId = stringRedisTemplate.opsForStream()
+                .add(StreamRecords.string(fields).withStreamKey(STREAM_KEY));
+        enqueuedCount.incrementAndGet();
+        log.info("Task enqueued: taskId={}, recordId={}", request.getTaskId(), recordId);
+    }
+
+    /**
+     * 领取新任务，不阻塞
+     *
+     * @param count 最多领取的任务数
+     * @return 领取到的任务
+     */
+    public List<QueuedTask> read(int count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                Consumer.from(GROUP, nodeId),
+                StreamReadOptions.empty().count(count),
+                StreamOffset.create(STREAM_KEY, ReadOffset.lastConsumed()));
+        if (records == null || records.isEmpty()) {
+            return List.of();
+        }
+
+        List<QueuedTask> tasks = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<String, String> fields = new HashMap<>();
+            record.getValue().forEach((field, value) -> fields.put(String.valueOf(field), String.valueOf(value)));
+            tasks.add(toTask(record.getId().getValue(), fields, 1));
+        }
+        claimedCount.addAndGet(tasks.size());
+        return tasks;
+    }
+
+    /**
+     * 接管空闲超时的任务，即宕机或失联节点领取后未确认的条目
+     * Spring Data Redis未封装XAUTOCLAIM，通过Lettuce原生连接执行；每次接管会增加条目的投递次数
+     *
+     * @param minIdle 最小空闲时间
+     * @param count   最多接管的任务数
+     * @return 接管到的任务，含投递次数
+     */
+    @SuppressWarnings("unchecked")
+    public List<QueuedTask> reclaim(Duration minIdle, int count) {
+        List<StreamMessage<byte[], byte[]>> messages = stringRedisTemplate.execute(
+                (RedisCallback<List<StreamMessage<byte[], byte[]>>>) connection -> {
+                    RedisClusterAsyncCommands<byte[], byte[]> commands =
+                            (RedisClusterAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
+                    XAutoClaimArgs<byte[]> args = XAutoClaimArgs.Builder
+                            .xautoclaim(io.lettuce.core.Consumer.from(bytes(GROUP), bytes(nodeId)), minIdle, "0-0")
+                            .count(count);
+                    return LettuceFutures.awaitOrCancel(commands.xautoclaim(bytes(STREAM_KEY), args),
+                            COMMAND_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).getMessages();
+                });
+        if (messages == null || messages.isEmpty()) {
+            return List.of();
+        }
+
+        List<QueuedTask> tasks = new ArrayList<>(messages.size());
+        for (StreamMessage<byte[], byte[]> message : messages) {
+            Map<String, String> fields = new HashMap<>();
+            message.getBody().forEach((field, value) -> fields.put(string(field), string(value)));
+            tasks.add(toTask(message.getId(), fields, deliveryCount(message.getId())));
+        }
+        reclaimedCount.addAndGet(tasks.size());
+        return tasks;
+    }
+
+    /**
+     * 把执行中的任务重新认领给本节点，刷新空闲时间，避免长任务被其他节点接管；不增加投递次数
+     *
+     * @param recordIds 条目ID
+     */
+    public void touch(List<String> recordIds) {
+        if (recordIds.isEmpty()) {
+            return;
+        }
+        RedisStreamCommands.XClaimOptions options = RedisStreamCommands.XClaimOptions.minIdle(Duration.ZERO)
+                .ids(recordIds.toArray(String[]::new));
+        stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection -> connection.streamCommands()
+                .xClaimJustId(bytes(STREAM_KEY), GROUP, nodeId, options));
+    }
+
+    /**
+     * 确认并删除任务条目
+     *
+     * @param recordId 条目ID
+     */
+    public void ack(String recordId) {
+        stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, GROUP, recordId);
+        stringRedisTemplate.opsForStream().delete(STREAM_KEY, recordId);
+        ackedCount.incrementAndGet();
+    }
+
+    /**
+     * 归还已领取但本节点无法启动的任务：在同一事务中重新追加到队尾并确认删除原条目，
+     * 其他节点可立即领取；本次领取不计入投递次数，不会因本地繁忙被判定失败
+     *
+     * @param task 领取到的任务
+     */
+    public void requeue(QueuedTask task) {
+        Map<String, String> fields = new HashMap<>();
+        fields.put(FIELD_TASK_ID, task.taskId());
+        fields.put(FIELD_REQUEST, JSON.toJSONString(task.request()));
+        fields.put(FIELD_ORIGIN, task.origin());
+        fields.put(FIELD_DELIVERIES, String.valueOf(task.deliveries() - 1));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            stringConnection.multi();
+            stringConnection.xAdd(STREAM_KEY, fields);
+            stringConnection.xAck(STREAM_KEY, GROUP, task.recordId());
+            stringConnection.xDel(STREAM_KEY, task.recordId());
+            stringConnection.exec();
+            return null;
+        });
+        requeuedCount.incrementAndGet();
+        log.info("Task requeued: taskId={}, recordId={}", task.taskId(), task.recordId());
+    }
+
+    /**
+     * 获取队列运行指标
+     *
+     * @return 指标
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("nodeId", nodeId);
+        try {
+            stats.put("backlog", stringRedisTemplate.opsForStream().size(STREAM_KEY));
+            stats.put("pending", stringRedisTemplate.opsForStream().pending(STREAM_KEY, GROUP)
+                    .getTotalPendingMessages());
+        } catch (Exception e) {
+            log.warn("Error reading task queue stats from Redis", e);
+        }
+        stats.put("enqueued", enqueuedCount.get());
+        stats.put("claimed", claimedCount.get());
+        stats.put("reclaimed", reclaimedCount.get());
+        stats.put("acked", ackedCount.get());
+        stats.put("requeued", requeuedCount.get());
+        return stats;
+    }
+
+    /**
+     * 查询条目的投递次数
+     */
+    private long deliveryCount(String recordId) {
+        PendingMessages pending = stringRedisTemplate.opsForStream()
+                .pending(STREAM_KEY, GROUP, Range.closed(recordId, recordId), 1L);
+        return pending == null || pending.isEmpty() ? 1 : pending.get(0).getTotalDeliveryCount();
+    }
+
+    /**
+     * 消费组已存在的错误可能被包装在异常链中
+     */
+    private static boolean isBusyGroup(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause()) {
+            if (e.getMessage() != null && e.getMessage().contains("BUSYGROUP")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private QueuedTask toTask(String recordId, Map<String, String> fields, long deliveries) {
+        String json = fields.get(FIELD_REQUEST);
+        AgentTaskRequest request = json != null ? JSON.parseObject(json, AgentTaskRequest.class) : null;
+        String previous = fields.get(FIELD_DELIVERIES);
+        long total = deliveries + (previous != null ? Long.parseLong(previous) : 0);
+        return new QueuedTask(recordId, fields.get(FIELD_TASK_ID), request, fields.get(FIELD_ORIGIN), total);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 领取到的任务
+     *
+     * @param recordId   流条目ID
+     * @param taskId     任务ID
+     * @param request    任务请求，条目损坏时为null
+     * @param origin     接收请求的节点ID
+     * @param deliveries 投递次数，含归还前的投递次数
+     */
+    public record QueuedTask(String recordId, String taskId, AgentTaskRequest request, String origin,
+                             long deliveries) {
+    }
+
+}
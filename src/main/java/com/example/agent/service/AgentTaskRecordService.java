@@ -5,11 +5,13 @@ import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.example.agent.entity.AgentTaskRecord;
 import com.example.agent.mapper.AgentTaskRecordMapper;
+import com.example.agent.model.dto.AgentStepDto;
 import com.example.agent.model.dto.AgentTaskResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -30,16 +32,7 @@ public class AgentTaskRecordService extends ServiceImpl<AgentTaskRecordMapper, A
     @Transactional(rollbackFor = Exception.class)
     public void saveTaskRecord(AgentTaskResponse response) {
         try {
-            AgentTaskRecord record = AgentTaskRecord.builder()
-                    .taskId(response.getTaskId())
-                    .status(response.getStatus())
-                    .steps(JSON.toJSONString(response.getSteps()))
-                    .result(response.getResult())
-                    .totalIterations(response.getTotalIterations())
-                    .startTime(response.getStartTime())
-                    .endTime(response.getEndTime())
-                    .errorMessage(response.getErrorMessage())
-                    .build();
+            AgentTaskRecord record = toRecord(response);
 
             this.save(record);
             log.info("Task record saved: {}", response.getTaskId());
@@ -50,6 +43,59 @@ public class AgentTaskRecordService extends ServiceImpl<AgentTaskRecordMapper, A
         }
     }
 
+    /**
+     * 批量保存任务记录（单条多行INSERT），任务ID已存在时覆盖原记录
+     *
+     * @param records 任务记录列表
+     * @return 影响行数
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public int saveTaskRecordBatch(List<AgentTaskRecord> records) {
+        if (records.isEmpty()) {
+            return 0;
+        }
+        return this.baseMapper.upsertBatch(records);
+    }
+
+    /**
+     * 任务响应转换为任务记录
+     *
+     * @param response 任务响应
+     * @return 任务记录
+     */
+    public AgentTaskRecord toRecord(AgentTaskResponse response) {
+        return AgentTaskRecord.builder()
+                .taskId(response.getTaskId())
+                .status(response.getStatus())
+                .steps(JSON.toJSONString(response.getSteps()))
+                .result(response.getResult())
+                .totalIterations(response.getTotalIterations())
+                .startTime(response.getStartTime())
+                .endTime(response.getEndTime())
+                .errorMessage(response.getErrorMessage())
+                .build();
+    }
+
+    /**
+     * 任务记录转换为任务响应
+     *
+     * @param record 任务记录
+     * @return 任务响应
+     */
+    public AgentTaskResponse toResponse(AgentTaskRecord record) {
+        return AgentTaskResponse.builder()
+                .taskId(record.getTaskId())
+                .status(record.getStatus())
+                .steps(record.getSteps() != null
+                        ? JSON.parseArray(record.getSteps(), AgentStepDto.class) : new ArrayList<>())
+                .result(record.getResult())
+                .totalIterations(record.getTotalIterations())
+                .startTime(record.getStartTime())
+                .endTime(record.getEndTime())
+                .errorMessage(record.getErrorMessage())
+                .build();
+    }
+
     /**
      * 根据任务ID查询记录
      *
@@ -59,7 +105,7 @@ public class AgentTaskRecordService extends ServiceImpl<AgentTaskRecordMapper, A
     public AgentTaskRecord getByTaskId(String taskId) {
         LambdaQueryWrapper<AgentTaskRecord> wrapper = new LambdaQueryWrapper<>();
         wrapper.eq(AgentTaskRecord::getTaskId, taskId);
-        return this.getOne(wrapper);
+        return this.getOne(wrapper, false);
     }
 
     /**
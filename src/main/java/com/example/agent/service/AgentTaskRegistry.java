@@ -0,0 +1,252 @@
+package com.example.agent.service;
+
+import com.example.agent.config.AgentConfig;
+import com.example.agent.model.dto.AgentStepDto;
+import com.example.agent.model.dto.AgentTaskResponse;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Agent任务内存注册表
+ * 运行中的任务常驻内存；任务进入终止状态后转入有界的已完成区，按数量和存活时间淘汰，淘汰后从持久化存储读取；
+ * 任务完成和读取时顺带淘汰，另按agent.finished-task-sweep-interval定期清理，没有新任务和读取时过期任务同样会释放
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class AgentTaskRegistry {
+
+    /**
+     * 单个对象的估算固定开销（字节）
+     */
+    private static final long OBJECT_OVERHEAD_BYTES = 64;
+
+    /**
+     * 单个步骤的估算固定开销（字节）
+     */
+    private static final long STEP_OVERHEAD_BYTES = 256;
+
+    private final AgentConfig agentConfig;
+
+    /**
+     * 运行中的任务
+     */
+    private final Map<String, TaskEntry> activeTasks = new ConcurrentHashMap<>();
+
+    /**
+     * 已完成的任务，按完成顺序排列，受自身锁保护
+     */
+    private final LinkedHashMap<String, TaskEntry> finishedTasks = new LinkedHashMap<>();
+
+    /**
+     * 累计淘汰的任务数
+     */
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    /**
+     * 单线程清理调度器
+     */
+    private final Scheduler sweepScheduler = Schedulers.newSingle("agent-registry-sweeper");
+
+    private Disposable sweepTask;
+
+    @PostConstruct
+    public void start() {
+        long interval = agentConfig.getFinishedTaskSweepInterval();
+        sweepTask = sweepScheduler.schedulePeriodically(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (sweepTask != null) {
+            sweepTask.dispose();
+        }
+        sweepScheduler.dispose();
+    }
+
+    /**
+     * 注册运行中的任务
+     *
+     * @param taskId   任务ID
+     * @param response 任务响应
+     */
+    public void register(String taskId, AgentTaskResponse response) {
+        activeTasks.put(taskId, new TaskEntry(response));
+    }
+
+    /**
+     * 记录任务步骤，累加内存估算
+     *
+     * @param taskId 任务ID
+     * @param step   步骤
+     */
+    public void recordStep(String taskId, AgentStepDto step) {
+        TaskEntry entry = activeTasks.get(taskId);
+        if (entry != null) {
+            entry.estimatedBytes.addAndGet(estimateBytes(step));
+        }
+    }
+
+    /**
+     * 任务进入终止状态，转入已完成区等待淘汰
+     *
+     * @param taskId 任务ID
+     */
+    public void complete(String taskId) {
+        TaskEntry entry = activeTasks.remove(taskId);
+        if (entry == null) {
+            return;
+        }
+
+        entry.finishedAtNanos = System.nanoTime();
+        synchronized (finishedTasks) {
+            finishedTasks.put(taskId, entry);
+            evictFinished();
+        }
+    }
+
+    /**
+     * 移除任务
+     *
+     * @param taskId 任务ID
+     */
+    public void remove(String taskId) {
+        if (activeTasks.remove(taskId) == null) {
+            synchronized (finishedTasks) {
+                finishedTasks.remove(taskId);
+            }
+        }
+    }
+
+    /**
+     * 获取任务
+     *
+     * @param taskId 任务ID
+     * @return 任务响应，不在内存中返回null
+     */
+    public AgentTaskResponse get(String taskId) {
+        TaskEntry entry = activeTasks.get(taskId);
+        if (entry != null) {
+            return entry.response;
+        }
+
+        synchronized (finishedTasks) {
+            evictFinished();
+            entry = finishedTasks.get(taskId);
+        }
+        return entry != null ? entry.response : null;
+    }
+
+    /**
+     * 获取注册表运行指标
+     *
+     * @return 指标
+     */
+    public Map<String, Object> getStats() {
+        long activeBytes = activeTasks.values().stream().mapToLong(e -> e.estimatedBytes.get()).sum();
+
+        int finishedCount;
+        long finishedBytes;
+        synchronized (finishedTasks) {
+            evictFinished();
+            finishedCount = finishedTasks.size();
+            finishedBytes = finishedTasks.values().stream().mapToLong(e -> e.estimatedBytes.get()).sum();
+        }
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("active", activeTasks.size());
+        stats.put("finished", finishedCount);
+        stats.put("evicted", evictedCount.get());
+        stats.put("activeEstimatedBytes", activeBytes);
+        stats.put("finishedEstimatedBytes", finishedBytes);
+        stats.put("maxFinished", agentConfig.getFinishedTaskCacheSize());
+        stats.put("finishedTtlSeconds", agentConfig.getFinishedTaskTtl());
+        return stats;
+    }
+
+    /**
+     * 定期清理已完成区中超出数量或存活时间的任务
+     */
+    void sweep() {
+        try {
+            synchronized (finishedTasks) {
+                evictFinished();
+            }
+        } catch (Exception e) {
+            log.error("Error sweeping finished tasks", e);
+        }
+    }
+
+    /**
+     * 按数量和存活时间淘汰已完成任务，需持有finishedTasks锁
+     * 已完成区按完成顺序排列，过期项总在头部
+     */
+    private void evictFinished() {
+        long ttlNanos = agentConfig.getFinishedTaskTtl() * 1_000_000_000L;
+        long now = System.nanoTime();
+        int maxSize = agentConfig.getFinishedTaskCacheSize();
+
+        Iterator<Map.Entry<String, TaskEntry>> iterator = finishedTasks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            TaskEntry entry = iterator.next().getValue();
+            if (finishedTasks.size() <= maxSize && now - entry.finishedAtNanos < ttlNanos) {
+                break;
+            }
+            iterator.remove();
+            evictedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * 估算步骤占用内存（字节），字符串按UTF-16计算
+     */
+    private long estimateBytes(AgentStepDto step) {
+        long bytes = STEP_OVERHEAD_BYTES;
+        bytes += stringBytes(step.getThinking());
+        bytes += stringBytes(step.getAction());
+        bytes += stringBytes(step.getObservation());
+        if (step.getToolCall() != null) {
+            // 工具结果对象与观察结果内容相当
+            bytes += OBJECT_OVERHEAD_BYTES + stringBytes(step.getObservation());
+        }
+        return bytes;
+    }
+
+    private long stringBytes(String value) {
+        return value == null ? 0 : OBJECT_OVERHEAD_BYTES + 2L * value.length();
+    }
+
+    /**
+     * 注册表条目
+     */
+    private static class TaskEntry {
+
+        private final AgentTaskResponse response;
+
+        private final AtomicLong estimatedBytes = new AtomicLong(OBJECT_OVERHEAD_BYTES * 4);
+
+        private long finishedAtNanos;
+
+        TaskEntry(AgentTaskResponse response) {
+            this.response = response;
+        }
+
+    }
+
+}
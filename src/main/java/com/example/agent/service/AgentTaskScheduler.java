@@ -0,0 +1,279 @@
+package com.example.agent.service;
+
+import com.example.agent.config.AgentConfig;
+import com.example.agent.exception.TaskRejectedException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * Agent任务调度器
+ * 按agent.max-concurrent-agents限制并发任务数，超出部分进入有界等待队列，队列满时拒绝并给出重试建议；
+ * 多Agent和map-reduce任务的子Agent可借用空闲槽位并行执行，借用的槽位同样计入并发数
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class AgentTaskScheduler {
+
+    /**
+     * 任务耗时滑动平均的平滑系数
+     */
+    private static final double DURATION_ALPHA = 0.2;
+
+    private final AgentConfig agentConfig;
+
+    /**
+     * 等待队列，受lock保护
+     */
+    private final Deque<PendingTask> waitingQueue = new ArrayDeque<>();
+
+    private final Object lock = new Object();
+
+    /**
+     * 正在运行的任务数，受lock保护
+     */
+    private int runningCount;
+
+    /**
+     * 子Agent借用中的槽位数，已计入runningCount，受lock保护
+     */
+    private int borrowedCount;
+
+    /**
+     * 累计拒绝的任务数，受lock保护
+     */
+    private long rejectedCount;
+
+    /**
+     * 任务平均耗时（毫秒），用于估算重试等待时间，受lock保护
+     */
+    private double avgTaskMillis;
+
+    /**
+     * 提交任务
+     * 有空闲并发槽位时立即启动，否则进入等待队列并通过positionListener推送排队位置；
+     * 监听器在调度器锁外调用，同一任务收到的排队位置只会递减，已启动的任务不再收到
+     *
+     * @param taskId           任务ID
+     * @param launcher         任务启动器，任务结束时必须调用{@link #release(String, long)}
+     * @param positionListener 排队位置监听器
+     * @return 排队位置，0表示已立即启动
+     */
+    public int submit(String taskId, Runnable launcher, IntConsumer positionListener) {
+        PendingTask queued;
+        int position;
+        synchronized (lock) {
+            if (runningCount < agentConfig.getMaxConcurrentAgents()) {
+                runningCount++;
+                queued = null;
+                position = 0;
+            } else if (waitingQueue.size() >= agentConfig.getMaxQueuedTasks()) {
+                rejectedCount++;
+                long retryAfter = estimateRetryAfterSeconds();
+                log.warn("Task rejected, queue is full: taskId={}, queued={}, retryAfter={}s",
+                        taskId, waitingQueue.size(), retryAfter);
+                throw new TaskRejectedException("任务队列已满，请稍后重试", retryAfter);
+            } else {
+                queued = new PendingTask(taskId, launcher, positionListener);
+                waitingQueue.addLast(queued);
+                position = waitingQueue.size();
+            }
+        }
+
+        if (queued == null) {
+            launch(taskId, launcher);
+            return 0;
+        }
+        log.info("Task queued: taskId={}, position={}", taskId, position);
+        queued.notifyPosition(position);
+        return position;
+    }
+
+    /**
+     * 释放并发槽位，并启动等待队列中的下一个任务
+     *
+     * @param taskId         任务ID
+     * @param durationMillis 任务耗时（毫秒）
+     */
+    public void release(String taskId, long durationMillis) {
+        synchronized (lock) {
+            avgTaskMillis = avgTaskMillis == 0 ? durationMillis
+                    : DURATION_ALPHA * durationMillis + (1 - DURATION_ALPHA) * avgTaskMillis;
+        }
+
+        log.debug("Task released: taskId={}, durationMillis={}", taskId, durationMillis);
+        handOff(false);
+    }
+
+    /**
+     * 借用一个空闲并发槽位，供任务内的子Agent并行执行；等待队列非空时不借用，排队的新任务优先
+     *
+     * @return 是否借到，借到后必须调用{@link #releaseBorrowed()}归还
+     */
+    public boolean tryBorrow() {
+        synchronized (lock) {
+            if (!waitingQueue.isEmpty() || runningCount >= agentConfig.getMaxConcurrentAgents()) {
+                return false;
+            }
+            runningCount++;
+            borrowedCount++;
+            return true;
+        }
+    }
+
+    /**
+     * 归还借用的槽位，并启动等待队列中的下一个任务
+     */
+    public void releaseBorrowed() {
+        handOff(true);
+    }
+
+    /**
+     * 获取可立即启动的任务数，即空闲并发槽位数；等待队列非空时为0
+     *
+     * @return 空闲槽位数
+     */
+    public int availableSlots() {
+        synchronized (lock) {
+            if (!waitingQueue.isEmpty()) {
+                return 0;
+            }
+            return Math.max(0, agentConfig.getMaxConcurrentAgents() - runningCount);
+        }
+    }
+
+    /**
+     * 获取调度器运行指标
+     *
+     * @return 指标
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (lock) {
+            stats.put("running", runningCount);
+            stats.put("borrowed", borrowedCount);
+            stats.put("queued", waitingQueue.size());
+            stats.put("rejected", rejectedCount);
+            stats.put("avgTaskMillis", (long) avgTaskMillis);
+        }
+        stats.put("maxConcurrent", agentConfig.getMaxConcurrentAgents());
+        stats.put("maxQueued", agentConfig.getMaxQueuedTasks());
+        return stats;
+    }
+
+    /**
+     * 启动任务，启动失败时立即归还槽位
+     */
+    private void launch(String taskId, Runnable launcher) {
+        try {
+            launcher.run();
+        } catch (Exception e) {
+            log.error("Error launching task: {}", taskId, e);
+            release(taskId, 0);
+        }
+    }
+
+    /**
+     * 把释放的槽位交给等待队列中的下一个任务，队列为空时归还
+     *
+     * @param borrowed 释放的是否为子Agent借用的槽位
+     */
+    private void handOff(boolean borrowed) {
+        PendingTask next;
+        List<PendingTask> remaining;
+        synchronized (lock) {
+            if (borrowed) {
+                borrowedCount--;
+            }
+            next = waitingQueue.pollFirst();
+            if (next == null) {
+                runningCount--;
+                return;
+            }
+            // 在锁内取排队快照，锁外推送，监听器不阻塞其他线程的提交和释放
+            remaining = new ArrayList<>(waitingQueue);
+        }
+
+        next.markLaunched();
+        int position = 1;
+        for (PendingTask task : remaining) {
+            task.notifyPosition(position++);
+        }
+        launch(next.taskId(), next.launcher());
+    }
+
+    /**
+     * 估算重试等待时间：排队任务按并发数分批，每批耗时取任务平均耗时，需持有lock
+     */
+    private long estimateRetryAfterSeconds() {
+        long minSeconds = agentConfig.getRetryAfterSeconds();
+        if (avgTaskMillis <= 0) {
+            return minSeconds;
+        }
+        double batches = Math.ceil((waitingQueue.size() + 1.0) / agentConfig.getMaxConcurrentAgents());
+        long estimated = (long) Math.ceil(batches * avgTaskMillis / 1000);
+        return Math.max(minSeconds, estimated);
+    }
+
+    /**
+     * 等待中的任务
+     * 多个线程可能在锁外并发推送同一任务的位置，只转发比上次更小的位置，避免过期的快照让排队位置回退
+     */
+    private static final class PendingTask {
+
+        private final String taskId;
+
+        private final Runnable launcher;
+
+        private final IntConsumer positionListener;
+
+        /**
+         * 最近推送的排队位置，0表示已启动，受this保护
+         */
+        private int lastPosition = Integer.MAX_VALUE;
+
+        private PendingTask(String taskId, Runnable launcher, IntConsumer positionListener) {
+            this.taskId = taskId;
+            this.launcher = launcher;
+            this.positionListener = positionListener;
+        }
+
+        private String taskId() {
+            return taskId;
+        }
+
+        private Runnable launcher() {
+            return launcher;
+        }
+
+        private synchronized void notifyPosition(int position) {
+            if (position >= lastPosition) {
+                return;
+            }
+            lastPosition = position;
+            try {
+                positionListener.accept(position);
+            } catch (Exception e) {
+                log.warn("Error notifying queue position: taskId={}, position={}", taskId, position, e);
+            }
+        }
+
+        private synchronized void markLaunched() {
+            lastPosition = 0;
+        }
+
+    }
+
+}
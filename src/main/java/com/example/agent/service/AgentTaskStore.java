@@ -0,0 +1,407 @@
+package com.example.agent.service;
+
+import com.alibaba.fastjson2.JSON;
+import com.example.agent.enums.AgentStatus;
+import com.example.agent.model.dto.AgentStepDto;
+import com.example.agent.model.dto.AgentTaskResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.DataType;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Agent任务Redis存储
+ * 任务状态和计数保存在小哈希 agent:task:{taskId} 中，步骤以追加方式写入列表 agent:task:{taskId}:steps，
+ * 每个步骤只序列化和写入一次，单步写入量与迭代次数无关；任务事件发布到频道 agent:task:{taskId}:events
+ * 旧版本把整个任务序列化为JSON字符串保存在 agent:task:{taskId} 中，读取时兼容该格式，复用任务ID前删除旧值
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class AgentTaskStore {
+
+    private static final String TASK_KEY_PREFIX = "agent:task:";
+    private static final String STEPS_KEY_SUFFIX = ":steps";
+    private static final String EVENTS_KEY_SUFFIX = ":events";
+
+    private static final String FIELD_STATUS = "status";
+    private static final String FIELD_RESULT = "result";
+    private static final String FIELD_TOTAL_ITERATIONS = "totalIterations";
+    private static final String FIELD_START_TIME = "startTime";
+    private static final String FIELD_END_TIME = "endTime";
+    private static final String FIELD_ERROR_MESSAGE = "errorMessage";
+
+    /**
+     * 单个任务的批量写入脚本
+     * KEYS[1] 步骤列表，KEYS[2] 状态哈希；ARGV[1] 事件频道，ARGV[2] 步骤数，ARGV[3] 状态字段数（键值合计），
+     * 之后依次为步骤JSON、状态字段和事件消息；
+     * 返回{跳过的已写入步骤数, ''}，命令出错（如WRONGTYPE）时返回{-1, 错误信息}且不发布事件，错误不影响管道中其他任务的脚本
+     */
+    private static final String WRITE_TASK_SCRIPT = """
+            local function failed(result)
+                return type(result) == 'table' and result.err
+            end
+            local stepCount = tonumber(ARGV[2])
+            local fieldCount = tonumber(ARGV[3])
+            local first = 4
+            local skipped = 0
+            if stepCount > 0 then
+                local tail = redis.pcall('LRANGE', KEYS[1], -stepCount, -1)
+                if failed(tail) then
+                    return {-1, tail.err}
+                end
+                for overlap = math.min(#tail, stepCount), 1, -1 do
+                    local matched = true
+                    for i = 1, overlap do
+                        if tail[#tail - overlap + i] ~= ARGV[first + i - 1] then
+                            matched = false
+                            break
+                        end
+                    end
+                    if matched then
+                        skipped = overlap
+                        break
+                    end
+                end
+                if skipped < stepCount then
+                    local pushed = redis.pcall('RPUSH', KEYS[1], unpack(ARGV, first + skipped, first + stepCount - 1))
+                    if failed(pushed) then
+                        return {-1, pushed.err}
+                    end
+                end
+            end
+            first = first + stepCount
+            if fieldCount > 0 then
+                local saved = redis.pcall('HSET', KEYS[2], unpack(ARGV, first, first + fieldCount - 1))
+                if failed(saved) then
+                    return {-1, saved.err}
+                end
+            end
+            for i = first + fieldCount, #ARGV do
+                redis.call('PUBLISH', ARGV[1], ARGV[i])
+            end
+            return {skipped, ''}
+            """;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 保存任务状态和计数
+     *
+     * @param response 任务响应
+     */
+    public void saveStatus(AgentTaskResponse response) {
+        try {
+            stringRedisTemplate.opsForHash().putAll(taskKey(response.getTaskId()), toStatusFields(response));
+        } catch (Exception e) {
+            log.error("Error saving task status to Redis", e);
+        }
+    }
+
+    /**
+     * 追加任务步骤
+     *
+     * @param taskId 任务ID
+     * @param step   步骤
+     */
+    public void appendStep(String taskId, AgentStepDto step) {
+        try {
+            stringRedisTemplate.opsForList().rightPush(stepsKey(taskId), JSON.toJSONString(step));
+        } catch (Exception e) {
+            log.error("Error appending task step to Redis", e);
+        }
+    }
+
+    /**
+     * 批量写入，每个任务一条Lua脚本：先追加步骤再更新状态，最后发布事件，所有任务的脚本在一次管道中发送；
+     * 事件在对应步骤写入之后发布，订阅者先订阅再读取步骤列表时不会遗漏步骤
+     * 脚本执行成功但应答丢失（如连接在执行后断开）时调用方会重试整批数据，因此步骤追加必须幂等：
+     * 脚本比较步骤列表尾部与待追加步骤的前缀，跳过已写入的部分；重复发布的步骤和结束消息由订阅方按步骤去重
+     * 失败按任务隔离：脚本捕获单个任务的命令错误（如WRONGTYPE）并在应答中返回，只有该任务失败，其他任务照常写入；
+     * 连接级错误时抛出异常，整批视为失败
+     *
+     * @param steps    各任务待追加的步骤
+     * @param statuses 待更新状态的任务
+     * @param events   各任务待发布的事件消息，键为任务ID
+     * @return 写入结果
+     */
+    public WriteResult writeBatch(Map<String, List<AgentStepDto>> steps, Collection<AgentTaskResponse> statuses,
+                                  Map<String, List<String>> events) {
+        Map<String, AgentTaskResponse> statusByTask = new HashMap<>();
+        statuses.forEach(response -> statusByTask.put(response.getTaskId(), response));
+        Set<String> taskIds = new LinkedHashSet<>(steps.keySet());
+        taskIds.addAll(statusByTask.keySet());
+        taskIds.addAll(events.keySet());
+        List<String> orderedTaskIds = new ArrayList<>(taskIds);
+
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            orderedTaskIds.forEach(taskId -> stringConnection.eval(WRITE_TASK_SCRIPT, ReturnType.MULTI, 2,
+                    writeTaskArgs(taskId, steps.getOrDefault(taskId, List.of()), statusByTask.get(taskId),
+                            events.getOrDefault(taskId, List.of()))));
+            return null;
+        });
+
+        Set<String> failedTasks = new LinkedHashSet<>();
+        long skippedSteps = 0;
+        for (int i = 0; i < orderedTaskIds.size(); i++) {
+            List<?> reply = (List<?>) results.get(i);
+            long skipped = ((Number) reply.get(0)).longValue();
+            if (skipped < 0) {
+                log.error("Error writing task {} to Redis: {}", orderedTaskIds.get(i), reply.get(1));
+                failedTasks.add(orderedTaskIds.get(i));
+            } else {
+                skippedSteps += skipped;
+            }
+        }
+        return new WriteResult(orderedTaskIds.size(), failedTasks, skippedSteps);
+    }
+
+    /**
+     * 为已归档任务的键设置过期时间
+     *
+     * @param taskIds 任务ID列表
+     * @param ttl     过期时间
+     */
+    public void expire(Collection<String> taskIds, Duration ttl) {
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                taskIds.forEach(taskId -> {
+                    stringConnection.expire(taskKey(taskId), ttl.getSeconds());
+                    stringConnection.expire(stepsKey(taskId), ttl.getSeconds());
+                });
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("Error setting TTL on archived tasks", e);
+        }
+    }
+
+    /**
+     * 清除任务步骤，任务在其他节点重新执行前调用
+     *
+     * @param taskId 任务ID
+     */
+    public void clearSteps(String taskId) {
+        try {
+            stringRedisTemplate.delete(stepsKey(taskId));
+        } catch (Exception e) {
+            log.error("Error clearing task steps in Redis", e);
+        }
+    }
+
+    /**
+     * 删除旧版本的任务JSON字符串，调用方指定的任务ID被复用时调用，否则写入状态哈希会报WRONGTYPE
+     *
+     * @param taskId 任务ID
+     */
+    public void evictLegacy(String taskId) {
+        try {
+            if (stringRedisTemplate.type(taskKey(taskId)) == DataType.STRING) {
+                log.info("Removing legacy task snapshot before reuse: taskId={}", taskId);
+                stringRedisTemplate.delete(taskKey(taskId));
+            }
+        } catch (Exception e) {
+            log.error("Error removing legacy task snapshot from Redis", e);
+        }
+    }
+
+    /**
+     * 读取任务，由状态哈希和步骤列表重建；旧版本的JSON字符串格式直接解析
+     *
+     * @param taskId 任务ID
+     * @return 任务响应，不存在返回null
+     */
+    public AgentTaskResponse load(String taskId) {
+        try {
+            Map<Object, Object> fields;
+            try {
+                fields = stringRedisTemplate.opsForHash().entries(taskKey(taskId));
+            } catch (RuntimeException e) {
+                if (!isWrongType(e)) {
+                    throw e;
+                }
+                return loadLegacy(taskId);
+            }
+            if (fields.isEmpty()) {
+                return null;
+            }
+
+            List<String> stepJsons = stringRedisTemplate.opsForList().range(stepsKey(taskId), 0, -1);
+            List<AgentStepDto> steps = new ArrayList<>();
+            if (stepJsons != null) {
+                stepJsons.forEach(json -> steps.add(JSON.parseObject(json, AgentStepDto.class)));
+            }
+
+            return AgentTaskResponse.builder()
+                    .taskId(taskId)
+                    .status(parseStatus(fields.get(FIELD_STATUS)))
+                    .steps(steps)
+                    .result((String) fields.get(FIELD_RESULT))
+                    .totalIterations(parseInteger(fields.get(FIELD_TOTAL_ITERATIONS)))
+                    .startTime(parseTime(fields.get(FIELD_START_TIME)))
+                    .endTime(parseTime(fields.get(FIELD_END_TIME)))
+                    .errorMessage((String) fields.get(FIELD_ERROR_MESSAGE))
+                    .build();
+
+        } catch (Exception e) {
+            log.error("Error loading task from Redis", e);
+            return null;
+        }
+    }
+
+    /**
+     * 读取旧版本的任务JSON字符串
+     */
+    private AgentTaskResponse loadLegacy(String taskId) {
+        String json = stringRedisTemplate.opsForValue().get(taskKey(taskId));
+        return parseLegacy(json);
+    }
+
+    /**
+     * 解析旧版本的任务JSON（整个任务响应序列化为一个字符串，时间为ISO格式）
+     *
+     * @param json JSON
+     * @return 任务响应，为空时返回null
+     */
+    static AgentTaskResponse parseLegacy(String json) {
+        if (json == null || json.isBlank()) {
+            return null;
+        }
+        AgentTaskResponse response = JSON.parseObject(json, AgentTaskResponse.class);
+        if (response != null && response.getSteps() == null) {
+            response.setSteps(new ArrayList<>());
+        }
+        return response;
+    }
+
+    /**
+     * 键类型不符的错误可能被包装在异常链中
+     */
+    private static boolean isWrongType(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause()) {
+            if (e.getMessage() != null && e.getMessage().contains("WRONGTYPE")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 任务状态哈希键
+     *
+     * @param taskId 任务ID
+     * @return 键
+     */
+    public static String taskKey(String taskId) {
+        return TASK_KEY_PREFIX + taskId;
+    }
+
+    /**
+     * 任务步骤列表键
+     *
+     * @param taskId 任务ID
+     * @return 键
+     */
+    public static String stepsKey(String taskId) {
+        return TASK_KEY_PREFIX + taskId + STEPS_KEY_SUFFIX;
+    }
+
+    /**
+     * 任务事件频道
+     *
+     * @param taskId 任务ID
+     * @return 频道
+     */
+    public static String eventsKey(String taskId) {
+        return TASK_KEY_PREFIX + taskId + EVENTS_KEY_SUFFIX;
+    }
+
+    /**
+     * 写入脚本的键和参数
+     */
+    private String[] writeTaskArgs(String taskId, List<AgentStepDto> taskSteps, AgentTaskResponse status,
+                                   List<String> messages) {
+        Map<String, String> fields = status != null ? toStatusFields(status) : Map.of();
+        List<String> args = new ArrayList<>(5 + taskSteps.size() + fields.size() * 2 + messages.size());
+        args.add(stepsKey(taskId));
+        args.add(taskKey(taskId));
+        args.add(eventsKey(taskId));
+        args.add(String.valueOf(taskSteps.size()));
+        args.add(String.valueOf(fields.size() * 2));
+        taskSteps.forEach(step -> args.add(JSON.toJSONString(step)));
+        fields.forEach((field, value) -> {
+            args.add(field);
+            args.add(value);
+        });
+        args.addAll(messages);
+        return args.toArray(String[]::new);
+    }
+
+    /**
+     * 转换为状态哈希字段，空值字段不写入
+     */
+    private Map<String, String> toStatusFields(AgentTaskResponse response) {
+        Map<String, String> fields = new HashMap<>();
+        if (response.getStatus() != null) {
+            fields.put(FIELD_STATUS, response.getStatus().name());
+        }
+        if (response.getResult() != null) {
+            fields.put(FIELD_RESULT, response.getResult());
+        }
+        if (response.getTotalIterations() != null) {
+            fields.put(FIELD_TOTAL_ITERATIONS, String.valueOf(response.getTotalIterations()));
+        }
+        if (response.getStartTime() != null) {
+            fields.put(FIELD_START_TIME, response.getStartTime().toString());
+        }
+        if (response.getEndTime() != null) {
+            fields.put(FIELD_END_TIME, response.getEndTime().toString());
+        }
+        if (response.getErrorMessage() != null) {
+            fields.put(FIELD_ERROR_MESSAGE, response.getErrorMessage());
+        }
+        return fields;
+    }
+
+    private AgentStatus parseStatus(Object value) {
+        return value != null ? AgentStatus.valueOf((String) value) : null;
+    }
+
+    private Integer parseInteger(Object value) {
+        return value != null ? Integer.valueOf((String) value) : null;
+    }
+
+    private LocalDateTime parseTime(Object value) {
+        return value != null ? LocalDateTime.parse((String) value) : null;
+    }
+
+    /**
+     * 批量写入结果
+     *
+     * @param commands     执行的Redis命令数（每个任务一条脚本）
+     * @param failedTasks  写入失败的任务ID，需要重试
+     * @param skippedSteps 因已写入而跳过的步骤数，重试已成功的批次时产生
+     */
+    public record WriteResult(int commands, Set<String> failedTasks, long skippedSteps) {
+    }
+
+}
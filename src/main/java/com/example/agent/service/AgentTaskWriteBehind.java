@@ -0,0 +1,460 @@
+package com.example.agent.service;
+
+import com.example.agent.config.AgentConfig;
+import com.example.agent.enums.AgentEventType;
+import com.example.agent.model.dto.AgentEventDto;
+import com.example.agent.model.dto.AgentStepDto;
+import com.example.agent.model.dto.AgentTaskResponse;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Agent任务写缓冲（write-behind）
+ * 在短时间窗口内合并同一任务的状态更新，按批次通过管道写入Redis；任务进入终止状态时立即刷新；
+ * 任务事件（步骤、增量、限流等待和结束消息）按产生顺序缓冲，在同一管道中随步骤写入发布，不再逐条单独发布；
+ * 同一步骤的连续增量在缓冲中合并，每个刷新周期只发布一条
+ * 写入不会丢弃：写入失败的任务放回缓冲，按任务指数退避重试，不影响同批次其他任务；重试时已写入的步骤由存储层跳过；
+ * 待写入步骤达到上限时，调用方等待刷新完成后再继续；
+ * 增量等临时事件在写入失败时丢弃，不随重试累积
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class AgentTaskWriteBehind {
+
+    /**
+     * 重试退避上限（毫秒）
+     */
+    private static final long MAX_RETRY_BACKOFF_MILLIS = 10_000;
+
+    private final AgentTaskStore taskStore;
+    private final AgentTaskEventBus taskEventBus;
+    private final AgentConfig agentConfig;
+
+    /**
+     * 待写入的任务，按任务ID合并
+     */
+    private final Map<String, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
+
+    /**
+     * 单线程刷新调度器，保证批次按顺序写入
+     */
+    private final Scheduler flushScheduler = Schedulers.newSingle("agent-write-behind");
+
+    private final AtomicLong pendingSteps = new AtomicLong();
+    private final AtomicLong coalescedWrites = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final AtomicLong backpressureWaits = new AtomicLong();
+    private final AtomicLong flushedBatches = new AtomicLong();
+    private final AtomicLong redisCommands = new AtomicLong();
+    private final AtomicLong enqueuedWrites = new AtomicLong();
+    private final AtomicLong skippedSteps = new AtomicLong();
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final AtomicLong coalescedDeltas = new AtomicLong();
+
+    /**
+     * 最近一次刷新时最早待写入项的滞留时间（毫秒）
+     */
+    private volatile long lastLagMillis;
+
+    /**
+     * 历史最大滞留时间（毫秒）
+     */
+    private volatile long maxLagMillis;
+
+    private Disposable flushTask;
+
+    @PostConstruct
+    public void start() {
+        long interval = agentConfig.getWriteBehindFlushInterval();
+        flushTask = flushScheduler.schedulePeriodically(this::flushPeriodically, interval, interval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (flushTask != null) {
+            flushTask.dispose();
+        }
+        // 停机前刷新剩余数据
+        try {
+            flush().block(Duration.ofSeconds(10));
+        } catch (Exception e) {
+            log.error("Write-behind buffer not fully flushed on shutdown, {} task(s) pending",
+                    pendingWrites.size(), e);
+        }
+        flushScheduler.dispose();
+    }
+
+    /**
+     * 缓冲任务状态更新，同一窗口内只保留最新状态
+     *
+     * @param response 任务响应
+     */
+    public void enqueueStatus(AgentTaskResponse response) {
+        enqueuedWrites.incrementAndGet();
+        pendingWrites.compute(response.getTaskId(), (taskId, pending) -> {
+            if (pending == null) {
+                pending = new PendingWrite();
+            } else if (pending.status != null) {
+                coalescedWrites.incrementAndGet();
+            }
+            pending.status = response;
+            return pending;
+        });
+    }
+
+    /**
+     * 缓冲任务步骤；待写入步骤达到上限时返回刷新信号，调用方等待刷新完成后再继续，形成背压
+     *
+     * @param taskId 任务ID
+     * @param step   步骤
+     * @return 可以继续的信号，通常立即完成
+     */
+    public Mono<Void> enqueueStep(String taskId, AgentStepDto step) {
+        enqueuedWrites.incrementAndGet();
+        pendingWrites.compute(taskId, (key, pending) -> {
+            if (pending == null) {
+                pending = new PendingWrite();
+            }
+            pending.steps.add(step);
+            pending.addMessage(taskEventBus.stepMessage(taskId, step));
+            return pending;
+        });
+
+        if (pendingSteps.incrementAndGet() < agentConfig.getWriteBehindMaxPending()) {
+            return Mono.empty();
+        }
+        backpressureWaits.incrementAndGet();
+        log.warn("Write-behind buffer full ({} steps), task {} waits for flush", pendingSteps.get(), taskId);
+        return flush().onErrorResume(e -> {
+            // 数据仍保留在缓冲中，由后台继续重试
+            log.error("Write-behind flush failed under backpressure, task {} continues", taskId, e);
+            return Mono.empty();
+        });
+    }
+
+    /**
+     * 缓冲步骤以外的任务事件，随下一批次发布；同一步骤的连续增量合并为一条；
+     * 步骤事件由{@link #enqueueStep(String, AgentStepDto)}随步骤写入发布，此处忽略
+     *
+     * @param taskId 任务ID
+     * @param event  事件
+     */
+    public void enqueueEvent(String taskId, AgentEventDto event) {
+        if (event.getType() == AgentEventType.STEP || !taskEventBus.isEnabled()) {
+            return;
+        }
+        pendingWrites.compute(taskId, (key, pending) -> {
+            if (pending == null) {
+                pending = new PendingWrite();
+            }
+            if (pending.addEvent(event)) {
+                coalescedDeltas.incrementAndGet();
+            }
+            return pending;
+        });
+    }
+
+    /**
+     * 缓冲任务结束消息并立即刷新：结束消息与该任务已缓冲的最后步骤在同一批次发布，且排在其后
+     *
+     * @param taskId 任务ID
+     * @param error  失败原因，正常结束为null
+     */
+    public void enqueueCompletion(String taskId, String error) {
+        String message = taskEventBus.completionMessage(error);
+        if (message == null) {
+            return;
+        }
+        pendingWrites.compute(taskId, (key, pending) -> {
+            if (pending == null) {
+                pending = new PendingWrite();
+            }
+            pending.addMessage(message);
+            return pending;
+        });
+        flush(taskId).subscribe(null, e -> log.error("Completion of task {} not yet published, retrying in background",
+                taskId, e));
+    }
+
+    /**
+     * 立即刷新所有待写入数据，用于停机和背压；
+     * 写入失败时按退避重试，重试耗尽仍有任务失败则返回错误，未写入的数据保留在缓冲中由后台继续重试
+     *
+     * @return 刷新完成信号，数据未能写入时为错误
+     */
+    public Mono<Void> flush() {
+        return flush(failedTasks -> !failedTasks.isEmpty());
+    }
+
+    /**
+     * 立即刷新所有待写入数据，用于任务终止时保证该任务的状态落盘；只有该任务写入失败时才重试和返回错误，
+     * 其他任务的失败不影响该任务
+     *
+     * @param taskId 任务ID
+     * @return 刷新完成信号，该任务的数据未能写入时为错误
+     */
+    public Mono<Void> flush(String taskId) {
+        return flush(failedTasks -> failedTasks.contains(taskId));
+    }
+
+    private Mono<Void> flush(Predicate<Set<String>> failed) {
+        return Mono.fromCallable(() -> {
+                    if (failed.test(flushSafely(true))) {
+                        throw new IllegalStateException("Write-behind batch not persisted");
+                    }
+                    return true;
+                })
+                .subscribeOn(flushScheduler)
+                .retryWhen(Retry.backoff(agentConfig.getWriteBehindFlushRetries(),
+                                Duration.ofMillis(agentConfig.getWriteBehindRetryBackoff()))
+                        .maxBackoff(Duration.ofMillis(MAX_RETRY_BACKOFF_MILLIS))
+                        .onRetryExhaustedThrow((spec, signal) -> signal.failure()))
+                .then();
+    }
+
+    /**
+     * 获取写缓冲运行指标
+     *
+     * @return 指标
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("pendingTasks", pendingWrites.size());
+        stats.put("pendingSteps", pendingSteps.get());
+        stats.put("enqueuedWrites", enqueuedWrites.get());
+        stats.put("coalescedWrites", coalescedWrites.get());
+        stats.put("backpressureWaits", backpressureWaits.get());
+        stats.put("failedBatches", failedBatches.get());
+        stats.put("flushedBatches", flushedBatches.get());
+        stats.put("redisCommands", redisCommands.get());
+        stats.put("skippedSteps", skippedSteps.get());
+        stats.put("droppedEvents", droppedEvents.get());
+        stats.put("coalescedDeltas", coalescedDeltas.get());
+        stats.put("lagMillis", lastLagMillis);
+        stats.put("maxLagMillis", maxLagMillis);
+        return stats;
+    }
+
+    /**
+     * 定时刷新，写入失败的任务按各自的退避时间推迟
+     */
+    private void flushPeriodically() {
+        flushSafely(false);
+    }
+
+    /**
+     * 刷新待写入数据，仅在刷新调度器线程上执行；失败的任务放回缓冲
+     *
+     * @param force 是否包含仍在退避中的任务
+     * @return 写入失败的任务ID
+     */
+    private Set<String> flushSafely(boolean force) {
+        if (pendingWrites.isEmpty()) {
+            lastLagMillis = 0;
+            return Set.of();
+        }
+
+        Map<String, PendingWrite> batch = new HashMap<>();
+        Map<String, List<AgentStepDto>> steps = new HashMap<>();
+        List<AgentTaskResponse> statuses = new ArrayList<>();
+        Map<String, List<String>> events = new HashMap<>();
+        long now = System.nanoTime();
+        long oldestNanos = now;
+
+        for (String taskId : pendingWrites.keySet()) {
+            PendingWrite waiting = pendingWrites.get(taskId);
+            if (waiting == null || (!force && waiting.failures > 0 && now < waiting.retryAtNanos)) {
+                continue;
+            }
+            PendingWrite pending = pendingWrites.remove(taskId);
+            if (pending == null) {
+                continue;
+            }
+            batch.put(taskId, pending);
+            oldestNanos = Math.min(oldestNanos, pending.createdNanos);
+            if (!pending.steps.isEmpty()) {
+                steps.put(taskId, pending.steps);
+            }
+            if (pending.status != null) {
+                statuses.add(pending.status);
+            }
+            List<String> messages = pending.messages.stream()
+                    .map(message -> message.payload != null ? message.payload
+                            : taskEventBus.eventMessage(taskId, message.event))
+                    .filter(Objects::nonNull)
+                    .toList();
+            if (!messages.isEmpty()) {
+                events.put(taskId, messages);
+            }
+        }
+        if (batch.isEmpty()) {
+            return Set.of();
+        }
+
+        lastLagMillis = (now - oldestNanos) / 1_000_000;
+        maxLagMillis = Math.max(maxLagMillis, lastLagMillis);
+
+        Set<String> failedTasks;
+        Exception error = null;
+        try {
+            AgentTaskStore.WriteResult result = taskStore.writeBatch(steps, statuses, events);
+            redisCommands.addAndGet(result.commands());
+            skippedSteps.addAndGet(result.skippedSteps());
+            failedTasks = Set.copyOf(result.failedTasks());
+        } catch (Exception e) {
+            // 连接级错误，整批重试
+            failedTasks = Set.copyOf(batch.keySet());
+            error = e;
+        }
+
+        for (Map.Entry<String, PendingWrite> entry : batch.entrySet()) {
+            if (!failedTasks.contains(entry.getKey())) {
+                pendingSteps.addAndGet(-entry.getValue().steps.size());
+            }
+        }
+        if (failedTasks.isEmpty()) {
+            flushedBatches.incrementAndGet();
+            return Set.of();
+        }
+
+        failedBatches.incrementAndGet();
+        long maxBackoffMillis = 0;
+        for (String taskId : failedTasks) {
+            PendingWrite failed = batch.get(taskId);
+            failed.failures++;
+            long backoffMillis = Math.min(MAX_RETRY_BACKOFF_MILLIS,
+                    agentConfig.getWriteBehindRetryBackoff() << Math.min(failed.failures - 1, 16));
+            failed.retryAtNanos = System.nanoTime() + backoffMillis * 1_000_000;
+            maxBackoffMillis = Math.max(maxBackoffMillis, backoffMillis);
+            restore(taskId, failed);
+        }
+        if (error != null) {
+            log.error("Error flushing write-behind batch of {} task(s), retrying in {}ms", batch.size(),
+                    maxBackoffMillis, error);
+        } else {
+            log.error("Error flushing {} of {} task(s) in write-behind batch, retrying in up to {}ms: {}",
+                    failedTasks.size(), batch.size(), maxBackoffMillis, failedTasks);
+        }
+        return failedTasks;
+    }
+
+    /**
+     * 把写入失败的数据放回缓冲：失败的步骤和消息排在期间新到的之前，新到的状态优先；失败批次中的临时事件丢弃
+     */
+    private void restore(String taskId, PendingWrite failed) {
+        int before = failed.messages.size();
+        failed.messages.removeIf(PendingMessage::transientEvent);
+        droppedEvents.addAndGet(before - failed.messages.size());
+        pendingWrites.merge(taskId, failed, (newer, old) -> {
+            old.steps.addAll(newer.steps);
+            old.messages.addAll(newer.messages);
+            if (newer.status != null) {
+                old.status = newer.status;
+            }
+            return old;
+        });
+    }
+
+    /**
+     * 单个任务的待写入数据，仅在pendingWrites.compute/merge内修改
+     */
+    private static class PendingWrite {
+
+        private final long createdNanos = System.nanoTime();
+
+        private final List<AgentStepDto> steps = new ArrayList<>();
+
+        /**
+         * 待发布的事件消息，按产生顺序
+         */
+        private final List<PendingMessage> messages = new ArrayList<>();
+
+        private AgentTaskResponse status;
+
+        /**
+         * 连续写入失败次数，仅在刷新调度器线程上修改
+         */
+        private int failures;
+
+        /**
+         * 失败后定时刷新的最早重试时间，仅在刷新调度器线程上修改
+         */
+        private long retryAtNanos;
+
+        private void addMessage(String payload) {
+            if (payload != null) {
+                messages.add(new PendingMessage(payload, null));
+            }
+        }
+
+        /**
+         * 缓冲临时事件，增量与前一条同一步骤的增量相邻时合并
+         *
+         * @return 是否合并到了前一条增量
+         */
+        private boolean addEvent(AgentEventDto event) {
+            if (event.getType() != AgentEventType.DELTA) {
+                messages.add(new PendingMessage(null, event));
+                return false;
+            }
+            PendingMessage last = messages.isEmpty() ? null : messages.get(messages.size() - 1);
+            if (last != null && last.event != null && last.event.getType() == AgentEventType.DELTA
+                    && Objects.equals(last.event.getStepNumber(), event.getStepNumber())
+                    && Objects.equals(last.event.getAgent(), event.getAgent())) {
+                last.event.setDelta(last.event.getDelta() + event.getDelta());
+                return true;
+            }
+            // 复制增量事件，合并时不修改已下发给本地订阅者的事件
+            messages.add(new PendingMessage(null, AgentEventDto.builder()
+                    .type(AgentEventType.DELTA)
+                    .taskId(event.getTaskId())
+                    .agent(event.getAgent())
+                    .stepNumber(event.getStepNumber())
+                    .delta(event.getDelta())
+                    .build()));
+            return false;
+        }
+
+    }
+
+    /**
+     * 待发布的事件消息
+     *
+     * @param payload 已构建的步骤或结束消息，写入失败时保留重试
+     * @param event   增量等临时事件，发布时构建消息，写入失败时丢弃
+     */
+    private record PendingMessage(String payload, AgentEventDto event) {
+
+        private boolean transientEvent() {
+            return event != null;
+        }
+
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.example.agent.service;
+
+import com.azure.ai.openai.OpenAIAsyncClient;
+import com.example.agent.enums.ModelTier;
+import lombok.Getter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Azure OpenAI部署运行状态
+ * 保存部署的客户端、限流器，以及路由所需的进行中请求数、首token延迟EWMA和健康状态；
+ * 延迟EWMA在没有新样本时按半衰期向0衰减，避免一次慢请求后部署永远不再被选中、估计也无法更新
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Getter
+public class AzureOpenAIDeployment {
+
+    /**
+     * 延迟EWMA平滑系数
+     */
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final String name;
+    private final String deploymentName;
+    private final ModelTier tier;
+    private final OpenAIAsyncClient client;
+    private final AzureOpenAIRateLimiter rateLimiter;
+    private final int weight;
+    private final long ewmaHalfLifeMillis;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong servedCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong slowCancelCount = new AtomicLong();
+    private volatile double ewmaLatencyMillis;
+    private volatile long lastLatencyMillis;
+    private volatile long ejectedUntilMillis;
+
+    public AzureOpenAIDeployment(String name, String deploymentName, ModelTier tier, OpenAIAsyncClient client,
+                                 AzureOpenAIRateLimiter rateLimiter, int weight, long ewmaHalfLifeMillis) {
+        this.name = name;
+        this.deploymentName = deploymentName;
+        this.tier = tier;
+        this.client = client;
+        this.rateLimiter = rateLimiter;
+        this.weight = Math.max(1, weight);
+        this.ewmaHalfLifeMillis = ewmaHalfLifeMillis;
+    }
+
+    /**
+     * 是否健康（未被摘除）
+     *
+     * @return 是否健康
+     */
+    public boolean isHealthy() {
+        return System.currentTimeMillis() >= ejectedUntilMillis;
+    }
+
+    /**
+     * 获取首token延迟EWMA，距上次样本越久衰减越多
+     *
+     * @return 延迟毫秒数，没有样本时为0
+     */
+    public double getEwmaLatencyMillis() {
+        return decayedLatency(System.currentTimeMillis());
+    }
+
+    /**
+     * 记录首token延迟，在衰减后的估计上更新
+     *
+     * @param latencyMillis 延迟毫秒数
+     */
+    public synchronized void recordLatency(double latencyMillis) {
+        long now = System.currentTimeMillis();
+        double current = decayedLatency(now);
+        ewmaLatencyMillis = current == 0 ? latencyMillis : current + EWMA_ALPHA * (latencyMillis - current);
+        lastLatencyMillis = now;
+    }
+
+    /**
+     * 记录首token前被取消的慢请求，已等待时间作为延迟样本（实际首token延迟不低于该值）
+     *
+     * @param waitedMillis 已等待毫秒数
+     */
+    public void recordSlowCancel(double waitedMillis) {
+        slowCancelCount.incrementAndGet();
+        recordLatency(waitedMillis);
+    }
+
+    /**
+     * 记录成功，清零连续失败次数
+     */
+    public void recordSuccess() {
+        servedCount.incrementAndGet();
+        consecutiveFailures.set(0);
+    }
+
+    /**
+     * 记录失败，连续失败达到阈值时摘除
+     *
+     * @param ejectThreshold 摘除阈值
+     * @param ejectMillis    摘除时长（毫秒）
+     * @return 本次是否触发摘除
+     */
+    public boolean recordFailure(int ejectThreshold, long ejectMillis) {
+        failureCount.incrementAndGet();
+        if (consecutiveFailures.incrementAndGet() >= ejectThreshold) {
+            consecutiveFailures.set(0);
+            ejectedUntilMillis = System.currentTimeMillis() + ejectMillis;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 获取运行指标
+     *
+     * @return 指标
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("deploymentName", deploymentName);
+        stats.put("tier", tier);
+        stats.put("weight", weight);
+        stats.put("healthy", isHealthy());
+        stats.put("outstanding", outstanding.get());
+        stats.put("ewmaLatencyMillis", Math.round(getEwmaLatencyMillis()));
+        stats.put("served", servedCount.get());
+        stats.put("failures", failureCount.get());
+        stats.put("slowCancels", slowCancelCount.get());
+        stats.put("rateLimiter", rateLimiter.getStats());
+        return stats;
+    }
+
+    private double decayedLatency(long now) {
+        double latency = ewmaLatencyMillis;
+        long idleMillis = now - lastLatencyMillis;
+        if (latency == 0 || ewmaHalfLifeMillis <= 0 || idleMillis <= 0) {
+            return latency;
+        }
+        return latency * Math.pow(0.5, (double) idleMillis / ewmaHalfLifeMillis);
+    }
+
+}
@@ -0,0 +1,468 @@
+package com.example.agent.service;
+
+import com.azure.ai.openai.OpenAIClientBuilder;
+import com.azure.core.credential.AzureKeyCredential;
+import com.azure.core.exception.HttpResponseException;
+import com.azure.core.http.HttpResponse;
+import com.azure.core.http.policy.ExponentialBackoffOptions;
+import com.azure.core.http.policy.RequestRetryCondition;
+import com.azure.core.http.policy.RetryOptions;
+import com.example.agent.config.AzureOpenAIConfig;
+import com.example.agent.enums.ModelTier;
+import com.example.agent.exception.TaskRejectedException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Azure OpenAI部署池
+ * 按配置的策略（权重、最少进行中请求、延迟EWMA）在同一模型层级的多个部署间路由请求；
+ * 连续失败的部署暂时摘除，尚未输出内容的请求在可重试错误（限流、5xx、网络错误）时切换到其他部署；
+ * 本地限流队列已满的部署直接换其他部署，不计入失败；
+ * 开启对冲后，流式请求在近期首token延迟的指定分位内仍未输出时，向其他部署再发一个请求，先输出者胜出，另一个取消，
+ * 对冲次数受全局预算限制（每个请求积累固定比例的额度，每次对冲消耗1）；主请求出错时取消对冲，不再等待对冲结果
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Slf4j
+@Component
+public class AzureOpenAIDeploymentPool {
+
+    private static final int STATUS_REQUEST_TIMEOUT = 408;
+    private static final int STATUS_TOO_MANY_REQUESTS = 429;
+    private static final int STATUS_SERVER_ERROR = 500;
+    private static final int STATUS_NOT_IMPLEMENTED = 501;
+    private static final int STATUS_VERSION_NOT_SUPPORTED = 505;
+
+    /**
+     * 首token延迟采样窗口大小
+     */
+    private static final int TTFT_WINDOW = 256;
+
+    /**
+     * 对冲预算额度上限，避免长时间空闲后集中对冲
+     */
+    private static final double MAX_HEDGE_CREDITS = 10;
+
+    private final AzureOpenAIConfig azureOpenAIConfig;
+    private final List<AzureOpenAIDeployment> deployments;
+    private final Map<ModelTier, List<AzureOpenAIDeployment>> deploymentsByTier;
+
+    private final long[] ttftSamples = new long[TTFT_WINDOW];
+    private int ttftCount;
+    private int ttftNext;
+    private double hedgeCredits;
+
+    private final AtomicLong hedgeEligible = new AtomicLong();
+    private final AtomicLong hedgeIssued = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong hedgeBudgetDenied = new AtomicLong();
+
+    public AzureOpenAIDeploymentPool(AzureOpenAIConfig azureOpenAIConfig) {
+        this.azureOpenAIConfig = azureOpenAIConfig;
+        this.deployments = List.copyOf(createDeployments(azureOpenAIConfig));
+        this.deploymentsByTier = new EnumMap<>(ModelTier.class);
+        deployments.forEach(deployment -> deploymentsByTier
+                .computeIfAbsent(deployment.getTier(), tier -> new ArrayList<>()).add(deployment));
+        log.info("Azure OpenAI deployment pool: {} deployment(s), routing={}",
+                deployments.size(), azureOpenAIConfig.getRouting());
+    }
+
+    /**
+     * 在选中的部署上执行调用，失败且尚未输出内容时切换到其他部署
+     *
+     * @param tier            模型层级，该层级没有部署时使用全部部署
+     * @param estimatedTokens 预估token数，用于部署限流
+     * @param call            在指定部署上发起的调用
+     * @param servedBy        实际服务的部署名称回调，收到首个元素时触发
+     * @param <T>             元素类型
+     * @return 调用结果流
+     */
+    public <T> Flux<T> execute(ModelTier tier, int estimatedTokens, Function<AzureOpenAIDeployment, Flux<T>> call,
+                               Consumer<String> servedBy) {
+        List<AzureOpenAIDeployment> pool = deploymentsOf(tier);
+        return Flux.defer(() -> attempt(pool, estimatedTokens, call, servedBy, new HashSet<>()));
+    }
+
+    /**
+     * 是否配置了指定层级的部署
+     *
+     * @param tier 模型层级
+     * @return 是否配置
+     */
+    public boolean hasTier(ModelTier tier) {
+        return deploymentsByTier.containsKey(tier);
+    }
+
+    /**
+     * 流式调用，开启对冲时在首token超过近期延迟分位后向其他部署发起对冲请求，先输出者胜出
+     *
+     * @param tier            模型层级
+     * @param estimatedTokens 预估token数，用于部署限流
+     * @param call            在指定部署上发起的调用
+     * @param servedBy        实际服务的部署名称回调
+     * @param <T>             元素类型
+     * @return 调用结果流
+     */
+    public <T> Flux<T> executeHedged(ModelTier tier, int estimatedTokens,
+                                     Function<AzureOpenAIDeployment, Flux<T>> call, Consumer<String> servedBy) {
+        if (!Boolean.TRUE.equals(azureOpenAIConfig.getHedgeEnabled())) {
+            return execute(tier, estimatedTokens, call, servedBy);
+        }
+
+        List<AzureOpenAIDeployment> pool = deploymentsOf(tier);
+        return Flux.defer(() -> {
+            long hedgeDelay = hedgeDelayMillis();
+            if (hedgeDelay < 0) {
+                return attempt(pool, estimatedTokens, call, servedBy, new HashSet<>());
+            }
+            hedgeEligible.incrementAndGet();
+            depositHedgeCredit();
+
+            Set<String> primaryTried = new HashSet<>();
+            // 主请求出错（已切换过所有可用部署）时结束对冲：取消未发出的对冲，已发出的对冲一并取消，直接返回错误
+            Sinks.One<Boolean> primaryFailed = Sinks.one();
+            Flux<T> primary = attempt(pool, estimatedTokens, call, servedBy, primaryTried)
+                    .doOnError(error -> primaryFailed.tryEmitValue(true));
+            Flux<T> hedge = Mono.delay(Duration.ofMillis(hedgeDelay))
+                    .flatMapMany(tick -> {
+                        if (!tryAcquireHedge()) {
+                            return Flux.empty();
+                        }
+                        hedgeIssued.incrementAndGet();
+                        boolean[] won = new boolean[1];
+                        // 优先选择主请求未使用的部署
+                        return attempt(pool, estimatedTokens, call, servedBy, new HashSet<>(primaryTried))
+                                .doOnNext(value -> {
+                                    if (!won[0]) {
+                                        won[0] = true;
+                                        hedgeWins.incrementAndGet();
+                                    }
+                                });
+                    })
+                    .takeUntilOther(primaryFailed.asMono());
+
+            return Flux.firstWithValue(primary, hedge)
+                    .onErrorResume(NoSuchElementException.class, e -> {
+                        // 两路都未输出：各路的错误或空完成记录在原因中，有错误时返回原始错误，否则视为空响应
+                        for (Throwable error : Exceptions.unwrapMultiple(e.getCause())) {
+                            if (!(error instanceof NoSuchElementException)) {
+                                return Flux.error(error);
+                            }
+                        }
+                        return Flux.empty();
+                    });
+        });
+    }
+
+    /**
+     * 估算在指定层级最空闲的健康部署上提交一次调用需要等待限流的时间
+     *
+     * @param tier            模型层级，该层级没有部署时使用全部部署
+     * @param estimatedTokens 预估token数
+     * @return 等待毫秒数
+     */
+    public long estimateWaitMillis(ModelTier tier, int estimatedTokens) {
+        return candidates(deploymentsOf(tier), Set.of()).stream()
+                .mapToLong(deployment -> deployment.getRateLimiter().estimateWaitMillis(estimatedTokens))
+                .min()
+                .orElse(0);
+    }
+
+    /**
+     * 获取部署池运行指标
+     *
+     * @return 指标
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("routing", azureOpenAIConfig.getRouting());
+
+        Map<String, Object> hedge = new LinkedHashMap<>();
+        long eligible = hedgeEligible.get();
+        hedge.put("enabled", azureOpenAIConfig.getHedgeEnabled());
+        hedge.put("delayMillis", hedgeDelayMillis());
+        hedge.put("eligible", eligible);
+        hedge.put("issued", hedgeIssued.get());
+        hedge.put("wins", hedgeWins.get());
+        hedge.put("budgetDenied", hedgeBudgetDenied.get());
+        hedge.put("hedgeRate", eligible == 0 ? 0.0 : (double) hedgeIssued.get() / eligible);
+        hedge.put("winRate", hedgeIssued.get() == 0 ? 0.0 : (double) hedgeWins.get() / hedgeIssued.get());
+        stats.put("hedge", hedge);
+
+        Map<String, Object> byName = new LinkedHashMap<>();
+        deployments.forEach(deployment -> byName.put(deployment.getName(), deployment.getStats()));
+        stats.put("deployments", byName);
+        return stats;
+    }
+
+    private <T> Flux<T> attempt(List<AzureOpenAIDeployment> pool, int estimatedTokens,
+                                Function<AzureOpenAIDeployment, Flux<T>> call, Consumer<String> servedBy,
+                                Set<String> tried) {
+        AzureOpenAIDeployment deployment = select(pool, tried);
+        tried.add(deployment.getName());
+
+        boolean[] emitted = new boolean[1];
+        boolean[] started = new boolean[1];
+        long[] startNanos = new long[1];
+        return deployment.getRateLimiter().throttle(estimatedTokens, Flux.defer(() -> {
+                    startNanos[0] = System.nanoTime();
+                    started[0] = true;
+                    deployment.getOutstanding().incrementAndGet();
+                    return call.apply(deployment)
+                            .doFinally(signal -> deployment.getOutstanding().decrementAndGet());
+                }))
+                .doOnNext(value -> {
+                    if (!emitted[0]) {
+                        emitted[0] = true;
+                        long latencyNanos = System.nanoTime() - startNanos[0];
+                        deployment.recordLatency(latencyNanos / 1_000_000.0);
+                        recordTtft(latencyNanos / 1_000_000);
+                        servedBy.accept(deployment.getName());
+                    }
+                })
+                .doOnComplete(deployment::recordSuccess)
+                .doOnCancel(() -> {
+                    // 已输出内容后被下游取消（如最终答案提前结束）同样视为成功
+                    if (emitted[0]) {
+                        deployment.recordSuccess();
+                        return;
+                    }
+                    // 首token前被取消（如对冲落败、步骤超时）：等待已超过首token期限时计入延迟，避免慢部署的EWMA保持乐观
+                    if (started[0]) {
+                        double waitedMillis = (System.nanoTime() - startNanos[0]) / 1_000_000.0;
+                        if (waitedMillis >= firstTokenDeadlineMillis(deployment)) {
+                            deployment.recordSlowCancel(waitedMillis);
+                        }
+                    }
+                })
+                .onErrorResume(error -> {
+                    if (error instanceof TaskRejectedException) {
+                        // 本地限流队列已满：部署本身没有出错，不计入失败，换其他部署
+                        if (tried.size() >= pool.size()) {
+                            return Flux.error(error);
+                        }
+                        log.debug("Azure OpenAI deployment {} queue is full, trying another deployment",
+                                deployment.getName());
+                        return attempt(pool, estimatedTokens, call, servedBy, tried);
+                    }
+                    if (!isRetryable(error)) {
+                        return Flux.error(error);
+                    }
+                    if (deployment.recordFailure(azureOpenAIConfig.getEjectFailureThreshold(),
+                            azureOpenAIConfig.getEjectDuration() * 1000L)) {
+                        log.warn("Ejected Azure OpenAI deployment {} for {}s", deployment.getName(),
+                                azureOpenAIConfig.getEjectDuration());
+                    }
+                    if (emitted[0] || tried.size() >= pool.size()) {
+                        return Flux.error(error);
+                    }
+                    log.warn("Azure OpenAI deployment {} failed, failing over: {}", deployment.getName(),
+                            error.getMessage());
+                    return attempt(pool, estimatedTokens, call, servedBy, tried);
+                });
+    }
+
+    /**
+     * 首token期限：对冲延迟（近期首token延迟分位），样本不足时使用部署的延迟EWMA，两者都没有时不设期限
+     */
+    private double firstTokenDeadlineMillis(AzureOpenAIDeployment deployment) {
+        long hedgeDelay = hedgeDelayMillis();
+        if (hedgeDelay >= 0) {
+            return hedgeDelay;
+        }
+        double ewma = deployment.getEwmaLatencyMillis();
+        return ewma > 0 ? ewma : Double.MAX_VALUE;
+    }
+
+    /**
+     * 记录首token延迟样本
+     */
+    private synchronized void recordTtft(long millis) {
+        ttftSamples[ttftNext] = millis;
+        ttftNext = (ttftNext + 1) % TTFT_WINDOW;
+        ttftCount = Math.min(ttftCount + 1, TTFT_WINDOW);
+    }
+
+    /**
+     * 对冲延迟：近期首token延迟的指定分位数，样本不足时返回-1
+     */
+    private synchronized long hedgeDelayMillis() {
+        if (ttftCount < azureOpenAIConfig.getHedgeMinSamples()) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(ttftSamples, ttftCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(azureOpenAIConfig.getHedgePercentile() / 100.0 * ttftCount) - 1;
+        return Math.max(azureOpenAIConfig.getHedgeMinDelay(), sorted[Math.max(0, Math.min(index, ttftCount - 1))]);
+    }
+
+    private synchronized void depositHedgeCredit() {
+        hedgeCredits = Math.min(MAX_HEDGE_CREDITS, hedgeCredits + azureOpenAIConfig.getHedgeBudgetRatio());
+    }
+
+    private synchronized boolean tryAcquireHedge() {
+        if (hedgeCredits < 1) {
+            hedgeBudgetDenied.incrementAndGet();
+            return false;
+        }
+        hedgeCredits -= 1;
+        return true;
+    }
+
+    /**
+     * 选择部署，优先未尝试过的健康部署；全部摘除时在未尝试过的部署中选择，全部尝试过时在所有部署中选择
+     */
+    private AzureOpenAIDeployment select(List<AzureOpenAIDeployment> pool, Set<String> tried) {
+        List<AzureOpenAIDeployment> candidates = candidates(pool, tried);
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+
+        return switch (azureOpenAIConfig.getRouting()) {
+            case WEIGHTED -> selectWeighted(candidates);
+            case LEAST_OUTSTANDING -> selectMin(candidates,
+                    deployment -> (double) deployment.getOutstanding().get() / deployment.getWeight());
+            case EWMA_LATENCY -> selectMin(candidates,
+                    deployment -> deployment.getEwmaLatencyMillis() * (deployment.getOutstanding().get() + 1)
+                            / deployment.getWeight());
+        };
+    }
+
+    private List<AzureOpenAIDeployment> deploymentsOf(ModelTier tier) {
+        return deploymentsByTier.getOrDefault(tier, deployments);
+    }
+
+    private List<AzureOpenAIDeployment> candidates(List<AzureOpenAIDeployment> pool, Set<String> tried) {
+        if (tried.size() >= pool.size()) {
+            // 全部尝试过（如单部署时的对冲请求），在所有部署中选择
+            tried = Set.of();
+        }
+        List<AzureOpenAIDeployment> untried = new ArrayList<>(pool.size());
+        List<AzureOpenAIDeployment> healthy = new ArrayList<>(pool.size());
+        for (AzureOpenAIDeployment deployment : pool) {
+            if (!tried.contains(deployment.getName())) {
+                untried.add(deployment);
+                if (deployment.isHealthy()) {
+                    healthy.add(deployment);
+                }
+            }
+        }
+        return healthy.isEmpty() ? untried : healthy;
+    }
+
+    private AzureOpenAIDeployment selectWeighted(List<AzureOpenAIDeployment> candidates) {
+        int total = candidates.stream().mapToInt(AzureOpenAIDeployment::getWeight).sum();
+        int point = ThreadLocalRandom.current().nextInt(total);
+        for (AzureOpenAIDeployment deployment : candidates) {
+            point -= deployment.getWeight();
+            if (point < 0) {
+                return deployment;
+            }
+        }
+        return candidates.get(candidates.size() - 1);
+    }
+
+    private AzureOpenAIDeployment selectMin(List<AzureOpenAIDeployment> candidates,
+                                            Function<AzureOpenAIDeployment, Double> score) {
+        AzureOpenAIDeployment best = null;
+        double bestScore = Double.MAX_VALUE;
+        // 随机起点，避免分数相同时总是落到第一个部署
+        int offset = ThreadLocalRandom.current().nextInt(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            AzureOpenAIDeployment deployment = candidates.get((i + offset) % candidates.size());
+            double value = score.apply(deployment);
+            if (value < bestScore) {
+                bestScore = value;
+                best = deployment;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 限流、5xx和非HTTP错误（网络、超时）可切换部署重试，其他4xx为请求本身错误
+     */
+    private boolean isRetryable(Throwable error) {
+        if (error instanceof HttpResponseException e && e.getResponse() != null) {
+            int status = e.getResponse().getStatusCode();
+            return status == STATUS_TOO_MANY_REQUESTS || status >= STATUS_SERVER_ERROR;
+        }
+        return true;
+    }
+
+    /**
+     * 客户端自身的重试条件：与SDK默认一致（网络错误、超时、408和5xx），但不重试429，429由限流器按Retry-After重试
+     */
+    static boolean shouldClientRetry(RequestRetryCondition condition) {
+        HttpResponse response = condition.getResponse();
+        if (response == null) {
+            Throwable error = condition.getThrowable();
+            return error instanceof IOException || error instanceof TimeoutException;
+        }
+        int status = response.getStatusCode();
+        return status == STATUS_REQUEST_TIMEOUT
+                || (status >= STATUS_SERVER_ERROR && status != STATUS_NOT_IMPLEMENTED
+                && status != STATUS_VERSION_NOT_SUPPORTED);
+    }
+
+    private static Collection<AzureOpenAIDeployment> createDeployments(AzureOpenAIConfig config) {
+        List<AzureOpenAIConfig.Deployment> configured = config.getDeployments();
+        if (configured == null || configured.isEmpty()) {
+            AzureOpenAIConfig.Deployment single = new AzureOpenAIConfig.Deployment();
+            single.setName(config.getDeploymentName());
+            configured = List.of(single);
+        }
+
+        List<AzureOpenAIDeployment> result = new ArrayList<>(configured.size());
+        for (AzureOpenAIConfig.Deployment deployment : configured) {
+            String endpoint = deployment.getEndpoint() != null ? deployment.getEndpoint() : config.getEndpoint();
+            String apiKey = deployment.getApiKey() != null ? deployment.getApiKey() : config.getApiKey();
+            String deploymentName = deployment.getDeploymentName() != null
+                    ? deployment.getDeploymentName() : config.getDeploymentName();
+            String name = deployment.getName() != null ? deployment.getName() : deploymentName;
+            int rpm = deployment.getRequestsPerMinute() != null
+                    ? deployment.getRequestsPerMinute() : config.getRequestsPerMinute();
+            int tpm = deployment.getTokensPerMinute() != null
+                    ? deployment.getTokensPerMinute() : config.getTokensPerMinute();
+
+            AzureOpenAIRateLimiter rateLimiter = new AzureOpenAIRateLimiter(name, rpm, tpm,
+                    config.getRateLimitMaxRetries(), config.getRateLimitMaxQueued());
+            result.add(new AzureOpenAIDeployment(name, deploymentName,
+                    deployment.getTier() == null ? ModelTier.LARGE : deployment.getTier(),
+                    new OpenAIClientBuilder()
+                            .endpoint(endpoint)
+                            .credential(new AzureKeyCredential(apiKey))
+                            .addPolicy(rateLimiter.responsePolicy())
+                            .retryOptions(new RetryOptions(new ExponentialBackoffOptions())
+                                    .setShouldRetryCondition(AzureOpenAIDeploymentPool::shouldClientRetry))
+                            .buildAsyncClient(),
+                    rateLimiter, deployment.getWeight() == null ? 1 : deployment.getWeight(),
+                    config.getEwmaDecayHalfLife() * 1000L));
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,287 @@
+package com.example.agent.service;
+
+import com.azure.core.exception.HttpResponseException;
+import com.azure.core.http.HttpHeaderName;
+import com.azure.core.http.HttpHeaders;
+import com.azure.core.http.policy.HttpPipelinePolicy;
+import com.example.agent.exception.TaskRejectedException;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Azure OpenAI限流器
+ * 每个部署一个实例，按部署配额维护每分钟请求数（RPM）和每分钟token数（TPM）两个令牌桶，调用前预占额度，
+ * 额度不足时延迟执行而不是失败；令牌余额允许为负，后到的调用排在先到的调用之后，天然按先后顺序排队，
+ * 等待中的调用数达到上限时直接拒绝，由部署池切换到其他部署
+ * 通过HTTP管道策略读取Retry-After和x-ratelimit-remaining-*响应头校准令牌桶，收到429时暂停发送并重试；
+ * 429只在此处重试，客户端自身的重试策略不应再重试429
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Slf4j
+public class AzureOpenAIRateLimiter {
+
+    private static final HttpHeaderName RETRY_AFTER_MS = HttpHeaderName.fromString("retry-after-ms");
+    private static final HttpHeaderName REMAINING_REQUESTS = HttpHeaderName.fromString("x-ratelimit-remaining-requests");
+    private static final HttpHeaderName REMAINING_TOKENS = HttpHeaderName.fromString("x-ratelimit-remaining-tokens");
+
+    /**
+     * 未给出Retry-After时的默认暂停时间（毫秒）
+     */
+    private static final long DEFAULT_RETRY_AFTER_MILLIS = 1000;
+
+    private static final int STATUS_TOO_MANY_REQUESTS = 429;
+
+    private final String name;
+    private final long requestsPerMinute;
+    private final long tokensPerMinute;
+    private final int maxRetries;
+    private final int maxQueued;
+
+    private final Object lock = new Object();
+    private double availableRequests;
+    private double availableTokens;
+    private long lastRefillMillis;
+    private long blockedUntilMillis;
+
+    /**
+     * 正在等待额度的调用数
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicLong throttledCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+    private final AtomicLong rateLimitedResponses = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+
+    /**
+     * @param name              部署名称，用于日志
+     * @param requestsPerMinute 每分钟请求数配额
+     * @param tokensPerMinute   每分钟token数配额
+     * @param maxRetries        限流（429）后的最大重试次数
+     * @param maxQueued         等待额度的调用数上限
+     */
+    public AzureOpenAIRateLimiter(String name, long requestsPerMinute, long tokensPerMinute, int maxRetries,
+                                  int maxQueued) {
+        this.name = name;
+        this.requestsPerMinute = Math.max(1, requestsPerMinute);
+        this.tokensPerMinute = Math.max(1, tokensPerMinute);
+        this.maxRetries = maxRetries;
+        this.maxQueued = Math.max(0, maxQueued);
+        this.availableRequests = requestCapacity();
+        this.availableTokens = tokenCapacity();
+        this.lastRefillMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * 预占额度后执行调用，额度不足时延迟订阅，等待队列已满时以TaskRejectedException失败；
+     * 上游返回429时按服务端给出的时间暂停后重试
+     *
+     * @param estimatedTokens 预估token数（提示词加最大输出）
+     * @param call            模型调用
+     * @param <T>             元素类型
+     * @return 限流后的调用
+     */
+    public <T> Flux<T> throttle(int estimatedTokens, Flux<T> call) {
+        return Flux.defer(() -> {
+                    long waitMillis = reserve(estimatedTokens);
+                    return waitMillis > 0
+                            ? Mono.delay(Duration.ofMillis(waitMillis))
+                            .doFinally(signal -> queued.decrementAndGet())
+                            .thenMany(call)
+                            : call;
+                })
+                .retryWhen(Retry.from(signals -> signals.concatMap(signal -> {
+                    if (!isRateLimited(signal.failure())
+                            || signal.totalRetries() >= maxRetries) {
+                        return Mono.error(signal.failure());
+                    }
+                    // 重新订阅时再次预占额度，并等待到暂停结束
+                    retryCount.incrementAndGet();
+                    log.warn("Azure OpenAI deployment {} rate limited, retrying in {}ms", name,
+                            estimateWaitMillis(estimatedTokens));
+                    return Mono.just(signal.totalRetries());
+                })));
+    }
+
+    /**
+     * 估算当前提交一次调用需要等待的时间，不预占额度
+     *
+     * @param estimatedTokens 预估token数
+     * @return 等待毫秒数
+     */
+    public long estimateWaitMillis(int estimatedTokens) {
+        synchronized (lock) {
+            refill(System.currentTimeMillis());
+            return waitMillis(estimatedTokens);
+        }
+    }
+
+    /**
+     * 读取响应头的HTTP管道策略，需加入OpenAI客户端管道
+     *
+     * @return 管道策略
+     */
+    public HttpPipelinePolicy responsePolicy() {
+        return (context, next) -> next.process()
+                .doOnNext(response -> onResponse(response.getStatusCode(), response.getHeaders()));
+    }
+
+    /**
+     * 获取限流器运行指标
+     *
+     * @return 指标
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (lock) {
+            refill(System.currentTimeMillis());
+            stats.put("availableRequests", (long) availableRequests);
+            stats.put("availableTokens", (long) availableTokens);
+        }
+        stats.put("requestsPerMinute", requestCapacity());
+        stats.put("tokensPerMinute", tokenCapacity());
+        stats.put("blockedMillis", blockedMillis());
+        stats.put("queued", queued.get());
+        stats.put("maxQueued", maxQueued);
+        stats.put("throttled", throttledCount.get());
+        stats.put("rejected", rejectedCount.get());
+        stats.put("totalWaitMillis", totalWaitMillis.get());
+        stats.put("rateLimitedResponses", rateLimitedResponses.get());
+        stats.put("retries", retryCount.get());
+        return stats;
+    }
+
+    /**
+     * 预占一次调用的额度，需要等待时计入等待队列
+     *
+     * @return 需要等待的毫秒数
+     * @throws TaskRejectedException 需要等待且等待队列已满
+     */
+    private long reserve(int estimatedTokens) {
+        long waitMillis;
+        synchronized (lock) {
+            refill(System.currentTimeMillis());
+            waitMillis = waitMillis(estimatedTokens);
+            if (waitMillis > 0) {
+                if (queued.get() >= maxQueued) {
+                    rejectedCount.incrementAndGet();
+                    throw new TaskRejectedException("Azure OpenAI deployment " + name + " rate limit queue is full",
+                            Math.max(1, (waitMillis + 999) / 1000));
+                }
+                queued.incrementAndGet();
+            }
+            availableRequests -= 1;
+            availableTokens -= Math.min(estimatedTokens, tokenCapacity());
+        }
+        if (waitMillis > 0) {
+            throttledCount.incrementAndGet();
+            totalWaitMillis.addAndGet(waitMillis);
+        }
+        return waitMillis;
+    }
+
+    /**
+     * 计算额度补足所需时间，调用方需持有锁
+     */
+    private long waitMillis(int estimatedTokens) {
+        long now = System.currentTimeMillis();
+        double tokens = Math.min(estimatedTokens, tokenCapacity());
+        long requestWait = deficitMillis(1 - availableRequests, requestCapacity());
+        long tokenWait = deficitMillis(tokens - availableTokens, tokenCapacity());
+        return Math.max(Math.max(requestWait, tokenWait), blockedUntilMillis - now);
+    }
+
+    private static long deficitMillis(double deficit, long perMinute) {
+        return deficit <= 0 ? 0 : (long) Math.ceil(deficit * 60_000 / perMinute);
+    }
+
+    /**
+     * 按流逝时间补充令牌，调用方需持有锁
+     */
+    private void refill(long now) {
+        long elapsed = now - lastRefillMillis;
+        if (elapsed <= 0) {
+            return;
+        }
+        availableRequests = Math.min(requestCapacity(), availableRequests + elapsed * requestCapacity() / 60_000.0);
+        availableTokens = Math.min(tokenCapacity(), availableTokens + elapsed * tokenCapacity() / 60_000.0);
+        lastRefillMillis = now;
+    }
+
+    /**
+     * 根据响应状态和限流响应头校准令牌桶
+     */
+    private void onResponse(int statusCode, HttpHeaders headers) {
+        long now = System.currentTimeMillis();
+        synchronized (lock) {
+            refill(now);
+
+            if (statusCode == STATUS_TOO_MANY_REQUESTS) {
+                rateLimitedResponses.incrementAndGet();
+                blockedUntilMillis = Math.max(blockedUntilMillis, now + retryAfterMillis(headers));
+            }
+
+            // 服务端剩余额度低于本地估计时以服务端为准
+            Long remainingRequests = parseLong(headers.getValue(REMAINING_REQUESTS));
+            if (remainingRequests != null && remainingRequests < availableRequests) {
+                availableRequests = remainingRequests;
+            }
+            Long remainingTokens = parseLong(headers.getValue(REMAINING_TOKENS));
+            if (remainingTokens != null && remainingTokens < availableTokens) {
+                availableTokens = remainingTokens;
+            }
+        }
+    }
+
+    private long retryAfterMillis(HttpHeaders headers) {
+        Long millis = parseLong(headers.getValue(RETRY_AFTER_MS));
+        if (millis != null) {
+            return millis;
+        }
+        Long seconds = parseLong(headers.getValue(HttpHeaderName.RETRY_AFTER));
+        return seconds != null ? seconds * 1000 : DEFAULT_RETRY_AFTER_MILLIS;
+    }
+
+    private long blockedMillis() {
+        synchronized (lock) {
+            return Math.max(0, blockedUntilMillis - System.currentTimeMillis());
+        }
+    }
+
+    private boolean isRateLimited(Throwable error) {
+        return error instanceof HttpResponseException e
+                && e.getResponse() != null
+                && e.getResponse().getStatusCode() == STATUS_TOO_MANY_REQUESTS;
+    }
+
+    private long requestCapacity() {
+        return requestsPerMinute;
+    }
+
+    private long tokenCapacity() {
+        return tokensPerMinute;
+    }
+
+    private static Long parseLong(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            return (long) Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+}
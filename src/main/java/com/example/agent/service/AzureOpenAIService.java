@@ -1,15 +1,27 @@
 package com.example.agent.service;
 
-import com.azure.ai.openai.OpenAIAsyncClient;
+import cn.hutool.crypto.digest.DigestUtil;
 import com.azure.ai.openai.models.*;
+import com.azure.core.util.BinaryData;
+import com.azure.json.JsonProviders;
+import com.azure.json.JsonReader;
+import com.example.agent.common.TokenCounter;
 import com.example.agent.config.AzureOpenAIConfig;
+import com.example.agent.enums.ModelTier;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Azure OpenAI服务
@@ -22,8 +34,15 @@ import java.util.List;
 @RequiredArgsConstructor
 public class AzureOpenAIService {
 
-    private final OpenAIAsyncClient openAIAsyncClient;
+    /**
+     * 命中响应缓存时记录的服务来源
+     */
+    public static final String SERVED_BY_CACHE = "cache";
+
     private final AzureOpenAIConfig azureOpenAIConfig;
+    private final AzureOpenAIDeploymentPool deploymentPool;
+    private final LlmResponseCache llmResponseCache;
+    private final LlmRequestCoalescer llmRequestCoalescer;
 
     /**
      * 发送聊天消息（流式）
@@ -32,25 +51,46 @@ public class AzureOpenAIService {
      * @return 流式响应
      */
     public Flux<String> chatCompletionStream(List<ChatRequestMessage> messages) {
+        return chatCompletionStream(messages, false);
+    }
+
+    /**
+     * 发送聊天消息（流式），温度为0或请求允许时命中缓存则回放缓存的增量
+     *
+     * @param messages  消息列表
+     * @param cacheable 请求是否允许使用响应缓存
+     * @return 流式响应
+     */
+    public Flux<String> chatCompletionStream(List<ChatRequestMessage> messages, boolean cacheable) {
+        return chatCompletionStream(messages, LlmCallOptions.builder().cacheable(cacheable).build());
+    }
+
+    /**
+     * 发送聊天消息（流式），在调用选项指定层级的部署中选择部署，并回调实际服务的部署
+     *
+     * @param messages    消息列表
+     * @param callOptions 调用选项
+     * @return 流式响应
+     */
+    public Flux<String> chatCompletionStream(List<ChatRequestMessage> messages, LlmCallOptions callOptions) {
         ChatCompletionsOptions options = new ChatCompletionsOptions(messages)
-                .setMaxTokens(azureOpenAIConfig.getMaxTokens())
+                .setMaxTokens(maxTokens(callOptions))
                 .setTemperature(azureOpenAIConfig.getTemperature())
+                .setStop(callOptions.getStop())
                 .setStream(true);
 
-        return openAIAsyncClient.getChatCompletionsStream(
-                        azureOpenAIConfig.getDeploymentName(),
-                        options)
-                .flatMap(chatCompletions -> {
-                    List<String> contents = new ArrayList<>();
-                    for (ChatChoice choice : chatCompletions.getChoices()) {
-                        ChatResponseMessage delta = choice.getDelta();
-                        if (delta != null && delta.getContent() != null) {
-                            contents.add(delta.getContent());
-                        }
-                    }
-                    return Flux.fromIterable(contents);
-                })
-                .doOnError(error -> log.error("Error in chat completion stream", error));
+        Consumer<String> servedBy = servedBy(callOptions);
+        String body = requestBody(options);
+        String key = requestKey(callOptions.getTier(), body);
+        Supplier<Flux<String>> upstream = () -> llmRequestCoalescer.share(key,
+                served -> deploymentPool.executeHedged(callOptions.getTier(), estimateTokens(body, options),
+                        deployment -> streamContent(deployment, options), served),
+                servedBy);
+        if (useCache(callOptions.isCacheable())) {
+            return llmResponseCache.cached(key, upstream, Function.identity(), Function.identity(),
+                    stoppedEarly(callOptions), () -> servedBy.accept(SERVED_BY_CACHE));
+        }
+        return upstream.get();
     }
 
     /**
@@ -60,18 +100,47 @@ public class AzureOpenAIService {
      * @return 响应内容
      */
     public String chatCompletion(List<ChatRequestMessage> messages) {
+        return chatCompletion(messages, false);
+    }
+
+    /**
+     * 发送聊天消息（非流式），温度为0或请求允许时优先读取缓存
+     *
+     * @param messages  消息列表
+     * @param cacheable 请求是否允许使用响应缓存
+     * @return 响应内容
+     */
+    public String chatCompletion(List<ChatRequestMessage> messages, boolean cacheable) {
         ChatCompletionsOptions options = new ChatCompletionsOptions(messages)
                 .setMaxTokens(azureOpenAIConfig.getMaxTokens())
                 .setTemperature(azureOpenAIConfig.getTemperature());
 
         try {
-            ChatCompletions chatCompletions = openAIAsyncClient.getChatCompletions(
-                            azureOpenAIConfig.getDeploymentName(),
-                            options)
+            String body = requestBody(options);
+            String cacheKey = null;
+            if (useCache(cacheable)) {
+                cacheKey = requestKey(ModelTier.LARGE, body);
+                List<String> cached = llmResponseCache.lookup(cacheKey).block();
+                if (cached != null) {
+                    return String.join("", cached);
+                }
+            }
+
+            ChatCompletions chatCompletions = deploymentPool.execute(ModelTier.LARGE, estimateTokens(body, options),
+                            deployment -> deployment.getClient().getChatCompletions(
+                                    deployment.getDeploymentName(),
+                                    options).flux(),
+                            deployment -> {
+                            })
+                    .next()
                     .block();
 
             if (chatCompletions != null && !chatCompletions.getChoices().isEmpty()) {
-                return chatCompletions.getChoices().get(0).getMessage().getContent();
+                String content = chatCompletions.getChoices().get(0).getMessage().getContent();
+                if (cacheKey != null && content != null) {
+                    llmResponseCache.store(cacheKey, List.of(content));
+                }
+                return content;
             }
         } catch (Exception e) {
             log.error("Error in chat completion", e);
@@ -80,6 +149,86 @@ public class AzureOpenAIService {
         return null;
     }
 
+    /**
+     * 在指定部署上订阅模型流并提取文本增量
+     */
+    private Flux<String> streamContent(AzureOpenAIDeployment deployment, ChatCompletionsOptions options) {
+        return deployment.getClient().getChatCompletionsStream(
+                        deployment.getDeploymentName(),
+                        options)
+                .<String>handle((chatCompletions, sink) -> {
+                    // 通常只有一个choice，直接下发增量，避免为每个分片分配集合
+                    String content = null;
+                    for (ChatChoice choice : chatCompletions.getChoices()) {
+                        ChatResponseMessage delta = choice.getDelta();
+                        if (delta != null && delta.getContent() != null) {
+                            content = content == null ? delta.getContent() : content + delta.getContent();
+                        }
+                    }
+                    // 空文本（如首个仅含角色的分片）不下发，避免被当作首token
+                    if (content != null && !content.isEmpty()) {
+                        sink.next(content);
+                    }
+                })
+                .doOnError(error -> log.error("Error in chat completion stream", error));
+    }
+
+    /**
+     * 估算当前按调用选项（模型层级、最大输出token数）提交一次调用需要等待限流的时间
+     *
+     * @param promptTokens 提示词token数
+     * @param callOptions  调用选项
+     * @return 等待毫秒数
+     */
+    public long estimateWaitMillis(int promptTokens, LlmCallOptions callOptions) {
+        return deploymentPool.estimateWaitMillis(callOptions.getTier(), promptTokens + maxTokens(callOptions));
+    }
+
+    /**
+     * 序列化请求参数（采样参数、规范化消息、工具定义）
+     */
+    private String requestBody(ChatCompletionsOptions options) {
+        return BinaryData.fromObject(options).toString();
+    }
+
+    /**
+     * 计算请求键：逻辑部署名、模型层级与序列化请求参数的SHA-256，同一层级的各部署视为同一模型
+     */
+    private String requestKey(ModelTier tier, String body) {
+        return DigestUtil.sha256Hex(azureOpenAIConfig.getDeploymentName() + "\n" + tier + "\n" + body);
+    }
+
+    /**
+     * 估算请求占用的TPM额度：提示词加最大输出token数
+     */
+    private int estimateTokens(String body, ChatCompletionsOptions options) {
+        return TokenCounter.count(body) + options.getMaxTokens();
+    }
+
+    private int maxTokens(LlmCallOptions callOptions) {
+        return callOptions.getMaxTokens() != null ? callOptions.getMaxTokens() : azureOpenAIConfig.getMaxTokens();
+    }
+
+    private BooleanSupplier stoppedEarly(LlmCallOptions callOptions) {
+        return callOptions.getStoppedEarly() != null ? callOptions.getStoppedEarly() : () -> false;
+    }
+
+    private Consumer<String> servedBy(LlmCallOptions callOptions) {
+        return callOptions.getServedBy() != null ? callOptions.getServedBy() : deployment -> {
+        };
+    }
+
+    /**
+     * 是否使用响应缓存：缓存已启用，且温度为0或请求显式允许
+     */
+    private boolean useCache(boolean cacheable) {
+        if (!llmResponseCache.isEnabled()) {
+            return false;
+        }
+        Double temperature = azureOpenAIConfig.getTemperature();
+        return cacheable || (temperature != null && temperature == 0.0);
+    }
+
     /**
      * 发送聊天消息（带工具调用，流式）
      *
@@ -90,17 +239,97 @@ public class AzureOpenAIService {
     public Flux<ChatCompletions> chatCompletionWithToolsStream(
             List<ChatRequestMessage> messages,
             List<ChatCompletionsFunctionToolDefinition> tools) {
+        return chatCompletionWithToolsStream(messages, tools, LlmCallOptions.defaults());
+    }
+
+    /**
+     * 发送聊天消息（带工具调用，流式），在调用选项指定层级的部署中选择部署，并回调实际服务的部署
+     *
+     * @param messages    消息列表
+     * @param tools       工具列表
+     * @param callOptions 调用选项
+     * @return 流式响应
+     */
+    public Flux<ChatCompletions> chatCompletionWithToolsStream(
+            List<ChatRequestMessage> messages,
+            List<ChatCompletionsFunctionToolDefinition> tools,
+            LlmCallOptions callOptions) {
 
         ChatCompletionsOptions options = new ChatCompletionsOptions(messages)
-                .setMaxTokens(azureOpenAIConfig.getMaxTokens())
+                .setMaxTokens(maxTokens(callOptions))
                 .setTemperature(azureOpenAIConfig.getTemperature())
+                .setStop(callOptions.getStop())
                 .setTools(new ArrayList<>(tools))
                 .setStream(true);
 
-        return openAIAsyncClient.getChatCompletionsStream(
-                        azureOpenAIConfig.getDeploymentName(),
-                        options)
-                .doOnError(error -> log.error("Error in chat completion with tools stream", error));
+        Consumer<String> servedBy = servedBy(callOptions);
+        String body = requestBody(options);
+        String key = requestKey(callOptions.getTier(), body);
+        Supplier<Flux<ChatCompletions>> upstream = () -> llmRequestCoalescer.share(key,
+                served -> deploymentPool.executeHedged(callOptions.getTier(), estimateTokens(body, options),
+                                // 只下发带文本或工具调用的分片：首个分片常只含内容过滤结果，不能算作首token
+                                deployment -> deployment.getClient().getChatCompletionsStream(
+                                                deployment.getDeploymentName(),
+                                                options)
+                                        .filter(AzureOpenAIService::hasDelta),
+                                served)
+                        .doOnError(error -> log.error("Error in chat completion with tools stream", error)),
+                servedBy);
+        if (useCache(callOptions.isCacheable())) {
+            // 请求体包含工具定义，键与不带工具的请求不会冲突
+            return llmResponseCache.cached(key, upstream, AzureOpenAIService::encodeChunk,
+                    AzureOpenAIService::decodeChunk, stoppedEarly(callOptions),
+                    () -> servedBy.accept(SERVED_BY_CACHE));
+        }
+        return upstream.get();
+    }
+
+    /**
+     * 流式分片是否带文本或工具调用增量，仅含角色、空文本、内容过滤结果或结束原因的分片返回false
+     */
+    static boolean hasDelta(ChatCompletions chunk) {
+        if (chunk.getChoices() == null) {
+            return false;
+        }
+        for (ChatChoice choice : chunk.getChoices()) {
+            ChatResponseMessage delta = choice.getDelta();
+            if (delta != null && ((delta.getContent() != null && !delta.getContent().isEmpty())
+                    || (delta.getToolCalls() != null && !delta.getToolCalls().isEmpty()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 序列化带工具调用的流式分片，没有增量的分片返回null，不写入缓存
+     */
+    static String encodeChunk(ChatCompletions chunk) {
+        return hasDelta(chunk) ? BinaryData.fromObject(chunk).toString() : null;
+    }
+
+    static ChatCompletions decodeChunk(String json) {
+        try (JsonReader reader = JsonProviders.createReader(json)) {
+            return ChatCompletions.fromJson(reader);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 创建函数工具定义
+     *
+     * @param name        函数名
+     * @param description 函数描述
+     * @param parameters  参数JSON Schema
+     * @return 函数工具定义
+     */
+    public ChatCompletionsFunctionToolDefinition createFunctionToolDefinition(String name, String description,
+                                                                              Map<String, Object> parameters) {
+        FunctionDefinition function = new FunctionDefinition(name)
+                .setDescription(description)
+                .setParameters(BinaryData.fromObject(parameters));
+        return new ChatCompletionsFunctionToolDefinition(function);
     }
 
     /**
@@ -133,4 +362,38 @@ public class AzureOpenAIService {
         return new ChatRequestAssistantMessage(content);
     }
 
+    /**
+     * 创建带工具调用的助手消息
+     *
+     * @param content   内容
+     * @param toolCalls 工具调用列表
+     * @return 助手消息
+     */
+    public ChatRequestMessage createAssistantToolCallMessage(String content, List<ChatCompletionsToolCall> toolCalls) {
+        return new ChatRequestAssistantMessage(content).setToolCalls(toolCalls);
+    }
+
+    /**
+     * 创建函数工具调用
+     *
+     * @param id        调用ID
+     * @param name      函数名
+     * @param arguments 参数JSON
+     * @return 工具调用
+     */
+    public ChatCompletionsToolCall createFunctionToolCall(String id, String name, String arguments) {
+        return new ChatCompletionsFunctionToolCall(id, new FunctionCall(name, arguments));
+    }
+
+    /**
+     * 创建工具结果消息
+     *
+     * @param content    工具结果
+     * @param toolCallId 工具调用ID
+     * @return 工具消息
+     */
+    public ChatRequestMessage createToolMessage(String content, String toolCallId) {
+        return new ChatRequestToolMessage(content, toolCallId);
+    }
+
 }
@@ -0,0 +1,65 @@
+package com.example.agent.service;
+
+import com.example.agent.enums.ModelTier;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * 模型调用选项
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class LlmCallOptions {
+
+    /**
+     * 是否允许使用响应缓存
+     */
+    private boolean cacheable;
+
+    /**
+     * 模型层级
+     */
+    @Builder.Default
+    private ModelTier tier = ModelTier.LARGE;
+
+    /**
+     * 最大输出token数，为空时使用配置值
+     */
+    private Integer maxTokens;
+
+    /**
+     * 停止序列，模型生成到任一序列时在服务端停止，输出不含该序列
+     */
+    private List<String> stop;
+
+    /**
+     * 实际服务的部署名称回调，命中缓存时为cache
+     */
+    private Consumer<String> servedBy;
+
+    /**
+     * 调用方是否已拿到完整答案而主动结束流，流被取消时查询，返回true时已收到的输出可以写入响应缓存
+     */
+    private BooleanSupplier stoppedEarly;
+
+    /**
+     * 默认选项
+     *
+     * @return LlmCallOptions
+     */
+    public static LlmCallOptions defaults() {
+        return LlmCallOptions.builder().build();
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.example.agent.service;
+
+import com.example.agent.config.AgentConfig;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 大模型请求合并（single-flight）
+ * 同一请求键的并发调用共享一个上游流订阅，分片按到达顺序回放给所有等待者（含晚到者）；
+ * 订阅按引用计数，全部等待者取消后才取消上游，上游结束或取消后移除登记；
+ * 上游报告的服务部署同样通知给所有等待者
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class LlmRequestCoalescer {
+
+    private final AgentConfig agentConfig;
+
+    /**
+     * 进行中的上游流，键为请求键
+     */
+    private final Map<String, Inflight<?>> inflight = new ConcurrentHashMap<>();
+
+    private final AtomicLong upstreamCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * 获取共享的上游流，没有进行中的相同请求时新建
+     *
+     * @param key      请求键
+     * @param upstream 上游流，参数为服务部署回调
+     * @param servedBy 服务部署回调
+     * @param <T>      元素类型
+     * @return 共享流
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Flux<T> share(String key, Function<Consumer<String>, Flux<T>> upstream, Consumer<String> servedBy) {
+        if (!Boolean.TRUE.equals(agentConfig.getLlmCoalesceEnabled())) {
+            return upstream.apply(servedBy);
+        }
+
+        return Flux.defer(() -> {
+            boolean[] created = new boolean[1];
+            Inflight<T> shared = (Inflight<T>) inflight.computeIfAbsent(key, k -> {
+                created[0] = true;
+                upstreamCount.incrementAndGet();
+                Sinks.One<String> served = Sinks.one();
+                Inflight<T>[] holder = new Inflight[1];
+                holder[0] = new Inflight<>(upstream.apply(served::tryEmitValue)
+                        .doFinally(signal -> inflight.remove(k, holder[0]))
+                        .replay()
+                        .refCount(), served.asMono());
+                return holder[0];
+            });
+            if (!created[0]) {
+                coalescedCount.incrementAndGet();
+                log.debug("Coalesced identical LLM request, key={}", key);
+            }
+            shared.served().subscribe(servedBy);
+            return shared.flux();
+        });
+    }
+
+    /**
+     * 获取运行指标
+     *
+     * @return 指标
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", agentConfig.getLlmCoalesceEnabled());
+        stats.put("inflight", inflight.size());
+        stats.put("upstream", upstreamCount.get());
+        stats.put("coalesced", coalescedCount.get());
+        return stats;
+    }
+
+    /**
+     * 进行中的共享请求
+     *
+     * @param flux   共享流
+     * @param served 服务部署
+     */
+    private record Inflight<T>(Flux<T> flux, Mono<String> served) {
+    }
+
+}
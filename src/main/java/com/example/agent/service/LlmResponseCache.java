@@ -0,0 +1,180 @@
+package com.example.agent.service;
+
+import com.alibaba.fastjson2.JSON;
+import com.example.agent.config.AgentConfig;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 大模型响应精确匹配缓存
+ * 键为请求键（部署名与完整请求参数的SHA-256，见AzureOpenAIService），值为按原始分片顺序保存的输出分片；本地Caffeine为一级缓存，Redis为二级缓存，
+ * 只缓存正常结束的完整响应，以及调用方判定答案已完整而主动提前结束的响应；被其他原因取消或出错的流不写入
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Slf4j
+@Component
+public class LlmResponseCache {
+
+    private static final String KEY_PREFIX = "agent:llm:";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final AgentConfig agentConfig;
+    private final Cache<String, List<String>> localCache;
+
+    private final AtomicLong localHits = new AtomicLong();
+    private final AtomicLong redisHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+
+    public LlmResponseCache(StringRedisTemplate stringRedisTemplate, AgentConfig agentConfig) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.agentConfig = agentConfig;
+        this.localCache = Caffeine.newBuilder()
+                .maximumSize(agentConfig.getLlmCacheMaxEntries())
+                .expireAfterWrite(Duration.ofSeconds(agentConfig.getLlmCacheTtl()))
+                .build();
+    }
+
+    /**
+     * 是否启用缓存
+     *
+     * @return 是否启用
+     */
+    public boolean isEnabled() {
+        return Boolean.TRUE.equals(agentConfig.getLlmCacheEnabled());
+    }
+
+    /**
+     * 命中时回放缓存的增量，未命中时订阅上游并在正常结束后写入缓存
+     *
+     * @param key      缓存键
+     * @param upstream 上游流
+     * @param onHit    命中回调
+     * @return 增量流
+     */
+    public Flux<String> cached(String key, Supplier<Flux<String>> upstream, Runnable onHit) {
+        return cached(key, upstream, Function.identity(), Function.identity(), () -> false, onHit);
+    }
+
+    /**
+     * 命中时回放缓存的分片，未命中时订阅上游，在正常结束或调用方主动提前结束后写入缓存
+     *
+     * @param key           缓存键
+     * @param upstream      上游流
+     * @param encoder       分片序列化，返回null的分片不缓存
+     * @param decoder       分片反序列化
+     * @param stoppedEarly  流被取消时调用，返回true表示调用方已拿到完整答案而主动结束，此时已收到的分片可以缓存
+     * @param onHit         命中回调
+     * @param <T>           分片类型
+     * @return 分片流
+     */
+    public <T> Flux<T> cached(String key, Supplier<Flux<T>> upstream, Function<T, String> encoder,
+                              Function<String, T> decoder, BooleanSupplier stoppedEarly, Runnable onHit) {
+        return lookup(key)
+                .doOnNext(chunks -> onHit.run())
+                .flatMapMany(chunks -> Flux.fromIterable(chunks).map(decoder))
+                .switchIfEmpty(Flux.defer(() -> {
+                    List<String> chunks = new ArrayList<>();
+                    return upstream.get()
+                            .doOnNext(chunk -> {
+                                String encoded = encoder.apply(chunk);
+                                if (encoded != null) {
+                                    chunks.add(encoded);
+                                }
+                            })
+                            .doOnComplete(() -> store(key, chunks))
+                            .doOnCancel(() -> {
+                                if (stoppedEarly.getAsBoolean()) {
+                                    store(key, chunks);
+                                }
+                            });
+                }));
+    }
+
+    /**
+     * 查询缓存，先查本地再查Redis，Redis命中后回填本地
+     *
+     * @param key 缓存键
+     * @return 缓存的增量，未命中为空
+     */
+    public Mono<List<String>> lookup(String key) {
+        List<String> local = localCache.getIfPresent(key);
+        if (local != null) {
+            localHits.incrementAndGet();
+            return Mono.just(local);
+        }
+
+        return Mono.fromCallable(() -> stringRedisTemplate.opsForValue().get(KEY_PREFIX + key))
+                .subscribeOn(Schedulers.boundedElastic())
+                .map(json -> {
+                    List<String> chunks = List.copyOf(JSON.parseArray(json, String.class));
+                    localCache.put(key, chunks);
+                    redisHits.incrementAndGet();
+                    return chunks;
+                })
+                .onErrorResume(e -> {
+                    log.warn("Error reading LLM response cache from Redis, key={}", key, e);
+                    return Mono.empty();
+                })
+                .switchIfEmpty(Mono.fromRunnable(misses::incrementAndGet));
+    }
+
+    /**
+     * 写入缓存，Redis写入异步执行，空响应不缓存
+     *
+     * @param key    缓存键
+     * @param chunks 输出增量
+     */
+    public void store(String key, List<String> chunks) {
+        if (chunks.isEmpty()) {
+            return;
+        }
+        List<String> value = List.copyOf(chunks);
+        localCache.put(key, value);
+        stores.incrementAndGet();
+
+        Mono.fromRunnable(() -> stringRedisTemplate.opsForValue().set(KEY_PREFIX + key, JSON.toJSONString(value),
+                        Duration.ofSeconds(agentConfig.getLlmCacheTtl())))
+                .subscribeOn(Schedulers.boundedElastic())
+                .subscribe(null, e -> log.warn("Error writing LLM response cache to Redis, key={}", key, e));
+    }
+
+    /**
+     * 获取缓存运行指标
+     *
+     * @return 指标
+     */
+    public Map<String, Object> getStats() {
+        long hits = localHits.get() + redisHits.get();
+        long total = hits + misses.get();
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", isEnabled());
+        stats.put("localSize", localCache.estimatedSize());
+        stats.put("localHits", localHits.get());
+        stats.put("redisHits", redisHits.get());
+        stats.put("misses", misses.get());
+        stats.put("stores", stores.get());
+        stats.put("hitRate", total == 0 ? 0.0 : (double) hits / total);
+        return stats;
+    }
+
+}
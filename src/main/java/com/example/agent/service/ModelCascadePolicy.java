@@ -0,0 +1,145 @@
+package com.example.agent.service;
+
+import com.alibaba.fastjson2.JSON;
+import com.example.agent.common.TokenCounter;
+import com.example.agent.config.AgentConfig;
+import com.example.agent.enums.AgentRole;
+import com.example.agent.enums.ModelTier;
+import com.example.agent.tool.ToolRegistry;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 模型级联策略
+ * 对启用级联的角色，每个步骤先由SMALL层级部署作答；响应无法解析、工具调用无效、输出接近长度上限
+ * 或包含低置信度表述时升级到LARGE层级重新生成；标记为困难的任务以及升级次数达到上限的任务直接使用大模型
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Component
+@RequiredArgsConstructor
+public class ModelCascadePolicy {
+
+    /**
+     * 输出token数达到小模型上限的该比例时视为被截断
+     */
+    private static final double LENGTH_LIMIT_RATIO = 0.95;
+
+    /**
+     * 低置信度表述
+     */
+    private static final List<String> LOW_CONFIDENCE_MARKERS = List.of(
+            "不确定", "无法确定", "不太清楚", "可能不准确", "无法回答",
+            "i'm not sure", "i am not sure", "not certain", "i don't know");
+
+    private final AgentConfig agentConfig;
+    private final AzureOpenAIDeploymentPool deploymentPool;
+    private final ToolRegistry toolRegistry;
+
+    private final AtomicLong smallAttempts = new AtomicLong();
+    private final AtomicLong largeDirect = new AtomicLong();
+    private final Map<String, AtomicLong> escalations = new ConcurrentHashMap<>();
+
+    /**
+     * 确定步骤首先使用的模型层级
+     *
+     * @param context 任务上下文
+     * @return 模型层级
+     */
+    public ModelTier initialTier(AgentTaskContext context) {
+        if (!Boolean.TRUE.equals(agentConfig.getCascadeEnabled()) || !deploymentPool.hasTier(ModelTier.SMALL)) {
+            return ModelTier.LARGE;
+        }
+
+        List<AgentRole> roles = agentConfig.getCascadeRoles();
+        boolean roleEnabled = roles == null || roles.isEmpty() || roles.contains(context.getRequest().getRole());
+        if (!roleEnabled
+                || Boolean.TRUE.equals(context.getRequest().getHard())
+                || context.getEscalations() >= agentConfig.getCascadeMaxEscalations()) {
+            largeDirect.incrementAndGet();
+            return ModelTier.LARGE;
+        }
+
+        smallAttempts.incrementAndGet();
+        return ModelTier.SMALL;
+    }
+
+    /**
+     * 判断小模型响应是否需要升级
+     *
+     * @param parser    已解析的文本响应
+     * @param assembler 已拼装的工具调用
+     * @return 升级原因，无需升级返回null
+     */
+    public String escalationReason(StreamingResponseParser parser, StreamingToolCallAssembler assembler) {
+        String reason = evaluate(parser, assembler);
+        if (reason != null) {
+            escalations.computeIfAbsent(reason, k -> new AtomicLong()).incrementAndGet();
+        }
+        return reason;
+    }
+
+    /**
+     * 获取运行指标
+     *
+     * @return 指标
+     */
+    public Map<String, Object> getStats() {
+        long attempts = smallAttempts.get();
+        long escalated = escalations.values().stream().mapToLong(AtomicLong::get).sum();
+
+        Map<String, Object> byReason = new LinkedHashMap<>();
+        escalations.forEach((reason, count) -> byReason.put(reason, count.get()));
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", agentConfig.getCascadeEnabled());
+        stats.put("smallAttempts", attempts);
+        stats.put("smallAccepted", attempts - escalated);
+        stats.put("escalated", escalated);
+        stats.put("largeDirect", largeDirect.get());
+        stats.put("escalationRate", attempts == 0 ? 0.0 : (double) escalated / attempts);
+        stats.put("escalationReasons", byReason);
+        return stats;
+    }
+
+    private String evaluate(StreamingResponseParser parser, StreamingToolCallAssembler assembler) {
+        if (assembler.hasToolCalls()) {
+            for (StreamingToolCallAssembler.AssembledToolCall call : assembler.getToolCalls()) {
+                if (toolRegistry.get(call.name()) == null) {
+                    return "调用了未注册的工具";
+                }
+                String arguments = call.arguments();
+                if (arguments != null && !arguments.isBlank() && !JSON.isValidObject(arguments)) {
+                    return "工具参数格式错误";
+                }
+            }
+            return null;
+        }
+
+        String text = parser.getText();
+        if (text.isBlank()) {
+            return "空响应";
+        }
+        if (!parser.isCompleted() && parser.getThinking() == null && parser.getAction() == null) {
+            return "响应格式无法解析";
+        }
+        if (TokenCounter.count(text) >= agentConfig.getCascadeSmallMaxTokens() * LENGTH_LIMIT_RATIO) {
+            return "输出达到长度上限";
+        }
+        String lower = text.toLowerCase();
+        for (String marker : LOW_CONFIDENCE_MARKERS) {
+            if (lower.contains(marker)) {
+                return "低置信度";
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.example.agent.service;
+
+import com.alibaba.fastjson2.JSON;
+import com.example.agent.model.dto.ToolCallDto;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 工具推测执行器
+ * 模型仍在流式输出时，参数JSON已闭合且可推测执行的工具调用立即开始执行；
+ * 流结束后按调用ID取回结果，函数名或参数与最终调用不一致时丢弃推测结果并重新执行
+ * 单个步骤内使用：登记在模型流回调中按顺序进行，取回在流结束后进行
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Slf4j
+public class SpeculativeToolRunner {
+
+    private final Predicate<StreamingToolCallAssembler.AssembledToolCall> eligible;
+    private final Function<StreamingToolCallAssembler.AssembledToolCall, Mono<ToolCallDto>> runner;
+    private final int maxSpeculations;
+    private final AtomicLong hits;
+    private final AtomicLong discarded;
+    private final Map<String, Speculation> speculations = new LinkedHashMap<>();
+
+    /**
+     * @param eligible        是否可推测执行
+     * @param runner          工具执行
+     * @param maxSpeculations 单步最多推测执行的调用数
+     * @param hits            命中计数，跨步骤累计
+     * @param discarded       丢弃计数，跨步骤累计
+     */
+    public SpeculativeToolRunner(Predicate<StreamingToolCallAssembler.AssembledToolCall> eligible,
+                                 Function<StreamingToolCallAssembler.AssembledToolCall, Mono<ToolCallDto>> runner,
+                                 int maxSpeculations, AtomicLong hits, AtomicLong discarded) {
+        this.eligible = eligible;
+        this.runner = runner;
+        this.maxSpeculations = maxSpeculations;
+        this.hits = hits;
+        this.discarded = discarded;
+    }
+
+    /**
+     * 参数闭合时登记调用，符合条件则立即开始执行
+     *
+     * @param call 参数已闭合的调用
+     */
+    public synchronized void onArgumentsComplete(StreamingToolCallAssembler.AssembledToolCall call) {
+        if (call.id() == null || speculations.size() >= maxSpeculations
+                || speculations.containsKey(call.id()) || !eligible.test(call)) {
+            return;
+        }
+
+        Mono<ToolCallDto> result = runner.apply(call).cache();
+        Disposable execution = result.subscribe(r -> {
+        }, e -> log.debug("Speculative tool call failed: tool={}", call.name(), e));
+        speculations.put(call.id(), new Speculation(call, result, execution));
+        log.debug("Started speculative tool call: tool={}, id={}", call.name(), call.id());
+    }
+
+    /**
+     * 取回与最终调用一致的推测结果
+     *
+     * @param call 最终调用
+     * @return 推测结果，没有或不一致时返回null
+     */
+    public synchronized Mono<ToolCallDto> take(StreamingToolCallAssembler.AssembledToolCall call) {
+        Speculation speculation = call.id() == null ? null : speculations.remove(call.id());
+        if (speculation == null) {
+            return null;
+        }
+        if (!Objects.equals(speculation.call().name(), call.name())
+                || !sameArguments(speculation.call().arguments(), call.arguments())) {
+            speculation.execution().dispose();
+            discarded.incrementAndGet();
+            log.debug("Discarded speculative tool call with changed arguments: tool={}", call.name());
+            return null;
+        }
+        hits.incrementAndGet();
+        return speculation.result();
+    }
+
+    /**
+     * 丢弃未被取回的推测执行
+     */
+    public synchronized void discardRemaining() {
+        Iterator<Speculation> iterator = speculations.values().iterator();
+        while (iterator.hasNext()) {
+            iterator.next().execution().dispose();
+            iterator.remove();
+            discarded.incrementAndGet();
+        }
+    }
+
+    private static boolean sameArguments(String speculated, String actual) {
+        if (Objects.equals(speculated, actual)) {
+            return true;
+        }
+        try {
+            return Objects.equals(JSON.parseObject(speculated), JSON.parseObject(actual));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * 推测执行
+     *
+     * @param call      登记时的调用
+     * @param result    缓存的执行结果
+     * @param execution 执行订阅
+     */
+    private record Speculation(StreamingToolCallAssembler.AssembledToolCall call, Mono<ToolCallDto> result,
+                               Disposable execution) {
+    }
+
+}
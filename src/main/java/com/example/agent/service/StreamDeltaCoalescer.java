@@ -0,0 +1,117 @@
+package com.example.agent.service;
+
+import reactor.core.Disposable;
+import reactor.core.scheduler.Scheduler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 流式增量合并器
+ * 将模型逐token输出的增量按字符数或时间间隔合并为帧再下发：首个增量立即下发保证首字节延迟，
+ * 之后在缓冲达到字符上限或距上一帧超过时间间隔时下发，避免每个token一个SSE事件；
+ * 缓冲中有未下发的增量时由定时器在间隔到期时下发，模型生成停顿时不会滞留
+ * 线程安全：增量回调与定时器可能在不同线程上下发帧
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+public class StreamDeltaCoalescer {
+
+    private final int maxChars;
+
+    private final long maxDelayNanos;
+
+    private final Scheduler timer;
+
+    private final Consumer<String> frameConsumer;
+
+    private final StringBuilder buffer = new StringBuilder();
+
+    private long lastFrameNanos;
+
+    private boolean firstFrameSent;
+
+    private boolean closed;
+
+    /**
+     * 已安排的定时下发，缓冲为空时为null
+     */
+    private Disposable scheduledFlush;
+
+    /**
+     * @param maxChars       单帧字符上限
+     * @param maxDelayMillis 帧间隔上限（毫秒）
+     * @param timer          定时下发使用的调度器，为null时仅在下一个增量到达时检查间隔
+     * @param frameConsumer  帧下发回调
+     */
+    public StreamDeltaCoalescer(int maxChars, long maxDelayMillis, Scheduler timer, Consumer<String> frameConsumer) {
+        this.maxChars = maxChars;
+        this.maxDelayNanos = maxDelayMillis * 1_000_000;
+        this.timer = timer;
+        this.frameConsumer = frameConsumer;
+    }
+
+    /**
+     * 追加增量，满足条件时下发一帧，否则安排在间隔到期时下发
+     *
+     * @param delta 增量文本
+     */
+    public synchronized void append(String delta) {
+        if (closed) {
+            return;
+        }
+        buffer.append(delta);
+
+        long now = System.nanoTime();
+        if (!firstFrameSent || buffer.length() >= maxChars || now - lastFrameNanos >= maxDelayNanos) {
+            emit(now);
+        } else if (timer != null && scheduledFlush == null) {
+            scheduledFlush = timer.schedule(this::flushDue, lastFrameNanos + maxDelayNanos - now,
+                    TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 下发缓冲中剩余的增量
+     */
+    public synchronized void flush() {
+        if (!closed && buffer.length() > 0) {
+            emit(System.nanoTime());
+        }
+    }
+
+    /**
+     * 停止合并：取消定时下发并丢弃缓冲，之后的增量不再下发；用于生成被取消或出错
+     */
+    public synchronized void close() {
+        closed = true;
+        cancelScheduledFlush();
+        buffer.setLength(0);
+    }
+
+    /**
+     * 定时器到期：下发间隔内缓冲的增量
+     */
+    private synchronized void flushDue() {
+        scheduledFlush = null;
+        flush();
+    }
+
+    private void emit(long now) {
+        cancelScheduledFlush();
+        String frame = buffer.toString();
+        buffer.setLength(0);
+        lastFrameNanos = now;
+        firstFrameSent = true;
+        frameConsumer.accept(frame);
+    }
+
+    private void cancelScheduledFlush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.dispose();
+            scheduledFlush = null;
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+package com.example.agent.service;
+
+/**
+ * 流式响应解析器
+ * 按增量读取模型输出，增量式识别 思考/行动/FINAL_ANSWER 段落标记（标记可跨增量拆分），
+ * 只扫描新到达的文本；最终答案以{@link #FINAL_ANSWER_END}结束，出现结束标记即认为最终答案已完整，可提前结束生成，
+ * 最终答案中出现的思考/行动字样按正文处理，不截断答案；结束标记同时作为请求的停止序列，模型在服务端直接停止生成
+ * 非线程安全，仅在单个模型流的回调中按顺序使用
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+public class StreamingResponseParser {
+
+    /**
+     * 最终答案结束标记，提示词要求模型在最终答案之后输出，并作为请求的停止序列
+     */
+    public static final String FINAL_ANSWER_END = "END_FINAL_ANSWER";
+
+    private static final String THINKING_MARKER = "思考:";
+    private static final String ACTION_MARKER = "行动:";
+    private static final String FINAL_ANSWER_MARKER = "FINAL_ANSWER:";
+    private static final String COMPLETED_MARKER = "任务完成";
+
+    /**
+     * 段落标记，顺序与Section对应
+     */
+    private static final String[] SECTION_MARKERS = {THINKING_MARKER, ACTION_MARKER, FINAL_ANSWER_MARKER};
+
+    /**
+     * 最长标记长度，用于计算跨增量的回看范围
+     */
+    private static final int MAX_MARKER_LENGTH = Math.max(FINAL_ANSWER_MARKER.length(), FINAL_ANSWER_END.length());
+
+    /**
+     * 段落
+     */
+    private enum Section {
+        THINKING, ACTION, FINAL_ANSWER
+    }
+
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * 各段落内容起止位置，-1表示未出现
+     */
+    private final int[] sectionStart = {-1, -1, -1};
+    private final int[] sectionEnd = {-1, -1, -1};
+
+    /**
+     * 当前所在段落
+     */
+    private Section current;
+
+    /**
+     * 下一次扫描起点
+     */
+    private int scanFrom;
+
+    private boolean completedMarkerSeen;
+
+    private boolean stopped;
+
+    /**
+     * 追加增量并识别段落
+     *
+     * @param delta 增量文本
+     * @return 最终答案已完整、可以结束生成时返回true
+     */
+    public boolean append(String delta) {
+        if (stopped) {
+            return true;
+        }
+        text.append(delta);
+
+        while (current != Section.FINAL_ANSWER) {
+            int markerIndex = -1;
+            int markerSection = -1;
+            for (int i = 0; i < SECTION_MARKERS.length; i++) {
+                int index = text.indexOf(SECTION_MARKERS[i], scanFrom);
+                if (index >= 0 && (markerIndex < 0 || index < markerIndex)) {
+                    markerIndex = index;
+                    markerSection = i;
+                }
+            }
+            if (markerIndex < 0) {
+                break;
+            }
+
+            enterSection(Section.values()[markerSection], markerIndex);
+            scanFrom = markerIndex + SECTION_MARKERS[markerSection].length();
+        }
+
+        if (current == Section.FINAL_ANSWER) {
+            // 最终答案内只识别结束标记，出现即答案已完整
+            int endIndex = text.indexOf(FINAL_ANSWER_END, scanFrom);
+            if (endIndex >= 0) {
+                sectionEnd[Section.FINAL_ANSWER.ordinal()] = endIndex;
+                text.setLength(endIndex);
+                stopped = true;
+                return true;
+            }
+        }
+
+        if (!completedMarkerSeen) {
+            completedMarkerSeen = text.indexOf(COMPLETED_MARKER,
+                    Math.max(0, text.length() - delta.length() - COMPLETED_MARKER.length() + 1)) >= 0;
+        }
+
+        // 未匹配的尾部可能是被拆分的标记前缀，下次从这里重新扫描
+        scanFrom = Math.max(scanFrom, text.length() - MAX_MARKER_LENGTH + 1);
+        return false;
+    }
+
+    /**
+     * 是否在最终答案完整后提前结束
+     *
+     * @return 是否提前结束
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * 是否已完成任务
+     *
+     * @return 出现FINAL_ANSWER或任务完成标记时返回true
+     */
+    public boolean isCompleted() {
+        return sectionStart[Section.FINAL_ANSWER.ordinal()] >= 0 || completedMarkerSeen;
+    }
+
+    /**
+     * 获取完整响应文本（提前结束时不含最终答案之后的内容）
+     *
+     * @return 响应文本
+     */
+    public String getText() {
+        return text.toString();
+    }
+
+    /**
+     * 获取思考内容
+     *
+     * @return 思考内容，未出现返回null
+     */
+    public String getThinking() {
+        return section(Section.THINKING);
+    }
+
+    /**
+     * 获取行动内容
+     *
+     * @return 行动内容，未出现返回null
+     */
+    public String getAction() {
+        return section(Section.ACTION);
+    }
+
+    /**
+     * 获取最终答案
+     *
+     * @return 最终答案，未出现FINAL_ANSWER时返回完整响应
+     */
+    public String getFinalAnswer() {
+        String answer = section(Section.FINAL_ANSWER);
+        return answer != null ? answer : getText();
+    }
+
+    /**
+     * 进入新段落，同时结束当前段落；同一段落只记录首次出现
+     */
+    private void enterSection(Section section, int markerIndex) {
+        if (current != null && sectionEnd[current.ordinal()] < 0) {
+            sectionEnd[current.ordinal()] = markerIndex;
+        }
+        if (sectionStart[section.ordinal()] < 0) {
+            sectionStart[section.ordinal()] = markerIndex + SECTION_MARKERS[section.ordinal()].length();
+            current = section;
+        } else {
+            current = null;
+        }
+    }
+
+    private String section(Section section) {
+        int start = sectionStart[section.ordinal()];
+        if (start < 0) {
+            return null;
+        }
+        int end = sectionEnd[section.ordinal()];
+        return text.substring(start, end >= 0 ? end : text.length()).trim();
+    }
+
+}
@@ -0,0 +1,183 @@
+package com.example.agent.service;
+
+import com.azure.ai.openai.models.ChatChoice;
+import com.azure.ai.openai.models.ChatCompletions;
+import com.azure.ai.openai.models.ChatCompletionsFunctionToolCall;
+import com.azure.ai.openai.models.ChatCompletionsToolCall;
+import com.azure.ai.openai.models.ChatResponseMessage;
+import com.azure.ai.openai.models.FunctionCall;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 流式工具调用组装器
+ * 从带工具的流式响应中拆出文本增量，并把分片下发的工具调用（id、函数名、参数JSON片段）重新拼装为完整调用；
+ * 带id的分片开启新调用，不带id的分片追加到当前调用；
+ * 参数JSON按分片增量扫描括号深度，对象闭合时立即通知监听器，无需等待流结束
+ * 非线程安全，仅在单个模型流的回调中按顺序使用
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+public class StreamingToolCallAssembler {
+
+    private final List<PendingCall> calls = new ArrayList<>(2);
+
+    /**
+     * 参数JSON闭合时的监听器
+     */
+    private final Consumer<AssembledToolCall> argumentsListener;
+
+    public StreamingToolCallAssembler() {
+        this(null);
+    }
+
+    /**
+     * @param argumentsListener 单个调用的参数JSON闭合时的监听器，可为空
+     */
+    public StreamingToolCallAssembler(Consumer<AssembledToolCall> argumentsListener) {
+        this.argumentsListener = argumentsListener;
+    }
+
+    /**
+     * 处理一个流式分片
+     *
+     * @param chunk 流式分片
+     * @return 分片中的文本增量，没有返回null
+     */
+    public String accept(ChatCompletions chunk) {
+        List<ChatChoice> choices = chunk.getChoices();
+        if (choices == null) {
+            return null;
+        }
+
+        String content = null;
+        for (ChatChoice choice : choices) {
+            ChatResponseMessage delta = choice.getDelta();
+            if (delta == null) {
+                continue;
+            }
+            if (delta.getContent() != null) {
+                content = content == null ? delta.getContent() : content + delta.getContent();
+            }
+            if (delta.getToolCalls() != null) {
+                for (ChatCompletionsToolCall toolCall : delta.getToolCalls()) {
+                    appendFragment(toolCall);
+                }
+            }
+        }
+        return content;
+    }
+
+    /**
+     * 是否包含工具调用
+     *
+     * @return 是否包含
+     */
+    public boolean hasToolCalls() {
+        return !calls.isEmpty();
+    }
+
+    /**
+     * 获取拼装完成的工具调用，按模型给出的顺序排列
+     *
+     * @return 工具调用列表
+     */
+    public List<AssembledToolCall> getToolCalls() {
+        List<AssembledToolCall> result = new ArrayList<>(calls.size());
+        for (PendingCall call : calls) {
+            result.add(new AssembledToolCall(call.id, call.name, call.arguments.toString()));
+        }
+        return result;
+    }
+
+    private void appendFragment(ChatCompletionsToolCall toolCall) {
+        if (!(toolCall instanceof ChatCompletionsFunctionToolCall functionToolCall)) {
+            return;
+        }
+
+        String id = functionToolCall.getId();
+        PendingCall current = calls.isEmpty() ? null : calls.get(calls.size() - 1);
+        if (current == null || (id != null && !id.isEmpty() && !id.equals(current.id))) {
+            current = new PendingCall(id);
+            calls.add(current);
+        }
+
+        FunctionCall function = functionToolCall.getFunction();
+        if (function == null) {
+            return;
+        }
+        if (current.name == null && function.getName() != null && !function.getName().isEmpty()) {
+            current.name = function.getName();
+        }
+        if (function.getArguments() != null) {
+            current.append(function.getArguments());
+            if (current.completed && !current.notified && current.name != null && argumentsListener != null) {
+                current.notified = true;
+                argumentsListener.accept(new AssembledToolCall(current.id, current.name, current.arguments.toString()));
+            }
+        }
+    }
+
+    /**
+     * 拼装完成的工具调用
+     *
+     * @param id        调用ID
+     * @param name      函数名
+     * @param arguments 参数JSON
+     */
+    public record AssembledToolCall(String id, String name, String arguments) {
+    }
+
+    /**
+     * 拼装中的工具调用
+     */
+    private static class PendingCall {
+
+        private final String id;
+
+        private final StringBuilder arguments = new StringBuilder();
+
+        private String name;
+
+        private int depth;
+        private boolean inString;
+        private boolean escaped;
+        private boolean completed;
+        private boolean notified;
+
+        PendingCall(String id) {
+            this.id = id;
+        }
+
+        /**
+         * 追加参数片段并更新括号深度，字符串内的括号和转义字符不计入
+         */
+        void append(String fragment) {
+            arguments.append(fragment);
+            for (int i = 0; i < fragment.length() && !completed; i++) {
+                char c = fragment.charAt(i);
+                if (inString) {
+                    if (escaped) {
+                        escaped = false;
+                    } else if (c == '\\') {
+                        escaped = true;
+                    } else if (c == '"') {
+                        inString = false;
+                    }
+                } else if (c == '"') {
+                    inString = true;
+                } else if (c == '{') {
+                    depth++;
+                } else if (c == '}') {
+                    depth--;
+                    completed = depth == 0;
+                }
+            }
+        }
+
+    }
+
+}
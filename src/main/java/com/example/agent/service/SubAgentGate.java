@@ -0,0 +1,202 @@
+package com.example.agent.service;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * 子Agent并发闸门
+ * 限制同一任务同时运行的子Agent循环数：父任务持有的调度器槽位供一个子Agent使用，
+ * 其余子Agent从调度器借用空闲槽位（有排队任务时不借用），借不到时等待本任务的其他子Agent结束；
+ * 节点上运行中的Agent循环总数因此不超过agent.max-concurrent-agents，且父任务总能逐个推进子Agent，不会互相等待槽位
+ * 只约束已就绪的子Agent，等待依赖的子Agent不占用许可
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+public class SubAgentGate {
+
+    private final AgentTaskScheduler scheduler;
+
+    private final int maxParallel;
+
+    /**
+     * 等待许可的子Agent，受this保护
+     */
+    private final Deque<Waiter> waiters = new ArrayDeque<>();
+
+    /**
+     * 运行中的子Agent数，受this保护
+     */
+    private int running;
+
+    /**
+     * 父任务槽位是否空闲，受this保护
+     */
+    private boolean ownSlotFree = true;
+
+    /**
+     * @param scheduler   任务调度器，借用和归还槽位
+     * @param maxParallel 同一任务最多并行的子Agent数
+     */
+    public SubAgentGate(AgentTaskScheduler scheduler, int maxParallel) {
+        this.scheduler = scheduler;
+        this.maxParallel = Math.max(1, maxParallel);
+    }
+
+    /**
+     * 取得许可后执行子Agent，结束、出错或取消时归还许可
+     *
+     * @param body 子Agent步骤流
+     * @param <T>  元素类型
+     * @return 步骤流
+     */
+    public <T> Flux<T> run(Supplier<Flux<T>> body) {
+        return Flux.usingWhen(acquire(),
+                permit -> body.get(),
+                this::release,
+                (permit, error) -> release(permit),
+                this::release);
+    }
+
+    /**
+     * 运行中的子Agent数
+     *
+     * @return 子Agent数
+     */
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    private Mono<Permit> acquire() {
+        return Mono.create(sink -> {
+            Permit permit;
+            synchronized (this) {
+                permit = tryGrant();
+                if (permit == null) {
+                    Waiter waiter = new Waiter(sink);
+                    waiters.addLast(waiter);
+                    sink.onCancel(() -> cancel(waiter));
+                    return;
+                }
+            }
+            sink.success(permit);
+        });
+    }
+
+    /**
+     * 等待中的子Agent被取消：仍在等待时移出队列，已分配许可时归还
+     */
+    private void cancel(Waiter waiter) {
+        Permit granted;
+        synchronized (this) {
+            if (waiters.remove(waiter)) {
+                return;
+            }
+            granted = waiter.permit;
+        }
+        if (granted != null) {
+            doRelease(granted);
+        }
+    }
+
+    private Mono<Void> release(Permit permit) {
+        return Mono.fromRunnable(() -> doRelease(permit));
+    }
+
+    private void doRelease(Permit permit) {
+        List<Waiter> granted = new ArrayList<>();
+        synchronized (this) {
+            if (permit.released) {
+                return;
+            }
+            permit.released = true;
+            running--;
+            if (!permit.borrowed) {
+                ownSlotFree = true;
+            }
+        }
+        // 先归还借用的槽位，调度器可能在当前线程启动排队任务，不在闸门锁内执行
+        if (permit.borrowed) {
+            scheduler.releaseBorrowed();
+        }
+        synchronized (this) {
+            while (!waiters.isEmpty()) {
+                Permit next = tryGrant();
+                if (next == null) {
+                    break;
+                }
+                Waiter waiter = waiters.pollFirst();
+                waiter.permit = next;
+                granted.add(waiter);
+            }
+        }
+        // 在锁外唤醒，子Agent的订阅不在锁内执行
+        granted.forEach(waiter -> waiter.sink.success(waiter.permit));
+    }
+
+    /**
+     * 尝试取得许可：优先使用父任务槽位，其次借用调度器槽位，需持有this
+     */
+    private Permit tryGrant() {
+        if (running >= maxParallel) {
+            return null;
+        }
+        if (ownSlotFree) {
+            ownSlotFree = false;
+            running++;
+            return new Permit(false);
+        }
+        if (scheduler.tryBorrow()) {
+            running++;
+            return new Permit(true);
+        }
+        return null;
+    }
+
+    /**
+     * 等待许可的子Agent
+     */
+    private static final class Waiter {
+
+        private final MonoSink<Permit> sink;
+
+        /**
+         * 分配到的许可，受闸门锁保护
+         */
+        private Permit permit;
+
+        private Waiter(MonoSink<Permit> sink) {
+            this.sink = sink;
+        }
+
+    }
+
+    /**
+     * 子Agent许可
+     */
+    private static final class Permit {
+
+        /**
+         * 是否为借用的调度器槽位
+         */
+        private final boolean borrowed;
+
+        /**
+         * 是否已归还，受闸门锁保护
+         */
+        private boolean released;
+
+        private Permit(boolean borrowed) {
+            this.borrowed = borrowed;
+        }
+
+    }
+
+}
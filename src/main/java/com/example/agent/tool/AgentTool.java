@@ -59,4 +59,15 @@ public interface AgentTool {
         return true;
     }
 
+    /**
+     * 给定参数下是否为幂等只读调用，可在模型流式输出结束前推测执行
+     * 推测结果在最终参数不一致时被丢弃，因此有副作用的调用必须返回false
+     *
+     * @param parameters 参数
+     * @return 是否可推测执行
+     */
+    default boolean isSpeculativeSafe(Map<String, Object> parameters) {
+        return false;
+    }
+
 }
@@ -0,0 +1,149 @@
+package com.example.agent.tool;
+
+import com.example.agent.enums.ToolType;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * 工具注册表
+ * 启动时按名称和工具类型索引所有AgentTool，冻结参数schema并编译为参数校验器，运行期查找和校验均为O(1)
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+@Slf4j
+@Component
+public class ToolRegistry {
+
+    /**
+     * 按名称索引的工具
+     */
+    private final Map<String, RegisteredTool> toolsByName = new ConcurrentHashMap<>();
+
+    /**
+     * 按类型索引的工具，写时复制
+     */
+    private volatile Map<ToolType, List<AgentTool>> toolsByType = new EnumMap<>(ToolType.class);
+
+    /**
+     * 工具注册监听器
+     */
+    private final List<Consumer<RegisteredTool>> registrationListeners = new CopyOnWriteArrayList<>();
+
+    public ToolRegistry(List<AgentTool> agentTools) {
+        agentTools.forEach(this::register);
+        log.info("Tool registry initialized: {}", toolsByName.keySet());
+    }
+
+    /**
+     * 注册工具，同名工具会被替换
+     *
+     * @param tool 工具
+     */
+    public synchronized void register(AgentTool tool) {
+        Map<String, Object> schema = freeze(tool.getParametersSchema());
+        RegisteredTool registered = new RegisteredTool(tool, schema,
+                ToolSchemaValidator.compile(tool.getToolName(), schema));
+
+        RegisteredTool previous = toolsByName.put(tool.getToolName(), registered);
+
+        Map<ToolType, List<AgentTool>> byType = new EnumMap<>(ToolType.class);
+        toolsByName.values().forEach(t -> byType.computeIfAbsent(t.tool().getToolType(),
+                type -> new CopyOnWriteArrayList<>()).add(t.tool()));
+        toolsByType = byType;
+
+        if (previous != null) {
+            log.info("Tool replaced: {}", tool.getToolName());
+        }
+        registrationListeners.forEach(listener -> listener.accept(registered));
+    }
+
+    /**
+     * 添加工具注册监听器
+     *
+     * @param listener 监听器
+     */
+    public void addRegistrationListener(Consumer<RegisteredTool> listener) {
+        registrationListeners.add(listener);
+    }
+
+    /**
+     * 按名称获取工具
+     *
+     * @param toolName 工具名称
+     * @return 已注册工具，不存在返回null
+     */
+    public RegisteredTool get(String toolName) {
+        return toolName != null ? toolsByName.get(toolName) : null;
+    }
+
+    /**
+     * 按类型获取工具
+     *
+     * @param toolType 工具类型
+     * @return 工具列表
+     */
+    public List<AgentTool> getByType(ToolType toolType) {
+        return toolsByType.getOrDefault(toolType, Collections.emptyList());
+    }
+
+    /**
+     * 获取全部已注册工具
+     *
+     * @return 已注册工具
+     */
+    public Collection<RegisteredTool> getAll() {
+        return Collections.unmodifiableCollection(toolsByName.values());
+    }
+
+    /**
+     * 深度冻结schema，嵌套Map和List均转为不可变副本
+     */
+    private static Map<String, Object> freeze(Map<String, Object> schema) {
+        Map<String, Object> frozen = new LinkedHashMap<>();
+        schema.forEach((key, value) -> frozen.put(key, freezeValue(value)));
+        return Collections.unmodifiableMap(frozen);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object freezeValue(Object value) {
+        if (value instanceof Map<?, ?> map) {
+            return freeze((Map<String, Object>) map);
+        }
+        if (value instanceof List<?> list) {
+            return list.stream().map(ToolRegistry::freezeValue).toList();
+        }
+        return value;
+    }
+
+    /**
+     * 已注册工具
+     *
+     * @param tool      工具
+     * @param schema    冻结的参数schema
+     * @param validator 参数校验器
+     */
+    public record RegisteredTool(AgentTool tool, Map<String, Object> schema, ToolSchemaValidator validator) {
+
+        /**
+         * 获取工具名称
+         *
+         * @return 工具名称
+         */
+        public String name() {
+            return tool.getToolName();
+        }
+
+    }
+
+}
@@ -0,0 +1,192 @@
+package com.example.agent.tool;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 工具参数校验器
+ * 启动时由工具参数schema编译得到，校验必填项、类型和枚举值，并把JSON解析出的数值、字符串
+ * 转换为schema声明的类型（如integer统一为Integer）；参数无需转换时直接返回原对象，不产生额外分配
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+public class ToolSchemaValidator {
+
+    /**
+     * 参数类型
+     */
+    private enum ParamType {
+        STRING, INTEGER, NUMBER, BOOLEAN, OBJECT, ARRAY, ANY;
+
+        static ParamType of(Object type) {
+            if (!(type instanceof String name)) {
+                return ANY;
+            }
+            return switch (name) {
+                case "string" -> STRING;
+                case "integer" -> INTEGER;
+                case "number" -> NUMBER;
+                case "boolean" -> BOOLEAN;
+                case "object" -> OBJECT;
+                case "array" -> ARRAY;
+                default -> ANY;
+            };
+        }
+    }
+
+    /**
+     * 参数定义
+     */
+    private record ParamSpec(String name, ParamType type, Set<String> enumValues, Object defaultValue) {
+    }
+
+    private final String toolName;
+
+    private final String[] required;
+
+    private final ParamSpec[] params;
+
+    private ToolSchemaValidator(String toolName, String[] required, ParamSpec[] params) {
+        this.toolName = toolName;
+        this.required = required;
+        this.params = params;
+    }
+
+    /**
+     * 编译参数schema
+     *
+     * @param toolName 工具名称
+     * @param schema   参数schema
+     * @return 校验器
+     */
+    @SuppressWarnings("unchecked")
+    public static ToolSchemaValidator compile(String toolName, Map<String, Object> schema) {
+        Object requiredValue = schema.get("required");
+        String[] required = requiredValue instanceof Collection<?> collection
+                ? collection.stream().map(String::valueOf).toArray(String[]::new)
+                : new String[0];
+
+        Map<String, Object> properties = schema.get("properties") instanceof Map<?, ?> map
+                ? (Map<String, Object>) map : Collections.emptyMap();
+        ParamSpec[] params = properties.entrySet().stream()
+                .map(entry -> {
+                    Map<String, Object> property = entry.getValue() instanceof Map<?, ?> map
+                            ? (Map<String, Object>) map : Collections.emptyMap();
+                    Set<String> enumValues = property.get("enum") instanceof Collection<?> values
+                            ? new HashSet<>(values.stream().map(String::valueOf).toList()) : null;
+                    return new ParamSpec(entry.getKey(), ParamType.of(property.get("type")), enumValues,
+                            property.get("default"));
+                })
+                .toArray(ParamSpec[]::new);
+
+        return new ToolSchemaValidator(toolName, required, params);
+    }
+
+    /**
+     * 校验参数并转换类型，缺省参数使用schema默认值
+     *
+     * @param parameters 参数
+     * @return 转换后的参数，无需转换时返回原对象
+     * @throws IllegalArgumentException 参数不合法
+     */
+    public Map<String, Object> validate(Map<String, Object> parameters) {
+        if (parameters == null) {
+            parameters = Collections.emptyMap();
+        }
+
+        for (String name : required) {
+            if (parameters.get(name) == null) {
+                throw new IllegalArgumentException("Missing required parameter for " + toolName + ": " + name);
+            }
+        }
+
+        Map<String, Object> coerced = null;
+        for (ParamSpec spec : params) {
+            Object value = parameters.get(spec.name());
+            Object converted;
+            if (value == null) {
+                converted = spec.defaultValue();
+            } else {
+                converted = convert(spec, value);
+                if (spec.enumValues() != null && !spec.enumValues().contains(String.valueOf(converted))) {
+                    throw new IllegalArgumentException("Invalid value for " + toolName + "." + spec.name()
+                            + ": " + value + ", expected one of " + spec.enumValues());
+                }
+            }
+
+            if (converted != value) {
+                if (coerced == null) {
+                    coerced = new HashMap<>(parameters);
+                }
+                coerced.put(spec.name(), converted);
+            }
+        }
+
+        return coerced != null ? coerced : parameters;
+    }
+
+    /**
+     * 按参数类型转换，类型已匹配时返回原对象
+     */
+    private Object convert(ParamSpec spec, Object value) {
+        try {
+            return switch (spec.type()) {
+                case STRING -> value instanceof String ? value
+                        : value instanceof Map || value instanceof List ? fail(spec, value) : String.valueOf(value);
+                case INTEGER -> toInteger(value);
+                case NUMBER -> toNumber(value);
+                case BOOLEAN -> toBoolean(value);
+                case OBJECT -> value instanceof Map ? value : fail(spec, value);
+                case ARRAY -> value instanceof List ? value : fail(spec, value);
+                case ANY -> value;
+            };
+        } catch (NumberFormatException e) {
+            return fail(spec, value);
+        }
+    }
+
+    private Object toInteger(Object value) {
+        if (value instanceof Integer) {
+            return value;
+        }
+        double number = value instanceof Number n ? n.doubleValue() : Double.parseDouble(value.toString().trim());
+        if (number != Math.rint(number) || number > Integer.MAX_VALUE || number < Integer.MIN_VALUE) {
+            throw new NumberFormatException("Not an integer: " + value);
+        }
+        return (int) number;
+    }
+
+    private Object toNumber(Object value) {
+        if (value instanceof Number) {
+            return value;
+        }
+        double number = Double.parseDouble(value.toString().trim());
+        if (!Double.isFinite(number)) {
+            throw new NumberFormatException("Not a finite number: " + value);
+        }
+        return number;
+    }
+
+    private Object toBoolean(Object value) {
+        if (value instanceof Boolean) {
+            return value;
+        }
+        String text = value.toString().trim();
+        if ("true".equalsIgnoreCase(text) || "false".equalsIgnoreCase(text)) {
+            return Boolean.valueOf(text);
+        }
+        throw new NumberFormatException("Not a boolean: " + value);
+    }
+
+    private Object fail(ParamSpec spec, Object value) {
+        throw new IllegalArgumentException("Invalid type for " + toolName + "." + spec.name()
+                + ": expected " + spec.type().name().toLowerCase() + ", got " + value.getClass().getSimpleName());
+    }
+
+}
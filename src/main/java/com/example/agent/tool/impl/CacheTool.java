@@ -95,7 +95,8 @@ public class CacheTool implements AgentTool {
 
                 case "set":
                     Object cacheValue = parameters.get("value");
-                    Integer ttl = parameters.containsKey("ttl") ? (Integer) parameters.get("ttl") : 3600;
+                    Object ttlValue = parameters.get("ttl");
+                    long ttl = ttlValue instanceof Number number ? number.longValue() : 3600;
 
                     if (ttl > 0) {
                         redisTemplate.opsForValue().set(key, cacheValue, ttl, TimeUnit.SECONDS);
@@ -129,6 +130,11 @@ public class CacheTool implements AgentTool {
         }
     }
 
+    @Override
+    public boolean isSpeculativeSafe(Map<String, Object> parameters) {
+        return parameters.get("operation") instanceof String operation && "get".equalsIgnoreCase(operation);
+    }
+
     @Override
     public boolean validateParameters(Map<String, Object> parameters) {
         if (!parameters.containsKey("operation") || !parameters.containsKey("key")) {
@@ -78,7 +78,8 @@ public class SearchTool implements AgentTool {
         try {
             String query = (String) parameters.get("query");
             String index = (String) parameters.get("index");
-            Integer size = parameters.containsKey("size") ? (Integer) parameters.get("size") : 10;
+            Object sizeValue = parameters.get("size");
+            int size = sizeValue instanceof Number number ? number.intValue() : 10;
 
             log.info("Executing search: query={}, index={}, size={}", query, index, size);
 
@@ -116,6 +117,11 @@ public class SearchTool implements AgentTool {
         }
     }
 
+    @Override
+    public boolean isSpeculativeSafe(Map<String, Object> parameters) {
+        return true;
+    }
+
     @Override
     public boolean validateParameters(Map<String, Object> parameters) {
         return parameters.containsKey("query") && parameters.containsKey("index");
@@ -0,0 +1,16 @@
+-- 存量库升级：agent_task_record.task_id 普通索引改为唯一索引
+-- 归档按 task_id 幂等写入（INSERT ... ON DUPLICATE KEY UPDATE），依赖 uk_task_id；
+-- 新建库直接执行 schema.sql 即可，已有数据的库执行本脚本，不会删除表
+
+USE `multi_agent`;
+
+-- 清理重复记录：同一 task_id 只保留 id 最大（最后归档）的一条
+DELETE r1 FROM `agent_task_record` r1
+JOIN `agent_task_record` r2
+  ON r1.`task_id` = r2.`task_id`
+ AND r1.`id` < r2.`id`;
+
+-- 普通索引 idx_task_id 替换为唯一索引 uk_task_id
+ALTER TABLE `agent_task_record`
+  DROP INDEX `idx_task_id`,
+  ADD UNIQUE KEY `uk_task_id` (`task_id`);
@@ -21,7 +21,7 @@ CREATE TABLE `agent_task_record` (
   `update_time` datetime DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
   `deleted` tinyint DEFAULT 0 COMMENT '逻辑删除标志',
   PRIMARY KEY (`id`),
-  KEY `idx_task_id` (`task_id`),
+  UNIQUE KEY `uk_task_id` (`task_id`),
   KEY `idx_status` (`status`),
   KEY `idx_create_time` (`create_time`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='Agent任务执行记录表';
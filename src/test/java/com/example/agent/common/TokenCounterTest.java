@@ -0,0 +1,42 @@
+package com.example.agent.common;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * TokenCounter 估算测试
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class TokenCounterTest {
+
+    @Test
+    void emptyTextHasNoTokens() {
+        assertThat(TokenCounter.count(null)).isZero();
+        assertThat(TokenCounter.count("")).isZero();
+        assertThat(TokenCounter.countMessage(null)).isEqualTo(TokenCounter.MESSAGE_OVERHEAD_TOKENS);
+    }
+
+    @Test
+    void latinTextIsCountedPerFourCharsRoundedUp() {
+        assertThat(TokenCounter.count("abcd")).isEqualTo(1);
+        assertThat(TokenCounter.count("abcde")).isEqualTo(2);
+        assertThat(TokenCounter.count("a b c d e f g h")).isEqualTo(4);
+    }
+
+    @Test
+    void cjkAndFullWidthCharsAreOneTokenEach() {
+        assertThat(TokenCounter.count("中文分词")).isEqualTo(4);
+        assertThat(TokenCounter.count("한국어")).isEqualTo(3);
+        assertThat(TokenCounter.count("，：")).isEqualTo(2);
+        assertThat(TokenCounter.count("中a文bc")).isEqualTo(3);
+    }
+
+    @Test
+    void messageAddsFixedOverhead() {
+        assertThat(TokenCounter.countMessage("中文")).isEqualTo(2 + TokenCounter.MESSAGE_OVERHEAD_TOKENS);
+    }
+
+}
@@ -0,0 +1,132 @@
+package com.example.agent.service;
+
+import com.azure.ai.openai.models.ChatRequestAssistantMessage;
+import com.azure.ai.openai.models.ChatRequestMessage;
+import com.azure.ai.openai.models.ChatRequestSystemMessage;
+import com.azure.ai.openai.models.ChatRequestToolMessage;
+import com.azure.ai.openai.models.ChatRequestUserMessage;
+import com.example.agent.common.TokenCounter;
+import com.example.agent.model.dto.ToolCallDto;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.mock;
+
+/**
+ * AgentContextWindow 预算压缩测试
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class AgentContextWindowTest {
+
+    private static final int PROMPT_TOKENS = 10;
+
+    private static final String OBSERVATION = "x".repeat(400);
+
+    private final AzureOpenAIService azureOpenAIService = mock(AzureOpenAIService.class, CALLS_REAL_METHODS);
+
+    private final AgentPromptCache.CachedPrompt prompt = new AgentPromptCache.CachedPrompt("system",
+            new ChatRequestSystemMessage("system"), PROMPT_TOKENS, List.of(), 0);
+
+    /**
+     * 固定部分：系统提示词 + 任务消息
+     */
+    private final int fixedTokens = PROMPT_TOKENS + TokenCounter.countMessage("task");
+
+    /**
+     * 一个未截断的文本轮次
+     */
+    private final int turnTokens = TokenCounter.countMessage("a") + TokenCounter.countMessage(OBSERVATION);
+
+    @Test
+    void unlimitedWindowKeepsEveryTurnVerbatim() {
+        AgentContextWindow window = window(0);
+
+        window.addTextTurn("a", OBSERVATION);
+        window.addTextTurn("a", OBSERVATION);
+
+        assertThat(window.getTokens()).isEqualTo(fixedTokens + 2 * turnTokens);
+        assertThat(window.messages()).hasSize(6);
+        assertThat(window.messages().get(0)).isInstanceOf(ChatRequestSystemMessage.class);
+        assertThat(window.messages().get(2)).isInstanceOf(ChatRequestAssistantMessage.class);
+        assertThat(window.messages().get(3)).isInstanceOf(ChatRequestUserMessage.class);
+        assertThat(window.getDigestedTurns()).isZero();
+    }
+
+    @Test
+    void messagesAreReusedUntilHistoryChanges() {
+        AgentContextWindow window = window(0);
+        window.addTextTurn("a", OBSERVATION);
+
+        List<ChatRequestMessage> first = window.messages();
+        assertThat(window.messages()).isSameAs(first);
+
+        window.addTextTurn("b", "ok");
+        assertThat(window.messages()).isNotSameAs(first).hasSize(6);
+    }
+
+    @Test
+    void olderObservationsAreElidedBeforeAnythingIsDigested() {
+        AgentContextWindow window = window(fixedTokens + turnTokens + 50);
+
+        window.addTextTurn("a", OBSERVATION);
+        window.addTextTurn("a", OBSERVATION);
+
+        assertThat(window.getTokens()).isLessThanOrEqualTo(fixedTokens + turnTokens + 50);
+        assertThat(window.getDigestedTurns()).isZero();
+        assertThat(window.messages()).hasSize(6);
+        assertThat(window.getTokens()).isEqualTo(fixedTokens + turnTokens
+                + TokenCounter.countMessage("a") + TokenCounter.countMessage("x".repeat(20) + "...[已省略380字符]"));
+    }
+
+    @Test
+    void oldestTurnsMoveIntoDigestWhenElisionIsNotEnough() {
+        AgentContextWindow window = window(fixedTokens + turnTokens + 10);
+
+        window.addTextTurn("a", OBSERVATION);
+        window.addTextTurn("a", OBSERVATION);
+        window.addTextTurn("a", OBSERVATION);
+
+        assertThat(window.getDigestedTurns()).isEqualTo(2);
+        // 系统提示词、任务、摘要，以及原样保留的最近一轮
+        assertThat(window.messages()).hasSize(5);
+        assertThat(window.messages().get(2)).isInstanceOf(ChatRequestUserMessage.class);
+    }
+
+    @Test
+    void recentTurnsAreKeptEvenWhenOverBudget() {
+        AgentContextWindow window = window(1);
+
+        window.addTextTurn("a", OBSERVATION);
+
+        assertThat(window.getTokens()).isEqualTo(fixedTokens + turnTokens);
+        assertThat(window.getDigestedTurns()).isZero();
+    }
+
+    @Test
+    void toolTurnPairsEveryCallWithItsResult() {
+        AgentContextWindow window = window(0);
+        List<StreamingToolCallAssembler.AssembledToolCall> calls = List.of(
+                new StreamingToolCallAssembler.AssembledToolCall("call_1", "search", "{}"),
+                new StreamingToolCallAssembler.AssembledToolCall("call_2", "fetch", "{}"));
+        List<ToolCallDto> results = List.of(ToolCallDto.builder().result("r1").build(),
+                ToolCallDto.builder().result("r2").build());
+
+        window.addToolTurn("", calls, results);
+
+        List<ChatRequestMessage> messages = window.messages();
+        assertThat(messages).hasSize(5);
+        assertThat(((ChatRequestAssistantMessage) messages.get(2)).getToolCalls()).hasSize(2);
+        assertThat(((ChatRequestToolMessage) messages.get(3)).getToolCallId()).isEqualTo("call_1");
+        assertThat(((ChatRequestToolMessage) messages.get(4)).getToolCallId()).isEqualTo("call_2");
+    }
+
+    private AgentContextWindow window(int maxTokens) {
+        return new AgentContextWindow(azureOpenAIService, prompt, "task", maxTokens, 1, 20);
+    }
+
+}
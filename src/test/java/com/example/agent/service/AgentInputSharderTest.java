@@ -0,0 +1,105 @@
+package com.example.agent.service;
+
+import com.example.agent.common.TokenCounter;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * AgentInputSharder 与 TokenCounter.split 分片边界测试
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class AgentInputSharderTest {
+
+    @Test
+    void splitKeepsEveryChunkWithinBudgetAndLosesNothing() {
+        String text = "alpha beta gamma delta epsilon zeta eta theta iota kappa lambda mu ".repeat(20);
+
+        List<String> chunks = TokenCounter.split(text, 10);
+
+        assertThat(chunks).hasSizeGreaterThan(1);
+        assertThat(chunks).allSatisfy(chunk -> assertThat(TokenCounter.count(chunk)).isLessThanOrEqualTo(10));
+        assertThat(String.join("", chunks)).isEqualTo(text);
+    }
+
+    @Test
+    void splitPrefersWhitespaceInSecondHalf() {
+        List<String> chunks = TokenCounter.split("aaaa bbbb cccc", 3);
+
+        assertThat(chunks).containsExactly("aaaa bbbb ", "cccc");
+    }
+
+    @Test
+    void splitCountsCjkCharsAsWholeTokens() {
+        List<String> chunks = TokenCounter.split("一二三四五六七", 3);
+
+        assertThat(chunks).containsExactly("一二三", "四五六", "七");
+    }
+
+    @Test
+    void splitNeverCutsSurrogatePairs() {
+        String text = "a😀".repeat(30);
+
+        List<String> chunks = TokenCounter.split(text, 1);
+
+        assertThat(String.join("", chunks)).isEqualTo(text);
+        assertThat(chunks).allSatisfy(chunk -> {
+            assertThat(Character.isLowSurrogate(chunk.charAt(0))).isFalse();
+            assertThat(Character.isHighSurrogate(chunk.charAt(chunk.length() - 1))).isFalse();
+        });
+    }
+
+    @Test
+    void splitOfEmptyTextIsEmpty() {
+        assertThat(TokenCounter.split(null, 10)).isEmpty();
+        assertThat(TokenCounter.split("", 10)).isEmpty();
+    }
+
+    @Test
+    void collectionElementsBecomeSeparateItemsPackedInOrder() {
+        Map<String, Object> context = new LinkedHashMap<>();
+        context.put("docs", List.of("a".repeat(40), "b".repeat(40), "c".repeat(40)));
+
+        List<String> shards = AgentInputSharder.shard(context, 25);
+
+        assertThat(shards).hasSize(3);
+        assertThat(shards.get(0)).startsWith("docs[0]: a");
+        assertThat(shards.get(2)).startsWith("docs[2]: c");
+    }
+
+    @Test
+    void smallItemsShareAShard() {
+        Map<String, Object> context = new LinkedHashMap<>();
+        context.put("title", "report");
+        context.put("docs", List.of("one", "two"));
+
+        List<String> shards = AgentInputSharder.shard(context, 100);
+
+        assertThat(shards).containsExactly("title: report\n\ndocs[0]: one\n\ndocs[1]: two");
+    }
+
+    @Test
+    void oversizedValueIsSplitIntoLabelledParts() {
+        Map<String, Object> context = Map.of("body", "word ".repeat(200));
+
+        List<String> shards = AgentInputSharder.shard(context, 50);
+
+        assertThat(shards).hasSizeGreaterThan(1);
+        assertThat(shards.get(0)).startsWith("body (第1/");
+        assertThat(shards).allSatisfy(shard -> assertThat(TokenCounter.count(shard)).isLessThanOrEqualTo(50));
+    }
+
+    @Test
+    void countTokensOfMissingContextIsZero() {
+        assertThat(AgentInputSharder.countTokens(null)).isZero();
+        assertThat(AgentInputSharder.countTokens(Map.of())).isZero();
+        assertThat(AgentInputSharder.countTokens(Map.of("k", "中文"))).isPositive();
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.example.agent.service;
+
+import com.example.agent.config.AgentConfig;
+import com.example.agent.entity.AgentTaskRecord;
+import com.example.agent.enums.AgentRole;
+import com.example.agent.enums.AgentStatus;
+import com.example.agent.model.dto.AgentTaskResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * AgentTaskArchiver 停机归档与兜底过期时间测试
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class AgentTaskArchiverTest {
+
+    private AgentTaskRecordService recordService;
+    private AgentTaskStore taskStore;
+    private AgentConfig agentConfig;
+    private AgentTaskArchiver archiver;
+
+    @BeforeEach
+    void setUp() {
+        recordService = mock(AgentTaskRecordService.class);
+        when(recordService.toRecord(any())).thenAnswer(invocation -> AgentTaskRecord.builder()
+                .taskId(invocation.<AgentTaskResponse>getArgument(0).getTaskId())
+                .build());
+        taskStore = mock(AgentTaskStore.class);
+        agentConfig = new AgentConfig();
+        // 定时归档间隔足够长，只在停机时归档
+        agentConfig.setArchiveFlushInterval(60_000);
+        archiver = new AgentTaskArchiver(recordService, taskStore, agentConfig);
+    }
+
+    @Test
+    void stopArchivesQueuedTasks() {
+        archiver.start();
+        archiver.submit(response("t1"), "task", AgentRole.EXECUTOR);
+        archiver.submit(response("t2"), "task", AgentRole.EXECUTOR);
+
+        archiver.stop();
+
+        verify(recordService).saveTaskRecordBatch(List.of(record("t1"), record("t2")));
+        verify(taskStore).expire(List.of("t1", "t2"), Duration.ofSeconds(agentConfig.getArchivedTaskTtl()));
+        assertThat(archiver.getStats()).containsEntry("queued", 0).containsEntry("archived", 2L);
+    }
+
+    @Test
+    void taskRejectedByFullQueueGetsFallbackTtl() {
+        agentConfig.setArchiveQueueCapacity(1);
+        archiver.start();
+        archiver.submit(response("t1"), "task", AgentRole.EXECUTOR);
+
+        archiver.submit(response("t2"), "task", AgentRole.EXECUTOR);
+
+        verify(taskStore).expire(List.of("t2"), Duration.ofSeconds(agentConfig.getUnarchivedTaskTtl()));
+        assertThat(archiver.getStats()).containsEntry("rejected", 1L);
+        archiver.stop();
+    }
+
+    @Test
+    void failedArchiveOnShutdownGetsFallbackTtl() {
+        when(recordService.saveTaskRecordBatch(anyList())).thenThrow(new IllegalStateException("db down"));
+        archiver.start();
+        archiver.submit(response("t1"), "task", AgentRole.EXECUTOR);
+
+        archiver.stop();
+
+        verify(taskStore).expire(List.of("t1"), Duration.ofSeconds(agentConfig.getUnarchivedTaskTtl()));
+        verify(taskStore, never()).expire(anyList(), eq(Duration.ofSeconds(agentConfig.getArchivedTaskTtl())));
+        assertThat(archiver.getStats()).containsEntry("dropped", 1L);
+    }
+
+    @Test
+    void batchDroppedAfterRetriesGetsFallbackTtl() {
+        when(recordService.saveTaskRecordBatch(anyList())).thenThrow(new IllegalStateException("db down"));
+        agentConfig.setArchiveFlushInterval(20);
+        agentConfig.setArchiveMaxRetries(0);
+        archiver.start();
+
+        archiver.submit(response("t1"), "task", AgentRole.EXECUTOR);
+
+        verify(taskStore, timeout(5000)).expire(List.of("t1"),
+                Duration.ofSeconds(agentConfig.getUnarchivedTaskTtl()));
+        archiver.stop();
+    }
+
+    private static AgentTaskResponse response(String taskId) {
+        return AgentTaskResponse.builder().taskId(taskId).status(AgentStatus.COMPLETED).build();
+    }
+
+    private static AgentTaskRecord record(String taskId) {
+        AgentTaskRecord record = AgentTaskRecord.builder().taskId(taskId).build();
+        record.setTaskDescription("task");
+        record.setAgentRole(AgentRole.EXECUTOR);
+        return record;
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.example.agent.service;
+
+import com.example.agent.config.AgentConfig;
+import com.example.agent.enums.AgentStatus;
+import com.example.agent.model.dto.AgentEventDto;
+import com.example.agent.model.dto.AgentStepDto;
+import com.example.agent.model.dto.AgentTaskResponse;
+import com.example.agent.support.RedisTestSupport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ReactiveRedisMessageListenerContainer;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * AgentTaskEventBus 本地Redis集成测试：补发与实时事件去重，Redis不可达时跳过
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class AgentTaskEventBusRedisTest {
+
+    private LettuceConnectionFactory factory;
+    private StringRedisTemplate redis;
+    private ReactiveRedisMessageListenerContainer listenerContainer;
+    private AgentTaskStore taskStore;
+    private AgentTaskEventBus eventBus;
+    private String taskId;
+
+    @BeforeEach
+    void setUp() {
+        factory = RedisTestSupport.connectionFactory();
+        redis = RedisTestSupport.template(factory);
+        listenerContainer = new ReactiveRedisMessageListenerContainer(factory);
+        taskStore = new AgentTaskStore(redis);
+        AgentConfig config = new AgentConfig();
+        config.setTaskEventFanoutEnabled(true);
+        eventBus = new AgentTaskEventBus(listenerContainer, config);
+        taskId = "test-" + UUID.randomUUID();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (factory != null) {
+            listenerContainer.destroy();
+            redis.delete(List.of(AgentTaskStore.taskKey(taskId), AgentTaskStore.stepsKey(taskId)));
+            factory.destroy();
+        }
+    }
+
+    @Test
+    void rerunStepsWithSameNumberAreNotTakenForDuplicates() throws Exception {
+        AgentStepDto firstRun = step(1, 1);
+        AgentStepDto rerun = step(2, 1);
+        CountDownLatch subscribed = new CountDownLatch(1);
+        AgentTaskResponse snapshot = AgentTaskResponse.builder()
+                .taskId(taskId)
+                .status(AgentStatus.EXECUTING)
+                .steps(List.of(firstRun))
+                .build();
+
+        CompletableFuture<List<AgentEventDto>> received = eventBus.subscribe(taskId, () -> {
+                    subscribed.countDown();
+                    return snapshot;
+                })
+                .collectList()
+                .toFuture();
+        awaitQuietly(subscribed);
+
+        // 第一轮的步骤在补发后又实时到达，接管重新执行的同序号步骤随后到达
+        taskStore.writeBatch(Map.of(taskId, List.of(rerun)), List.of(), Map.of(taskId,
+                List.of(eventBus.stepMessage(taskId, firstRun), eventBus.stepMessage(taskId, rerun),
+                        eventBus.completionMessage(null))));
+
+        List<AgentEventDto> events = received.get(5, TimeUnit.SECONDS);
+        assertThat(events).extracting(event -> event.getStep().getAttempt()).containsExactly(1, 2);
+        assertThat(eventBus.getStats()).containsEntry("duplicateSteps", 1L);
+    }
+
+    @Test
+    void completionEndsStreamWithError() {
+        CountDownLatch subscribed = new CountDownLatch(1);
+        AgentTaskResponse snapshot = AgentTaskResponse.builder()
+                .taskId(taskId)
+                .status(AgentStatus.EXECUTING)
+                .steps(List.of())
+                .build();
+
+        CompletableFuture<List<AgentEventDto>> received = eventBus.subscribe(taskId, () -> {
+                    subscribed.countDown();
+                    return snapshot;
+                })
+                .collectList()
+                .toFuture();
+        awaitQuietly(subscribed);
+
+        taskStore.writeBatch(Map.of(), List.of(), Map.of(taskId,
+                List.of(eventBus.completionMessage("boom"))));
+
+        assertThat(received).failsWithin(Duration.ofSeconds(5)).withThrowableOfType(Exception.class)
+                .withMessageContaining("boom");
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static AgentStepDto step(int attempt, int stepNumber) {
+        return AgentStepDto.builder().attempt(attempt).stepNumber(stepNumber).status(AgentStatus.EXECUTING).build();
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.example.agent.service;
+
+import com.example.agent.enums.AgentRole;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * AgentTaskGraph 计划解析与校验测试
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class AgentTaskGraphTest {
+
+    private static final List<String> TOOLS = List.of("search", "cache");
+
+    @Test
+    void ordersNodesTopologicallyAndAppendsReviewer() {
+        AgentTaskGraph graph = parse("计划如下：{\"subtasks\":["
+                + subtask("c", "EXECUTOR", "[\"a\",\"b\"]") + ","
+                + subtask("a", "RESEARCHER", "[]") + ","
+                + subtask("b", "RESEARCHER", "[\"a\"]") + "]} 以上");
+
+        assertThat(graph.getNodes()).extracting(AgentTaskGraph.Node::id)
+                .containsExactly("a", "b", "c", AgentTaskGraph.REVIEW_NODE_ID);
+        assertThat(graph.getReviewNode().role()).isEqualTo(AgentRole.REVIEWER);
+        assertThat(graph.getReviewNode().dependsOn()).containsExactly("c");
+        assertThat(graph.getCriticalPathLength()).isEqualTo(4);
+    }
+
+    @Test
+    void independentSinksAllFeedTheAppendedReviewer() {
+        AgentTaskGraph graph = parse("{\"subtasks\":[" + subtask("a", "RESEARCHER", "[]") + ","
+                + subtask("b", "EXECUTOR", "[]") + "]}");
+
+        assertThat(graph.getReviewNode().dependsOn()).containsExactlyInAnyOrder("a", "b");
+        assertThat(graph.getCriticalPathLength()).isEqualTo(2);
+    }
+
+    @Test
+    void plannedReviewerSinkIsMovedLastInsteadOfAddingAnother() {
+        AgentTaskGraph graph = parse("{\"subtasks\":[" + subtask("r", "REVIEWER", "[\"a\"]") + ","
+                + subtask("a", "RESEARCHER", "[]") + "]}");
+
+        assertThat(graph.getNodes()).extracting(AgentTaskGraph.Node::id).containsExactly("a", "r");
+    }
+
+    @Test
+    void appendedReviewerIdAvoidsPlannedIds() {
+        AgentTaskGraph graph = parse("{\"subtasks\":[" + subtask("review", "RESEARCHER", "[]") + "]}");
+
+        assertThat(graph.getReviewNode().id()).isEqualTo("review2");
+    }
+
+    @Test
+    void missingIdsAndDisallowedToolsAreNormalised() {
+        AgentTaskGraph graph = parse("{\"subtasks\":[{\"role\":\"researcher\",\"task\":\"t\","
+                + "\"tools\":[\"search\",\"shell\",\"search\"],\"dependsOn\":[]}]}");
+
+        AgentTaskGraph.Node node = graph.getNodes().get(0);
+        assertThat(node.id()).isEqualTo("s1");
+        assertThat(node.tools()).containsExactly("search");
+    }
+
+    @Test
+    void rejectsCycles() {
+        assertInvalid("{\"subtasks\":[" + subtask("a", "RESEARCHER", "[\"c\"]") + ","
+                + subtask("b", "RESEARCHER", "[\"a\"]") + ","
+                + subtask("c", "EXECUTOR", "[\"b\"]") + "]}", "环");
+    }
+
+    @Test
+    void rejectsMissingAndSelfDependencies() {
+        assertInvalid("{\"subtasks\":[" + subtask("a", "RESEARCHER", "[\"x\"]") + "]}", "依赖无效: x");
+        assertInvalid("{\"subtasks\":[" + subtask("a", "RESEARCHER", "[\"a\"]") + "]}", "依赖无效: a");
+    }
+
+    @Test
+    void rejectsMalformedPlans() {
+        assertInvalid("没有计划", "没有JSON对象");
+        assertInvalid(null, "没有JSON对象");
+        assertInvalid("{\"subtasks\":[]}", "没有子任务");
+        assertInvalid("{\"subtasks\":[" + subtask("a", "RESEARCHER", "[]") + ","
+                + subtask("a", "EXECUTOR", "[]") + "]}", "ID重复");
+        assertInvalid("{\"subtasks\":[" + subtask("a", "COORDINATOR", "[]") + "]}", "角色无效");
+        assertInvalid("{\"subtasks\":[{\"id\":\"a\",\"role\":\"RESEARCHER\",\"task\":\" \"}]}", "缺少任务描述");
+    }
+
+    @Test
+    void rejectsTooManySubtasks() {
+        assertThatThrownBy(() -> AgentTaskGraph.parse("{\"subtasks\":[" + subtask("a", "RESEARCHER", "[]") + ","
+                + subtask("b", "RESEARCHER", "[]") + "]}", TOOLS, 1))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("超过上限");
+    }
+
+    private static AgentTaskGraph parse(String plan) {
+        return AgentTaskGraph.parse(plan, TOOLS, 8);
+    }
+
+    private static void assertInvalid(String plan, String message) {
+        assertThatThrownBy(() -> parse(plan))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining(message);
+    }
+
+    private static String subtask(String id, String role, String dependsOn) {
+        return "{\"id\":\"" + id + "\",\"role\":\"" + role + "\",\"task\":\"do " + id + "\",\"tools\":[],"
+                + "\"dependsOn\":" + dependsOn + "}";
+    }
+
+}
@@ -0,0 +1,273 @@
+package com.example.agent.service;
+
+import com.example.agent.config.AgentConfig;
+import com.example.agent.enums.AgentStatus;
+import com.example.agent.exception.TaskRejectedException;
+import com.example.agent.model.dto.AgentStepDto;
+import com.example.agent.model.dto.AgentTaskResponse;
+import com.example.agent.model.dto.AgentTaskRequest;
+import com.example.agent.support.RedisTestSupport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * AgentTaskQueue 与 AgentClusterWorker 本地Redis集成测试：领取、接管、确认、归还和投递次数超限，Redis不可达时跳过
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class AgentTaskQueueRedisTest {
+
+    private static final String STREAM_KEY = "agent:tasks";
+
+    private LettuceConnectionFactory factory;
+    private StringRedisTemplate redis;
+    private AgentTaskQueue nodeA;
+    private AgentTaskQueue nodeB;
+    private AgentClusterWorker worker;
+
+    @BeforeEach
+    void setUp() {
+        factory = RedisTestSupport.connectionFactory();
+        redis = RedisTestSupport.template(factory);
+        redis.delete(STREAM_KEY);
+        nodeA = queue("node-a");
+        nodeB = queue("node-b");
+        nodeA.createGroup();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (worker != null) {
+            worker.stop();
+        }
+        if (factory != null) {
+            redis.delete(STREAM_KEY);
+            factory.destroy();
+        }
+    }
+
+    @Test
+    void readClaimsNewTaskAndAckRemovesIt() {
+        nodeA.enqueue(request("t1"), "origin");
+
+        List<AgentTaskQueue.QueuedTask> tasks = nodeA.read(10);
+
+        assertThat(tasks).singleElement().satisfies(task -> {
+            assertThat(task.taskId()).isEqualTo("t1");
+            assertThat(task.request().getTask()).isEqualTo("task t1");
+            assertThat(task.origin()).isEqualTo("origin");
+            assertThat(task.deliveries()).isEqualTo(1);
+        });
+        assertThat(nodeB.read(10)).isEmpty();
+        assertThat(nodeA.getStats()).containsEntry("pending", 1L);
+
+        nodeA.ack(tasks.get(0).recordId());
+
+        assertThat(redis.opsForStream().size(STREAM_KEY)).isZero();
+        assertThat(nodeA.getStats()).containsEntry("pending", 0L);
+    }
+
+    @Test
+    void readHonoursCount() {
+        nodeA.enqueue(request("t1"), "origin");
+        nodeA.enqueue(request("t2"), "origin");
+        nodeA.enqueue(request("t3"), "origin");
+
+        assertThat(nodeA.read(2)).extracting(AgentTaskQueue.QueuedTask::taskId).containsExactly("t1", "t2");
+        assertThat(nodeB.read(2)).extracting(AgentTaskQueue.QueuedTask::taskId).containsExactly("t3");
+    }
+
+    @Test
+    void enqueueRejectsWhenBacklogIsFull() {
+        AgentConfig config = new AgentConfig();
+        config.setClusterNodeId("node-c");
+        config.setClusterMaxQueuedTasks(1);
+        AgentTaskQueue limited = new AgentTaskQueue(redis, config);
+        limited.init();
+        limited.enqueue(request("t1"), "origin");
+
+        assertThatThrownBy(() -> limited.enqueue(request("t2"), "origin"))
+                .isInstanceOf(TaskRejectedException.class);
+    }
+
+    @Test
+    void reclaimTakesOverIdleEntryAndCountsDelivery() {
+        nodeA.enqueue(request("t1"), "origin");
+        String recordId = nodeA.read(1).get(0).recordId();
+
+        assertThat(nodeB.reclaim(Duration.ofMinutes(1), 10)).isEmpty();
+
+        List<AgentTaskQueue.QueuedTask> reclaimed = nodeB.reclaim(Duration.ZERO, 10);
+
+        assertThat(reclaimed).singleElement().satisfies(task -> {
+            assertThat(task.recordId()).isEqualTo(recordId);
+            assertThat(task.taskId()).isEqualTo("t1");
+            assertThat(task.deliveries()).isEqualTo(2);
+        });
+    }
+
+    @Test
+    void touchKeepsEntryFromBeingReclaimed() throws InterruptedException {
+        nodeA.enqueue(request("t1"), "origin");
+        String recordId = nodeA.read(1).get(0).recordId();
+        Thread.sleep(300);
+
+        nodeA.touch(List.of(recordId));
+
+        assertThat(nodeB.reclaim(Duration.ofMillis(200), 10)).isEmpty();
+        assertThat(nodeB.reclaim(Duration.ZERO, 10)).singleElement()
+                .satisfies(task -> assertThat(task.deliveries()).isEqualTo(2));
+    }
+
+    @Test
+    void requeueReturnsEntryWithoutCountingDelivery() {
+        nodeA.enqueue(request("t1"), "origin");
+        AgentTaskQueue.QueuedTask claimed = nodeA.read(1).get(0);
+
+        nodeA.requeue(claimed);
+
+        assertThat(nodeA.getStats()).containsEntry("pending", 0L).containsEntry("backlog", 1L);
+        List<AgentTaskQueue.QueuedTask> reread = nodeB.read(10);
+        assertThat(reread).singleElement().satisfies(task -> {
+            assertThat(task.recordId()).isNotEqualTo(claimed.recordId());
+            assertThat(task.taskId()).isEqualTo("t1");
+            assertThat(task.request().getTask()).isEqualTo("task t1");
+            assertThat(task.origin()).isEqualTo("origin");
+            assertThat(task.deliveries()).isEqualTo(1);
+        });
+    }
+
+    @Test
+    void requeueKeepsEarlierDeliveriesOfReclaimedEntry() {
+        nodeA.enqueue(request("t1"), "origin");
+        nodeA.read(1);
+        AgentTaskQueue.QueuedTask reclaimed = nodeB.reclaim(Duration.ZERO, 1).get(0);
+
+        nodeB.requeue(reclaimed);
+
+        assertThat(nodeA.read(1)).singleElement().satisfies(task -> assertThat(task.deliveries()).isEqualTo(2));
+    }
+
+    @Test
+    void workerDeadLettersEntryExceedingMaxDeliveries() {
+        AgentExecutor executor = mock(AgentExecutor.class);
+        AgentEventRelay relay = mock(AgentEventRelay.class);
+        AgentTaskWriteBehind writeBehind = mock(AgentTaskWriteBehind.class);
+        when(writeBehind.flush("t1")).thenReturn(Mono.empty());
+        AgentTaskStore taskStore = mock(AgentTaskStore.class);
+        when(taskStore.load("t1")).thenReturn(AgentTaskResponse.builder()
+                .taskId("t1")
+                .status(AgentStatus.EXECUTING)
+                .steps(new ArrayList<>(List.of(AgentStepDto.builder().stepNumber(1).build())))
+                .build());
+        AgentTaskArchiver archiver = mock(AgentTaskArchiver.class);
+        worker = worker(nodeB, executor, relay, writeBehind, taskStore, archiver, 0L);
+
+        nodeA.enqueue(request("t1"), "origin");
+        nodeA.read(1);
+        worker.start();
+
+        await(() -> redis.opsForStream().size(STREAM_KEY) == 0);
+        verify(relay).complete(eq("origin"), eq("t1"), anyString());
+        verify(writeBehind).enqueueCompletion(eq("t1"), anyString());
+        verify(executor, never()).executeLocal(any(), anyInt());
+        ArgumentCaptor<AgentTaskResponse> failed = ArgumentCaptor.forClass(AgentTaskResponse.class);
+        verify(writeBehind).enqueueStatus(failed.capture());
+        assertThat(failed.getValue().getStatus()).isEqualTo(AgentStatus.FAILED);
+        assertThat(failed.getValue().getEndTime()).isNotNull();
+        assertThat(failed.getValue().getErrorMessage()).isNotBlank();
+        assertThat(failed.getValue().getSteps()).hasSize(1);
+        verify(archiver, timeout(5000)).submit(eq(failed.getValue()), eq("task t1"), any());
+        assertThat(worker.getStats()).containsEntry("deadLettered", 1L);
+    }
+
+    @Test
+    void workerRequeuesTaskRejectedLocallyWithoutDeadLettering() {
+        AgentExecutor executor = mock(AgentExecutor.class);
+        when(executor.executeLocal(any(), anyInt()))
+                .thenThrow(new TaskRejectedException("任务队列已满，请稍后重试", 1))
+                .thenReturn(Flux.empty());
+        // 空闲超时足够长：未确认条目不会被接管，只能通过归还重新领取
+        worker = worker(nodeB, executor, mock(AgentEventRelay.class), mock(AgentTaskWriteBehind.class), mock(AgentTaskStore.class), mock(AgentTaskArchiver.class), 60_000L);
+
+        nodeA.enqueue(request("t1"), "origin");
+        worker.start();
+
+        await(() -> Long.valueOf(1L).equals(worker.getStats().get("completed")));
+        assertThat(worker.getStats()).containsEntry("deadLettered", 0L);
+        assertThat(nodeB.getStats()).containsEntry("requeued", 1L);
+        verify(executor, times(2)).executeLocal(any(), eq(1));
+        assertThat(redis.opsForStream().size(STREAM_KEY)).isZero();
+    }
+
+    private AgentTaskQueue queue(String nodeId) {
+        AgentConfig config = new AgentConfig();
+        config.setClusterNodeId(nodeId);
+        AgentTaskQueue queue = new AgentTaskQueue(redis, config);
+        queue.init();
+        return queue;
+    }
+
+    /**
+     * 投递次数上限为1的工作节点，条目被接管一次即判定失败
+     */
+    private AgentClusterWorker worker(AgentTaskQueue queue, AgentExecutor executor, AgentEventRelay relay,
+                                      AgentTaskWriteBehind writeBehind, AgentTaskStore taskStore,
+                                      AgentTaskArchiver archiver, long claimIdle) {
+        AgentConfig config = new AgentConfig();
+        config.setClusterEnabled(true);
+        config.setClusterPollInterval(20L);
+        config.setClusterHeartbeatInterval(20L);
+        config.setClusterClaimIdle(claimIdle);
+        config.setClusterMaxDeliveries(1);
+        AgentTaskScheduler scheduler = mock(AgentTaskScheduler.class);
+        when(scheduler.availableSlots()).thenReturn(1);
+        return new AgentClusterWorker(config, queue, relay, writeBehind, executor, taskStore, scheduler, archiver);
+    }
+
+    private static AgentTaskRequest request(String taskId) {
+        AgentTaskRequest request = new AgentTaskRequest();
+        request.setTaskId(taskId);
+        request.setTask("task " + taskId);
+        return request;
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (!condition.getAsBoolean()) {
+            assertThat(System.nanoTime()).as("condition not met within 5s").isLessThan(deadline);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.example.agent.service;
+
+import com.example.agent.config.AgentConfig;
+import com.example.agent.enums.AgentStatus;
+import com.example.agent.model.dto.AgentTaskResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+/**
+ * AgentTaskRegistry 淘汰测试：已完成区的数量上限、存活时间和定期清理，运行中的任务不受影响
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class AgentTaskRegistryTest {
+
+    private AgentConfig agentConfig;
+    private AgentTaskRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        agentConfig = new AgentConfig();
+        agentConfig.setFinishedTaskCacheSize(2);
+        agentConfig.setFinishedTaskTtl(1);
+        agentConfig.setFinishedTaskSweepInterval(20);
+        registry = new AgentTaskRegistry(agentConfig);
+    }
+
+    @AfterEach
+    void tearDown() {
+        registry.stop();
+    }
+
+    @Test
+    void finishedTasksBeyondCacheSizeAreEvictedOldestFirst() {
+        finish("t1");
+        finish("t2");
+        finish("t3");
+
+        assertThat(registry.get("t1")).isNull();
+        assertThat(registry.get("t2")).isNotNull();
+        assertThat(registry.get("t3")).isNotNull();
+        assertThat(registry.getStats()).containsEntry("finished", 2).containsEntry("evicted", 1L);
+    }
+
+    @Test
+    void sweepEvictsExpiredFinishedTasksButKeepsActiveOnes() throws InterruptedException {
+        finish("t1");
+        registry.register("t2", response("t2"));
+
+        registry.sweep();
+        assertThat(registry.get("t1")).isNotNull();
+
+        Thread.sleep(1100);
+        registry.sweep();
+
+        assertThat(registry.getStats()).containsEntry("finished", 0).containsEntry("evicted", 1L)
+                .containsEntry("active", 1);
+        assertThat(registry.get("t1")).isNull();
+        assertThat(registry.get("t2")).isNotNull();
+    }
+
+    @Test
+    void startSchedulesPeriodicSweep() {
+        AgentTaskRegistry sweeping = spy(registry);
+
+        sweeping.start();
+
+        verify(sweeping, timeout(1000).atLeast(2)).sweep();
+    }
+
+    @Test
+    void removeDropsActiveAndFinishedTasks() {
+        registry.register("t1", response("t1"));
+        finish("t2");
+
+        registry.remove("t1");
+        registry.remove("t2");
+
+        assertThat(registry.get("t1")).isNull();
+        assertThat(registry.get("t2")).isNull();
+        assertThat(registry.getStats()).containsEntry("active", 0).containsEntry("finished", 0)
+                .containsEntry("evicted", 0L);
+    }
+
+    private void finish(String taskId) {
+        registry.register(taskId, response(taskId));
+        registry.complete(taskId);
+    }
+
+    private static AgentTaskResponse response(String taskId) {
+        return AgentTaskResponse.builder().taskId(taskId).status(AgentStatus.COMPLETED).build();
+    }
+
+}
@@ -0,0 +1,168 @@
+package com.example.agent.service;
+
+import com.example.agent.config.AgentConfig;
+import com.example.agent.exception.TaskRejectedException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * AgentTaskScheduler 调度测试：立即启动、排队位置推送、满队列拒绝与重试建议、释放时的槽位交接
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class AgentTaskSchedulerTest {
+
+    private AgentConfig agentConfig;
+    private AgentTaskScheduler scheduler;
+
+    /**
+     * 已启动的任务ID
+     */
+    private final List<String> launched = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        agentConfig = new AgentConfig();
+        agentConfig.setMaxConcurrentAgents(1);
+        agentConfig.setMaxQueuedTasks(2);
+        agentConfig.setRetryAfterSeconds(5);
+        scheduler = new AgentTaskScheduler(agentConfig);
+    }
+
+    @Test
+    void launchesImmediatelyWhileSlotsAreFree() {
+        List<Integer> positions = new ArrayList<>();
+
+        int position = scheduler.submit("t1", launcher("t1"), positions::add);
+
+        assertThat(position).isZero();
+        assertThat(launched).containsExactly("t1");
+        assertThat(positions).isEmpty();
+        assertThat(scheduler.availableSlots()).isZero();
+        assertThat(scheduler.getStats()).containsEntry("running", 1).containsEntry("queued", 0);
+    }
+
+    @Test
+    void queuedTasksReceivePositionsAndMoveUpOnRelease() {
+        List<Integer> second = new ArrayList<>();
+        List<Integer> third = new ArrayList<>();
+        scheduler.submit("t1", launcher("t1"), position -> { });
+
+        assertThat(scheduler.submit("t2", launcher("t2"), second::add)).isEqualTo(1);
+        assertThat(scheduler.submit("t3", launcher("t3"), third::add)).isEqualTo(2);
+        assertThat(second).containsExactly(1);
+        assertThat(third).containsExactly(2);
+
+        scheduler.release("t1", 100);
+
+        assertThat(launched).containsExactly("t1", "t2");
+        assertThat(third).containsExactly(2, 1);
+        // 已启动的任务不再收到排队位置
+        assertThat(second).containsExactly(1);
+    }
+
+    @Test
+    void releaseHandsSlotToNextTaskOrFreesIt() {
+        scheduler.submit("t1", launcher("t1"), position -> { });
+        scheduler.submit("t2", launcher("t2"), position -> { });
+
+        scheduler.release("t1", 100);
+
+        assertThat(launched).containsExactly("t1", "t2");
+        assertThat(scheduler.getStats()).containsEntry("running", 1).containsEntry("queued", 0);
+
+        scheduler.release("t2", 100);
+
+        assertThat(scheduler.getStats()).containsEntry("running", 0);
+        assertThat(scheduler.availableSlots()).isEqualTo(1);
+    }
+
+    @Test
+    void returningBorrowedSlotHandsItToQueuedTask() {
+        agentConfig.setMaxConcurrentAgents(2);
+        scheduler.submit("t1", launcher("t1"), position -> { });
+        assertThat(scheduler.tryBorrow()).isTrue();
+        scheduler.submit("t2", launcher("t2"), position -> { });
+        // 有排队任务时不再借出槽位
+        assertThat(scheduler.tryBorrow()).isFalse();
+
+        scheduler.releaseBorrowed();
+
+        assertThat(launched).containsExactly("t1", "t2");
+        assertThat(scheduler.getStats()).containsEntry("running", 2).containsEntry("borrowed", 0)
+                .containsEntry("queued", 0);
+    }
+
+    @Test
+    void rejectsWhenQueueIsFullWithConfiguredRetryAfter() {
+        fillQueue();
+
+        assertThatThrownBy(() -> scheduler.submit("t4", launcher("t4"), position -> { }))
+                .isInstanceOfSatisfying(TaskRejectedException.class,
+                        e -> assertThat(e.getRetryAfterSeconds()).isEqualTo(5));
+        assertThat(launched).containsExactly("t1");
+        assertThat(scheduler.getStats()).containsEntry("rejected", 1L).containsEntry("queued", 2);
+    }
+
+    @Test
+    void retryAfterFollowsAverageTaskDuration() {
+        scheduler.submit("t0", launcher("t0"), position -> { });
+        scheduler.release("t0", 20_000);
+        fillQueue();
+
+        // 两个排队任务加新任务共3批，每批按平均耗时20秒估算
+        assertThatThrownBy(() -> scheduler.submit("t4", launcher("t4"), position -> { }))
+                .isInstanceOfSatisfying(TaskRejectedException.class,
+                        e -> assertThat(e.getRetryAfterSeconds()).isEqualTo(60));
+        assertThat(scheduler.getStats()).containsEntry("avgTaskMillis", 20_000L);
+    }
+
+    @Test
+    void positionListenerRunsOutsideSchedulerLock() {
+        scheduler.submit("t1", launcher("t1"), position -> { });
+        scheduler.submit("t2", launcher("t2"), position -> { });
+        List<Integer> observed = new ArrayList<>();
+        // 监听器在其他线程访问调度器，若在调度器锁内调用会一直等待
+        scheduler.submit("t3", launcher("t3"), position -> observed.add(
+                CompletableFuture.supplyAsync(() -> (Integer) scheduler.getStats().get("queued"))
+                        .orTimeout(2, TimeUnit.SECONDS)
+                        .join()));
+
+        scheduler.release("t1", 100);
+
+        assertThat(observed).containsExactly(2, 1);
+    }
+
+    @Test
+    void failingLauncherReturnsItsSlot() {
+        scheduler.submit("t1", () -> {
+            throw new IllegalStateException("boom");
+        }, position -> { });
+
+        assertThat(scheduler.getStats()).containsEntry("running", 0);
+        assertThat(scheduler.availableSlots()).isEqualTo(1);
+    }
+
+    /**
+     * 占满唯一的并发槽位和两个排队位置
+     */
+    private void fillQueue() {
+        scheduler.submit("t1", launcher("t1"), position -> { });
+        scheduler.submit("t2", launcher("t2"), position -> { });
+        scheduler.submit("t3", launcher("t3"), position -> { });
+    }
+
+    private Runnable launcher(String taskId) {
+        return () -> launched.add(taskId);
+    }
+
+}
@@ -0,0 +1,125 @@
+package com.example.agent.service;
+
+import com.example.agent.enums.AgentStatus;
+import com.example.agent.model.dto.AgentStepDto;
+import com.example.agent.model.dto.AgentTaskResponse;
+import com.example.agent.support.RedisTestSupport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * AgentTaskStore 本地Redis集成测试，Redis不可达时跳过
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class AgentTaskStoreRedisTest {
+
+    private LettuceConnectionFactory factory;
+    private StringRedisTemplate redis;
+    private AgentTaskStore taskStore;
+    private String taskId;
+
+    @BeforeEach
+    void setUp() {
+        factory = RedisTestSupport.connectionFactory();
+        redis = RedisTestSupport.template(factory);
+        taskStore = new AgentTaskStore(redis);
+        taskId = "test-" + UUID.randomUUID();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (factory != null) {
+            redis.delete(List.of(AgentTaskStore.taskKey(taskId), AgentTaskStore.stepsKey(taskId)));
+            factory.destroy();
+        }
+    }
+
+    @Test
+    void writeBatchAppendsStepsAndStatus() {
+        AgentTaskResponse status = AgentTaskResponse.builder()
+                .taskId(taskId)
+                .status(AgentStatus.COMPLETED)
+                .result("done")
+                .totalIterations(2)
+                .build();
+
+        taskStore.writeBatch(Map.of(taskId, List.of(step(1), step(2))), List.of(status), Map.of());
+
+        AgentTaskResponse loaded = taskStore.load(taskId);
+        assertThat(loaded.getStatus()).isEqualTo(AgentStatus.COMPLETED);
+        assertThat(loaded.getResult()).isEqualTo("done");
+        assertThat(loaded.getSteps()).extracting(AgentStepDto::getStepNumber).containsExactly(1, 2);
+    }
+
+    @Test
+    void retriedBatchDoesNotAppendStepsTwice() {
+        AgentStepDto first = step(1);
+        AgentStepDto second = step(2);
+        taskStore.writeBatch(Map.of(taskId, List.of(first, second)), List.of(), Map.of());
+
+        // 应答丢失后重试：已写入的步骤和期间新到的步骤一起重发
+        AgentTaskStore.WriteResult retried = taskStore.writeBatch(
+                Map.of(taskId, List.of(first, second, step(3))), List.of(), Map.of());
+
+        assertThat(retried.skippedSteps()).isEqualTo(2);
+        assertThat(retried.failedTasks()).isEmpty();
+        assertThat(taskStore.load(taskId)).isNull();
+        assertThat(redis.opsForList().range(AgentTaskStore.stepsKey(taskId), 0, -1)).hasSize(3);
+    }
+
+    @Test
+    void failingTaskIsIsolatedFromOthersInBatch() {
+        String badTaskId = taskId + "-bad";
+        redis.opsForValue().set(AgentTaskStore.stepsKey(badTaskId), "not a list");
+        try {
+            AgentTaskStore.WriteResult result = taskStore.writeBatch(
+                    Map.of(badTaskId, List.of(step(1)), taskId, List.of(step(1))),
+                    List.of(AgentTaskResponse.builder().taskId(taskId).status(AgentStatus.COMPLETED).build()),
+                    Map.of());
+
+            assertThat(result.failedTasks()).containsExactly(badTaskId);
+            AgentTaskResponse loaded = taskStore.load(taskId);
+            assertThat(loaded.getStatus()).isEqualTo(AgentStatus.COMPLETED);
+            assertThat(loaded.getSteps()).hasSize(1);
+        } finally {
+            redis.delete(AgentTaskStore.stepsKey(badTaskId));
+        }
+    }
+
+    @Test
+    void loadFallsBackToLegacyJsonString() {
+        redis.opsForValue().set(AgentTaskStore.taskKey(taskId),
+                "{\"taskId\":\"" + taskId + "\",\"status\":\"FAILED\",\"errorMessage\":\"boom\"}");
+
+        AgentTaskResponse loaded = taskStore.load(taskId);
+
+        assertThat(loaded.getStatus()).isEqualTo(AgentStatus.FAILED);
+        assertThat(loaded.getErrorMessage()).isEqualTo("boom");
+    }
+
+    @Test
+    void evictLegacyAllowsStatusHashOnReusedTaskId() {
+        redis.opsForValue().set(AgentTaskStore.taskKey(taskId), "{\"taskId\":\"" + taskId + "\"}");
+
+        taskStore.evictLegacy(taskId);
+        taskStore.saveStatus(AgentTaskResponse.builder().taskId(taskId).status(AgentStatus.THINKING).build());
+
+        assertThat(taskStore.load(taskId).getStatus()).isEqualTo(AgentStatus.THINKING);
+    }
+
+    private static AgentStepDto step(int stepNumber) {
+        return AgentStepDto.builder().stepNumber(stepNumber).status(AgentStatus.EXECUTING).build();
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.example.agent.service;
+
+import com.example.agent.enums.AgentStatus;
+import com.example.agent.model.dto.AgentTaskResponse;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * AgentTaskStore 旧版本格式解析测试
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class AgentTaskStoreTest {
+
+    @Test
+    void parsesLegacyJsonSnapshot() {
+        String json = "{\"taskId\":\"t1\",\"status\":\"COMPLETED\",\"result\":\"done\",\"totalIterations\":2,"
+                + "\"startTime\":\"2025-10-22T10:00:00\",\"endTime\":\"2025-10-22T10:00:30\","
+                + "\"steps\":[{\"stepNumber\":1,\"status\":\"EXECUTING\"},{\"stepNumber\":2,\"status\":\"COMPLETED\"}]}";
+
+        AgentTaskResponse response = AgentTaskStore.parseLegacy(json);
+
+        assertThat(response.getTaskId()).isEqualTo("t1");
+        assertThat(response.getStatus()).isEqualTo(AgentStatus.COMPLETED);
+        assertThat(response.getResult()).isEqualTo("done");
+        assertThat(response.getStartTime()).isEqualTo(LocalDateTime.of(2025, 10, 22, 10, 0, 0));
+        assertThat(response.getSteps()).hasSize(2);
+        assertThat(response.getSteps().get(1).getStatus()).isEqualTo(AgentStatus.COMPLETED);
+    }
+
+    @Test
+    void legacySnapshotWithoutStepsGetsEmptyList() {
+        AgentTaskResponse response = AgentTaskStore.parseLegacy("{\"taskId\":\"t1\",\"status\":\"THINKING\"}");
+
+        assertThat(response.getSteps()).isEmpty();
+    }
+
+    @Test
+    void blankLegacyValueIsMissing() {
+        assertThat(AgentTaskStore.parseLegacy(null)).isNull();
+        assertThat(AgentTaskStore.parseLegacy(" ")).isNull();
+    }
+
+}
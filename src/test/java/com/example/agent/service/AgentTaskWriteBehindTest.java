@@ -0,0 +1,266 @@
+package com.example.agent.service;
+
+import com.example.agent.config.AgentConfig;
+import com.example.agent.enums.AgentStatus;
+import com.example.agent.model.dto.AgentEventDto;
+import com.example.agent.model.dto.AgentStepDto;
+import com.example.agent.model.dto.AgentTaskResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * AgentTaskWriteBehind 重试、背压与事件批量发布测试
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class AgentTaskWriteBehindTest {
+
+    private AgentTaskStore taskStore;
+    private AgentConfig agentConfig;
+    private AgentTaskWriteBehind writeBehind;
+
+    /**
+     * 成功写入的步骤序号和状态，按写入顺序
+     */
+    private final List<Integer> writtenSteps = new ArrayList<>();
+    private final List<AgentStatus> writtenStatuses = new ArrayList<>();
+
+    /**
+     * 成功发布的事件消息，按批次内发布顺序
+     */
+    private final List<String> publishedMessages = new ArrayList<>();
+
+    /**
+     * 剩余需要失败的写入次数
+     */
+    private int failuresLeft;
+
+    /**
+     * 写入总是失败的任务，模拟单个任务的键出错
+     */
+    private final Set<String> failingTasks = new HashSet<>();
+
+    @BeforeEach
+    void setUp() {
+        taskStore = mock(AgentTaskStore.class);
+        AgentTaskEventBus taskEventBus = mock(AgentTaskEventBus.class);
+        when(taskEventBus.stepMessage(anyString(), any()))
+                .thenAnswer(invocation -> "step:" + invocation.<AgentStepDto>getArgument(1).getStepNumber());
+        when(taskEventBus.eventMessage(anyString(), any()))
+                .thenAnswer(invocation -> "delta:" + invocation.<AgentEventDto>getArgument(1).getDelta());
+        when(taskEventBus.isEnabled()).thenReturn(true);
+        when(taskEventBus.completionMessage(any()))
+                .thenAnswer(invocation -> "done:" + invocation.getArgument(0));
+        when(taskStore.writeBatch(anyMap(), any(), anyMap())).thenAnswer(invocation -> {
+            if (failuresLeft > 0) {
+                failuresLeft--;
+                throw new IllegalStateException("connection reset");
+            }
+            Map<String, List<AgentStepDto>> steps = invocation.getArgument(0);
+            List<AgentTaskResponse> statuses = new ArrayList<>(invocation.getArgument(1));
+            Map<String, List<String>> events = invocation.getArgument(2);
+            Set<String> failed = new HashSet<>();
+            steps.forEach((taskId, list) -> {
+                if (failingTasks.contains(taskId)) {
+                    failed.add(taskId);
+                } else {
+                    list.forEach(step -> writtenSteps.add(step.getStepNumber()));
+                }
+            });
+            statuses.stream()
+                    .filter(status -> !failingTasks.contains(status.getTaskId()))
+                    .forEach(status -> writtenStatuses.add(status.getStatus()));
+            events.forEach((taskId, messages) -> {
+                if (!failingTasks.contains(taskId)) {
+                    publishedMessages.addAll(messages);
+                }
+            });
+            return new AgentTaskStore.WriteResult(steps.size() + statuses.size(), failed, 0);
+        });
+
+        agentConfig = new AgentConfig();
+        agentConfig.setWriteBehindRetryBackoff(1L);
+        agentConfig.setWriteBehindFlushRetries(2);
+        writeBehind = new AgentTaskWriteBehind(taskStore, taskEventBus, agentConfig);
+    }
+
+    @AfterEach
+    void tearDown() {
+        writeBehind.stop();
+    }
+
+    @Test
+    void failedBatchIsRetriedWithoutLosingSteps() {
+        failuresLeft = 1;
+        writeBehind.enqueueStep("t1", step(1)).block();
+        writeBehind.enqueueStep("t1", step(2)).block();
+        writeBehind.enqueueStatus(status("t1", AgentStatus.COMPLETED));
+
+        writeBehind.flush().block(Duration.ofSeconds(5));
+
+        assertThat(writtenSteps).containsExactly(1, 2);
+        assertThat(writtenStatuses).containsExactly(AgentStatus.COMPLETED);
+        assertThat(writeBehind.getStats()).containsEntry("failedBatches", 1L).containsEntry("pendingSteps", 0L);
+    }
+
+    @Test
+    void flushFailsWhenRetriesAreExhaustedAndKeepsData() {
+        failuresLeft = 10;
+        writeBehind.enqueueStep("t1", step(1)).block();
+        writeBehind.enqueueStatus(status("t1", AgentStatus.FAILED));
+
+        assertThatThrownBy(() -> writeBehind.flush().block(Duration.ofSeconds(5)))
+                .hasMessageContaining("not persisted");
+        assertThat(writtenSteps).isEmpty();
+
+        failuresLeft = 0;
+        writeBehind.flush().block(Duration.ofSeconds(5));
+
+        assertThat(writtenSteps).containsExactly(1);
+        assertThat(writtenStatuses).containsExactly(AgentStatus.FAILED);
+    }
+
+    @Test
+    void stepsEnqueuedDuringFailureStayInOrder() {
+        failuresLeft = 1;
+        writeBehind.enqueueStep("t1", step(1)).block();
+        writeBehind.enqueueStatus(status("t1", AgentStatus.THINKING));
+        assertThatThrownBy(() -> {
+            agentConfig.setWriteBehindFlushRetries(0);
+            writeBehind.flush().block(Duration.ofSeconds(5));
+        }).isInstanceOf(RuntimeException.class);
+
+        writeBehind.enqueueStep("t1", step(2)).block();
+        writeBehind.enqueueStatus(status("t1", AgentStatus.COMPLETED));
+        writeBehind.flush().block(Duration.ofSeconds(5));
+
+        assertThat(writtenSteps).containsExactly(1, 2);
+        assertThat(writtenStatuses).containsExactly(AgentStatus.COMPLETED);
+    }
+
+    @Test
+    void fullBufferMakesCallerWaitForFlushInsteadOfDropping() {
+        agentConfig.setWriteBehindMaxPending(2);
+
+        writeBehind.enqueueStep("t1", step(1)).block(Duration.ofSeconds(5));
+        assertThat(writtenSteps).isEmpty();
+
+        writeBehind.enqueueStep("t1", step(2)).block(Duration.ofSeconds(5));
+        assertThat(writtenSteps).containsExactly(1, 2);
+
+        writeBehind.enqueueStep("t2", step(1)).block(Duration.ofSeconds(5));
+        writeBehind.flush().block(Duration.ofSeconds(5));
+        assertThat(writtenSteps).containsExactly(1, 2, 1);
+        assertThat(writeBehind.getStats()).containsEntry("backpressureWaits", 1L);
+    }
+
+    @Test
+    void eventsArePublishedInOrderWithCompletionAfterLastStep() {
+        writeBehind.enqueueEvent("t1", AgentEventDto.delta("t1", 1, "a"));
+        writeBehind.enqueueStep("t1", step(1)).block();
+        writeBehind.enqueueEvent("t1", AgentEventDto.step("t1", step(1)));
+        writeBehind.enqueueEvent("t1", AgentEventDto.delta("t1", 2, "b"));
+        writeBehind.enqueueStep("t1", step(2)).block();
+        writeBehind.enqueueCompletion("t1", null);
+
+        writeBehind.flush().block(Duration.ofSeconds(5));
+
+        assertThat(publishedMessages).containsExactly("delta:a", "step:1", "delta:b", "step:2", "done:null");
+        verify(taskStore, times(1)).writeBatch(anyMap(), any(), anyMap());
+    }
+
+    @Test
+    void consecutiveDeltasOfSameStepAreCoalescedPerFlush() {
+        writeBehind.enqueueEvent("t1", AgentEventDto.delta("t1", 1, "a"));
+        writeBehind.enqueueEvent("t1", AgentEventDto.delta("t1", 1, "b"));
+        writeBehind.enqueueEvent("t1", AgentEventDto.delta("t1", 2, "c"));
+        writeBehind.enqueueStep("t1", step(2)).block();
+        writeBehind.enqueueEvent("t1", AgentEventDto.delta("t1", 2, "d"));
+        writeBehind.enqueueEvent("t1", AgentEventDto.delta("t1", 2, "e"));
+
+        writeBehind.flush().block(Duration.ofSeconds(5));
+
+        assertThat(publishedMessages).containsExactly("delta:ab", "delta:c", "step:2", "delta:de");
+        assertThat(writeBehind.getStats()).containsEntry("coalescedDeltas", 2L);
+    }
+
+    @Test
+    void coalescingDoesNotModifyEmittedEvent() {
+        AgentEventDto first = AgentEventDto.delta("t1", 1, "a");
+        writeBehind.enqueueEvent("t1", first);
+        writeBehind.enqueueEvent("t1", AgentEventDto.delta("t1", 1, "b"));
+
+        writeBehind.flush().block(Duration.ofSeconds(5));
+
+        assertThat(first.getDelta()).isEqualTo("a");
+        assertThat(publishedMessages).containsExactly("delta:ab");
+    }
+
+    @Test
+    void failedBatchDropsTransientEventsButKeepsSteps() {
+        failuresLeft = 1;
+        agentConfig.setWriteBehindFlushRetries(0);
+        writeBehind.enqueueStep("t1", step(1)).block();
+        writeBehind.enqueueEvent("t1", AgentEventDto.delta("t1", 2, "stale"));
+        assertThatThrownBy(() -> writeBehind.flush().block(Duration.ofSeconds(5)))
+                .isInstanceOf(RuntimeException.class);
+
+        writeBehind.flush().block(Duration.ofSeconds(5));
+
+        assertThat(publishedMessages).containsExactly("step:1");
+        assertThat(writeBehind.getStats()).containsEntry("droppedEvents", 1L);
+    }
+
+    @Test
+    void failingTaskDoesNotBlockOtherTasksInBatch() {
+        failingTasks.add("t2");
+        agentConfig.setWriteBehindFlushRetries(0);
+        writeBehind.enqueueStep("t1", step(1)).block();
+        writeBehind.enqueueStatus(status("t1", AgentStatus.COMPLETED));
+        writeBehind.enqueueStep("t2", step(7)).block();
+
+        writeBehind.flush("t1").block(Duration.ofSeconds(5));
+
+        assertThat(writtenSteps).containsExactly(1);
+        assertThat(writtenStatuses).containsExactly(AgentStatus.COMPLETED);
+        assertThat(writeBehind.getStats()).containsEntry("pendingTasks", 1).containsEntry("pendingSteps", 1L);
+        assertThatThrownBy(() -> writeBehind.flush("t2").block(Duration.ofSeconds(5)))
+                .hasMessageContaining("not persisted");
+        assertThatThrownBy(() -> writeBehind.flush().block(Duration.ofSeconds(5)))
+                .hasMessageContaining("not persisted");
+
+        failingTasks.clear();
+        writeBehind.flush().block(Duration.ofSeconds(5));
+
+        assertThat(writtenSteps).containsExactly(1, 7);
+        assertThat(writeBehind.getStats()).containsEntry("pendingTasks", 0).containsEntry("pendingSteps", 0L);
+    }
+
+    private static AgentStepDto step(int stepNumber) {
+        return AgentStepDto.builder().stepNumber(stepNumber).status(AgentStatus.EXECUTING).build();
+    }
+
+    private static AgentTaskResponse status(String taskId, AgentStatus status) {
+        return AgentTaskResponse.builder().taskId(taskId).status(status).build();
+    }
+
+}
@@ -0,0 +1,238 @@
+package com.example.agent.service;
+
+import com.example.agent.config.AzureOpenAIConfig;
+import com.example.agent.enums.ModelTier;
+import com.example.agent.exception.TaskRejectedException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * AzureOpenAIDeploymentPool 首token统计与对冲测试，调用由测试替换，不访问网络
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class AzureOpenAIDeploymentPoolTest {
+
+    private AzureOpenAIConfig config;
+    private AzureOpenAIDeploymentPool pool;
+
+    /**
+     * 对冲测试中按发起顺序记录的调用：0为主请求，1为对冲请求
+     */
+    private final List<String> cancelledCalls = new CopyOnWriteArrayList<>();
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() {
+        config = new AzureOpenAIConfig();
+        config.setEndpoint("https://example.invalid/");
+        config.setApiKey("test");
+        config.setDeploymentName("gpt");
+        pool = new AzureOpenAIDeploymentPool(config);
+    }
+
+    @Test
+    void cancelBeforeFirstTokenPastDeadlineCountsAsLatencySample() throws InterruptedException {
+        pool.execute(ModelTier.LARGE, 10, deployment -> Flux.just("x").delayElements(Duration.ofMillis(10)),
+                served -> {
+                }).blockLast();
+        long ewmaBefore = ewmaLatency();
+
+        Disposable slow = pool.execute(ModelTier.LARGE, 10, deployment -> Flux.<String>never(), served -> {
+        }).subscribe();
+        Thread.sleep(100);
+        slow.dispose();
+
+        assertThat(deploymentStats()).containsEntry("slowCancels", 1L);
+        assertThat(ewmaLatency()).isGreaterThan(ewmaBefore);
+    }
+
+    @Test
+    void cancelBeforeAnyLatencyDataIsNotCounted() {
+        Disposable slow = pool.execute(ModelTier.LARGE, 10, deployment -> Flux.<String>never(), served -> {
+        }).subscribe();
+        slow.dispose();
+
+        assertThat(deploymentStats()).containsEntry("slowCancels", 0L);
+        assertThat(ewmaLatency()).isZero();
+    }
+
+    @Test
+    void hedgeWinsAndPrimaryIsCancelled() {
+        enableHedging(1.0);
+
+        List<String> result = pool.executeHedged(ModelTier.LARGE, 10, call(
+                        Flux.never(),
+                        Flux.just("hedge")), served -> {
+                })
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        assertThat(result).containsExactly("hedge");
+        assertThat(cancelledCalls).containsExactly("call-0");
+        assertThat(hedgeStats()).containsEntry("issued", 1L).containsEntry("wins", 1L);
+    }
+
+    @Test
+    void primaryWinsAndHedgeIsCancelled() {
+        enableHedging(1.0);
+
+        List<String> result = pool.executeHedged(ModelTier.LARGE, 10, call(
+                        Flux.just("primary").delaySubscription(Duration.ofMillis(200)),
+                        Flux.never()), served -> {
+                })
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        assertThat(result).containsExactly("primary");
+        assertThat(cancelledCalls).containsExactly("call-1");
+        assertThat(hedgeStats()).containsEntry("issued", 1L).containsEntry("wins", 0L);
+    }
+
+    @Test
+    void hedgeBudgetLimitsIssuedHedges() {
+        // 每个请求积累0.5个额度：第一个请求无额度不对冲，第二个请求对冲
+        enableHedging(0.5);
+
+        for (int i = 0; i < 2; i++) {
+            calls.set(0);
+            pool.executeHedged(ModelTier.LARGE, 10, call(
+                            Flux.just("primary").delaySubscription(Duration.ofMillis(150)),
+                            Flux.just("hedge").delaySubscription(Duration.ofMillis(150))), served -> {
+                    })
+                    .blockLast(Duration.ofSeconds(5));
+        }
+
+        assertThat(hedgeStats()).containsEntry("eligible", 2L).containsEntry("issued", 1L)
+                .containsEntry("budgetDenied", 1L);
+    }
+
+    @Test
+    void primaryErrorCancelsPendingHedge() throws InterruptedException {
+        enableHedging(1.0);
+        config.setHedgeMinDelay(300);
+
+        long start = System.nanoTime();
+        assertThatThrownBy(() -> pool.executeHedged(ModelTier.LARGE, 10, call(
+                        Flux.error(new IllegalStateException("boom")),
+                        Flux.error(new IllegalStateException("boom again")),
+                        Flux.never()), served -> {
+                })
+                .blockLast(Duration.ofSeconds(5)))
+                .hasMessageContaining("boom");
+
+        assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofMillis(300));
+        Thread.sleep(400);
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(hedgeStats()).containsEntry("issued", 0L);
+    }
+
+    @Test
+    void primaryErrorCancelsHedgeInFlight() {
+        enableHedging(1.0);
+
+        assertThatThrownBy(() -> pool.executeHedged(ModelTier.LARGE, 10, call(
+                        Flux.<String>error(new IllegalStateException("boom")).delaySubscription(Duration.ofMillis(200)),
+                        Flux.never()), served -> {
+                })
+                .blockLast(Duration.ofSeconds(5)))
+                .hasMessageContaining("boom");
+
+        // 主请求出错后限流器的重试包装会再取消一次已结束的主请求，只检查对冲请求
+        assertThat(cancelledCalls).contains("call-1");
+        assertThat(hedgeStats()).containsEntry("issued", 1L).containsEntry("wins", 0L);
+    }
+
+    @Test
+    void localRejectionTriesAnotherDeploymentWithoutCountingFailure() {
+        config.setDeployments(List.of(deployment("east"), deployment("west")));
+        pool = new AzureOpenAIDeploymentPool(config);
+        List<String> servedBy = new CopyOnWriteArrayList<>();
+
+        List<String> result = pool.execute(ModelTier.LARGE, 10, call(
+                        Flux.error(new TaskRejectedException("rate limit queue is full", 1)),
+                        Flux.just("ok")), servedBy::add)
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        assertThat(result).containsExactly("ok");
+        assertThat(servedBy).hasSize(1);
+        assertThat(deploymentStats("east")).containsEntry("failures", 0L);
+        assertThat(deploymentStats("west")).containsEntry("failures", 0L);
+    }
+
+    @Test
+    void localRejectionOnEveryDeploymentIsReturned() {
+        assertThatThrownBy(() -> pool.execute(ModelTier.LARGE, 10, call(
+                        Flux.<String>error(new TaskRejectedException("rate limit queue is full", 1))), served -> {
+                })
+                .blockLast(Duration.ofSeconds(5)))
+                .isInstanceOf(TaskRejectedException.class);
+        assertThat(deploymentStats()).containsEntry("failures", 0L).containsEntry("healthy", true);
+    }
+
+    /**
+     * 开启对冲：一个首token样本即可计算对冲延迟，取最快样本且至少50ms
+     */
+    private void enableHedging(double budgetRatio) {
+        config.setHedgeEnabled(true);
+        config.setHedgeMinSamples(1);
+        config.setHedgePercentile(1);
+        config.setHedgeMinDelay(50);
+        config.setHedgeBudgetRatio(budgetRatio);
+        pool.execute(ModelTier.LARGE, 10, deployment -> Flux.just("warmup"), served -> {
+        }).blockLast();
+    }
+
+    /**
+     * 按发起顺序返回各次调用的响应，记录被取消的调用
+     */
+    @SafeVarargs
+    private Function<AzureOpenAIDeployment, Flux<String>> call(Flux<String>... responses) {
+        return deployment -> {
+            int index = calls.getAndIncrement();
+            String name = "call-" + index;
+            return responses[Math.min(index, responses.length - 1)]
+                    .doOnCancel(() -> cancelledCalls.add(name));
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> hedgeStats() {
+        return (Map<String, Object>) pool.getStats().get("hedge");
+    }
+
+    private Map<String, Object> deploymentStats() {
+        return deploymentStats("gpt");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> deploymentStats(String name) {
+        Map<String, Object> deployments = (Map<String, Object>) pool.getStats().get("deployments");
+        return (Map<String, Object>) deployments.get(name);
+    }
+
+    private static AzureOpenAIConfig.Deployment deployment(String name) {
+        AzureOpenAIConfig.Deployment deployment = new AzureOpenAIConfig.Deployment();
+        deployment.setName(name);
+        return deployment;
+    }
+
+    private long ewmaLatency() {
+        return (Long) deploymentStats().get("ewmaLatencyMillis");
+    }
+
+}
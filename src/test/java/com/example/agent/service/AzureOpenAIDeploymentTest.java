@@ -0,0 +1,52 @@
+package com.example.agent.service;
+
+import com.example.agent.enums.ModelTier;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * AzureOpenAIDeployment 延迟EWMA衰减测试
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class AzureOpenAIDeploymentTest {
+
+    @Test
+    void latencyEstimateDecaysWhileIdle() throws InterruptedException {
+        AzureOpenAIDeployment deployment = deployment(100);
+        deployment.recordLatency(1000);
+
+        Thread.sleep(300);
+
+        // 三个半衰期后约为原值的1/8
+        assertThat(deployment.getEwmaLatencyMillis()).isBetween(50.0, 200.0);
+    }
+
+    @Test
+    void newSampleUpdatesDecayedEstimate() throws InterruptedException {
+        AzureOpenAIDeployment deployment = deployment(100);
+        deployment.recordLatency(1000);
+        Thread.sleep(300);
+
+        deployment.recordLatency(100);
+
+        assertThat(deployment.getEwmaLatencyMillis()).isLessThan(200.0);
+    }
+
+    @Test
+    void disabledDecayKeepsEstimate() throws InterruptedException {
+        AzureOpenAIDeployment deployment = deployment(0);
+        deployment.recordLatency(1000);
+
+        Thread.sleep(50);
+
+        assertThat(deployment.getEwmaLatencyMillis()).isEqualTo(1000.0);
+    }
+
+    private static AzureOpenAIDeployment deployment(long halfLifeMillis) {
+        return new AzureOpenAIDeployment("gpt", "gpt", ModelTier.LARGE, null, null, 1, halfLifeMillis);
+    }
+
+}
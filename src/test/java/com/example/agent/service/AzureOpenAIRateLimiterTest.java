@@ -0,0 +1,81 @@
+package com.example.agent.service;
+
+import com.azure.core.http.HttpResponse;
+import com.azure.core.http.policy.RequestRetryCondition;
+import com.example.agent.exception.TaskRejectedException;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * AzureOpenAIRateLimiter 排队上限与客户端重试条件测试
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class AzureOpenAIRateLimiterTest {
+
+    @Test
+    void callWithinQuotaRunsImmediately() {
+        AzureOpenAIRateLimiter limiter = new AzureOpenAIRateLimiter("d1", 60, 60_000, 0, 1);
+
+        assertThat(limiter.throttle(100, Flux.just("ok")).collectList().block()).containsExactly("ok");
+        assertThat(limiter.getStats()).containsEntry("throttled", 0L).containsEntry("queued", 0);
+    }
+
+    @Test
+    void waitingCallsAreCappedAndExtraCallsRejected() {
+        AzureOpenAIRateLimiter limiter = new AzureOpenAIRateLimiter("d1", 1, 60_000, 0, 1);
+        limiter.throttle(100, Flux.just("first")).blockLast();
+
+        Disposable waiting = limiter.throttle(100, Flux.just("second")).subscribe();
+        assertThat(limiter.getStats()).containsEntry("queued", 1);
+
+        assertThatThrownBy(() -> limiter.throttle(100, Flux.just("third")).blockLast())
+                .isInstanceOf(TaskRejectedException.class)
+                .hasMessageContaining("queue is full");
+        assertThat(limiter.getStats()).containsEntry("rejected", 1L);
+
+        waiting.dispose();
+        assertThat(limiter.getStats()).containsEntry("queued", 0);
+    }
+
+    @Test
+    void estimateDependsOnRequestedTokens() {
+        AzureOpenAIRateLimiter limiter = new AzureOpenAIRateLimiter("d1", 300, 6_000, 0, 10);
+        limiter.throttle(5_000, Flux.just("x")).blockLast();
+
+        assertThat(limiter.estimateWaitMillis(500)).isZero();
+        assertThat(limiter.estimateWaitMillis(4_000)).isGreaterThan(0);
+    }
+
+    @Test
+    void clientRetriesServerErrorsButNotRateLimits() {
+        assertThat(AzureOpenAIDeploymentPool.shouldClientRetry(condition(429, null))).isFalse();
+        assertThat(AzureOpenAIDeploymentPool.shouldClientRetry(condition(400, null))).isFalse();
+        assertThat(AzureOpenAIDeploymentPool.shouldClientRetry(condition(501, null))).isFalse();
+        assertThat(AzureOpenAIDeploymentPool.shouldClientRetry(condition(503, null))).isTrue();
+        assertThat(AzureOpenAIDeploymentPool.shouldClientRetry(condition(408, null))).isTrue();
+        assertThat(AzureOpenAIDeploymentPool.shouldClientRetry(condition(0, new IOException("reset")))).isTrue();
+        assertThat(AzureOpenAIDeploymentPool.shouldClientRetry(condition(0, new IllegalStateException()))).isFalse();
+    }
+
+    private static RequestRetryCondition condition(int status, Throwable error) {
+        RequestRetryCondition condition = mock(RequestRetryCondition.class);
+        if (error == null) {
+            HttpResponse response = mock(HttpResponse.class);
+            when(response.getStatusCode()).thenReturn(status);
+            when(condition.getResponse()).thenReturn(response);
+        }
+        when(condition.getThrowable()).thenReturn(error);
+        return condition;
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.example.agent.service;
+
+import org.junit.jupiter.api.Test;
+
+import static com.example.agent.service.StreamingToolCallAssemblerTest.chunk;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * AzureOpenAIService 流式分片过滤测试
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class AzureOpenAIServiceTest {
+
+    @Test
+    void chunksWithoutDeltaAreNotFirstTokens() {
+        assertThat(AzureOpenAIService.hasDelta(chunk("[]"))).isFalse();
+        assertThat(AzureOpenAIService.hasDelta(chunk("[{\"index\":0,\"delta\":{\"role\":\"assistant\"}}]"))).isFalse();
+        assertThat(AzureOpenAIService.hasDelta(chunk("[{\"index\":0,\"delta\":{\"role\":\"assistant\",\"content\":\"\"}}]")))
+                .isFalse();
+        assertThat(AzureOpenAIService.hasDelta(chunk("[{\"index\":0,\"finish_reason\":\"stop\",\"delta\":{}}]")))
+                .isFalse();
+    }
+
+    @Test
+    void contentOrToolCallDeltaIsFirstToken() {
+        assertThat(AzureOpenAIService.hasDelta(chunk("[{\"index\":0,\"delta\":{\"content\":\"思\"}}]"))).isTrue();
+        assertThat(AzureOpenAIService.hasDelta(chunk("[{\"index\":0,\"delta\":{\"tool_calls\":[{\"type\":\"function\","
+                + "\"id\":\"call_1\",\"function\":{\"name\":\"search\",\"arguments\":\"\"}}]}}]"))).isTrue();
+    }
+
+}
@@ -0,0 +1,165 @@
+package com.example.agent.service;
+
+import com.example.agent.config.AgentConfig;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * LlmRequestCoalescer 请求合并测试：共享上游订阅、晚到者回放、引用计数取消和结束后重新请求
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class LlmRequestCoalescerTest {
+
+    private static final String KEY = "prompt-key";
+
+    private AgentConfig agentConfig;
+    private LlmRequestCoalescer coalescer;
+
+    /**
+     * 各次上游调用的分片流，按调用顺序
+     */
+    private final List<Sinks.Many<String>> upstreams = new ArrayList<>();
+
+    /**
+     * 各次上游调用的服务部署回调
+     */
+    private final List<Consumer<String>> servedCallbacks = new ArrayList<>();
+
+    private final AtomicInteger subscriptions = new AtomicInteger();
+    private final AtomicInteger cancellations = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() {
+        agentConfig = new AgentConfig();
+        coalescer = new LlmRequestCoalescer(agentConfig);
+    }
+
+    @Test
+    void concurrentIdenticalCallsShareOneUpstreamSubscription() {
+        List<String> first = new ArrayList<>();
+        List<String> second = new ArrayList<>();
+        List<String> served = new ArrayList<>();
+
+        coalescer.share(KEY, upstream(), served::add).subscribe(first::add);
+        coalescer.share(KEY, upstream(), served::add).subscribe(second::add);
+        upstreams.get(0).tryEmitNext("a");
+        servedCallbacks.get(0).accept("east");
+        upstreams.get(0).tryEmitNext("b");
+        upstreams.get(0).tryEmitComplete();
+
+        assertThat(upstreams).hasSize(1);
+        assertThat(subscriptions).hasValue(1);
+        assertThat(first).containsExactly("a", "b");
+        assertThat(second).containsExactly("a", "b");
+        assertThat(served).containsExactly("east", "east");
+        assertThat(coalescer.getStats()).containsEntry("upstream", 1L).containsEntry("coalesced", 1L)
+                .containsEntry("inflight", 0);
+    }
+
+    @Test
+    void joinerDuringStreamReceivesEarlierChunks() {
+        List<String> late = new ArrayList<>();
+        coalescer.share(KEY, upstream(), deployment -> { }).subscribe();
+        upstreams.get(0).tryEmitNext("a");
+
+        coalescer.share(KEY, upstream(), deployment -> { }).subscribe(late::add);
+        upstreams.get(0).tryEmitNext("b");
+
+        assertThat(upstreams).hasSize(1);
+        assertThat(late).containsExactly("a", "b");
+    }
+
+    @Test
+    void upstreamIsCancelledOnlyAfterLastSubscriberCancels() {
+        Disposable first = coalescer.share(KEY, upstream(), deployment -> { }).subscribe();
+        Disposable second = coalescer.share(KEY, upstream(), deployment -> { }).subscribe();
+
+        first.dispose();
+
+        assertThat(cancellations).hasValue(0);
+        assertThat(coalescer.getStats()).containsEntry("inflight", 1);
+
+        second.dispose();
+
+        assertThat(cancellations).hasValue(1);
+        assertThat(coalescer.getStats()).containsEntry("inflight", 0);
+    }
+
+    @Test
+    void callAfterCompletionStartsFreshUpstream() {
+        List<String> late = new ArrayList<>();
+        coalescer.share(KEY, upstream(), deployment -> { }).subscribe();
+        upstreams.get(0).tryEmitNext("a");
+        upstreams.get(0).tryEmitComplete();
+
+        coalescer.share(KEY, upstream(), deployment -> { }).subscribe(late::add);
+        upstreams.get(1).tryEmitNext("fresh");
+
+        assertThat(upstreams).hasSize(2);
+        assertThat(subscriptions).hasValue(2);
+        assertThat(late).containsExactly("fresh");
+        assertThat(coalescer.getStats()).containsEntry("upstream", 2L).containsEntry("coalesced", 0L);
+    }
+
+    @Test
+    void callAfterCancellationStartsFreshUpstream() {
+        coalescer.share(KEY, upstream(), deployment -> { }).subscribe().dispose();
+
+        coalescer.share(KEY, upstream(), deployment -> { }).subscribe();
+
+        assertThat(upstreams).hasSize(2);
+        assertThat(subscriptions).hasValue(2);
+    }
+
+    @Test
+    void errorReachesAllSubscribersAndIsNotShared() {
+        List<Throwable> errors = new ArrayList<>();
+        coalescer.share(KEY, upstream(), deployment -> { }).subscribe(chunk -> { }, errors::add);
+        coalescer.share(KEY, upstream(), deployment -> { }).subscribe(chunk -> { }, errors::add);
+
+        upstreams.get(0).tryEmitError(new IllegalStateException("boom"));
+        coalescer.share(KEY, upstream(), deployment -> { }).subscribe();
+
+        assertThat(errors).hasSize(2).allSatisfy(e -> assertThat(e).hasMessage("boom"));
+        assertThat(upstreams).hasSize(2);
+    }
+
+    @Test
+    void differentKeysAndDisabledCoalescingCallUpstreamSeparately() {
+        coalescer.share(KEY, upstream(), deployment -> { }).subscribe();
+        coalescer.share("other-key", upstream(), deployment -> { }).subscribe();
+        agentConfig.setLlmCoalesceEnabled(false);
+        coalescer.share(KEY, upstream(), deployment -> { }).subscribe();
+
+        assertThat(upstreams).hasSize(3);
+        assertThat(subscriptions).hasValue(3);
+    }
+
+    /**
+     * 可控的上游调用：每次调用新建分片流，并记录订阅和取消次数
+     */
+    private Function<Consumer<String>, Flux<String>> upstream() {
+        return servedBy -> {
+            Sinks.Many<String> sink = Sinks.many().unicast().onBackpressureBuffer();
+            upstreams.add(sink);
+            servedCallbacks.add(servedBy);
+            return sink.asFlux()
+                    .doOnSubscribe(subscription -> subscriptions.incrementAndGet())
+                    .doOnCancel(cancellations::incrementAndGet);
+        };
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.example.agent.service;
+
+import com.azure.ai.openai.models.ChatCompletions;
+import com.example.agent.config.AgentConfig;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * LlmResponseCache 写入时机与工具流缓存测试
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class LlmResponseCacheTest {
+
+    private LlmResponseCache cache;
+
+    private final AtomicInteger upstreamCalls = new AtomicInteger();
+
+    private final AtomicInteger hits = new AtomicInteger();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate redis = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> values = mock(ValueOperations.class);
+        when(redis.opsForValue()).thenReturn(values);
+        when(values.get(anyString())).thenReturn(null);
+        cache = new LlmResponseCache(redis, new AgentConfig());
+    }
+
+    @Test
+    void completedStreamIsStoredAndReplayed() {
+        assertThat(cached("k", () -> false).collectList().block()).containsExactly("a", "b", "c");
+        assertThat(cached("k", () -> false).collectList().block()).containsExactly("a", "b", "c");
+
+        assertThat(upstreamCalls).hasValue(1);
+        assertThat(hits).hasValue(1);
+    }
+
+    @Test
+    void cancelledStreamIsNotStored() {
+        cached("k", () -> false).take(2).collectList().block();
+        cached("k", () -> false).collectList().block();
+
+        assertThat(upstreamCalls).hasValue(2);
+        assertThat(hits).hasValue(0);
+    }
+
+    @Test
+    void deliberateEarlyStopStoresReceivedChunks() {
+        List<String> first = cached("k", () -> true).takeUntil("b"::equals).collectList().block();
+        List<String> replay = cached("k", () -> true).collectList().block();
+
+        assertThat(first).containsExactly("a", "b");
+        assertThat(replay).containsExactly("a", "b");
+        assertThat(upstreamCalls).hasValue(1);
+    }
+
+    @Test
+    void toolStreamChunksRoundTripAndEmptyChunksAreSkipped() {
+        ChatCompletions filterOnly = StreamingToolCallAssemblerTest.chunk("[]");
+        ChatCompletions toolCall = StreamingToolCallAssemblerTest.chunk("[{\"index\":0,\"delta\":{\"tool_calls\":"
+                + "[{\"type\":\"function\",\"id\":\"call_1\",\"function\":{\"name\":\"search\",\"arguments\":\"{}\"}}]}}]");
+
+        cache.cached("tools", () -> Flux.just(filterOnly, toolCall), AzureOpenAIService::encodeChunk,
+                AzureOpenAIService::decodeChunk, () -> false, hits::incrementAndGet).blockLast();
+        List<ChatCompletions> replay = cache.cached("tools", Flux::<ChatCompletions>empty,
+                AzureOpenAIService::encodeChunk, AzureOpenAIService::decodeChunk, () -> false,
+                hits::incrementAndGet).collectList().block();
+
+        assertThat(replay).hasSize(1);
+        StreamingToolCallAssembler assembler = new StreamingToolCallAssembler();
+        replay.forEach(assembler::accept);
+        assertThat(assembler.getToolCalls()).containsExactly(
+                new StreamingToolCallAssembler.AssembledToolCall("call_1", "search", "{}"));
+    }
+
+    private Flux<String> cached(String key, BooleanSupplier stoppedEarly) {
+        return cache.cached(key, () -> {
+            upstreamCalls.incrementAndGet();
+            return Flux.just("a", "b", "c");
+        }, Function.identity(), Function.identity(), stoppedEarly, hits::incrementAndGet);
+    }
+
+}
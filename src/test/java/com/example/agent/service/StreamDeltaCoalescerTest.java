@@ -0,0 +1,61 @@
+package com.example.agent.service;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * StreamDeltaCoalescer 合并与定时下发测试
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class StreamDeltaCoalescerTest {
+
+    private final List<String> frames = new CopyOnWriteArrayList<>();
+
+    @Test
+    void firstDeltaIsSentImmediatelyAndRestIsMergedUntilMaxChars() {
+        StreamDeltaCoalescer coalescer = new StreamDeltaCoalescer(4, 60_000, null, frames::add);
+
+        coalescer.append("a");
+        coalescer.append("bc");
+        coalescer.append("de");
+        coalescer.append("f");
+        coalescer.flush();
+
+        assertThat(frames).containsExactly("a", "bcde", "f");
+    }
+
+    @Test
+    void closeCancelsScheduledFlushAndDropsBuffer() throws InterruptedException {
+        StreamDeltaCoalescer coalescer = new StreamDeltaCoalescer(64, 20, Schedulers.parallel(), frames::add);
+
+        coalescer.append("a");
+        coalescer.append("b");
+        coalescer.close();
+        Thread.sleep(60);
+        coalescer.append("c");
+        coalescer.flush();
+
+        assertThat(frames).containsExactly("a");
+    }
+
+    @Test
+    void timerSendsBufferedDeltasWhenGenerationPauses() throws InterruptedException {
+        StreamDeltaCoalescer coalescer = new StreamDeltaCoalescer(64, 20, Schedulers.parallel(), frames::add);
+
+        coalescer.append("a");
+        coalescer.append("b");
+        for (int i = 0; i < 50 && frames.size() < 2; i++) {
+            Thread.sleep(10);
+        }
+
+        assertThat(frames).containsExactly("a", "b");
+    }
+
+}
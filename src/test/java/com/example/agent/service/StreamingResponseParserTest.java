@@ -0,0 +1,132 @@
+package com.example.agent.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * StreamingResponseParser 增量解析测试
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class StreamingResponseParserTest {
+
+    @Test
+    void parsesSectionsFromWholeResponse() {
+        StreamingResponseParser parser = new StreamingResponseParser();
+
+        boolean stop = parser.append("思考: 需要先检索\n行动: search(\"agent\")\n");
+
+        assertThat(stop).isFalse();
+        assertThat(parser.getThinking()).isEqualTo("需要先检索");
+        assertThat(parser.getAction()).isEqualTo("search(\"agent\")");
+        assertThat(parser.isCompleted()).isFalse();
+    }
+
+    @Test
+    void recognisesMarkersSplitAcrossDeltas() {
+        StreamingResponseParser parser = new StreamingResponseParser();
+
+        appendCharByChar(parser, "思考: 已经有结果\nFINAL_ANSWER: 答案是42");
+
+        assertThat(parser.getThinking()).isEqualTo("已经有结果");
+        assertThat(parser.getFinalAnswer()).isEqualTo("答案是42");
+        assertThat(parser.isCompleted()).isTrue();
+        assertThat(parser.isStopped()).isFalse();
+    }
+
+    @Test
+    void markerSplitInTheMiddleIsFound() {
+        StreamingResponseParser parser = new StreamingResponseParser();
+
+        parser.append("思考: 好\nFINAL_AN");
+        parser.append("SWER: 完成");
+
+        assertThat(parser.getFinalAnswer()).isEqualTo("完成");
+    }
+
+    @Test
+    void finalAnswerWithoutTrailingMarkerRunsToEndOfText() {
+        StreamingResponseParser parser = new StreamingResponseParser();
+
+        parser.append("FINAL_ANSWER: 第一行\n");
+        parser.append("第二行");
+
+        assertThat(parser.isStopped()).isFalse();
+        assertThat(parser.getFinalAnswer()).isEqualTo("第一行\n第二行");
+    }
+
+    @Test
+    void terminatorAfterFinalAnswerStopsGeneration() {
+        StreamingResponseParser parser = new StreamingResponseParser();
+
+        assertThat(parser.append("FINAL_ANSWER: 答案\nEND_FINAL")).isFalse();
+        assertThat(parser.append("_ANSWER\n思考: 多余内容")).isTrue();
+
+        assertThat(parser.isStopped()).isTrue();
+        assertThat(parser.getFinalAnswer()).isEqualTo("答案");
+        assertThat(parser.getText()).doesNotContain("多余内容").doesNotContain(StreamingResponseParser.FINAL_ANSWER_END);
+        assertThat(parser.append("更多")).isTrue();
+    }
+
+    @Test
+    void markersInsideFinalAnswerAreKeptAsAnswerText() {
+        StreamingResponseParser parser = new StreamingResponseParser();
+        String answer = "部署分三步完成。\n思考: 回滚前先确认备份；\n行动: 执行 kubectl rollout undo。";
+        String stream = "思考: 用户要一份回滚说明，信息已经足够\n行动: 无需调用工具\nFINAL_ANSWER: " + answer
+                + "\n" + StreamingResponseParser.FINAL_ANSWER_END + "\n思考: 模型继续生成的多余内容";
+
+        boolean stopped = false;
+        for (int i = 0; i < stream.length() && !stopped; i += 3) {
+            stopped = parser.append(stream.substring(i, Math.min(stream.length(), i + 3)));
+        }
+
+        assertThat(stopped).isTrue();
+        assertThat(parser.getThinking()).isEqualTo("用户要一份回滚说明，信息已经足够");
+        assertThat(parser.getAction()).isEqualTo("无需调用工具");
+        assertThat(parser.getFinalAnswer()).isEqualTo(answer);
+        assertThat(parser.isCompleted()).isTrue();
+    }
+
+    @Test
+    void finalAnswerEndedByStopSequenceIsComplete() {
+        StreamingResponseParser parser = new StreamingResponseParser();
+
+        // 停止序列生效时服务端不输出结束标记，流正常结束
+        appendCharByChar(parser, "思考: 可以回答\nFINAL_ANSWER: 结论如下\n行动: 不是段落\n");
+
+        assertThat(parser.isStopped()).isFalse();
+        assertThat(parser.isCompleted()).isTrue();
+        assertThat(parser.getAction()).isNull();
+        assertThat(parser.getFinalAnswer()).isEqualTo("结论如下\n行动: 不是段落");
+    }
+
+    @Test
+    void completedMarkerSplitAcrossDeltasMarksCompletion() {
+        StreamingResponseParser parser = new StreamingResponseParser();
+
+        parser.append("思考: 任务");
+        parser.append("完成了");
+
+        assertThat(parser.isCompleted()).isTrue();
+        assertThat(parser.getFinalAnswer()).isEqualTo("思考: 任务完成了");
+    }
+
+    @Test
+    void responseWithoutMarkersIsTheFinalAnswer() {
+        StreamingResponseParser parser = new StreamingResponseParser();
+
+        parser.append("直接回答");
+
+        assertThat(parser.getThinking()).isNull();
+        assertThat(parser.getAction()).isNull();
+        assertThat(parser.isCompleted()).isFalse();
+        assertThat(parser.getFinalAnswer()).isEqualTo("直接回答");
+    }
+
+    private static void appendCharByChar(StreamingResponseParser parser, String text) {
+        text.codePoints().forEach(codePoint -> parser.append(new String(Character.toChars(codePoint))));
+    }
+
+}
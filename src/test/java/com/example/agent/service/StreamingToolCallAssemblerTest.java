@@ -0,0 +1,139 @@
+package com.example.agent.service;
+
+import com.azure.ai.openai.models.ChatCompletions;
+import com.azure.json.JsonProviders;
+import com.azure.json.JsonReader;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+/**
+ * StreamingToolCallAssembler 分片拼装测试
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class StreamingToolCallAssemblerTest {
+
+    @Test
+    void returnsTextContentAndIgnoresEmptyChunks() {
+        StreamingToolCallAssembler assembler = new StreamingToolCallAssembler();
+
+        assertThat(assembler.accept(chunk("[]"))).isNull();
+        assertThat(assembler.accept(chunk("[{\"index\":0,\"delta\":{\"role\":\"assistant\"}}]"))).isNull();
+        assertThat(assembler.accept(chunk("[{\"index\":0,\"delta\":{\"content\":\"思考\"}}]"))).isEqualTo("思考");
+        assertThat(assembler.hasToolCalls()).isFalse();
+    }
+
+    @Test
+    void fragmentsWithoutIdsAreAppendedToCurrentCall() {
+        StreamingToolCallAssembler assembler = new StreamingToolCallAssembler();
+
+        assembler.accept(toolChunk("call_1", "search", "{\\\"query\\\":"));
+        assembler.accept(toolChunk(null, null, "\\\"agent\\\"}"));
+
+        assertThat(assembler.getToolCalls()).containsExactly(
+                new StreamingToolCallAssembler.AssembledToolCall("call_1", "search", "{\"query\":\"agent\"}"));
+    }
+
+    @Test
+    void newIdStartsNewCallAndOrderIsKept() {
+        StreamingToolCallAssembler assembler = new StreamingToolCallAssembler();
+
+        assembler.accept(toolChunk("call_1", "search", "{\\\"q\\\":1}"));
+        assembler.accept(toolChunk("call_2", "fetch", "{"));
+        assembler.accept(toolChunk(null, null, "\\\"url\\\":\\\"x\\\"}"));
+        assembler.accept(toolChunk("call_2", null, ""));
+
+        assertThat(assembler.getToolCalls())
+                .extracting(StreamingToolCallAssembler.AssembledToolCall::id,
+                        StreamingToolCallAssembler.AssembledToolCall::name,
+                        StreamingToolCallAssembler.AssembledToolCall::arguments)
+                .containsExactly(
+                        tuple("call_1", "search", "{\"q\":1}"),
+                        tuple("call_2", "fetch", "{\"url\":\"x\"}"));
+    }
+
+    @Test
+    void fragmentWithoutIdBeforeAnyCallStartsAnonymousCall() {
+        StreamingToolCallAssembler assembler = new StreamingToolCallAssembler();
+
+        assembler.accept(toolChunk(null, "search", "{}"));
+
+        assertThat(assembler.getToolCalls()).containsExactly(
+                new StreamingToolCallAssembler.AssembledToolCall(null, "search", "{}"));
+    }
+
+    @Test
+    void listenerFiresOnceWhenArgumentsClose() {
+        List<StreamingToolCallAssembler.AssembledToolCall> completed = new ArrayList<>();
+        StreamingToolCallAssembler assembler = new StreamingToolCallAssembler(completed::add);
+
+        assembler.accept(toolChunk("call_1", "search", "{\\\"q\\\":{\\\"a\\\":"));
+        assembler.accept(toolChunk(null, null, "1}"));
+        assertThat(completed).isEmpty();
+
+        assembler.accept(toolChunk(null, null, "}"));
+        assembler.accept(toolChunk(null, null, ""));
+
+        assertThat(completed).containsExactly(
+                new StreamingToolCallAssembler.AssembledToolCall("call_1", "search", "{\"q\":{\"a\":1}}"));
+    }
+
+    @Test
+    void bracesInsideStringsAndEscapesDoNotCloseArguments() {
+        List<StreamingToolCallAssembler.AssembledToolCall> completed = new ArrayList<>();
+        StreamingToolCallAssembler assembler = new StreamingToolCallAssembler(completed::add);
+
+        assembler.accept(toolChunk("call_1", "echo", "{\\\"text\\\":\\\"}{ \\\\\\\""));
+        assertThat(completed).isEmpty();
+
+        assembler.accept(toolChunk(null, null, " }\\\"}"));
+
+        assertThat(completed).hasSize(1);
+        assertThat(completed.get(0).arguments()).isEqualTo("{\"text\":\"}{ \\\" }\"}");
+    }
+
+    @Test
+    void listenerWaitsForFunctionName() {
+        List<StreamingToolCallAssembler.AssembledToolCall> completed = new ArrayList<>();
+        StreamingToolCallAssembler assembler = new StreamingToolCallAssembler(completed::add);
+
+        assembler.accept(toolChunk("call_1", null, "{}"));
+
+        assertThat(completed).isEmpty();
+        assertThat(assembler.getToolCalls()).hasSize(1);
+    }
+
+    /**
+     * 构造带单个工具调用分片的流式响应，参数为已转义的JSON字符串内容
+     */
+    private static ChatCompletions toolChunk(String id, String name, String escapedArguments) {
+        StringBuilder toolCall = new StringBuilder("{\"type\":\"function\"");
+        if (id != null) {
+            toolCall.append(",\"id\":\"").append(id).append('"');
+        }
+        toolCall.append(",\"function\":{");
+        if (name != null) {
+            toolCall.append("\"name\":\"").append(name).append("\",");
+        }
+        toolCall.append("\"arguments\":\"").append(escapedArguments).append("\"}}");
+        return chunk("[{\"index\":0,\"delta\":{\"tool_calls\":[" + toolCall + "]}}]");
+    }
+
+    static ChatCompletions chunk(String choicesJson) {
+        String json = "{\"id\":\"chunk\",\"created\":0,\"choices\":" + choicesJson + "}";
+        try (JsonReader reader = JsonProviders.createReader(json)) {
+            return ChatCompletions.fromJson(reader);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
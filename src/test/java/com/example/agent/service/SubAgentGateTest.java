@@ -0,0 +1,151 @@
+package com.example.agent.service;
+
+import com.example.agent.config.AgentConfig;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * SubAgentGate 许可分配测试：父任务槽位、借用调度器槽位、排队任务优先和取消归还
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class SubAgentGateTest {
+
+    private AgentConfig agentConfig;
+    private AgentTaskScheduler scheduler;
+
+    /**
+     * 已启动的子Agent序号
+     */
+    private final List<Integer> started = new ArrayList<>();
+
+    /**
+     * 各子Agent的步骤流，完成即结束子Agent
+     */
+    private final List<Sinks.Many<Integer>> bodies = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        agentConfig = new AgentConfig();
+        agentConfig.setMaxConcurrentAgents(2);
+        agentConfig.setMaxQueuedTasks(10);
+        scheduler = new AgentTaskScheduler(agentConfig);
+        // 父任务占用一个槽位
+        scheduler.submit("parent", () -> { }, position -> { });
+    }
+
+    @Test
+    void childrenUseParentSlotThenBorrowFreeSlots() {
+        SubAgentGate gate = new SubAgentGate(scheduler, 4);
+
+        List<Disposable> children = runChildren(gate, 3);
+
+        assertThat(started).containsExactly(0, 1);
+        assertThat(scheduler.getStats()).containsEntry("running", 2).containsEntry("borrowed", 1);
+
+        bodies.get(0).tryEmitComplete();
+
+        assertThat(started).containsExactly(0, 1, 2);
+        assertThat(scheduler.getStats()).containsEntry("running", 2);
+
+        bodies.get(1).tryEmitComplete();
+        bodies.get(2).tryEmitComplete();
+
+        assertThat(gate.getRunning()).isZero();
+        assertThat(scheduler.getStats()).containsEntry("running", 1).containsEntry("borrowed", 0);
+        children.forEach(Disposable::dispose);
+    }
+
+    @Test
+    void queuedTaskTakesPrecedenceOverBorrowing() {
+        agentConfig.setMaxConcurrentAgents(1);
+        List<String> launched = new ArrayList<>();
+        scheduler.submit("queued", () -> launched.add("queued"), position -> { });
+        SubAgentGate gate = new SubAgentGate(scheduler, 4);
+
+        runChildren(gate, 2);
+
+        // 无空闲槽位时子Agent逐个使用父任务槽位
+        assertThat(started).containsExactly(0);
+        bodies.get(0).tryEmitComplete();
+        assertThat(started).containsExactly(0, 1);
+        assertThat(launched).isEmpty();
+        assertThat(scheduler.getStats()).containsEntry("borrowed", 0);
+    }
+
+    @Test
+    void returningBorrowedSlotLaunchesQueuedTask() {
+        SubAgentGate gate = new SubAgentGate(scheduler, 4);
+        runChildren(gate, 2);
+        List<String> launched = new ArrayList<>();
+        scheduler.submit("queued", () -> launched.add("queued"), position -> { });
+
+        bodies.get(1).tryEmitComplete();
+
+        assertThat(launched).containsExactly("queued");
+        assertThat(scheduler.getStats()).containsEntry("running", 2).containsEntry("borrowed", 0);
+    }
+
+    @Test
+    void maxParallelBoundsChildrenEvenWithFreeSlots() {
+        agentConfig.setMaxConcurrentAgents(5);
+        SubAgentGate gate = new SubAgentGate(scheduler, 2);
+
+        runChildren(gate, 4);
+
+        assertThat(started).containsExactly(0, 1);
+        assertThat(scheduler.getStats()).containsEntry("running", 2);
+    }
+
+    @Test
+    void cancellingWaitingOrRunningChildReleasesPermit() {
+        SubAgentGate gate = new SubAgentGate(scheduler, 4);
+        List<Disposable> children = runChildren(gate, 3);
+
+        // 等待中的子Agent取消后不再启动
+        children.get(2).dispose();
+        children.get(1).dispose();
+
+        assertThat(started).containsExactly(0, 1);
+        assertThat(gate.getRunning()).isEqualTo(1);
+        assertThat(scheduler.getStats()).containsEntry("running", 1).containsEntry("borrowed", 0);
+
+        children.get(0).dispose();
+        assertThat(gate.getRunning()).isZero();
+    }
+
+    @Test
+    void failedChildReleasesPermit() {
+        SubAgentGate gate = new SubAgentGate(scheduler, 1);
+        runChildren(gate, 2);
+
+        bodies.get(0).tryEmitError(new IllegalStateException("boom"));
+
+        assertThat(started).containsExactly(0, 1);
+        assertThat(gate.getRunning()).isEqualTo(1);
+    }
+
+    private List<Disposable> runChildren(SubAgentGate gate, int count) {
+        List<Disposable> children = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            Sinks.Many<Integer> body = Sinks.many().unicast().onBackpressureBuffer();
+            bodies.add(body);
+            children.add(gate.run(() -> {
+                started.add(index);
+                return body.asFlux();
+            }).onErrorResume(e -> Flux.empty()).subscribe());
+        }
+        return children;
+    }
+
+}
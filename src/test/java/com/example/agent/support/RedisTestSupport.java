@@ -0,0 +1,64 @@
+package com.example.agent.support;
+
+import org.junit.jupiter.api.Assumptions;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * 本地Redis测试支持
+ * 连接 localhost:6379 的15号库（可通过系统属性 test.redis.host / test.redis.port / test.redis.database 覆盖），
+ * 与应用使用的库隔离，测试可使用固定键名；不可达时跳过测试
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+public final class RedisTestSupport {
+
+    private static final String HOST = System.getProperty("test.redis.host", "localhost");
+    private static final int PORT = Integer.getInteger("test.redis.port", 6379);
+    private static final int DATABASE = Integer.getInteger("test.redis.database", 15);
+
+    private RedisTestSupport() {
+    }
+
+    /**
+     * 创建连接工厂，Redis不可达时跳过当前测试
+     *
+     * @return 已初始化的连接工厂，测试结束后需调用destroy
+     */
+    public static LettuceConnectionFactory connectionFactory() {
+        Assumptions.assumeTrue(isReachable(), "Redis not reachable at " + HOST + ":" + PORT);
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(HOST, PORT);
+        configuration.setDatabase(DATABASE);
+        LettuceConnectionFactory factory = new LettuceConnectionFactory(configuration);
+        factory.afterPropertiesSet();
+        factory.start();
+        return factory;
+    }
+
+    /**
+     * 创建字符串模板
+     *
+     * @param factory 连接工厂
+     * @return StringRedisTemplate
+     */
+    public static StringRedisTemplate template(LettuceConnectionFactory factory) {
+        StringRedisTemplate template = new StringRedisTemplate(factory);
+        template.afterPropertiesSet();
+        return template;
+    }
+
+    private static boolean isReachable() {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(HOST, PORT), 500);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.example.agent.tool;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * ToolSchemaValidator 校验与类型转换测试
+ *
+ * @author coderpwh
+ * @date 2025-10-22
+ */
+class ToolSchemaValidatorTest {
+
+    private final ToolSchemaValidator validator = ToolSchemaValidator.compile("search", Map.of(
+            "type", "object",
+            "properties", Map.of(
+                    "query", Map.of("type", "string"),
+                    "limit", Map.of("type", "integer", "default", 10),
+                    "score", Map.of("type", "number"),
+                    "exact", Map.of("type", "boolean"),
+                    "mode", Map.of("type", "string", "enum", List.of("fast", "deep")),
+                    "filter", Map.of("type", "object"),
+                    "tags", Map.of("type", "array")),
+            "required", List.of("query")));
+
+    @Test
+    void validParametersAreReturnedWithoutCopy() {
+        Map<String, Object> parameters = new HashMap<>(Map.of("query", "agent", "limit", 5));
+
+        assertThat(validator.validate(parameters)).isSameAs(parameters);
+    }
+
+    @Test
+    void coercesStringsAndWholeNumbersToDeclaredTypes() {
+        Map<String, Object> result = validator.validate(Map.of(
+                "query", 42, "limit", "7", "score", "0.5", "exact", "TRUE", "mode", "deep"));
+
+        assertThat(result)
+                .containsEntry("query", "42")
+                .containsEntry("limit", 7)
+                .containsEntry("score", 0.5)
+                .containsEntry("exact", true)
+                .containsEntry("mode", "deep");
+        assertThat(validator.validate(Map.of("query", "q", "limit", 3.0))).containsEntry("limit", 3);
+    }
+
+    @Test
+    void missingOptionalParameterGetsDefault() {
+        assertThat(validator.validate(Map.of("query", "q"))).containsEntry("limit", 10);
+    }
+
+    @Test
+    void missingRequiredParameterIsRejected() {
+        assertThatThrownBy(() -> validator.validate(null))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Missing required parameter for search: query");
+    }
+
+    @Test
+    void rejectsBadIntegerCoercions() {
+        assertInvalid("limit", "abc");
+        assertInvalid("limit", 1.5);
+        assertInvalid("limit", "2.5");
+        assertInvalid("limit", 1e12);
+        assertInvalid("limit", "NaN");
+    }
+
+    @Test
+    void rejectsBadNumberAndBooleanCoercions() {
+        assertInvalid("score", "high");
+        assertInvalid("score", "Infinity");
+        assertInvalid("exact", "yes");
+        assertInvalid("exact", 1);
+    }
+
+    @Test
+    void rejectsStructuredValuesForScalarsAndScalarsForStructures() {
+        assertInvalid("query", Map.of("a", 1));
+        assertInvalid("query", List.of("a"));
+        assertInvalid("filter", "{\"a\":1}");
+        assertInvalid("tags", "a,b");
+    }
+
+    @Test
+    void rejectsValueOutsideEnum() {
+        assertThatThrownBy(() -> validator.validate(Map.of("query", "q", "mode", "slow")))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("expected one of");
+    }
+
+    private void assertInvalid(String name, Object value) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("query", "q");
+        parameters.put(name, value);
+        assertThatThrownBy(() -> validator.validate(parameters))
+                .as("%s=%s", name, value)
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("search." + name);
+    }
+
+}